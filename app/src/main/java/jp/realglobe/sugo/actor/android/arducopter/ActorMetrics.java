@@ -0,0 +1,234 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Actor の計測値。
+ * モジュールの命令ごとの所要時間と実行レーンの状態、イベントごとの数をまとめる
+ */
+final class ActorMetrics {
+
+    /**
+     * actor が命令を受けてモジュールの処理が返るまで
+     */
+    static final String HOP_DISPATCH = "dispatch";
+    /**
+     * 命令を受けてから commandReached が発行されるまで
+     */
+    static final String HOP_REACHED = "reached";
+
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, LatencyHistogram>> commands = new ConcurrentHashMap<>();
+    private final List<LaneStats> lanes = new ArrayList<>();
+    private final TopicCounters topics = new TopicCounters();
+    private volatile SubscriberFanout subscribers;
+
+    private final LatencyHistogram reconnects = new LatencyHistogram();
+    private final LatencyHistogram connects = new LatencyHistogram();
+    private final LatencyHistogram roundTrips = new LatencyHistogram();
+    private volatile long lastRoundTrip = -1;
+    private volatile int lastReconnectAttempts;
+
+    private volatile String pendingCommand;
+    private volatile long pendingStart;
+
+    /**
+     * 状態を報告する実行レーンを加える
+     *
+     * @param lane 実行レーンの状態
+     */
+    synchronized void addLane(LaneStats lane) {
+        this.lanes.add(lane);
+    }
+
+    /**
+     * @return 実行レーンごとの待ち行列の長さ
+     */
+    synchronized Map<String, Integer> getLaneDepths() {
+        final Map<String, Integer> depths = new HashMap<>();
+        for (LaneStats lane : this.lanes) {
+            depths.put(lane.getName(), lane.getDepth());
+        }
+        return depths;
+    }
+
+    /**
+     * 状態を報告する購読者の配り先を設定する
+     *
+     * @param subscribers 購読者の配り先
+     */
+    void setSubscribers(SubscriberFanout subscribers) {
+        this.subscribers = subscribers;
+    }
+
+    /**
+     * @return イベントごとの数
+     */
+    TopicCounters getTopics() {
+        return this.topics;
+    }
+
+    /**
+     * @param command 命令名
+     * @param hop     区間名
+     * @return 命令の区間の所要時間の分布
+     */
+    LatencyHistogram histogram(String command, String hop) {
+        ConcurrentHashMap<String, LatencyHistogram> hops = this.commands.get(command);
+        if (hops == null) {
+            final ConcurrentHashMap<String, LatencyHistogram> created = new ConcurrentHashMap<>();
+            hops = this.commands.putIfAbsent(command, created);
+            if (hops == null) {
+                hops = created;
+            }
+        }
+        LatencyHistogram histogram = hops.get(hop);
+        if (histogram == null) {
+            final LatencyHistogram created = new LatencyHistogram();
+            histogram = hops.putIfAbsent(hop, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * 命令の処理が始まった
+     *
+     * @param command 命令名
+     * @return 開始時刻 (ナノ秒)
+     */
+    long commandStarted(String command) {
+        final long start = System.nanoTime();
+        this.pendingCommand = command;
+        this.pendingStart = start;
+        return start;
+    }
+
+    /**
+     * 命令の処理が返った
+     *
+     * @param command 命令名
+     * @param start   {@link #commandStarted(String)} の返り値
+     */
+    void commandReturned(String command, long start) {
+        histogram(command, HOP_DISPATCH).record(System.nanoTime() - start);
+    }
+
+    /**
+     * commandReached が発行された。
+     * 最後に受けた命令の所要時間として記録する
+     */
+    void commandReached() {
+        final String command = this.pendingCommand;
+        if (command == null) {
+            return;
+        }
+        this.pendingCommand = null;
+        histogram(command, HOP_REACHED).record(System.nanoTime() - this.pendingStart);
+    }
+
+    /**
+     * hub に繋ぎ直せた
+     *
+     * @param nanos    切れてから繋がるまでの時間 (ナノ秒)
+     * @param attempts 繋ぎ直しを試みた回数
+     */
+    void hubReconnected(long nanos, int attempts) {
+        this.reconnects.record(nanos);
+        this.lastReconnectAttempts = attempts;
+    }
+
+    /**
+     * hub に繋がった
+     *
+     * @param nanos 接続の確立にかかった時間 (ナノ秒)
+     */
+    void hubConnected(long nanos) {
+        this.connects.record(nanos);
+    }
+
+    /**
+     * hub の先の呼び出し側との往復時間を測れた。
+     * ping の返事か購読者の受け取り確認から測る
+     *
+     * @param nanos 往復時間 (ナノ秒)
+     */
+    void hubRoundTrip(long nanos) {
+        this.roundTrips.record(nanos);
+        this.lastRoundTrip = nanos;
+    }
+
+    /**
+     * @return 最後に測った hub との往復時間 (ナノ秒)。まだ測っていなければ負
+     */
+    long getLastHubRoundTrip() {
+        return this.lastRoundTrip;
+    }
+
+    /**
+     * @return 計測値。metrics イベントの中身になる
+     */
+    Map<String, Object> toMap() {
+        final Map<String, Object> commandMap = new HashMap<>();
+        for (Map.Entry<String, ConcurrentHashMap<String, LatencyHistogram>> command : this.commands.entrySet()) {
+            final Map<String, Object> hopMap = new HashMap<>();
+            for (Map.Entry<String, LatencyHistogram> hop : command.getValue().entrySet()) {
+                hopMap.put(hop.getKey(), hop.getValue().toMap());
+            }
+            commandMap.put(command.getKey(), hopMap);
+        }
+
+        final Map<String, Object> laneMap = new HashMap<>();
+        synchronized (this) {
+            for (LaneStats lane : this.lanes) {
+                final Map<String, Object> stats = new HashMap<>();
+                stats.put("depth", lane.getDepth());
+                stats.put("count", lane.getCount());
+                stats.put("dropped", lane.getDropped());
+                stats.put("lastWait", lane.getLastWait());
+                stats.put("maxWait", lane.getMaxWait());
+                stats.put("averageWait", lane.getAverageWait());
+                laneMap.put(lane.getName(), stats);
+            }
+        }
+
+        final Map<String, Object> hubMap = new HashMap<>();
+        hubMap.put("reconnect", this.reconnects.toMap());
+        hubMap.put("lastReconnectAttempts", this.lastReconnectAttempts);
+        hubMap.put("connect", this.connects.toMap());
+        hubMap.put("roundTrip", this.roundTrips.toMap());
+
+        final Map<String, Object> map = new HashMap<>();
+        map.put("commands", commandMap);
+        map.put("lanes", laneMap);
+        map.put("hub", hubMap);
+        map.put("topics", this.topics.toMap());
+        final SubscriberFanout subscribers = this.subscribers;
+        if (subscribers != null) {
+            map.put("subscribers", subscribers.toMap());
+        }
+        return map;
+    }
+
+}
@@ -19,19 +19,44 @@ package jp.realglobe.sugo.actor.android.arducopter;
 import android.app.Notification;
 import android.app.PendingIntent;
 import android.app.Service;
+import android.content.BroadcastReceiver;
+import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.Binder;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Looper;
 import android.os.Message;
+import android.os.PowerManager;
 import android.os.Process;
 import android.support.annotation.Nullable;
 import android.util.Log;
 
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import jp.realglobe.sugo.actor.Actor;
-import jp.realglobe.sugo.module.android.arducopter.ArduCopter;
 
 /**
  * Actor を担うサービス。
@@ -43,23 +68,297 @@ public class ActorService extends Service {
 
     static final String KEY_ACTOR_KEY = "actorKey";
     static final String KEY_HUB_ADDRESS = "hubAddress";
+    static final String KEY_MODULE_NAMES = "moduleNames";
+    static final String KEY_POSITION_RATE = "positionRate";
+    static final String KEY_ATTITUDE_RATE = "attitudeRate";
+    static final String KEY_SPEED_RATE = "speedRate";
+    static final String KEY_BATTERY_RATE = "batteryRate";
+    static final String KEY_ADAPTIVE_RATES = "adaptiveRates";
+    static final String KEY_LOW_BATTERY = "lowBattery";
+    static final String KEY_BATCHING = "batching";
+    static final String KEY_BATCH_WINDOW = "batchWindow";
+    static final String KEY_BATCH_AS_TEXT = "batchAsText";
+    static final String KEY_DELTA_ENCODING = "deltaEncoding";
+    static final String KEY_COORDINATE_PRECISION = "coordinatePrecision";
+    static final String KEY_ALTITUDE_PRECISION = "altitudePrecision";
+    static final String KEY_ATTITUDE_PRECISION = "attitudePrecision";
+    static final String KEY_SIMULATOR = "simulator";
+    static final String KEY_SIMULATOR_REPLAY = "simulatorReplay";
+    static final String KEY_SIMULATOR_SPEED = "simulatorSpeed";
+    static final String KEY_SIMULATOR_RATE = "simulatorRate";
+    static final String KEY_VIDEO = "video";
+    static final String KEY_VIDEO_PORT = "videoPort";
+    static final String KEY_VIDEO_SINK = "videoSink";
+    static final String KEY_VIDEO_SEGMENT_SIZE = "videoSegmentSize";
+    static final String KEY_POWER_PROFILES = "powerProfiles";
+    static final String KEY_EFFICIENCY_BATTERY = "efficiencyBattery";
+
+    /**
+     * 型ごとの起動の設定のキー
+     */
+    private static final String[] STRING_OPTIONS = {KEY_ACTOR_KEY, KEY_HUB_ADDRESS, KEY_VIDEO_SINK};
+    private static final String[] STRING_ARRAY_OPTIONS = {KEY_MODULE_NAMES};
+    private static final String[] BOOLEAN_OPTIONS = {KEY_ADAPTIVE_RATES, KEY_BATCHING, KEY_BATCH_AS_TEXT, KEY_DELTA_ENCODING, KEY_SIMULATOR, KEY_SIMULATOR_REPLAY, KEY_VIDEO,
+            KEY_POWER_PROFILES};
+    private static final String[] DOUBLE_OPTIONS = {KEY_POSITION_RATE, KEY_ATTITUDE_RATE, KEY_SPEED_RATE, KEY_BATTERY_RATE, KEY_LOW_BATTERY,
+            KEY_COORDINATE_PRECISION, KEY_ALTITUDE_PRECISION, KEY_ATTITUDE_PRECISION, KEY_SIMULATOR_SPEED, KEY_SIMULATOR_RATE, KEY_EFFICIENCY_BATTERY};
+    private static final String[] LONG_OPTIONS = {KEY_BATCH_WINDOW, KEY_VIDEO_SEGMENT_SIZE};
+    private static final String[] INT_OPTIONS = {KEY_VIDEO_PORT};
+
+    /**
+     * 起動のメッセージ。画面からの起動と、落ちた後にシステムが起こし直したときの起動
+     */
+    private static final int MSG_START = 0;
+    private static final int MSG_RESTART = 1;
+
+    /**
+     * 最後にうまく起動できたときの設定を覚えておくファイルの名前
+     */
+    static final String START_OPTIONS_FILE = "start.json";
+
+    /**
+     * 頻度を指定するキーと対象のイベント
+     */
+    private static final String[][] RATE_KEYS = {
+            {KEY_POSITION_RATE, Events.POSITION},
+            {KEY_ATTITUDE_RATE, Events.ATTITUDE},
+            {KEY_SPEED_RATE, Events.SPEED},
+            {KEY_BATTERY_RATE, Events.BATTERY},
+    };
+
+    /**
+     * 送信頻度を自動で調整するときに、それより下げないイベントごとの頻度 (回/秒)
+     */
+    private static final Object[][] MIN_RATES = {
+            {Events.POSITION, 1.0},
+            {Events.ATTITUDE, 0.5},
+            {Events.BATTERY, 0.2},
+    };
+
+    /**
+     * 送信頻度を自動で調整するときに、回線の混み具合を調べる間隔 (ミリ秒)
+     */
+    private static final long ADAPTIVE_INTERVAL = 1_000;
+
+    /**
+     * 省電力のときのイベントごとの最大送信頻度 (回/秒)
+     */
+    private static final Object[][] EFFICIENCY_RATES = {
+            {Events.POSITION, 1.0},
+            {Events.ATTITUDE, 0.5},
+            {Events.SPEED, 0.5},
+            {Events.BATTERY, 0.2},
+            {Events.GIMBAL_ORIENTATION, 0.5},
+    };
+
+    /**
+     * まとめ送りが有効なときの、省電力のときにイベントをまとめる時間 (ミリ秒)
+     */
+    private static final long EFFICIENCY_BATCH_WINDOW = 1_000;
+    /**
+     * CPU を眠らせない時間と、飛行中にそれを延ばす間隔 (ミリ秒)。
+     * 延ばし損ねても、時間が過ぎれば眠れるようにする
+     */
+    private static final long WAKE_LOCK_TIMEOUT = 10 * 60_000;
+    private static final long WAKE_LOCK_RENEWAL = 5 * 60_000;
 
     static final int NOTIFICATION_ID = 29493;
 
+    /**
+     * まとめたイベントを文字列にするバッファの初期容量
+     */
+    private static final int BATCH_BUFFER_SIZE = 8 * 1024;
+
+    /**
+     * 差分にするときのキーフレームの間隔 (ミリ秒)
+     */
+    private static final long DELTA_KEYFRAME_INTERVAL = 1_000;
+
+    /**
+     * 模擬機体の送り先。機体ごとに 1 つずつずらす
+     */
+    private static final String SIMULATOR_HOST = "127.0.0.1";
+    private static final int SIMULATOR_BASE_PORT = 14550;
+
+    /**
+     * 映像の区切りを置くディレクトリの名前
+     */
+    private static final String VIDEO_DIR = "video";
+
+    /**
+     * 映像の区切りを送れなかったときの待ち時間 (ミリ秒)
+     */
+    private static final long VIDEO_RETRY_BASE_DELAY = 1_000;
+    private static final long VIDEO_RETRY_MAX_DELAY = 60_000;
+
+    /**
+     * テレメトリを記録するリングファイルの名前。機体ごとに作る
+     */
+    static final String RECORDER_FILE_SUFFIX = ".ring";
+
+    /**
+     * hub と切れている間のイベントを溜めるファイルの名前。機体ごとに作る
+     */
+    static final String OUTBOUND_FILE_SUFFIX = ".queue";
+
+    /**
+     * hub に繋ぎ直すときの待ち時間と、繋がらないと見なすまでの時間 (ミリ秒)
+     */
+    private static final long RECONNECT_BASE_DELAY = 500;
+    private static final long RECONNECT_MAX_DELAY = 30_000;
+    private static final long CONNECT_TIMEOUT = 15_000;
+
+    /**
+     * 状態を知らせている間に、イベントの頻度を測って知らせる間隔 (ミリ秒)
+     */
+    private static final long STATUS_INTERVAL = 1_000;
+
     private Actor actor;
-    private ArduCopter module;
+    /**
+     * 中継している機体
+     */
+    private final List<VehicleRelay> vehicles = new ArrayList<>();
+    /**
+     * 機体の代わり。使わなければ空
+     */
+    private final List<SimulatedVehicle> simulators = new ArrayList<>();
+    /**
+     * 映像を受けて送り出す。使わなければ null
+     */
+    private VideoReceiver videoReceiver;
+    private SegmentUploader videoUploader;
 
+    /**
+     * 接続や終了を処理するレーン
+     */
     private MyHandler myHandler;
 
-    private final class MyHandler extends Handler {
+    // 起動の状態。hub に初めて繋がったら、起動にかかった時間を書き出して設定を覚える
+    private StartOptionsCache startOptionsCache;
+    private Bundle startOptions;
+    private volatile StartupTrace startupTrace;
+    private boolean started;
+
+    // hub との接続を見張って、切れたら繋ぎ直すための状態
+    private String actorKey;
+    private String hubAddress;
+    private final Backoff backoff = new Backoff(RECONNECT_BASE_DELAY, RECONNECT_MAX_DELAY);
+    private volatile boolean stopping;
+    private long disconnectedAt;
+    private long connectStartedAt;
+    private volatile long hubConnectTime = -1;
+    private int reconnectAttempts;
+    private final Runnable reconnectTask = this::reconnect;
+    private final Runnable connectTimeoutTask = this::onConnectTimeout;
+
+    // 画面に状態を知らせるための状態。listeners は UI スレッドだけで触る
+    private final StatusBinder binder = new StatusBinder();
+    private final List<ActorStatus.Listener> listeners = new ArrayList<>();
+    private volatile int listenerCount;
+    private Handler mainHandler;
+    private boolean destroyed;
+    private volatile String hubState = ActorStatus.HUB_STOPPED;
+    private volatile ActorStatus status = ActorStatus.STOPPED;
+    private volatile Map<String, ActorMetrics> metrics = Collections.emptyMap();
+    private volatile Map<String, VehicleDashboard> dashboards = Collections.emptyMap();
+    private final Map<String, EventRateMeter> rateMeters = new HashMap<>();
+    private final Map<String, Map<String, Double>> rates = new HashMap<>();
+    private final Runnable statusTask = this::measureStatus;
+
+    // 電源の使い方。使わなければ powerPolicy は null。
+    // 切り替えは接続や終了を処理するレーンで、後始末は UI スレッドで行うので、同期して触る
+    private volatile PowerPolicy powerPolicy;
+    private PowerManager.WakeLock wakeLock;
+    private double batteryLevel = -1;
+    private boolean charging;
+    private volatile Map<String, Object> power;
+    private final Runnable wakeLockRenewalTask = this::updatePowerProfile;
+    private final BroadcastReceiver batteryReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final int level = intent.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+            final int scale = intent.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+            batteryLevel = level < 0 || scale <= 0 ? -1 : level * 100.0 / scale;
+            charging = intent.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+            updatePowerProfile();
+        }
+    };
+
+    /**
+     * 同じプロセスの画面が状態を読むための口。
+     * 状態が変わるたびに知らせるので、画面はサービスを探し回らなくてよい
+     */
+    final class StatusBinder extends Binder {
+
+        /**
+         * 状態の通知先を加える。今の状態をすぐに知らせる。UI スレッドで呼ぶ
+         *
+         * @param listener 通知先
+         */
+        void addListener(ActorStatus.Listener listener) {
+            listeners.add(listener);
+            listenerCount = listeners.size();
+            listener.onStatusChanged(status);
+            if (listenerCount == 1) {
+                myHandler.cancel(statusTask);
+                myHandler.post(statusTask);
+            }
+        }
+
+        /**
+         * 状態の通知先を除く。UI スレッドで呼ぶ
+         *
+         * @param listener 通知先
+         */
+        void removeListener(ActorStatus.Listener listener) {
+            listeners.remove(listener);
+            listenerCount = listeners.size();
+        }
+
+        /**
+         * @return 機体ごとの計測値
+         */
+        Map<String, ActorMetrics> getMetrics() {
+            return metrics;
+        }
+
+        /**
+         * @return 機体ごとの画面に出す最新の値
+         */
+        Map<String, VehicleDashboard> getDashboards() {
+            return dashboards;
+        }
+
+        /**
+         * @return 今の電源の使い方と、使い方ごとの 1 分あたりに起きた回数。使い分けていなければ null
+         */
+        Map<String, Object> getPower() {
+            return power;
+        }
+
+        /**
+         * @return 起動の段階ごとにかかった時間。起動していなければ null
+         */
+        StartupTrace getStartupTrace() {
+            return startupTrace;
+        }
+
+    }
+
+    private final class MyHandler extends LaneHandler {
         public MyHandler(Looper looper) {
-            super(looper);
+            super(looper, new LaneStats("lifecycle"));
         }
 
         @Override
         public void handleMessage(Message msg) {
-            final Bundle data = msg.getData();
-            startActor(data.getString(KEY_ACTOR_KEY), data.getString(KEY_HUB_ADDRESS));
+            final Bundle options = msg.what == MSG_RESTART ? loadStartOptions() : msg.getData();
+            if (options == null) {
+                Log.w(LOG_TAG, "No options to restart with");
+                stopSelf(msg.arg1);
+                return;
+            }
+            startActor(options.getString(KEY_ACTOR_KEY), options.getString(KEY_HUB_ADDRESS), options, (StartupTrace) msg.obj);
         }
     }
 
@@ -70,74 +369,687 @@ public class ActorService extends Service {
 
         final Looper looper = thread.getLooper();
         this.myHandler = new MyHandler(looper);
+        this.mainHandler = new Handler(Looper.getMainLooper());
+        this.startOptionsCache = new StartOptionsCache(new File(getFilesDir(), START_OPTIONS_FILE));
+        this.status = new ActorStatus(true, ActorStatus.HUB_STOPPED, -1, Collections.<ActorStatus.Vehicle>emptyList());
     }
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         final Message msg = this.myHandler.obtainMessage();
         msg.arg1 = startId;
-        final Bundle data = new Bundle();
-        data.putString(KEY_ACTOR_KEY, intent.getStringExtra(KEY_ACTOR_KEY));
-        data.putString(KEY_HUB_ADDRESS, intent.getStringExtra(KEY_HUB_ADDRESS));
-        msg.setData(data);
+        msg.obj = new StartupTrace(System.nanoTime());
+        if (intent == null) {
+            // 落ちた後にシステムが起こし直した。画面を通さずに前の設定で起動する
+            msg.what = MSG_RESTART;
+        } else {
+            msg.what = MSG_START;
+            msg.setData(readOptions(intent));
+        }
         myHandler.sendMessage(msg);
         return START_STICKY;
     }
 
+    private static Bundle readOptions(Intent intent) {
+        final Bundle options = new Bundle();
+        for (String key : STRING_OPTIONS) {
+            options.putString(key, intent.getStringExtra(key));
+        }
+        for (String key : STRING_ARRAY_OPTIONS) {
+            options.putStringArray(key, intent.getStringArrayExtra(key));
+        }
+        for (String key : BOOLEAN_OPTIONS) {
+            options.putBoolean(key, intent.getBooleanExtra(key, false));
+        }
+        for (String key : DOUBLE_OPTIONS) {
+            options.putDouble(key, intent.getDoubleExtra(key, 0));
+        }
+        for (String key : LONG_OPTIONS) {
+            options.putLong(key, intent.getLongExtra(key, 0));
+        }
+        for (String key : INT_OPTIONS) {
+            options.putInt(key, intent.getIntExtra(key, 0));
+        }
+        return options;
+    }
+
+    /**
+     * @return 最後にうまく起動できたときの設定。無ければ null
+     */
+    private Bundle loadStartOptions() {
+        final Map<String, Object> saved;
+        try {
+            saved = this.startOptionsCache.load();
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Failed to load start options", e);
+            return null;
+        }
+        if (saved == null) {
+            return null;
+        }
+        final Bundle options = new Bundle();
+        for (String key : STRING_OPTIONS) {
+            final Object value = saved.get(key);
+            if (value instanceof String) {
+                options.putString(key, (String) value);
+            }
+        }
+        for (String key : STRING_ARRAY_OPTIONS) {
+            final Object value = saved.get(key);
+            if (value instanceof String[]) {
+                options.putStringArray(key, (String[]) value);
+            }
+        }
+        for (String key : BOOLEAN_OPTIONS) {
+            final Object value = saved.get(key);
+            options.putBoolean(key, value instanceof Boolean && (Boolean) value);
+        }
+        for (String key : DOUBLE_OPTIONS) {
+            final Object value = saved.get(key);
+            options.putDouble(key, value instanceof Number ? ((Number) value).doubleValue() : 0);
+        }
+        for (String key : LONG_OPTIONS) {
+            final Object value = saved.get(key);
+            options.putLong(key, value instanceof Number ? ((Number) value).longValue() : 0);
+        }
+        for (String key : INT_OPTIONS) {
+            final Object value = saved.get(key);
+            options.putInt(key, value instanceof Number ? ((Number) value).intValue() : 0);
+        }
+        return options;
+    }
+
+    private void saveStartOptions(Bundle options) {
+        final Map<String, Object> saved = new HashMap<>();
+        for (String key : options.keySet()) {
+            final Object value = options.get(key);
+            if (value != null) {
+                saved.put(key, value);
+            }
+        }
+        try {
+            this.startOptionsCache.save(saved);
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Failed to save start options", e);
+        }
+    }
+
     @Override
     public void onDestroy() {
         super.onDestroy();
         disconnect();
-        this.module.close();
+        for (SimulatedVehicle simulator : this.simulators) {
+            simulator.close();
+        }
+        this.simulators.clear();
+        stopVideo();
+        stopPowerPolicy();
+        for (VehicleRelay vehicle : this.vehicles) {
+            vehicle.close();
+        }
+        this.vehicles.clear();
+        Log.i(LOG_TAG, this.myHandler.getStats().toString());
+        this.myHandler.getLooper().quit();
+
+        // 止まったことを知らせて、それより後の通知は捨てる
+        this.destroyed = true;
+        this.metrics = Collections.emptyMap();
+        this.dashboards = Collections.emptyMap();
+        this.status = ActorStatus.STOPPED;
+        for (ActorStatus.Listener listener : new ArrayList<>(this.listeners)) {
+            listener.onStatusChanged(ActorStatus.STOPPED);
+        }
+        this.listeners.clear();
+        this.listenerCount = 0;
     }
 
     @Nullable
     @Override
     public IBinder onBind(Intent intent) {
-        return null;
+        return this.binder;
+    }
+
+    /**
+     * 今の状態を作って画面に知らせる。接続や終了を処理するレーンで呼ぶ
+     */
+    private void publishStatus() {
+        final List<ActorStatus.Vehicle> vehicleStatuses = new ArrayList<>();
+        for (VehicleRelay vehicle : this.vehicles) {
+            Map<String, Double> vehicleRates = this.rates.get(vehicle.getName());
+            if (vehicleRates == null) {
+                vehicleRates = Collections.emptyMap();
+            }
+            vehicleStatuses.add(new ActorStatus.Vehicle(vehicle.getName(), vehicle.isLinked(), vehicleRates, vehicle.getForwardRates(),
+                    vehicle.getMetrics().getLaneDepths(), vehicle.getOutboundPendingBytes(), toMillis(vehicle.getMetrics().getLastHubRoundTrip())));
+        }
+        final ActorStatus newStatus = new ActorStatus(true, this.hubState, toMillis(this.hubConnectTime), vehicleStatuses);
+        this.mainHandler.post(() -> {
+            if (this.destroyed) {
+                return;
+            }
+            this.status = newStatus;
+            for (ActorStatus.Listener listener : new ArrayList<>(this.listeners)) {
+                listener.onStatusChanged(newStatus);
+            }
+        });
+    }
+
+    /**
+     * @param nanos 時間 (ナノ秒)。負なら測っていない
+     * @return 時間 (ミリ秒)。測っていなければ負
+     */
+    private static long toMillis(long nanos) {
+        return nanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    /**
+     * イベントの頻度を測って知らせる。
+     * 知らせる先がいる間だけ繰り返す
+     */
+    private void measureStatus() {
+        final long now = System.nanoTime();
+        for (VehicleRelay vehicle : this.vehicles) {
+            EventRateMeter meter = this.rateMeters.get(vehicle.getName());
+            if (meter == null) {
+                meter = new EventRateMeter(vehicle.getMetrics().getTopics());
+                this.rateMeters.put(vehicle.getName(), meter);
+            }
+            this.rates.put(vehicle.getName(), meter.update(now));
+        }
+        final PowerPolicy policy = this.powerPolicy;
+        if (policy != null) {
+            policy.account(getWakeups(), now);
+            this.power = policy.toMap();
+        }
+        publishStatus();
+        if (this.listenerCount > 0) {
+            this.myHandler.postDelayed(this.statusTask, STATUS_INTERVAL);
+        }
+    }
+
+    private void setHubState(String hubState) {
+        this.hubState = hubState;
+        publishStatus();
     }
 
     private void disconnect() {
-        this.module.disconnect();
+        this.stopping = true;
+        this.myHandler.cancel(this.reconnectTask);
+        this.myHandler.cancel(this.connectTimeoutTask);
+        for (VehicleRelay vehicle : this.vehicles) {
+            vehicle.disconnect();
+        }
         if (this.actor != null) {
             this.actor.disconnect();
             this.actor = null;
         }
     }
 
-    private void startActor(String actorKey, String hubAddress) {
+    private void startActor(String actorKey, String hubAddress, Bundle options, StartupTrace trace) {
         if (this.actor != null) {
             Log.i(LOG_TAG, "Already actor started");
             return;
         }
+        this.startupTrace = trace;
+        this.startOptions = options;
+
+        // 先に前面に出して、準備の途中で止められないようにする
+        long begin = trace.begin();
+        final Intent notificationIntent = new Intent(this, MainActivity.class);
+        final PendingIntent pendingIntent = PendingIntent.getActivity(this, 0, notificationIntent, 0);
+        final Notification notification = new Notification.Builder(this)
+                .setContentTitle(getString(R.string.service_name))
+                .setContentText(actorKey + "@" + hubAddress)
+                .setContentIntent(pendingIntent)
+                .setSmallIcon(R.mipmap.ic_launcher)
+                .build();
+        startForeground(NOTIFICATION_ID, notification);
+        trace.end("notification", begin);
+
+        final PipelineOptions pipelineOptions = new PipelineOptions();
+        for (String[] rateKey : RATE_KEYS) {
+            pipelineOptions.rates.put(rateKey[1], options.getDouble(rateKey[0]));
+        }
+        if (options.getBoolean(KEY_ADAPTIVE_RATES)) {
+            pipelineOptions.adaptiveInterval = ADAPTIVE_INTERVAL;
+            pipelineOptions.lowBattery = options.getDouble(KEY_LOW_BATTERY);
+            for (Object[] minRate : MIN_RATES) {
+                pipelineOptions.minRates.put((String) minRate[0], (Double) minRate[1]);
+            }
+        }
+        if (options.getBoolean(KEY_POWER_PROFILES)) {
+            pipelineOptions.efficiencyBatchWindow = EFFICIENCY_BATCH_WINDOW;
+            for (Object[] efficiencyRate : EFFICIENCY_RATES) {
+                pipelineOptions.efficiencyRates.put((String) efficiencyRate[0], (Double) efficiencyRate[1]);
+            }
+        }
+        if (options.getBoolean(KEY_BATCHING)) {
+            pipelineOptions.batchWindow = options.getLong(KEY_BATCH_WINDOW);
+            pipelineOptions.batchBufferSize = options.getBoolean(KEY_BATCH_AS_TEXT) ? BATCH_BUFFER_SIZE : 0;
+        }
+        final double coordinatePrecision = options.getDouble(KEY_COORDINATE_PRECISION);
+        final double altitudePrecision = options.getDouble(KEY_ALTITUDE_PRECISION);
+        final double attitudePrecision = options.getDouble(KEY_ATTITUDE_PRECISION);
+        if (options.getBoolean(KEY_DELTA_ENCODING) && coordinatePrecision > 0 && altitudePrecision > 0 && attitudePrecision > 0) {
+            pipelineOptions.deltaKeyframeInterval = DELTA_KEYFRAME_INTERVAL;
+            final Map<String, double[]> position = new HashMap<>();
+            position.put("coordinate", new double[]{coordinatePrecision, coordinatePrecision, altitudePrecision});
+            pipelineOptions.precisions.put(Events.POSITION, position);
+            final Map<String, double[]> attitude = new HashMap<>();
+            for (String field : new String[]{"roll", "pitch", "yaw"}) {
+                attitude.put(field, new double[]{attitudePrecision});
+            }
+            pipelineOptions.precisions.put(Events.ATTITUDE, attitude);
+        }
+
+        String[] moduleNames = options.getStringArray(KEY_MODULE_NAMES);
+        if (moduleNames == null || moduleNames.length == 0) {
+            moduleNames = new String[]{getString(R.string.module_name)};
+        }
+        // モジュールはこのレーンの Looper で作る
+        begin = trace.begin();
+        final Map<String, ActorMetrics> vehicleMetrics = new LinkedHashMap<>();
+        final Map<String, VehicleDashboard> vehicleDashboards = new LinkedHashMap<>();
+        for (String moduleName : moduleNames) {
+            if (!VehicleRelay.isValidName(moduleName)) {
+                // ファイル名にも使うので、設定画面を通っていない名前もここで弾く
+                Log.w(LOG_TAG, "Skip invalid module name " + moduleName);
+                continue;
+            }
+            final VehicleRelay vehicle = new VehicleRelay(moduleName, getApplicationContext(), this.myHandler.getStats());
+            vehicle.getModule().setOnLinkChanged(() -> this.myHandler.post(this::publishStatus));
+            this.vehicles.add(vehicle);
+            vehicleMetrics.put(moduleName, vehicle.getMetrics());
+            vehicleDashboards.put(moduleName, vehicle.getDashboard());
+        }
+        trace.end("modules", begin);
+
+        // ファイルを読み直す処理段と映像の準備は、hub の名前解決と並べて進める
+        begin = trace.begin();
+        final AtomicInteger threadCount = new AtomicInteger();
+        final ExecutorService startup = Executors.newCachedThreadPool(runnable -> new Thread(runnable, "startup-" + threadCount.incrementAndGet()));
+        final List<Future<?>> tasks = new ArrayList<>();
+        final Map<Future<?>, VehicleRelay> pipelineTasks = new LinkedHashMap<>();
+        tasks.add(startup.submit(() -> {
+            final long taskBegin = trace.begin();
+            resolveHub(hubAddress);
+            trace.end("hub.resolve", taskBegin);
+        }));
+        for (VehicleRelay vehicle : this.vehicles) {
+            final PipelineOptions vehicleOptions = pipelineOptions.copy();
+            vehicleOptions.recorderFile = new File(getFilesDir(), vehicle.getName() + RECORDER_FILE_SUFFIX);
+            vehicleOptions.outboundFile = new File(getFilesDir(), vehicle.getName() + OUTBOUND_FILE_SUFFIX);
+            pipelineTasks.put(startup.submit(() -> {
+                final long taskBegin = trace.begin();
+                vehicle.openPipeline(vehicleOptions);
+                trace.end("pipeline." + vehicle.getName(), taskBegin);
+            }), vehicle);
+        }
+        if (options.getBoolean(KEY_VIDEO)) {
+            tasks.add(startup.submit(() -> {
+                final long taskBegin = trace.begin();
+                startVideo(options);
+                trace.end("video", taskBegin);
+            }));
+        }
+        startup.shutdown();
+        // ここで投げると落ちて起こし直されるのを繰り返すので、失敗は記録して続ける
+        for (Future<?> task : tasks) {
+            final Throwable failure = await(task);
+            if (failure != null) {
+                Log.w(LOG_TAG, "Startup task failed", failure);
+            }
+        }
+        for (Map.Entry<Future<?>, VehicleRelay> task : pipelineTasks.entrySet()) {
+            final Throwable failure = await(task.getKey());
+            if (failure == null) {
+                continue;
+            }
+            // 処理段を作れなかった機体は hub に出さず、他の機体だけで続ける
+            final VehicleRelay vehicle = task.getValue();
+            Log.e(LOG_TAG, "Failed to open pipeline of " + vehicle.getName() + ", continue without it", failure);
+            this.vehicles.remove(vehicle);
+            vehicleMetrics.remove(vehicle.getName());
+            vehicleDashboards.remove(vehicle.getName());
+            vehicle.close();
+        }
+        trace.end("prepare", begin);
+        if (this.vehicles.isEmpty() && !pipelineTasks.isEmpty()) {
+            Log.e(LOG_TAG, "No vehicle to relay");
+            stopSelf();
+            return;
+        }
+        this.metrics = Collections.unmodifiableMap(vehicleMetrics);
+        this.dashboards = Collections.unmodifiableMap(vehicleDashboards);
+        if (options.getBoolean(KEY_POWER_PROFILES)) {
+            startPowerPolicy(options.getDouble(KEY_EFFICIENCY_BATTERY));
+        }
+
+        this.actorKey = actorKey;
+        this.hubAddress = hubAddress;
+        connectActor();
+
+        // 模擬機体は hub に繋いでいる間に動かす
+        if (options.getBoolean(KEY_SIMULATOR)) {
+            begin = trace.begin();
+            startSimulators(options);
+            trace.end("simulators", begin);
+        }
+    }
+
+    /**
+     * 準備の処理が終わるのを待つ
+     *
+     * @param task 準備の処理
+     * @return 失敗した原因。成功したら null
+     */
+    private static Throwable await(Future<?> task) {
+        try {
+            task.get();
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return e;
+        } catch (ExecutionException e) {
+            return e.getCause();
+        }
+    }
 
-        this.module = new ArduCopter(getString(R.string.module_name), new Handler(), getApplicationContext());
+    /**
+     * hub のホスト名を先に引いておく。
+     * actor が繋ぐときには、端末に残った結果が使われる
+     */
+    private static void resolveHub(String hubAddress) {
+        try {
+            final String host = new URI(hubAddress).getHost();
+            if (host != null) {
+                InetAddress.getAllByName(host);
+            }
+        } catch (URISyntaxException | UnknownHostException e) {
+            Log.w(LOG_TAG, "Failed to resolve " + hubAddress, e);
+        }
+    }
 
+    /**
+     * 端末の電池と充電、機体の armed に合わせて電源の使い方を切り替え始める。
+     * 飛行中と充電中は CPU が眠らないようにする
+     *
+     * @param efficiencyBelow 地上で efficiency にする電池残量 (%)
+     */
+    private void startPowerPolicy(double efficiencyBelow) {
+        this.powerPolicy = new PowerPolicy(efficiencyBelow);
+        this.powerPolicy.account(getWakeups(), System.nanoTime());
+        this.power = this.powerPolicy.toMap();
+        final PowerManager powerManager = (PowerManager) getSystemService(POWER_SERVICE);
+        this.wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, LOG_TAG);
+        this.wakeLock.setReferenceCounted(false);
+        for (VehicleRelay vehicle : this.vehicles) {
+            vehicle.getModule().setOnArmedChanged(() -> this.myHandler.post(this::updatePowerProfile));
+        }
+        // 電池の状態は登録してすぐに届く
+        registerReceiver(this.batteryReceiver, new IntentFilter(Intent.ACTION_BATTERY_CHANGED), null, this.myHandler);
+    }
+
+    private synchronized void updatePowerProfile() {
+        if (this.powerPolicy == null || this.stopping) {
+            return;
+        }
+        boolean armed = false;
+        for (VehicleRelay vehicle : this.vehicles) {
+            armed |= vehicle.isArmed();
+        }
+        updateWakeLock(armed);
+        // 切り替える前までに起きた回数は前の使い方に付ける
+        this.powerPolicy.account(getWakeups(), System.nanoTime());
+        if (!this.powerPolicy.update(this.batteryLevel, this.charging, armed)) {
+            return;
+        }
+        final String profile = this.powerPolicy.getProfile();
+        for (VehicleRelay vehicle : this.vehicles) {
+            vehicle.setPowerProfile(profile);
+        }
+        this.power = this.powerPolicy.toMap();
+        Log.i(LOG_TAG, "Power profile " + profile + " (battery " + this.batteryLevel + "%, charging " + this.charging + ", armed " + armed + "), wakeups per minute " + this.powerPolicy.getWakeupsPerMinute());
+    }
+
+    /**
+     * 飛行中か充電中なら、時間を区切って CPU が眠らないようにする。
+     * 飛行中は時間が過ぎる前に延ばし続け、充電中は電池の状態が届くたびに延ばす
+     *
+     * @param armed いずれかの機体が armed なら true
+     */
+    private void updateWakeLock(boolean armed) {
+        this.myHandler.cancel(this.wakeLockRenewalTask);
+        if (armed || this.charging) {
+            this.wakeLock.acquire(WAKE_LOCK_TIMEOUT);
+            if (armed) {
+                this.myHandler.postDelayed(this.wakeLockRenewalTask, WAKE_LOCK_RENEWAL);
+            }
+        } else if (this.wakeLock.isHeld()) {
+            this.wakeLock.release();
+        }
+    }
+
+    private synchronized void stopPowerPolicy() {
+        if (this.powerPolicy == null) {
+            return;
+        }
+        unregisterReceiver(this.batteryReceiver);
+        this.myHandler.cancel(this.wakeLockRenewalTask);
+        if (this.wakeLock.isHeld()) {
+            this.wakeLock.release();
+        }
+        this.powerPolicy.account(getWakeups(), System.nanoTime());
+        Log.i(LOG_TAG, "Wakeups per minute " + this.powerPolicy.getWakeupsPerMinute());
+        this.powerPolicy = null;
+        this.power = null;
+    }
+
+    /**
+     * 接続や終了、ウェイクロックの更新、繋ぎ直しのタイマーは、このサービスのレーンで数える
+     *
+     * @return このサービスと機体ごとのスレッドが眠りから起きた回数の合計
+     */
+    private long getWakeups() {
+        long wakeups = this.myHandler.getStats().getWakeups();
+        for (VehicleRelay vehicle : this.vehicles) {
+            wakeups += vehicle.getWakeups();
+        }
+        return wakeups;
+    }
+
+    /**
+     * 機体ごとに模擬機体を動かす。
+     * i 番目の機体の模擬機体は UDP の 14550 + i 番ポートに送るので、呼び出し側はそこに繋ぐ
+     */
+    private void startSimulators(Bundle options) {
+        final double speed = Math.max(SimulatedVehicle.MIN_SPEED, Math.min(SimulatedVehicle.MAX_SPEED, options.getDouble(KEY_SIMULATOR_SPEED)));
+        final double rate = options.getDouble(KEY_SIMULATOR_RATE);
+        for (int i = 0; i < this.vehicles.size(); i++) {
+            final InetSocketAddress target = new InetSocketAddress(SIMULATOR_HOST, SIMULATOR_BASE_PORT + i);
+            final List<TelemetryRecorder.Record> records = options.getBoolean(KEY_SIMULATOR_REPLAY) ? this.vehicles.get(i).readRecords() : Collections.<TelemetryRecorder.Record>emptyList();
+            final SimulatedVehicle simulator;
+            if (records.isEmpty()) {
+                simulator = new SimulatedVehicle(target, speed, i);
+                if (rate > 0) {
+                    simulator.setRate(SimulatedVehicle.STREAM_GPS, rate);
+                    simulator.setRate(SimulatedVehicle.STREAM_ATTITUDE, rate);
+                }
+            } else {
+                simulator = new SimulatedVehicle(target, speed, records);
+            }
+            simulator.start();
+            this.simulators.add(simulator);
+            Log.i(LOG_TAG, "Simulated vehicle for " + this.vehicles.get(i).getName() + " sends to " + target.getPort());
+        }
+    }
+
+    /**
+     * 映像を受けて区切りに書き、書き終えた区切りを送り出す。
+     * 前に送り残した区切りがあれば、それから送る
+     */
+    private void startVideo(Bundle options) {
+        final File dir = new File(getFilesDir(), VIDEO_DIR);
+        final String target = options.getString(KEY_VIDEO_SINK);
+        try {
+            SegmentUploader uploader = null;
+            if (target != null && !target.trim().isEmpty()) {
+                uploader = new SegmentUploader(dir, SegmentUploader.sinkFor(target.trim()), new Backoff(VIDEO_RETRY_BASE_DELAY, VIDEO_RETRY_MAX_DELAY));
+            }
+            final SegmentUploader offerTo = uploader;
+            final VideoSegmentWriter writer = new VideoSegmentWriter(dir, options.getLong(KEY_VIDEO_SEGMENT_SIZE), segment -> {
+                if (offerTo != null) {
+                    offerTo.offer(segment);
+                }
+            });
+            if (uploader != null) {
+                uploader.start();
+            }
+            this.videoUploader = uploader;
+            this.videoReceiver = new VideoReceiver(options.getInt(KEY_VIDEO_PORT), writer);
+            this.videoReceiver.start();
+            Log.i(LOG_TAG, "Receiving video on " + options.getInt(KEY_VIDEO_PORT) + (uploader == null ? "" : " for " + target));
+        } catch (IOException | IllegalArgumentException e) {
+            Log.w(LOG_TAG, "Failed to start video", e);
+            stopVideo();
+        }
+    }
+
+    private void stopVideo() {
+        if (this.videoReceiver != null) {
+            try {
+                this.videoReceiver.close();
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Failed to close video", e);
+            }
+            Log.i(LOG_TAG, "Received " + this.videoReceiver.getReceivedBytes() + " bytes of video");
+            this.videoReceiver = null;
+        }
+        if (this.videoUploader != null) {
+            this.videoUploader.close();
+            Log.i(LOG_TAG, "Uploaded " + this.videoUploader.getUploadedCount() + " video segments, " + this.videoUploader.getPendingCount() + " left");
+            this.videoUploader = null;
+        }
+    }
+
+    /**
+     * actor を作って hub に繋ぐ。
+     * 繋ぎ直しのときも同じモジュールを使うので、機体との接続はそのまま
+     */
+    private void connectActor() {
         final String actorName = ActorService.class.getName();
         final String actorDescription = getString(R.string.actor_description);
-        this.actor = new Actor(actorKey, actorName, actorDescription);
+        final Actor newActor = new Actor(this.actorKey, actorName, actorDescription);
 
-        final String moduleName = getString(R.string.module_name);
         final String moduleVersion = getString(R.string.module_version);
         final String moduleDescription = getString(R.string.module_description);
-        this.actor.addModule(moduleName, moduleVersion, moduleDescription, this.module);
+        for (VehicleRelay vehicle : this.vehicles) {
+            newActor.addModule(vehicle.getName(), moduleVersion, moduleDescription, vehicle.getModule());
+        }
+
+        // 状態の変更は接続管理のレーンで行う
+        newActor.setOnConnect(() -> this.myHandler.post(() -> onConnected(newActor)));
+        newActor.setOnDisconnect(() -> this.myHandler.post(() -> onDisconnected(newActor)));
+
+        this.actor = newActor;
+        setHubState(ActorStatus.HUB_CONNECTING);
+        this.connectStartedAt = System.nanoTime();
+        newActor.connect(this.hubAddress);
+        this.myHandler.postDelayed(this.connectTimeoutTask, CONNECT_TIMEOUT);
+    }
 
-        this.actor.setOnConnect(() -> {
-            // Log.i は int を返すので Runnable にするために括る
+    private void onConnected(Actor connected) {
+        if (connected != this.actor || this.stopping) {
+            return;
+        }
+        this.myHandler.cancel(this.connectTimeoutTask);
+        this.backoff.reset();
+        this.hubConnectTime = System.nanoTime() - this.connectStartedAt;
+        if (!this.started) {
+            this.started = true;
+            onStarted();
+        }
+        for (VehicleRelay vehicle : this.vehicles) {
+            vehicle.getMetrics().hubConnected(this.hubConnectTime);
+        }
+        final boolean reconnected = this.disconnectedAt > 0;
+        if (reconnected) {
+            final long elapsed = System.nanoTime() - this.disconnectedAt;
+            for (VehicleRelay vehicle : this.vehicles) {
+                vehicle.getMetrics().hubReconnected(elapsed, this.reconnectAttempts);
+            }
+            Log.i(LOG_TAG, "reconnected in " + TimeUnit.NANOSECONDS.toMillis(elapsed) + "ms after " + this.reconnectAttempts + " attempts");
+            this.disconnectedAt = 0;
+            this.reconnectAttempts = 0;
+        } else {
             Log.i(LOG_TAG, "connected");
-        });
+        }
+        for (VehicleRelay vehicle : this.vehicles) {
+            vehicle.onConnected(reconnected);
+        }
+        setHubState(ActorStatus.HUB_CONNECTED);
+    }
 
-        this.actor.connect(hubAddress);
+    /**
+     * 起動して初めて hub に繋がった。
+     * 起動にかかった時間を書き出して、この設定を次に起こし直されたときのために覚える
+     */
+    private void onStarted() {
+        final StartupTrace trace = this.startupTrace;
+        trace.end("hub.connect", this.connectStartedAt);
+        trace.mark("started");
+        Log.i(LOG_TAG, "Started in " + TimeUnit.NANOSECONDS.toMillis(trace.getElapsed("started")) + "ms\n" + trace);
+        saveStartOptions(this.startOptions);
+    }
 
-        final Intent notificationIntent = new Intent(this, MainActivity.class);
-        final PendingIntent pendingIntent = PendingIntent.getActivity(this, 0, notificationIntent, 0);
-        final Notification notification = new Notification.Builder(this)
-                .setContentTitle(getString(R.string.service_name))
-                .setContentText(actorKey + "@" + hubAddress)
-                .setContentIntent(pendingIntent)
-                .setSmallIcon(R.mipmap.ic_launcher)
-                .build();
-        startForeground(NOTIFICATION_ID, notification);
+    private void onDisconnected(Actor disconnected) {
+        if (disconnected != this.actor || this.stopping) {
+            return;
+        }
+        Log.i(LOG_TAG, "disconnected");
+        this.hubConnectTime = -1;
+        for (VehicleRelay vehicle : this.vehicles) {
+            vehicle.onDisconnected();
+        }
+        if (this.disconnectedAt == 0) {
+            this.disconnectedAt = System.nanoTime();
+        }
+        setHubState(ActorStatus.HUB_DISCONNECTED);
+        scheduleReconnect();
+    }
+
+    private void onConnectTimeout() {
+        if (this.stopping) {
+            return;
+        }
+        Log.w(LOG_TAG, "Connection to " + this.hubAddress + " timed out");
+        if (this.disconnectedAt == 0) {
+            this.disconnectedAt = System.nanoTime();
+        }
+        setHubState(ActorStatus.HUB_DISCONNECTED);
+        scheduleReconnect();
+    }
+
+    private void scheduleReconnect() {
+        this.myHandler.cancel(this.connectTimeoutTask);
+        this.myHandler.cancel(this.reconnectTask);
+        final long delay = this.backoff.next();
+        Log.i(LOG_TAG, "Reconnect after " + delay + "ms");
+        this.myHandler.postDelayed(this.reconnectTask, delay);
+    }
+
+    private void reconnect() {
+        if (this.stopping) {
+            return;
+        }
+        this.reconnectAttempts++;
+        final Actor oldActor = this.actor;
+        // 古い actor からの通知は無視されるように先に差し替える
+        this.actor = null;
+        if (oldActor != null) {
+            oldActor.disconnect();
+        }
+        connectActor();
     }
 
 }
@@ -0,0 +1,166 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Actor の状態。画面に知らせるための写しで、変わらない。
+ */
+final class ActorStatus {
+
+    static final String HUB_STOPPED = "stopped";
+    static final String HUB_CONNECTING = "connecting";
+    static final String HUB_CONNECTED = "connected";
+    static final String HUB_DISCONNECTED = "disconnected";
+
+    /**
+     * サービスが動いていないときの状態
+     */
+    static final ActorStatus STOPPED = new ActorStatus(false, HUB_STOPPED, -1, Collections.<Vehicle>emptyList());
+
+    /**
+     * 状態が変わったときに呼ばれる。UI スレッドで呼ばれる
+     */
+    interface Listener {
+        void onStatusChanged(ActorStatus status);
+    }
+
+    /**
+     * 機体ごとの状態
+     */
+    static final class Vehicle {
+
+        private final String name;
+        private final boolean linked;
+        private final Map<String, Double> rates;
+        private final Map<String, Double> forwardRates;
+        private final Map<String, Integer> depths;
+        private final long pendingBytes;
+        private final long roundTrip;
+
+        /**
+         * @param name         モジュール名
+         * @param linked       機体と繋がっているなら true
+         * @param rates        イベントごとの hub 側に流した頻度 (回/秒)
+         * @param forwardRates イベントごとの今の最大送信頻度 (回/秒)
+         * @param depths       実行レーンごとの待ち行列の長さ
+         * @param pendingBytes hub と切れている間に溜めたイベントの大きさ (バイト)
+         * @param roundTrip    最後に測った hub の先の呼び出し側との往復時間 (ミリ秒)。測っていなければ負
+         */
+        Vehicle(String name, boolean linked, Map<String, Double> rates, Map<String, Double> forwardRates, Map<String, Integer> depths, long pendingBytes,
+                long roundTrip) {
+            this.name = name;
+            this.linked = linked;
+            this.rates = Collections.unmodifiableMap(rates);
+            this.forwardRates = Collections.unmodifiableMap(forwardRates);
+            this.depths = Collections.unmodifiableMap(depths);
+            this.pendingBytes = pendingBytes;
+            this.roundTrip = roundTrip;
+        }
+
+        String getName() {
+            return this.name;
+        }
+
+        boolean isLinked() {
+            return this.linked;
+        }
+
+        Map<String, Double> getRates() {
+            return this.rates;
+        }
+
+        /**
+         * @return hub 側に流した全イベントの頻度 (回/秒)
+         */
+        double getTotalRate() {
+            double total = 0;
+            for (double rate : this.rates.values()) {
+                total += rate;
+            }
+            return total;
+        }
+
+        /**
+         * @return イベントごとの今の最大送信頻度 (回/秒)。間引かないイベントは入っていない
+         */
+        Map<String, Double> getForwardRates() {
+            return this.forwardRates;
+        }
+
+        Map<String, Integer> getDepths() {
+            return this.depths;
+        }
+
+        long getPendingBytes() {
+            return this.pendingBytes;
+        }
+
+        /**
+         * @return 最後に測った hub の先の呼び出し側との往復時間 (ミリ秒)。測っていなければ負
+         */
+        long getRoundTrip() {
+            return this.roundTrip;
+        }
+
+    }
+
+    private final boolean running;
+    private final String hub;
+    private final long hubConnectTime;
+    private final List<Vehicle> vehicles;
+
+    /**
+     * @param running        サービスが動いているなら true
+     * @param hub            hub との接続状態
+     * @param hubConnectTime hub との接続の確立にかかった時間 (ミリ秒)。繋がっていなければ負
+     * @param vehicles       機体ごとの状態
+     */
+    ActorStatus(boolean running, String hub, long hubConnectTime, List<Vehicle> vehicles) {
+        this.running = running;
+        this.hub = hub;
+        this.hubConnectTime = hubConnectTime;
+        this.vehicles = Collections.unmodifiableList(vehicles);
+    }
+
+    boolean isRunning() {
+        return this.running;
+    }
+
+    /**
+     * @return hub との接続状態。HUB_ で始まる定数のどれか
+     */
+    String getHub() {
+        return this.hub;
+    }
+
+    /**
+     * @return hub との接続の確立にかかった時間 (ミリ秒)。繋がっていなければ負。
+     * 往復時間ではないので、回線の混み具合には使えない
+     */
+    long getHubConnectTime() {
+        return this.hubConnectTime;
+    }
+
+    List<Vehicle> getVehicles() {
+        return this.vehicles;
+    }
+
+}
@@ -0,0 +1,211 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import android.util.Log;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 回線の混み具合に合わせて、間引きの頻度を上げ下げする。
+ * hub の先の呼び出し側との往復時間が長くなったら頻度を半分にし、
+ * 収まったら少しずつ設定の頻度まで戻す。
+ * 頻度を設定していないイベント (armed や mode など) には触らない。
+ * 下限を設定したイベントはそれより下げず、電池が減ったら battery は設定の頻度で流す。
+ * 上限を設定したら、どの頻度もそれを超えないようにする
+ */
+final class AdaptiveRateController implements EventSink {
+
+    private static final String LOG_TAG = AdaptiveRateController.class.getName();
+
+    /**
+     * 混んでいるときに頻度に掛ける値
+     */
+    static final double DECREASE = 0.5;
+    /**
+     * 空いているときに頻度の倍率に足す値
+     */
+    static final double INCREASE = 0.1;
+    /**
+     * 頻度の倍率の下限
+     */
+    static final double MIN_SCALE = 1.0 / 32;
+
+    /**
+     * 往復時間を混み具合に使う期間 (ナノ秒)。
+     * 往復時間は ping の返事か受け取り確認が来たときにしか測れないので、古くなったら使わない
+     */
+    private static final long ROUND_TRIP_LIFETIME = TimeUnit.SECONDS.toNanos(30);
+
+    private final EventSink next;
+    private final TelemetryCoalescer coalescer;
+    private final Map<String, Double> baseRates;
+    private final Map<String, Double> minRates;
+    private final long congestionRoundTrip;
+    private final double lowBattery;
+
+    private double scale = 1;
+    private volatile boolean batteryLow;
+    private volatile long roundTrip;
+    private volatile long roundTripTime;
+    private volatile Map<String, Double> rates;
+    private Map<String, Double> limits = Collections.emptyMap();
+
+    /**
+     * @param next                次段
+     * @param coalescer           頻度を変える間引き
+     * @param baseRates           イベントごとの設定の頻度 (回/秒)
+     * @param minRates            イベントごとの頻度の下限 (回/秒)
+     * @param congestionRoundTrip 混んでいると見なす往復時間 (ミリ秒)
+     * @param lowBattery          battery を間引かなくなる電池残量 (%)
+     */
+    AdaptiveRateController(EventSink next, TelemetryCoalescer coalescer, Map<String, Double> baseRates, Map<String, Double> minRates,
+                           long congestionRoundTrip, double lowBattery) {
+        this.next = next;
+        this.coalescer = coalescer;
+        this.baseRates = new HashMap<>(baseRates);
+        this.minRates = new HashMap<>(minRates);
+        this.congestionRoundTrip = TimeUnit.MILLISECONDS.toNanos(congestionRoundTrip);
+        this.lowBattery = lowBattery;
+        apply();
+    }
+
+    /**
+     * 決まった間隔で混み具合を調べ始める
+     *
+     * @param scheduler 調べるのに使う
+     * @param interval  調べる間隔 (ミリ秒)
+     */
+    void start(ScheduledExecutorService scheduler, long interval) {
+        scheduler.scheduleAtFixedRate(() -> {
+            try {
+                control(System.nanoTime());
+            } catch (RuntimeException e) {
+                // 投げると次から調べなくなり、頻度がそのままになる
+                Log.w(LOG_TAG, "Failed to control rates", e);
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * hub との往復時間を測れた
+     *
+     * @param nanos 往復時間 (ナノ秒)
+     */
+    void setHubRoundTrip(long nanos) {
+        this.roundTripTime = System.nanoTime();
+        this.roundTrip = nanos;
+    }
+
+    /**
+     * 混み具合を調べて頻度を変える
+     *
+     * @param nowNanos 今の時刻 (ナノ秒)
+     */
+    synchronized void control(long nowNanos) {
+        final boolean slowHub = this.roundTripTime != 0 && nowNanos - this.roundTripTime < ROUND_TRIP_LIFETIME && this.roundTrip > this.congestionRoundTrip;
+        final double newScale;
+        if (slowHub) {
+            newScale = Math.max(MIN_SCALE, this.scale * DECREASE);
+        } else {
+            newScale = Math.min(1, this.scale + INCREASE);
+        }
+        if (newScale == this.scale) {
+            return;
+        }
+        this.scale = newScale;
+        apply();
+    }
+
+    /**
+     * 頻度の上限を設定する。省電力のときに使う
+     *
+     * @param limits イベントごとの頻度の上限 (回/秒)。空なら上限なし
+     */
+    synchronized void setLimits(Map<String, Double> limits) {
+        this.limits = new HashMap<>(limits);
+        apply();
+    }
+
+    /**
+     * 今の倍率と電池残量から頻度を決めて間引きに設定する
+     */
+    private synchronized void apply() {
+        final Map<String, Double> newRates = new HashMap<>();
+        final Set<String> events = new HashSet<>(this.baseRates.keySet());
+        events.addAll(this.limits.keySet());
+        for (String event : events) {
+            final Double baseValue = this.baseRates.get(event);
+            final double base = baseValue == null ? 0 : baseValue;
+            final Double limit = this.limits.get(event);
+            if (base <= 0) {
+                // 間引いていないイベントには上限だけを当てる
+                this.coalescer.setRate(event, PowerPolicy.limitRate(0, limit));
+                if (limit != null) {
+                    newRates.put(event, limit);
+                }
+                continue;
+            }
+            double rate = base * this.scale;
+            if (this.batteryLow && Events.BATTERY.equals(event)) {
+                rate = base;
+            }
+            final Double min = this.minRates.get(event);
+            if (min != null) {
+                rate = Math.max(rate, Math.min(min, base));
+            }
+            rate = PowerPolicy.limitRate(rate, limit);
+            this.coalescer.setRate(event, rate);
+            newRates.put(event, rate);
+        }
+        this.rates = Collections.unmodifiableMap(newRates);
+    }
+
+    /**
+     * @return 頻度の倍率
+     */
+    synchronized double getScale() {
+        return this.scale;
+    }
+
+    /**
+     * @return イベントごとの今の頻度 (回/秒)
+     */
+    Map<String, Double> getRates() {
+        return this.rates;
+    }
+
+    @Override
+    public void emit(String event, Object data) {
+        if (Events.BATTERY.equals(event)) {
+            final double remain = ArduCopterModule.getBatteryRemain(data);
+            final boolean low = remain >= 0 && remain < this.lowBattery;
+            if (low != this.batteryLow) {
+                this.batteryLow = low;
+                apply();
+            }
+        }
+        this.next.emit(event, data);
+    }
+
+}
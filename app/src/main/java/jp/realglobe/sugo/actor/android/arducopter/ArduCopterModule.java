@@ -0,0 +1,602 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import android.content.Context;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import jp.realglobe.sugo.module.android.arducopter.ArduCopter;
+
+/**
+ * 発行するイベントを処理段に流す ArduCopter モジュール。
+ */
+public class ArduCopterModule extends ArduCopter {
+
+    /**
+     * 覚えておくミッションの数
+     */
+    private static final int MISSION_CACHE_CAPACITY = 8;
+
+    /**
+     * ジオフェンスを出たと見なすまでに境界から離れる距離 (m) と、区域を引く格子の升目の大きさ (度)
+     */
+    private static final double FENCE_MARGIN = 1.0;
+    private static final double FENCE_CELL_SIZE = 0.001;
+
+    /**
+     * battery イベントの中身で電池残量 (%) を入れるキー。
+     * 電池残量を見るところはこのキーだけを読む
+     */
+    static final String BATTERY_REMAIN = "remain";
+    /**
+     * 下のモジュールが電池残量に使うことのある名前。DroneKit の Battery のフィールド名を含む。
+     * 発行する前に BATTERY_REMAIN に揃える
+     */
+    private static final String[] BATTERY_REMAIN_ALIASES = {"batteryRemain", "remaining"};
+
+    /**
+     * 1 回の getRecords で返す最大のレコード数
+     */
+    private static final int MAX_RECORDS = 10_000;
+
+    private final LaneHandler handler;
+    private final ActorMetrics metrics;
+    private final EventSubscriptions subscriptions = new EventSubscriptions();
+    private final VehicleDashboard dashboard = new VehicleDashboard();
+    private final MissionCache missions = new MissionCache(MISSION_CACHE_CAPACITY);
+    private final GeofenceEngine geofences = new GeofenceEngine(this::emit, FENCE_MARGIN, FENCE_CELL_SIZE);
+    private final RoundTripProbe probe = new RoundTripProbe();
+    private volatile EventSink eventSink;
+    private volatile SubscriberFanout subscribers;
+    private volatile TelemetryRecorder recorder;
+    private volatile boolean linked;
+    private volatile Runnable onLinkChanged;
+    private volatile boolean armed;
+    private volatile Runnable onArmedChanged;
+
+    /**
+     * @param name    モジュール名
+     * @param handler 命令を処理するレーン
+     * @param context コンテキスト
+     * @param metrics 命令の所要時間の記録先
+     */
+    ArduCopterModule(String name, LaneHandler handler, Context context, ActorMetrics metrics) {
+        super(name, handler, context);
+        this.handler = handler;
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return 命令を処理するレーン
+     */
+    LaneHandler getHandler() {
+        return this.handler;
+    }
+
+    /**
+     * イベントの流し先を設定する
+     *
+     * @param eventSink 流し先。null なら直接 actor に送る
+     */
+    void setEventSink(EventSink eventSink) {
+        this.eventSink = eventSink;
+    }
+
+    /**
+     * 選ばれているイベントの記録器を設定する
+     *
+     * @param recorder 記録器。null なら記録していない
+     */
+    void setRecorder(TelemetryRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+    /**
+     * 購読者ごとの配り先を設定する
+     *
+     * @param subscribers 配り先
+     */
+    void setSubscribers(SubscriberFanout subscribers) {
+        this.subscribers = subscribers;
+    }
+
+    /**
+     * @return 購読者ごとの配り先
+     */
+    SubscriberFanout getSubscribers() {
+        final SubscriberFanout subscribers = this.subscribers;
+        if (subscribers == null) {
+            throw new IllegalStateException("Not ready for subscribers");
+        }
+        return subscribers;
+    }
+
+    /**
+     * @return hub の先の呼び出し側との往復時間を測るもの
+     */
+    RoundTripProbe getProbe() {
+        return this.probe;
+    }
+
+    /**
+     * 機体との接続状態が変わったときの処理を設定する
+     *
+     * @param onLinkChanged 処理。イベントを発行したスレッドで呼ばれる
+     */
+    void setOnLinkChanged(Runnable onLinkChanged) {
+        this.onLinkChanged = onLinkChanged;
+    }
+
+    /**
+     * @return 機体と繋がっているなら true
+     */
+    boolean isLinked() {
+        return this.linked;
+    }
+
+    /**
+     * armed と disarmed が切り替わったときの処理を設定する
+     *
+     * @param onArmedChanged 処理。イベントを発行したスレッドで呼ばれる
+     */
+    void setOnArmedChanged(Runnable onArmedChanged) {
+        this.onArmedChanged = onArmedChanged;
+    }
+
+    /**
+     * @return 機体が armed なら true
+     */
+    boolean isArmed() {
+        return this.armed;
+    }
+
+    /**
+     * @return 画面に出す最新の値
+     */
+    VehicleDashboard getDashboard() {
+        return this.dashboard;
+    }
+
+    @Override
+    public void emit(String event, Object eventData) {
+        final Object data = Events.BATTERY.equals(event) ? normalizeBattery(eventData) : eventData;
+        if (Events.COMMAND_REACHED.equals(event)) {
+            this.metrics.commandReached();
+        } else if (Events.CONNECTED.equals(event) || Events.DISCONNECTED.equals(event)) {
+            this.linked = Events.CONNECTED.equals(event);
+            final Runnable onLinkChanged = this.onLinkChanged;
+            if (onLinkChanged != null) {
+                onLinkChanged.run();
+            }
+        } else if (Events.ARMED.equals(event) || Events.DISARMED.equals(event)) {
+            this.armed = Events.ARMED.equals(event);
+            final Runnable onArmedChanged = this.onArmedChanged;
+            if (onArmedChanged != null) {
+                onArmedChanged.run();
+            }
+        }
+        // 画面には購読と関係なく出す。参照を差し替えるだけなので送信は遅れない
+        this.dashboard.update(event, data);
+        // ジオフェンスも購読と関係なく照らし合わせる。出入りのイベントはこの emit を通って送られる
+        this.geofences.update(event, data);
+        // 購読者ごとの待ち行列には、それぞれが選んだイベントを入れる。詰まっていても待たない
+        final SubscriberFanout subscribers = this.subscribers;
+        if (subscribers != null) {
+            subscribers.emit(event, data);
+        }
+        final TopicCounters topics = this.metrics.getTopics();
+        topics.produced(event);
+        final EventSink sink = this.eventSink;
+        if (sink != null) {
+            // 誰も選んでいないイベントは処理段に渡さないので、レーンの受け渡しも記録も間引きもしない。
+            // 購読者だけが選んだものは記録して、処理段が記録の後で止める
+            if (!isWanted(event)) {
+                topics.suppressed(event);
+                return;
+            }
+            sink.emit(event, data);
+            return;
+        }
+        if (!this.subscriptions.isEnabled(event)) {
+            topics.suppressed(event);
+            return;
+        }
+        send(event, data);
+    }
+
+    @Override
+    public void enableEvents(List<String> events) {
+        super.enableEvents(events);
+        this.subscriptions.enable(events);
+    }
+
+    @Override
+    public void disableEvents(List<String> events) {
+        super.disableEvents(events);
+        this.subscriptions.disable(events);
+    }
+
+    /**
+     * @return 呼び出し側が選んだイベント
+     */
+    EventSubscriptions getSubscriptions() {
+        return this.subscriptions;
+    }
+
+    /**
+     * 中身を作る前に、作っても捨てるだけにならないかを確かめるのに使う
+     *
+     * @param event イベント名
+     * @return hub 側か購読者のどれかが選んでいれば true
+     */
+    boolean isWanted(String event) {
+        if (this.subscriptions.isEnabled(event)) {
+            return true;
+        }
+        final SubscriberFanout subscribers = this.subscribers;
+        return subscribers != null && subscribers.wants(event);
+    }
+
+    /**
+     * 呼び出し側が選んだイベントを選び直す。
+     * hub に繋ぎ直したときに使う
+     */
+    void restoreSubscriptions() {
+        // 購読者宛てのイベントは、全体の選び方と関係なく送れるようにしておく
+        final SubscriberFanout subscribers = this.subscribers;
+        if (subscribers != null) {
+            final List<String> frameEvents = subscribers.getFrameEvents();
+            if (!frameEvents.isEmpty()) {
+                frameEvents.add(EventBatcher.EVENT);
+                super.enableEvents(frameEvents);
+            }
+        }
+        if (!this.subscriptions.isChanged()) {
+            return;
+        }
+        final List<String> exceptions = this.subscriptions.getExceptions();
+        if (this.subscriptions.isEnabledByDefault()) {
+            super.enableEvents(null);
+            if (!exceptions.isEmpty()) {
+                super.disableEvents(exceptions);
+            }
+        } else {
+            super.disableEvents(null);
+            if (!exceptions.isEmpty()) {
+                super.enableEvents(exceptions);
+            }
+        }
+    }
+
+    // 飛行に関わる命令は所要時間を記録する
+    @Override
+    public void takeoff(double altitude) {
+        final long start = this.metrics.commandStarted("takeoff");
+        try {
+            super.takeoff(altitude);
+        } finally {
+            this.metrics.commandReturned("takeoff", start);
+        }
+    }
+
+    @Override
+    public void climbTo(double altitude) {
+        final long start = this.metrics.commandStarted("climbTo");
+        try {
+            super.climbTo(altitude);
+        } finally {
+            this.metrics.commandReturned("climbTo", start);
+        }
+    }
+
+    @Override
+    public void goTo(double latitude, double longitude) {
+        final long start = this.metrics.commandStarted("goTo");
+        try {
+            super.goTo(latitude, longitude);
+        } finally {
+            this.metrics.commandReturned("goTo", start);
+        }
+    }
+
+    @Override
+    public void land() {
+        final long start = this.metrics.commandStarted("land");
+        try {
+            super.land();
+        } finally {
+            this.metrics.commandReturned("land", start);
+        }
+    }
+
+    @Override
+    public void setMode(String mode) {
+        final long start = this.metrics.commandStarted("setMode");
+        try {
+            super.setMode(mode);
+        } finally {
+            this.metrics.commandReturned("setMode", start);
+        }
+    }
+
+    @Override
+    public void arm(boolean arm) {
+        final long start = this.metrics.commandStarted("arm");
+        try {
+            super.arm(arm);
+        } finally {
+            this.metrics.commandReturned("arm", start);
+        }
+    }
+
+    @Override
+    public void saveMission(List<Map<String, Object>> mission) {
+        final long start = this.metrics.commandStarted("saveMission");
+        try {
+            super.saveMission(mission);
+            this.missions.put(mission);
+        } finally {
+            this.metrics.commandReturned("saveMission", start);
+        }
+    }
+
+    /**
+     * @return 最後に保存したミッションのハッシュ。まだ無ければ null
+     */
+    public String getMissionHash() {
+        return this.missions.getLatestHash();
+    }
+
+    /**
+     * 前に保存したミッションから変えた項目だけを受けて保存する。
+     * 何も変わっていなければ機体には送らない
+     *
+     * @param baseHash 元にするミッションのハッシュ
+     * @param changes  変える項目。index と item を持つ
+     * @param length   新しいミッションの項目数
+     * @return 新しいミッションのハッシュ (hash)、書き直した範囲 (from, to)、機体に送ったか (uploaded)
+     */
+    public Map<String, Object> saveMissionDiff(String baseHash, List<Map<String, Object>> changes, int length) {
+        final List<Map<String, Object>> base = this.missions.get(baseHash);
+        if (base == null) {
+            // 呼び出し側は saveMission で全部送り直す
+            throw new IllegalArgumentException("Unknown mission " + baseHash);
+        }
+        final List<Map<String, Object>> mission = MissionCache.apply(base, changes, length);
+        final int[] range = MissionCache.changedRange(base, mission);
+        final Map<String, Object> result = new HashMap<>();
+        if (range == null) {
+            result.put("hash", baseHash);
+            result.put("uploaded", false);
+            return result;
+        }
+        // DroneKit はミッションを丸ごとしか書けないので、機体には全部送る
+        final long start = this.metrics.commandStarted("saveMissionDiff");
+        try {
+            super.saveMission(mission);
+        } finally {
+            this.metrics.commandReturned("saveMissionDiff", start);
+        }
+        result.put("hash", this.missions.put(mission));
+        result.put("from", range[0]);
+        result.put("to", range[1]);
+        result.put("uploaded", true);
+        return result;
+    }
+
+    /**
+     * ジオフェンスを加える。
+     * 機体が出入りすると entered と exited を、arrival なら着いたときに arrived を 1 回だけ発行する。
+     * 同じ ID の区域があれば置き換える
+     *
+     * @param fence 区域の定め。id と type (circle, polygon, band, arrival) に加えて、
+     *              circle と arrival は center ([緯度, 経度]) と radius (m)、polygon は vertices ([[緯度, 経度], ...])、
+     *              band は minAltitude と maxAltitude (m) のどちらかを持つ。band 以外も高度の範囲を持ってよい
+     */
+    public void addFence(Map<String, Object> fence) {
+        this.geofences.add(fence);
+    }
+
+    /**
+     * @param id 区域の ID
+     * @return あったなら true
+     */
+    public boolean removeFence(String id) {
+        return this.geofences.remove(id);
+    }
+
+    /**
+     * ジオフェンスを全て除く
+     */
+    public void clearFences() {
+        this.geofences.clear();
+    }
+
+    /**
+     * @return ジオフェンスの ID
+     */
+    public List<String> getFences() {
+        return this.geofences.getIds();
+    }
+
+    /**
+     * 自分宛ての待ち行列を作って購読する。
+     * イベントは返り値の名前で、通し番号 (seq)、イベント名 (event)、中身 (data) を持たせて 1 つずつ送る。
+     * 受け取ったら ackEvents で通し番号を返す。確認を待っている数が window に達したら、確認が来るまで送らずに溜める。
+     * 選ぶイベントと設定が同じ購読者とは待ち行列を共有し、同じ名前で受け取る。確認は全員から来るまで待つ。
+     * hub と切れている間は溜めておき、繋がったら確認の来ていないものを同じ通し番号で送り直すので、受け取り済みの番号は読み飛ばす。
+     * まとめ送りが有効なら batch イベントにまとめられることがあるので、example/unbatch.js でばらす。
+     * enableEvents と disableEvents で選んだものとは別に送る
+     *
+     * @param id      購読者の ID。呼び出し側で決める
+     * @param events  送るイベント。null なら全て
+     * @param options capacity (溜める最大数)、drop (溢れたときの捨て方。oldest, newest, latest)、
+     *                maxRate (1 秒あたりに送る最大数)、window (確認を待たずに送る最大数。0 なら確認を待たない)。
+     *                null や無い項目は既定値にする
+     * @return 購読者宛てのイベント名
+     */
+    public String subscribe(String id, List<String> events, Map<String, Object> options) {
+        final String frameEvent = getSubscribers().subscribe(id, events, options);
+        super.enableEvents(Arrays.asList(frameEvent, EventBatcher.EVENT));
+        return frameEvent;
+    }
+
+    /**
+     * @param id 購読者の ID
+     * @return 購読していたなら true
+     */
+    public boolean unsubscribe(String id) {
+        return getSubscribers().unsubscribe(id);
+    }
+
+    /**
+     * 受け取り確認を返す。それまでの通し番号も全て受け取ったと見なす
+     *
+     * @param id  購読者の ID
+     * @param seq 受け取った最後の通し番号
+     */
+    public void ackEvents(String id, long seq) {
+        final long roundTrip = getSubscribers().ack(id, seq);
+        if (roundTrip >= 0) {
+            this.probe.record(roundTrip);
+        }
+    }
+
+    /**
+     * ping イベントに返事をする。
+     * ping を受けたらすぐに中身の id を返すと、actor が回線の混み具合を測って送る頻度を調整する
+     *
+     * @param id ping イベントの id
+     */
+    public void pong(long id) {
+        this.probe.pong(id, System.nanoTime());
+    }
+
+    /**
+     * @param id     購読者の ID
+     * @param events 購読者に送るイベント。null なら全て
+     * @return 購読者宛てのイベント名。待ち行列を他の購読者と共有していたら、自分だけの待ち行列に移るので変わる
+     */
+    public String enableSubscriberEvents(String id, List<String> events) {
+        final String frameEvent = getSubscribers().enable(id, events);
+        super.enableEvents(Collections.singletonList(frameEvent));
+        return frameEvent;
+    }
+
+    /**
+     * @param id     購読者の ID
+     * @param events 購読者に送らないイベント。null なら全て
+     * @return 購読者宛てのイベント名。待ち行列を他の購読者と共有していたら、自分だけの待ち行列に移るので変わる
+     */
+    public String disableSubscriberEvents(String id, List<String> events) {
+        final String frameEvent = getSubscribers().disable(id, events);
+        super.enableEvents(Collections.singletonList(frameEvent));
+        return frameEvent;
+    }
+
+    /**
+     * @return 購読者ごとの溜めている数 (queued)、確認待ちの数 (inFlight)、送った数 (sent)、捨てた数 (dropped)、
+     * まだ届いていない最も古いイベントの遅れ (lag、ミリ秒)、確認が返るまでの時間 (ack)
+     */
+    public Map<String, Object> getSubscriberStats() {
+        return getSubscribers().toMap();
+    }
+
+    /**
+     * 記録したイベントを時間範囲で読み出す。
+     * 記録器の索引で from 以前に始まるブロックから読むので、記録全体は読まない
+     *
+     * @param from 始まりの時刻 (ミリ秒、含む)
+     * @param to   終わりの時刻 (ミリ秒、含む)
+     * @return records (time, event, data を持つ古い順のレコード)、
+     * truncated (多すぎて途中で打ち切ったなら true。最後の time から読み直す)、skipped (記録を諦めたイベントの数)
+     */
+    public Map<String, Object> getRecords(long from, long to) {
+        final TelemetryRecorder recorder = this.recorder;
+        if (recorder == null) {
+            throw new IllegalStateException("Not recording");
+        }
+        // 打ち切ったか分かるように 1 つ多く読む
+        final List<TelemetryRecorder.Record> records = recorder.read(from, to, MAX_RECORDS + 1);
+        final List<Map<String, Object>> list = new ArrayList<>();
+        for (TelemetryRecorder.Record record : records) {
+            if (list.size() >= MAX_RECORDS) {
+                break;
+            }
+            list.add(record.toMap());
+        }
+        final Map<String, Object> result = new HashMap<>();
+        result.put("records", list);
+        result.put("truncated", records.size() > list.size());
+        result.put("skipped", recorder.getSkipped());
+        return result;
+    }
+
+    /**
+     * 電池残量を BATTERY_REMAIN に入れた battery イベントの中身にする
+     *
+     * @param data 下のモジュールが発行した battery イベントの中身
+     * @return 電池残量を BATTERY_REMAIN に入れた中身。入っていたか、電池残量が無ければそのまま
+     */
+    static Object normalizeBattery(Object data) {
+        if (!(data instanceof Map)) {
+            return data;
+        }
+        final Map<?, ?> map = (Map<?, ?>) data;
+        if (map.get(BATTERY_REMAIN) instanceof Number) {
+            return data;
+        }
+        for (String alias : BATTERY_REMAIN_ALIASES) {
+            final Object value = map.get(alias);
+            if (value instanceof Number) {
+                final Map<Object, Object> normalized = new HashMap<>(map);
+                normalized.put(BATTERY_REMAIN, value);
+                return normalized;
+            }
+        }
+        return data;
+    }
+
+    /**
+     * @param data 発行した battery イベントの中身
+     * @return 電池残量 (%)。分からなければ負
+     */
+    static double getBatteryRemain(Object data) {
+        if (!(data instanceof Map)) {
+            return -1;
+        }
+        final Object value = ((Map<?, ?>) data).get(BATTERY_REMAIN);
+        return value instanceof Number ? ((Number) value).doubleValue() : -1;
+    }
+
+    /**
+     * 処理段を通さずに actor からイベントを送る
+     *
+     * @param event イベント名
+     * @param data  イベントの中身
+     */
+    void send(String event, Object data) {
+        super.emit(event, data);
+    }
+
+}
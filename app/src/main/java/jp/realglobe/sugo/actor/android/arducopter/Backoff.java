@@ -0,0 +1,64 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import java.util.Random;
+
+/**
+ * 揺らぎ付きの指数的な待ち時間。
+ * n 回目の待ち時間は min(最大, 基準 * 2^n) の後半半分から無作為に選ぶ
+ */
+final class Backoff {
+
+    private final long base;
+    private final long max;
+    private final Random random;
+
+    private int failures;
+
+    /**
+     * @param base 最初の待ち時間 (ミリ秒)
+     * @param max  最大の待ち時間 (ミリ秒)
+     */
+    Backoff(long base, long max) {
+        this(base, max, new Random());
+    }
+
+    Backoff(long base, long max, Random random) {
+        this.base = base;
+        this.max = max;
+        this.random = random;
+    }
+
+    /**
+     * @return 次の試行までの待ち時間 (ミリ秒)
+     */
+    synchronized long next() {
+        final long ceiling = this.failures >= 62 ? this.max : Math.min(this.max, this.base << Math.min(this.failures, 30));
+        this.failures++;
+        final long half = ceiling / 2;
+        return half + (long) (this.random.nextDouble() * (ceiling - half));
+    }
+
+    /**
+     * 成功したので最初からやり直す
+     */
+    synchronized void reset() {
+        this.failures = 0;
+    }
+
+}
@@ -0,0 +1,118 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link BinaryWriter} で書いたものを読む。
+ */
+final class BinaryReader {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private BinaryReader() {
+    }
+
+    /**
+     * 符号無しの可変長整数を読む
+     *
+     * @param buff 読み出し元
+     * @return 整数
+     */
+    static long readVarint(ByteBuffer buff) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            final byte b = buff.get();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    /**
+     * @param buff 読み出し元
+     * @return 文字列
+     */
+    static String readString(ByteBuffer buff) {
+        final int length = (int) readVarint(buff);
+        final String value = new String(buff.array(), buff.arrayOffset() + buff.position(), length, UTF_8);
+        buff.position(buff.position() + length);
+        return value;
+    }
+
+    /**
+     * 型タグ付きの値を読む。
+     * Map は HashMap に、リストは ArrayList に、浮動小数点数の配列は double[] になる
+     *
+     * @param buff 読み出し元
+     * @return 値
+     */
+    static Object value(ByteBuffer buff) {
+        final int tag = buff.get();
+        switch (tag) {
+            case BinaryWriter.TAG_NULL:
+                return null;
+            case BinaryWriter.TAG_FALSE:
+                return false;
+            case BinaryWriter.TAG_TRUE:
+                return true;
+            case BinaryWriter.TAG_LONG: {
+                final long n = readVarint(buff);
+                return (n >>> 1) ^ -(n & 1);
+            }
+            case BinaryWriter.TAG_DOUBLE:
+                return buff.getDouble();
+            case BinaryWriter.TAG_STRING:
+                return readString(buff);
+            case BinaryWriter.TAG_LIST: {
+                final int n = (int) readVarint(buff);
+                final List<Object> list = new ArrayList<>(n);
+                for (int i = 0; i < n; i++) {
+                    list.add(value(buff));
+                }
+                return list;
+            }
+            case BinaryWriter.TAG_MAP: {
+                final int n = (int) readVarint(buff);
+                final Map<String, Object> map = new HashMap<>();
+                for (int i = 0; i < n; i++) {
+                    final String key = readString(buff);
+                    map.put(key, value(buff));
+                }
+                return map;
+            }
+            case BinaryWriter.TAG_DOUBLES: {
+                final int n = (int) readVarint(buff);
+                final double[] array = new double[n];
+                for (int i = 0; i < n; i++) {
+                    array[i] = buff.getDouble();
+                }
+                return array;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown tag " + tag);
+        }
+    }
+
+}
@@ -0,0 +1,244 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * 使い回せるバイナリ書き出し器。
+ * イベントの中身を型タグ付きの詰めた形式で書く。{@link BinaryReader} で読み戻せる。
+ * Map, Collection, 配列, 文字列, 数値, 真偽値, null を扱い、それ以外は文字列にする
+ */
+final class BinaryWriter {
+
+    static final int TAG_NULL = 0;
+    static final int TAG_FALSE = 1;
+    static final int TAG_TRUE = 2;
+    static final int TAG_LONG = 3;
+    static final int TAG_DOUBLE = 4;
+    static final int TAG_STRING = 5;
+    static final int TAG_LIST = 6;
+    static final int TAG_MAP = 7;
+    static final int TAG_DOUBLES = 8;
+
+    private byte[] buff;
+    private int size;
+
+    /**
+     * @param capacity バッファの初期容量
+     */
+    BinaryWriter(int capacity) {
+        this.buff = new byte[capacity];
+    }
+
+    /**
+     * 書いたものを捨てる。バッファは使い回す
+     *
+     * @return this
+     */
+    BinaryWriter reset() {
+        this.size = 0;
+        return this;
+    }
+
+    /**
+     * @return 書いたバイト数
+     */
+    int size() {
+        return this.size;
+    }
+
+    /**
+     * @return 中身。先頭から {@link #size()} バイトが有効
+     */
+    byte[] array() {
+        return this.buff;
+    }
+
+    private void ensure(int n) {
+        if (this.size + n > this.buff.length) {
+            this.buff = Arrays.copyOf(this.buff, Math.max(this.buff.length * 2, this.size + n));
+        }
+    }
+
+    /**
+     * @param value 1 バイト
+     * @return this
+     */
+    BinaryWriter writeByte(int value) {
+        ensure(1);
+        this.buff[this.size++] = (byte) value;
+        return this;
+    }
+
+    /**
+     * 符号無しの可変長整数を書く
+     *
+     * @param value 0 以上の整数
+     * @return this
+     */
+    BinaryWriter writeVarint(long value) {
+        ensure(10);
+        while ((value & ~0x7fL) != 0) {
+            this.buff[this.size++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        this.buff[this.size++] = (byte) value;
+        return this;
+    }
+
+    /**
+     * @param value 8 バイト整数
+     * @return this
+     */
+    BinaryWriter writeLong(long value) {
+        ensure(8);
+        for (int i = 7; i >= 0; i--) {
+            this.buff[this.size++] = (byte) (value >>> (i * 8));
+        }
+        return this;
+    }
+
+    /**
+     * @param value 倍精度浮動小数点数
+     * @return this
+     */
+    BinaryWriter writeDouble(double value) {
+        return writeLong(Double.doubleToRawLongBits(value));
+    }
+
+    /**
+     * 長さと UTF-8 のバイト列を書く
+     *
+     * @param value 文字列
+     * @return this
+     */
+    BinaryWriter writeString(CharSequence value) {
+        final int n = value.length();
+        int length = 0;
+        for (int i = 0; i < n; i++) {
+            final char c = value.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(value.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        writeVarint(length);
+        ensure(length);
+        final byte[] b = this.buff;
+        int p = this.size;
+        for (int i = 0; i < n; i++) {
+            final char c = value.charAt(i);
+            if (c < 0x80) {
+                b[p++] = (byte) c;
+            } else if (c < 0x800) {
+                b[p++] = (byte) (0xc0 | (c >> 6));
+                b[p++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(value.charAt(i + 1))) {
+                final int cp = Character.toCodePoint(c, value.charAt(++i));
+                b[p++] = (byte) (0xf0 | (cp >> 18));
+                b[p++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                b[p++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                b[p++] = (byte) (0x80 | (cp & 0x3f));
+            } else {
+                b[p++] = (byte) (0xe0 | (c >> 12));
+                b[p++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                b[p++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        this.size = p;
+        return this;
+    }
+
+    /**
+     * 型タグ付きで値を書く
+     *
+     * @param value 値
+     * @return this
+     */
+    BinaryWriter value(Object value) {
+        if (value == null) {
+            writeByte(TAG_NULL);
+        } else if (value instanceof Boolean) {
+            writeByte((Boolean) value ? TAG_TRUE : TAG_FALSE);
+        } else if (value instanceof Double || value instanceof Float) {
+            writeByte(TAG_DOUBLE).writeDouble(((Number) value).doubleValue());
+        } else if (value instanceof Number) {
+            final long n = ((Number) value).longValue();
+            writeByte(TAG_LONG).writeVarint((n << 1) ^ (n >> 63));
+        } else if (value instanceof CharSequence) {
+            writeByte(TAG_STRING).writeString((CharSequence) value);
+        } else if (value instanceof Map) {
+            final Map<?, ?> map = (Map<?, ?>) value;
+            writeByte(TAG_MAP).writeVarint(map.size());
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                writeString(String.valueOf(entry.getKey()));
+                value(entry.getValue());
+            }
+        } else if (value instanceof List && value instanceof RandomAccess) {
+            final List<?> list = (List<?>) value;
+            writeByte(TAG_LIST).writeVarint(list.size());
+            for (int i = 0, n = list.size(); i < n; i++) {
+                value(list.get(i));
+            }
+        } else if (value instanceof Collection) {
+            final Collection<?> collection = (Collection<?>) value;
+            writeByte(TAG_LIST).writeVarint(collection.size());
+            for (Object element : collection) {
+                value(element);
+            }
+        } else if (value instanceof double[]) {
+            final double[] array = (double[]) value;
+            writeByte(TAG_DOUBLES).writeVarint(array.length);
+            for (double element : array) {
+                writeDouble(element);
+            }
+        } else if (value instanceof float[]) {
+            final float[] array = (float[]) value;
+            writeByte(TAG_DOUBLES).writeVarint(array.length);
+            for (float element : array) {
+                writeDouble(element);
+            }
+        } else if (value instanceof int[]) {
+            final int[] array = (int[]) value;
+            writeByte(TAG_LIST).writeVarint(array.length);
+            for (int element : array) {
+                writeByte(TAG_LONG).writeVarint(((long) element << 1) ^ ((long) element >> 63));
+            }
+        } else if (value instanceof Object[]) {
+            final Object[] array = (Object[]) value;
+            writeByte(TAG_LIST).writeVarint(array.length);
+            for (Object element : array) {
+                value(element);
+            }
+        } else {
+            writeByte(TAG_STRING).writeString(value.toString());
+        }
+        return this;
+    }
+
+}
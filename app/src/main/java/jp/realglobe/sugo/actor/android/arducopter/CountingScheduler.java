@@ -0,0 +1,62 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 1 本のスレッドで時間待ちをする。
+ * 眠っていたスレッドが起きて仕事をした回数を数えるので、省電力の効き目を測れる
+ */
+final class CountingScheduler extends ScheduledThreadPoolExecutor {
+
+    private final AtomicLong wakeups = new AtomicLong();
+    /**
+     * 前の仕事が終わった時刻。仕事をするスレッドだけが触る
+     */
+    private long lastFinished;
+
+    /**
+     * @param name スレッド名
+     */
+    CountingScheduler(String name) {
+        super(1, runnable -> new Thread(runnable, name));
+    }
+
+    @Override
+    protected void beforeExecute(Thread thread, Runnable runnable) {
+        super.beforeExecute(thread, runnable);
+        if (this.lastFinished == 0 || System.nanoTime() - this.lastFinished > LaneStats.IDLE_GAP) {
+            this.wakeups.incrementAndGet();
+        }
+    }
+
+    @Override
+    protected void afterExecute(Runnable runnable, Throwable throwable) {
+        super.afterExecute(runnable, throwable);
+        this.lastFinished = System.nanoTime();
+    }
+
+    /**
+     * @return 起きた回数
+     */
+    long getWakeups() {
+        return this.wakeups.get();
+    }
+
+}
@@ -0,0 +1,268 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 高頻度のイベントを、キーフレームと量子化した差分にして送る。
+ * <pre>
+ * キーフレーム {n: 通番, q: {フィールド: 刻み幅}, k: {フィールド: 刻み幅単位の値}, r: {その他のフィールド: 値}}
+ * 差分       {n: 通番, d: {変わったフィールド: 前からの差}, r: {その他のフィールド: 値}}
+ * </pre>
+ * 値は数値か数値の配列で、刻み幅の整数倍に丸めてから差を取るので、受け手で足し合わせても誤差は溜まらない。
+ * 受け手は example/delta.js で元に戻す
+ */
+final class DeltaEncoder implements EventSink {
+
+    static final String KEY_SEQUENCE = "n";
+    static final String KEY_QUANTA = "q";
+    static final String KEY_KEYFRAME = "k";
+    static final String KEY_DELTA = "d";
+    static final String KEY_RAW = "r";
+
+    private final EventSink next;
+    private final long keyframeInterval;
+    private final Map<String, Stream> streams = new ConcurrentHashMap<>();
+
+    /**
+     * @param next             次段
+     * @param keyframeInterval キーフレームを送る間隔 (ミリ秒)
+     */
+    DeltaEncoder(EventSink next, long keyframeInterval) {
+        this.next = next;
+        this.keyframeInterval = TimeUnit.MILLISECONDS.toNanos(keyframeInterval);
+    }
+
+    /**
+     * フィールドの刻み幅を設定する。
+     * 刻み幅を設定したイベントだけを符号化する
+     *
+     * @param event  イベント名
+     * @param field  フィールド名
+     * @param quanta 刻み幅。配列の要素ごとに変えるなら要素の数だけ。1 つなら全要素に使う
+     */
+    void setPrecision(String event, String field, double... quanta) {
+        if (quanta.length == 0) {
+            throw new IllegalArgumentException("No precision for " + event + "." + field);
+        }
+        for (double quantum : quanta) {
+            if (!(quantum > 0) || Double.isInfinite(quantum)) {
+                throw new IllegalArgumentException("Invalid precision " + quantum + " for " + event + "." + field);
+            }
+        }
+        Stream stream = this.streams.get(event);
+        if (stream == null) {
+            stream = new Stream();
+            this.streams.put(event, stream);
+        }
+        stream.setPrecision(field, quanta);
+    }
+
+    /**
+     * 次は全てのイベントをキーフレームで送る。
+     * hub に繋ぎ直したときなど、受け手が前の値を持っていないかもしれないときに使う
+     */
+    void reset() {
+        for (Stream stream : this.streams.values()) {
+            stream.reset();
+        }
+    }
+
+    @Override
+    public void emit(String event, Object data) {
+        this.next.emit(event, encode(event, data, System.nanoTime()));
+    }
+
+    /**
+     * @param event イベント名
+     * @param data  中身
+     * @param now   今の時刻 (ナノ秒)
+     * @return 符号化した中身。符号化しないイベントならそのまま
+     */
+    Object encode(String event, Object data, long now) {
+        final Stream stream = this.streams.get(event);
+        if (stream == null || !(data instanceof Map)) {
+            return data;
+        }
+        return stream.encode((Map<?, ?>) data, now);
+    }
+
+    /**
+     * 1 種類のイベントの符号化の状態
+     */
+    private final class Stream {
+
+        private final Map<String, double[]> quanta = new LinkedHashMap<>();
+        /**
+         * 前に送った値。刻み幅単位
+         */
+        private final Map<String, long[]> last = new HashMap<>();
+        private long sequence;
+        private long lastKeyframe;
+        private boolean needsKeyframe = true;
+
+        synchronized void setPrecision(String field, double[] quanta) {
+            this.quanta.put(field, quanta.clone());
+            this.needsKeyframe = true;
+        }
+
+        synchronized void reset() {
+            this.needsKeyframe = true;
+        }
+
+        synchronized Map<String, Object> encode(Map<?, ?> data, long now) {
+            final Map<String, long[]> current = new HashMap<>();
+            final Map<String, Object> raw = new HashMap<>();
+            for (Map.Entry<?, ?> entry : data.entrySet()) {
+                final String field = String.valueOf(entry.getKey());
+                final double[] quanta = this.quanta.get(field);
+                final long[] quantized = quanta == null ? null : quantize(entry.getValue(), quanta);
+                if (quantized == null) {
+                    raw.put(field, entry.getValue());
+                } else {
+                    current.put(field, quantized);
+                }
+            }
+
+            final boolean keyframe = this.needsKeyframe || now - this.lastKeyframe >= keyframeInterval || !sameShape(current);
+
+            final Map<String, Object> encoded = new HashMap<>();
+            encoded.put(KEY_SEQUENCE, this.sequence++);
+            if (keyframe) {
+                final Map<String, Object> quantaMap = new HashMap<>();
+                final Map<String, Object> values = new HashMap<>();
+                for (Map.Entry<String, long[]> entry : current.entrySet()) {
+                    quantaMap.put(entry.getKey(), this.quanta.get(entry.getKey()));
+                    values.put(entry.getKey(), scalarOrArray(data.get(entry.getKey()), entry.getValue()));
+                }
+                encoded.put(KEY_QUANTA, quantaMap);
+                encoded.put(KEY_KEYFRAME, values);
+                this.lastKeyframe = now;
+                this.needsKeyframe = false;
+            } else {
+                final Map<String, Object> deltas = new HashMap<>();
+                for (Map.Entry<String, long[]> entry : current.entrySet()) {
+                    final long[] previous = this.last.get(entry.getKey());
+                    final long[] delta = new long[previous.length];
+                    boolean changed = false;
+                    for (int i = 0; i < delta.length; i++) {
+                        delta[i] = entry.getValue()[i] - previous[i];
+                        changed |= delta[i] != 0;
+                    }
+                    if (changed) {
+                        deltas.put(entry.getKey(), scalarOrArray(data.get(entry.getKey()), delta));
+                    }
+                }
+                encoded.put(KEY_DELTA, deltas);
+            }
+            if (!raw.isEmpty()) {
+                encoded.put(KEY_RAW, raw);
+            }
+            this.last.clear();
+            this.last.putAll(current);
+            return encoded;
+        }
+
+        /**
+         * @return 前に送った値とフィールドも要素数も同じなら true
+         */
+        private boolean sameShape(Map<String, long[]> current) {
+            if (!current.keySet().equals(this.last.keySet())) {
+                return false;
+            }
+            for (Map.Entry<String, long[]> entry : current.entrySet()) {
+                if (entry.getValue().length != this.last.get(entry.getKey()).length) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+    }
+
+    /**
+     * 刻み幅単位に丸める
+     *
+     * @param value  数値か数値の配列
+     * @param quanta 刻み幅
+     * @return 刻み幅単位の値。数値でなければ null
+     */
+    static long[] quantize(Object value, double[] quanta) {
+        final int length = length(value);
+        if (length < 0) {
+            return null;
+        }
+        final long[] quantized = new long[length];
+        for (int i = 0; i < length; i++) {
+            final double element = element(value, i);
+            if (Double.isNaN(element) || Double.isInfinite(element)) {
+                return null;
+            }
+            quantized[i] = Math.round(element / quanta[Math.min(i, quanta.length - 1)]);
+        }
+        return quantized;
+    }
+
+    /**
+     * @return 要素数。数値なら 1。数値でも数値の配列でもなければ -1
+     */
+    private static int length(Object value) {
+        if (value instanceof Number) {
+            return 1;
+        } else if (value instanceof double[]) {
+            return ((double[]) value).length;
+        } else if (value instanceof float[]) {
+            return ((float[]) value).length;
+        } else if (value instanceof int[]) {
+            return ((int[]) value).length;
+        } else if (value instanceof List) {
+            return ((List<?>) value).size();
+        }
+        return -1;
+    }
+
+    /**
+     * @return 要素。数値でなければ NaN
+     */
+    private static double element(Object value, int index) {
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        } else if (value instanceof double[]) {
+            return ((double[]) value)[index];
+        } else if (value instanceof float[]) {
+            return ((float[]) value)[index];
+        } else if (value instanceof int[]) {
+            return ((int[]) value)[index];
+        }
+        final Object element = ((List<?>) value).get(index);
+        return element instanceof Number ? ((Number) element).doubleValue() : Double.NaN;
+    }
+
+    /**
+     * 元が数値なら数値に、配列なら配列にする
+     */
+    private static Object scalarOrArray(Object original, long[] values) {
+        return original instanceof Number ? (Object) values[0] : values;
+    }
+
+}
@@ -0,0 +1,178 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 一定時間内に発行されたイベントをまとめて 1 つのイベントとして流す。
+ * <p>
+ * まとめたイベントは {@value #EVENT} イベントとして
+ * <pre>{"t": 最初のイベントの時刻 (ミリ秒), "e": [[イベント名, t からの経過ミリ秒, 中身], ...]}</pre>
+ * の形で流す。
+ * テレメトリと購読者宛てのフレーム以外のイベントが来たら待たずに流す。
+ * フレームは購読者が受け取り確認を返すまで待てるので、テレメトリと同じくまとめる。
+ * 1 つしか溜まっていなければまとめずにそのまま流す。
+ * <p>
+ * 文字列モードでは、届いたイベントをその場で使い回しのバッファに JSON として書き足し、
+ * 上の形の JSON 文字列を中身として流す。
+ * イベントごとの Map や List を作らないので、高頻度のテレメトリでもごみが出にくい。
+ * ただし中身は JSON のオブジェクトではなく文字列として送られる (送るときにもう一度 JSON にされる) ので、
+ * 受け取り側に JSON.parse してもらう必要がある。
+ * 送る形が変わるので、設定で選んだときだけ使う。受け取り側は example/unbatch.js でばらせる。
+ * まとめずにそのまま流すイベントはこれまでどおり Map のまま送る
+ */
+final class EventBatcher implements EventSink {
+
+    static final String EVENT = "batch";
+    static final String KEY_TIME = "t";
+    static final String KEY_EVENTS = "e";
+
+    private final EventSink next;
+    private final ScheduledExecutorService scheduler;
+    private long window;
+    /**
+     * 文字列モードのときの書き出し先。そうでなければ null
+     */
+    private final JsonWriter writer;
+
+    private final Runnable flushTask = this::flush;
+    /**
+     * 溜め始めたときに予約した flush。早めに流したら取り消す
+     */
+    private ScheduledFuture<?> scheduledFlush;
+
+    private List<List<Object>> pending = new ArrayList<>();
+    private int pendingCount;
+    private long startTime;
+    private String firstEvent;
+    private Object firstData;
+
+    /**
+     * @param next      次段
+     * @param scheduler まとめたイベントを流すのに使う
+     * @param window    まとめる時間 (ミリ秒)
+     */
+    EventBatcher(EventSink next, ScheduledExecutorService scheduler, long window) {
+        this(next, scheduler, window, 0);
+    }
+
+    /**
+     * @param next       次段
+     * @param scheduler  まとめたイベントを流すのに使う
+     * @param window     まとめる時間 (ミリ秒)。0 ならまとめない
+     * @param bufferSize 文字列モードのバッファの初期容量。0 なら文字列モードにしない
+     */
+    EventBatcher(EventSink next, ScheduledExecutorService scheduler, long window, int bufferSize) {
+        this.next = next;
+        this.scheduler = scheduler;
+        this.window = window;
+        this.writer = bufferSize > 0 ? new JsonWriter(bufferSize) : null;
+    }
+
+    @Override
+    public void emit(String event, Object data) {
+        final long now = System.currentTimeMillis();
+        synchronized (this) {
+            if (this.window <= 0) {
+                this.next.emit(event, data);
+                return;
+            }
+            if (this.pendingCount == 0) {
+                this.startTime = now;
+                this.firstEvent = event;
+                this.firstData = data;
+                this.scheduledFlush = this.scheduler.schedule(this.flushTask, this.window, TimeUnit.MILLISECONDS);
+                if (this.writer != null) {
+                    this.writer.reset().raw("{\"" + KEY_TIME + "\":").number(now).raw(",\"" + KEY_EVENTS + "\":[");
+                }
+            }
+            if (this.writer != null) {
+                if (this.pendingCount > 0) {
+                    this.writer.raw(',');
+                }
+                this.writer.raw('[').string(event).raw(',').number(now - this.startTime).raw(',').value(data).raw(']');
+            } else {
+                this.pending.add(Arrays.asList(event, now - this.startTime, data));
+            }
+            this.pendingCount++;
+            if (Events.isTelemetry(event) || SubscriberFanout.isFrameEvent(event)) {
+                return;
+            }
+            flush();
+        }
+    }
+
+    /**
+     * まとめる時間を変える。
+     * 0 にしたら溜まっているイベントを流して、それからはまとめない
+     *
+     * @param window まとめる時間 (ミリ秒)
+     */
+    synchronized void setWindow(long window) {
+        this.window = window;
+        if (window <= 0) {
+            flush();
+        }
+    }
+
+    /**
+     * 溜まっているイベントを流す
+     */
+    synchronized void flush() {
+        if (this.scheduledFlush != null) {
+            // 残しておくと次に溜め始めた分を途中で流してしまう
+            this.scheduledFlush.cancel(false);
+            this.scheduledFlush = null;
+        }
+        final int count = this.pendingCount;
+        if (count == 0) {
+            return;
+        }
+        this.pendingCount = 0;
+        final String event = this.firstEvent;
+        final Object data = this.firstData;
+        this.firstEvent = null;
+        this.firstData = null;
+
+        if (count == 1) {
+            this.pending.clear();
+            this.next.emit(event, data);
+            return;
+        }
+
+        if (this.writer != null) {
+            this.writer.raw("]}");
+            this.next.emit(EVENT, this.writer.toString());
+            return;
+        }
+
+        final Map<String, Object> frame = new HashMap<>();
+        frame.put(KEY_TIME, this.startTime);
+        frame.put(KEY_EVENTS, this.pending);
+        this.pending = new ArrayList<>();
+        this.next.emit(EVENT, frame);
+    }
+
+}
@@ -0,0 +1,312 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * 1 つのモジュールが発行したイベントを actor に届けるまでの処理段。
+ * <pre>テレメトリレーン → 記録 → 頻度の調整 → 間引き → 購読の確認 → 切断中の溜め置き → 差分化 → まとめ送り → 出口</pre>
+ * の順に繋ぐ。
+ * 購読者ごとの待ち行列が送るフレームは、通し番号と送信頻度の上限、切断中の溜め置きを待ち行列が受け持つので、
+ * まとめ送りから入れる。
+ * 処理段の時間待ちには、この処理段専用のスレッドを使う。
+ * 省電力にしたら、まとめる時間を延ばし、テレメトリの頻度に上限を当てる
+ */
+final class EventPipeline implements Closeable {
+
+    private static final String LOG_TAG = EventPipeline.class.getName();
+
+    private final CountingScheduler scheduler;
+    private final TelemetryLane lane;
+    private final TelemetryRecorder recorder;
+    private final OutboundQueue outboundQueue;
+    private final DeltaEncoder deltaEncoder;
+    private final AdaptiveRateController rateController;
+    private final TelemetryCoalescer coalescer;
+    private final EventBatcher batcher;
+    private final EventSink frameInput;
+    private final Map<String, Double> baseRates;
+    private final Map<String, Double> efficiencyRates;
+    private final long batchWindow;
+    private final long efficiencyBatchWindow;
+    private volatile Map<String, Double> fixedRates;
+
+    /**
+     * @param name    名前。スレッド名に使う
+     * @param output  出口
+     * @param options 設定
+     */
+    EventPipeline(String name, EventSink output, PipelineOptions options) {
+        this(name, output, options, null, null);
+    }
+
+    /**
+     * @param name          名前。スレッド名に使う
+     * @param output        出口
+     * @param options       設定
+     * @param subscriptions 購読されているイベント。null なら全て流す
+     * @param counters      購読の確認結果を数える先
+     */
+    EventPipeline(String name, EventSink output, PipelineOptions options, EventSubscriptions subscriptions, TopicCounters counters) {
+        this.scheduler = new CountingScheduler(name + ".scheduler");
+        this.baseRates = new HashMap<>(options.rates);
+        this.efficiencyRates = new HashMap<>(options.efficiencyRates);
+        this.batchWindow = options.batchWindow;
+        this.efficiencyBatchWindow = options.efficiencyBatchWindow;
+
+        EventSink sink = output;
+        EventBatcher batcher = null;
+        if (options.batchWindow > 0) {
+            // 複数のイベントを 1 つにまとめて送る。
+            // まとめると呼び出し側に届く形が変わるので、省電力のときもまとめ送りが有効な場合だけまとめる
+            batcher = new EventBatcher(sink, this.scheduler, options.batchWindow, options.batchBufferSize);
+            sink = batcher;
+        }
+        this.batcher = batcher;
+        final EventSink frameOutput = sink;
+        this.frameInput = counters == null ? frameOutput : (event, data) -> {
+            counters.produced(event);
+            counters.sent(event);
+            frameOutput.emit(event, data);
+        };
+
+        DeltaEncoder deltaEncoder = null;
+        if (options.deltaKeyframeInterval > 0) {
+            // 高頻度のイベントはキーフレームと差分にする
+            deltaEncoder = new DeltaEncoder(sink, options.deltaKeyframeInterval);
+            for (Map.Entry<String, Map<String, double[]>> event : options.precisions.entrySet()) {
+                for (Map.Entry<String, double[]> field : event.getValue().entrySet()) {
+                    deltaEncoder.setPrecision(event.getKey(), field.getKey(), field.getValue());
+                }
+            }
+            sink = deltaEncoder;
+        }
+        this.deltaEncoder = deltaEncoder;
+
+        OutboundQueue outboundQueue = null;
+        if (options.outboundFile != null) {
+            try {
+                // hub と切れている間は溜めておいて、繋がり直したら送り直す
+                outboundQueue = new OutboundQueue(sink, this.scheduler, options.outboundFile, options.outboundMaxSize,
+                        options.outboundDownsampleInterval, options.outboundReplayRate, options.outboundMaxReplayDelay);
+                sink = outboundQueue;
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Failed to open outbound queue", e);
+            }
+        }
+        this.outboundQueue = outboundQueue;
+
+        if (subscriptions != null) {
+            // 間引きで待っている間に購読が外れたものは流さない
+            sink = new SubscriptionGate(sink, subscriptions, counters, true);
+        }
+
+        // テレメトリイベントは最新値だけを決まった頻度で送る
+        final TelemetryCoalescer coalescer = new TelemetryCoalescer(sink, this.scheduler);
+        for (Map.Entry<String, Double> rate : options.rates.entrySet()) {
+            coalescer.setRate(rate.getKey(), rate.getValue());
+        }
+        sink = coalescer;
+        this.coalescer = coalescer;
+
+        AdaptiveRateController rateController = null;
+        if (options.adaptiveInterval > 0) {
+            // 回線が混んだら間引きの頻度を下げる
+            rateController = new AdaptiveRateController(sink, coalescer, options.rates, options.minRates,
+                    options.congestionRoundTrip, options.lowBattery);
+            sink = rateController;
+        }
+        this.rateController = rateController;
+        this.fixedRates = limitRates(Collections.<String, Double>emptyMap());
+
+        if (subscriptions != null) {
+            // 購読者だけが選んだものや、レーンで待っている間に購読が外れたものは、記録だけして間引きや符号化には流さない
+            sink = new SubscriptionGate(sink, subscriptions, counters, false);
+        }
+
+        TelemetryRecorder recorder = null;
+        if (options.recorderFile != null) {
+            try {
+                // hub 側か購読者が選んだイベントを間引く前に記録する
+                recorder = TelemetryRecorder.open(options.recorderFile, options.recorderCapacity, sink);
+                sink = recorder;
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Failed to open recorder", e);
+            }
+        }
+        this.recorder = recorder;
+
+        this.lane = new TelemetryLane(sink, options.telemetryQueueCapacity, new LaneStats(name + ".telemetry"));
+        this.lane.start();
+        if (rateController != null) {
+            rateController.start(this.scheduler, options.adaptiveInterval);
+        }
+    }
+
+    /**
+     * @return 入口
+     */
+    EventSink getInput() {
+        return this.lane;
+    }
+
+    /**
+     * @return 購読者宛てのフレームの入口。受け取ったスレッドでそのまま送る
+     */
+    EventSink getFrameInput() {
+        return this.frameInput;
+    }
+
+    /**
+     * @return 処理段の時間待ちに使うスレッド
+     */
+    ScheduledExecutorService getScheduler() {
+        return this.scheduler;
+    }
+
+    LaneStats getLaneStats() {
+        return this.lane.getStats();
+    }
+
+    /**
+     * @return 選ばれているイベントの記録器。記録していなければ null
+     */
+    TelemetryRecorder getRecorder() {
+        return this.recorder;
+    }
+
+    /**
+     * @return イベントごとの今の最大送信頻度 (回/秒)
+     */
+    Map<String, Double> getForwardRates() {
+        return this.rateController == null ? this.fixedRates : this.rateController.getRates();
+    }
+
+    /**
+     * 電源の使い方を伝える
+     *
+     * @param profile {@link PowerPolicy#PERFORMANCE} か {@link PowerPolicy#EFFICIENCY}
+     */
+    void setPowerProfile(String profile) {
+        final boolean efficient = PowerPolicy.EFFICIENCY.equals(profile);
+        if (this.batcher != null) {
+            this.batcher.setWindow(efficient ? Math.max(this.batchWindow, this.efficiencyBatchWindow) : this.batchWindow);
+        }
+        final Map<String, Double> limits = efficient ? this.efficiencyRates : Collections.<String, Double>emptyMap();
+        if (this.rateController != null) {
+            this.rateController.setLimits(limits);
+            return;
+        }
+        final Map<String, Double> rates = limitRates(limits);
+        final Set<String> events = new HashSet<>(this.baseRates.keySet());
+        events.addAll(this.efficiencyRates.keySet());
+        for (String event : events) {
+            final Double rate = rates.get(event);
+            this.coalescer.setRate(event, rate == null ? 0 : rate);
+        }
+        this.fixedRates = rates;
+    }
+
+    /**
+     * @return 上限を当てたイベントごとの頻度。間引かないイベントは含めない
+     */
+    private Map<String, Double> limitRates(Map<String, Double> limits) {
+        final Set<String> events = new HashSet<>(this.baseRates.keySet());
+        events.addAll(limits.keySet());
+        final Map<String, Double> rates = new HashMap<>();
+        for (String event : events) {
+            final Double base = this.baseRates.get(event);
+            final double rate = PowerPolicy.limitRate(base == null ? 0 : base, limits.get(event));
+            if (rate > 0) {
+                rates.put(event, rate);
+            }
+        }
+        return Collections.unmodifiableMap(rates);
+    }
+
+    /**
+     * @return 処理段の時間待ちのスレッドが眠りから起きた回数
+     */
+    long getWakeups() {
+        return this.scheduler.getWakeups();
+    }
+
+    /**
+     * hub との往復時間を伝える
+     *
+     * @param nanos 往復時間 (ナノ秒)
+     */
+    void setHubRoundTrip(long nanos) {
+        if (this.rateController != null) {
+            this.rateController.setHubRoundTrip(nanos);
+        }
+    }
+
+    /**
+     * @return hub と切れている間に溜めたイベントの大きさ (バイト)。溜めていなければ 0
+     */
+    long getOutboundPendingBytes() {
+        return this.outboundQueue == null ? 0 : this.outboundQueue.getPendingBytes();
+    }
+
+    /**
+     * hub との接続状態を伝える
+     *
+     * @param online 繋がったなら true
+     */
+    void setOnline(boolean online) {
+        if (online && this.deltaEncoder != null) {
+            // 受け手が前の値を持っていないかもしれない
+            this.deltaEncoder.reset();
+        }
+        if (this.outboundQueue != null) {
+            this.outboundQueue.setOnline(online);
+        }
+    }
+
+    @Override
+    public void close() {
+        Log.i(LOG_TAG, this.lane.getStats().toString());
+        this.lane.close();
+        this.scheduler.shutdownNow();
+        if (this.outboundQueue != null) {
+            try {
+                this.outboundQueue.close();
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Failed to close outbound queue", e);
+            }
+        }
+        if (this.recorder != null) {
+            try {
+                this.recorder.close();
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Failed to close recorder", e);
+            }
+        }
+    }
+
+}
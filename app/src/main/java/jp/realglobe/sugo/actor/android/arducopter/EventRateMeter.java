@@ -0,0 +1,61 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * イベントごとに hub 側に流した頻度を測る。
+ * 前に測ったときからの数の増分を経過時間で割る
+ */
+final class EventRateMeter {
+
+    private final TopicCounters topics;
+    private final Map<String, Long> lastCounts = new HashMap<>();
+    private long lastTime;
+    private boolean started;
+
+    /**
+     * @param topics イベントごとの数
+     */
+    EventRateMeter(TopicCounters topics) {
+        this.topics = topics;
+    }
+
+    /**
+     * 測る
+     *
+     * @param nowNanos 今の時刻 (ナノ秒)
+     * @return イベントごとの頻度 (回/秒)。初めて測ったときは空
+     */
+    Map<String, Double> update(long nowNanos) {
+        final Map<String, Double> rates = new HashMap<>();
+        final double seconds = (nowNanos - this.lastTime) / 1e9;
+        for (String event : this.topics.getEvents()) {
+            final long count = this.topics.getSent(event);
+            final Long last = this.lastCounts.put(event, count);
+            if (this.started && seconds > 0) {
+                rates.put(event, (count - (last == null ? 0 : last)) / seconds);
+            }
+        }
+        this.lastTime = nowNanos;
+        this.started = true;
+        return rates;
+    }
+
+}
@@ -0,0 +1,141 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * enableEvents と disableEvents で選ばれたイベント。
+ * 既定で全て有効か全て無効かと、その例外で表す
+ */
+final class EventSubscriptions {
+
+    private boolean changed;
+    private boolean enabledByDefault = true;
+    private final Set<String> exceptions = new HashSet<>();
+
+    /**
+     * @param events 有効にするイベント。null なら全て
+     * @return 選んだイベントだけが有効なもの
+     */
+    static EventSubscriptions of(Collection<String> events) {
+        final EventSubscriptions subscriptions = new EventSubscriptions();
+        if (events != null) {
+            subscriptions.disable(null);
+            subscriptions.enable(events);
+        }
+        return subscriptions;
+    }
+
+    /**
+     * @param events 有効にするイベント。null なら全て
+     */
+    synchronized void enable(Collection<String> events) {
+        this.changed = true;
+        if (events == null) {
+            this.enabledByDefault = true;
+            this.exceptions.clear();
+            return;
+        }
+        for (String event : events) {
+            if (this.enabledByDefault) {
+                this.exceptions.remove(event);
+            } else {
+                this.exceptions.add(event);
+            }
+        }
+    }
+
+    /**
+     * @param events 無効にするイベント。null なら全て
+     */
+    synchronized void disable(Collection<String> events) {
+        this.changed = true;
+        if (events == null) {
+            this.enabledByDefault = false;
+            this.exceptions.clear();
+            return;
+        }
+        for (String event : events) {
+            if (this.enabledByDefault) {
+                this.exceptions.add(event);
+            } else {
+                this.exceptions.remove(event);
+            }
+        }
+    }
+
+    /**
+     * @param event イベント名
+     * @return 有効なら true
+     */
+    synchronized boolean isEnabled(String event) {
+        return this.enabledByDefault != this.exceptions.contains(event);
+    }
+
+    /**
+     * @return 一度でも選び直されていれば true
+     */
+    synchronized boolean isChanged() {
+        return this.changed;
+    }
+
+    /**
+     * @return 既定で有効なら true
+     */
+    synchronized boolean isEnabledByDefault() {
+        return this.enabledByDefault;
+    }
+
+    /**
+     * @return 既定と違うイベント
+     */
+    synchronized List<String> getExceptions() {
+        return new ArrayList<>(this.exceptions);
+    }
+
+    /**
+     * @return 同じイベントを選んだ別のもの
+     */
+    EventSubscriptions copy() {
+        final EventSubscriptions copy = new EventSubscriptions();
+        synchronized (this) {
+            copy.changed = this.changed;
+            copy.enabledByDefault = this.enabledByDefault;
+            copy.exceptions.addAll(this.exceptions);
+        }
+        return copy;
+    }
+
+    /**
+     * @param other 比べる相手
+     * @return 同じイベントを選んでいれば true
+     */
+    boolean isSameAs(EventSubscriptions other) {
+        // 両方のロックを同時に取らない
+        final boolean enabledByDefault = other.isEnabledByDefault();
+        final Set<String> exceptions = new HashSet<>(other.getExceptions());
+        synchronized (this) {
+            return this.enabledByDefault == enabledByDefault && this.exceptions.equals(exceptions);
+        }
+    }
+
+}
@@ -0,0 +1,81 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * ArduCopter モジュールが発行するイベント名。
+ */
+final class Events {
+
+    static final String ARMED = "armed";
+    static final String DISARMED = "disarmed";
+    static final String MODE = "mode";
+    static final String COMMAND_REACHED = "commandReached";
+    static final String MISSION_SAVED = "missionSaved";
+    static final String CONNECTED = "connected";
+    static final String DISCONNECTED = "disconnected";
+    /**
+     * actor 側で付け加える計測値のイベント
+     */
+    static final String METRICS = "metrics";
+    /**
+     * actor 側でジオフェンスと照らし合わせて発行するイベント
+     */
+    static final String ENTERED = "entered";
+    static final String EXITED = "exited";
+    static final String ARRIVED = "arrived";
+    /**
+     * actor 側で hub の先の呼び出し側との往復時間を測るために送るイベント。
+     * 受けた呼び出し側は pong で返す
+     */
+    static final String PING = "ping";
+
+    static final String POSITION = "position";
+    static final String ATTITUDE = "attitude";
+    static final String SPEED = "speed";
+    static final String BATTERY = "battery";
+    static final String GIMBAL_ORIENTATION = "gimbalOrientation";
+
+    /**
+     * 高頻度で発行されるテレメトリイベント。
+     * 最新値だけに意味があるので間引いてよい
+     */
+    static final Set<String> TELEMETRY = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+            POSITION,
+            ATTITUDE,
+            SPEED,
+            BATTERY,
+            GIMBAL_ORIENTATION
+    )));
+
+    private Events() {
+    }
+
+    /**
+     * @param event イベント名
+     * @return 間引いてよいテレメトリイベントなら true
+     */
+    static boolean isTelemetry(String event) {
+        return TELEMETRY.contains(event);
+    }
+
+}
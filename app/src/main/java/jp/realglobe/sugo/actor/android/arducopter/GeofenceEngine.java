@@ -0,0 +1,458 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 機体の位置をジオフェンスと照らし合わせて、出入りしたときだけイベントを発行する。
+ * 呼び出し側は位置を受け取り続けなくても、目的地に着いたことや区域を出たことを知れる。
+ * 水平方向の区域は緯度経度の格子で引くので、区域が多くても 1 回の照合は近くの区域だけで済む
+ */
+final class GeofenceEngine {
+
+    /**
+     * 区域の種類。
+     * circle は中心 (center) と半径 (radius)、polygon は頂点 (vertices) で水平方向の範囲を決める。
+     * band は高度だけで決める。arrival は circle と同じ範囲で、入ったら arrived を 1 回だけ発行して消える
+     */
+    static final String TYPE_CIRCLE = "circle";
+    static final String TYPE_POLYGON = "polygon";
+    static final String TYPE_BAND = "band";
+    static final String TYPE_ARRIVAL = "arrival";
+
+    /**
+     * 区域を定めるキー。
+     * 高度の下限 (minAltitude) と上限 (maxAltitude) は band 以外では省いてよい
+     */
+    static final String KEY_ID = "id";
+    static final String KEY_TYPE = "type";
+    static final String KEY_CENTER = "center";
+    static final String KEY_RADIUS = "radius";
+    static final String KEY_VERTICES = "vertices";
+    static final String KEY_MIN_ALTITUDE = "minAltitude";
+    static final String KEY_MAX_ALTITUDE = "maxAltitude";
+
+    /**
+     * 緯度 1 度あたりの距離 (m)。区域の大きさなら地球を平面と見なしてよい
+     */
+    private static final double METERS_PER_DEGREE = 111_320;
+
+    /**
+     * 格子のこれより多くの升目にかかる区域は、升目に入れずに毎回調べる
+     */
+    private static final int MAX_CELLS_PER_FENCE = 1_024;
+
+    private static final class Fence {
+
+        final String id;
+        final String type;
+        // 水平方向の範囲。基準点からの東西、南北の距離 (m) で持つ
+        final double referenceLatitude;
+        final double referenceLongitude;
+        final double metersPerLongitude;
+        final double radius;
+        final double[] xs;
+        final double[] ys;
+        final double minAltitude;
+        final double maxAltitude;
+        // 外接矩形 (度)
+        final double south;
+        final double north;
+        final double west;
+        final double east;
+
+        boolean inside;
+        long evaluated;
+
+        Fence(String id, String type, double referenceLatitude, double referenceLongitude, double radius, double[] xs, double[] ys,
+              double minAltitude, double maxAltitude, double south, double north, double west, double east) {
+            this.id = id;
+            this.type = type;
+            this.referenceLatitude = referenceLatitude;
+            this.referenceLongitude = referenceLongitude;
+            this.metersPerLongitude = METERS_PER_DEGREE * Math.cos(Math.toRadians(referenceLatitude));
+            this.radius = radius;
+            this.xs = xs;
+            this.ys = ys;
+            this.minAltitude = minAltitude;
+            this.maxAltitude = maxAltitude;
+            this.south = south;
+            this.north = north;
+            this.west = west;
+            this.east = east;
+        }
+
+        boolean isHorizontal() {
+            return !TYPE_BAND.equals(this.type);
+        }
+
+        /**
+         * @return 境界からの距離 (m)。内側なら負。高度が要るのに分からなければ NaN
+         */
+        double distance(double latitude, double longitude, double altitude) {
+            double distance = Double.NEGATIVE_INFINITY;
+            if (this.xs != null) {
+                distance = polygonDistance((longitude - this.referenceLongitude) * this.metersPerLongitude, (latitude - this.referenceLatitude) * METERS_PER_DEGREE);
+            } else if (isHorizontal()) {
+                final double x = (longitude - this.referenceLongitude) * this.metersPerLongitude;
+                final double y = (latitude - this.referenceLatitude) * METERS_PER_DEGREE;
+                distance = Math.sqrt(x * x + y * y) - this.radius;
+            }
+            if (!Double.isInfinite(this.minAltitude) || !Double.isInfinite(this.maxAltitude)) {
+                if (Double.isNaN(altitude)) {
+                    return Double.NaN;
+                }
+                distance = Math.max(distance, Math.max(this.minAltitude - altitude, altitude - this.maxAltitude));
+            }
+            return distance;
+        }
+
+        private double polygonDistance(double x, double y) {
+            boolean inside = false;
+            double min = Double.POSITIVE_INFINITY;
+            for (int i = 0, j = this.xs.length - 1; i < this.xs.length; j = i++) {
+                final double x1 = this.xs[j];
+                final double y1 = this.ys[j];
+                final double x2 = this.xs[i];
+                final double y2 = this.ys[i];
+                if ((y2 > y) != (y1 > y) && x < (x1 - x2) * (y - y2) / (y1 - y2) + x2) {
+                    inside = !inside;
+                }
+                min = Math.min(min, segmentDistance(x, y, x1, y1, x2, y2));
+            }
+            return inside ? -min : min;
+        }
+
+    }
+
+    private final EventSink sink;
+    private final double margin;
+    private final double cellSize;
+
+    private final Map<String, Fence> fences = new LinkedHashMap<>();
+    /**
+     * 格子の升目ごとの、その升目にかかる区域
+     */
+    private final Map<Long, List<Fence>> cells = new HashMap<>();
+    /**
+     * 升目に入れずに毎回調べる区域
+     */
+    private final List<Fence> unindexed = new ArrayList<>();
+    private final List<Fence> insides = new ArrayList<>();
+    private long evaluation;
+
+    /**
+     * @param sink     entered, exited, arrived イベントの流し先
+     * @param margin   出たと見なすまでに境界から離れる距離 (m)。境界付近で出入りを繰り返さないようにする
+     * @param cellSize 格子の升目の大きさ (度)
+     */
+    GeofenceEngine(EventSink sink, double margin, double cellSize) {
+        this.sink = sink;
+        this.margin = margin;
+        this.cellSize = cellSize;
+    }
+
+    /**
+     * 区域を加える。同じ ID の区域があれば置き換える
+     *
+     * @param definition 区域の定め
+     * @throws IllegalArgumentException 定めがおかしい
+     */
+    synchronized void add(Map<String, Object> definition) {
+        final Fence fence = parse(definition);
+        remove(fence.id);
+        this.fences.put(fence.id, fence);
+        if (!fence.isHorizontal()) {
+            this.unindexed.add(fence);
+            return;
+        }
+        final long minX = cell(fence.south);
+        final long maxX = cell(fence.north);
+        final long minY = cell(fence.west);
+        final long maxY = cell(fence.east);
+        if ((maxX - minX + 1) * (maxY - minY + 1) > MAX_CELLS_PER_FENCE) {
+            this.unindexed.add(fence);
+            return;
+        }
+        for (long x = minX; x <= maxX; x++) {
+            for (long y = minY; y <= maxY; y++) {
+                final Long key = key(x, y);
+                List<Fence> list = this.cells.get(key);
+                if (list == null) {
+                    list = new ArrayList<>(2);
+                    this.cells.put(key, list);
+                }
+                list.add(fence);
+            }
+        }
+    }
+
+    /**
+     * 区域を除く
+     *
+     * @param id 区域の ID
+     * @return あったなら true
+     */
+    synchronized boolean remove(String id) {
+        final Fence fence = this.fences.remove(id);
+        if (fence == null) {
+            return false;
+        }
+        this.insides.remove(fence);
+        if (this.unindexed.remove(fence)) {
+            return true;
+        }
+        for (Iterator<List<Fence>> iterator = this.cells.values().iterator(); iterator.hasNext(); ) {
+            final List<Fence> list = iterator.next();
+            if (list.remove(fence) && list.isEmpty()) {
+                iterator.remove();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 区域を全て除く
+     */
+    synchronized void clear() {
+        this.fences.clear();
+        this.cells.clear();
+        this.unindexed.clear();
+        this.insides.clear();
+    }
+
+    /**
+     * @return 区域の ID
+     */
+    synchronized List<String> getIds() {
+        return new ArrayList<>(this.fences.keySet());
+    }
+
+    /**
+     * position イベントなら区域と照らし合わせる
+     *
+     * @param event イベント名
+     * @param data  イベントの中身
+     */
+    void update(String event, Object data) {
+        if (!Events.POSITION.equals(event) || !(data instanceof Map)) {
+            return;
+        }
+        final Object coordinate = ((Map<?, ?>) data).get("coordinate");
+        final double latitude = element(coordinate, 0);
+        final double longitude = element(coordinate, 1);
+        if (Double.isNaN(latitude) || Double.isNaN(longitude)) {
+            return;
+        }
+        evaluate(latitude, longitude, element(coordinate, 2));
+    }
+
+    /**
+     * 区域と照らし合わせて、出入りがあればイベントを発行する
+     *
+     * @param latitude  緯度
+     * @param longitude 経度
+     * @param altitude  高度。分からなければ NaN
+     */
+    void evaluate(double latitude, double longitude, double altitude) {
+        List<Object[]> changes = null;
+        synchronized (this) {
+            if (this.fences.isEmpty()) {
+                return;
+            }
+            final long stamp = ++this.evaluation;
+            // 中にいる区域は、升目を外れても出たことを知るために必ず調べる
+            for (int i = this.insides.size() - 1; i >= 0; i--) {
+                changes = evaluate(this.insides.get(i), stamp, latitude, longitude, altitude, changes);
+            }
+            final List<Fence> nearby = this.cells.get(key(cell(latitude), cell(longitude)));
+            if (nearby != null) {
+                for (int i = nearby.size() - 1; i >= 0; i--) {
+                    changes = evaluate(nearby.get(i), stamp, latitude, longitude, altitude, changes);
+                }
+            }
+            for (int i = this.unindexed.size() - 1; i >= 0; i--) {
+                changes = evaluate(this.unindexed.get(i), stamp, latitude, longitude, altitude, changes);
+            }
+        }
+        if (changes == null) {
+            return;
+        }
+        // 流し先は重いかもしれないので、ロックを外してから流す
+        for (Object[] change : changes) {
+            final Map<String, Object> eventData = new HashMap<>();
+            eventData.put(KEY_ID, change[1]);
+            eventData.put("coordinate", Double.isNaN(altitude) ? new double[]{latitude, longitude} : new double[]{latitude, longitude, altitude});
+            this.sink.emit((String) change[0], eventData);
+        }
+    }
+
+    private List<Object[]> evaluate(Fence fence, long stamp, double latitude, double longitude, double altitude, List<Object[]> changes) {
+        if (fence.evaluated == stamp) {
+            return changes;
+        }
+        fence.evaluated = stamp;
+        final double distance = fence.distance(latitude, longitude, altitude);
+        if (Double.isNaN(distance)) {
+            return changes;
+        }
+        final String event;
+        if (!fence.inside && distance <= 0) {
+            if (TYPE_ARRIVAL.equals(fence.type)) {
+                remove(fence.id);
+                event = Events.ARRIVED;
+            } else {
+                fence.inside = true;
+                this.insides.add(fence);
+                event = Events.ENTERED;
+            }
+        } else if (fence.inside && distance > this.margin) {
+            fence.inside = false;
+            this.insides.remove(fence);
+            event = Events.EXITED;
+        } else {
+            return changes;
+        }
+        if (changes == null) {
+            changes = new ArrayList<>(1);
+        }
+        changes.add(new Object[]{event, fence.id});
+        return changes;
+    }
+
+    private long cell(double degree) {
+        return (long) Math.floor(degree / this.cellSize);
+    }
+
+    private static Long key(long x, long y) {
+        return (x << 32) ^ (y & 0xffffffffL);
+    }
+
+    private static Fence parse(Map<String, Object> definition) {
+        final Object id = definition.get(KEY_ID);
+        if (!(id instanceof String) || ((String) id).isEmpty()) {
+            throw new IllegalArgumentException("No fence id");
+        }
+        final Object type = definition.get(KEY_TYPE);
+        final double minAltitude = number(definition.get(KEY_MIN_ALTITUDE), Double.NEGATIVE_INFINITY);
+        final double maxAltitude = number(definition.get(KEY_MAX_ALTITUDE), Double.POSITIVE_INFINITY);
+        if (minAltitude > maxAltitude) {
+            throw new IllegalArgumentException("Empty altitude band of " + id);
+        }
+        if (TYPE_CIRCLE.equals(type) || TYPE_ARRIVAL.equals(type)) {
+            final Object center = definition.get(KEY_CENTER);
+            final double latitude = element(center, 0);
+            final double longitude = element(center, 1);
+            final double radius = number(definition.get(KEY_RADIUS), Double.NaN);
+            if (Double.isNaN(latitude) || Double.isNaN(longitude) || !(radius > 0)) {
+                throw new IllegalArgumentException("Invalid center or radius of " + id);
+            }
+            final double latitudeRadius = radius / METERS_PER_DEGREE;
+            final double longitudeRadius = radius / (METERS_PER_DEGREE * Math.cos(Math.toRadians(latitude)));
+            return new Fence((String) id, (String) type, latitude, longitude, radius, null, null, minAltitude, maxAltitude,
+                    latitude - latitudeRadius, latitude + latitudeRadius, longitude - longitudeRadius, longitude + longitudeRadius);
+        } else if (TYPE_POLYGON.equals(type)) {
+            final Object vertices = definition.get(KEY_VERTICES);
+            if (!(vertices instanceof List) || ((List<?>) vertices).size() < 3) {
+                throw new IllegalArgumentException("Polygon " + id + " needs 3 or more vertices");
+            }
+            final List<?> list = (List<?>) vertices;
+            final double[] latitudes = new double[list.size()];
+            final double[] longitudes = new double[list.size()];
+            double south = Double.POSITIVE_INFINITY;
+            double north = Double.NEGATIVE_INFINITY;
+            double west = Double.POSITIVE_INFINITY;
+            double east = Double.NEGATIVE_INFINITY;
+            for (int i = 0; i < latitudes.length; i++) {
+                latitudes[i] = element(list.get(i), 0);
+                longitudes[i] = element(list.get(i), 1);
+                if (Double.isNaN(latitudes[i]) || Double.isNaN(longitudes[i])) {
+                    throw new IllegalArgumentException("Invalid vertex " + i + " of " + id);
+                }
+                south = Math.min(south, latitudes[i]);
+                north = Math.max(north, latitudes[i]);
+                west = Math.min(west, longitudes[i]);
+                east = Math.max(east, longitudes[i]);
+            }
+            final double referenceLatitude = (south + north) / 2;
+            final double referenceLongitude = (west + east) / 2;
+            final double metersPerLongitude = METERS_PER_DEGREE * Math.cos(Math.toRadians(referenceLatitude));
+            final double[] xs = new double[latitudes.length];
+            final double[] ys = new double[latitudes.length];
+            for (int i = 0; i < xs.length; i++) {
+                xs[i] = (longitudes[i] - referenceLongitude) * metersPerLongitude;
+                ys[i] = (latitudes[i] - referenceLatitude) * METERS_PER_DEGREE;
+            }
+            return new Fence((String) id, TYPE_POLYGON, referenceLatitude, referenceLongitude, 0, xs, ys, minAltitude, maxAltitude,
+                    south, north, west, east);
+        } else if (TYPE_BAND.equals(type)) {
+            if (Double.isInfinite(minAltitude) && Double.isInfinite(maxAltitude)) {
+                throw new IllegalArgumentException("Band " + id + " needs minAltitude or maxAltitude");
+            }
+            return new Fence((String) id, TYPE_BAND, 0, 0, 0, null, null, minAltitude, maxAltitude, -90, 90, -180, 180);
+        }
+        throw new IllegalArgumentException("Unknown fence type " + type);
+    }
+
+    private static double number(Object value, double defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        } else if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        }
+        throw new IllegalArgumentException(value + " is not a number");
+    }
+
+    /**
+     * @return 数値の配列の要素。無いか数値でなければ NaN
+     */
+    private static double element(Object value, int index) {
+        if (value instanceof double[]) {
+            final double[] array = (double[]) value;
+            return index < array.length ? array[index] : Double.NaN;
+        } else if (value instanceof float[]) {
+            final float[] array = (float[]) value;
+            return index < array.length ? array[index] : Double.NaN;
+        } else if (value instanceof List) {
+            final List<?> list = (List<?>) value;
+            final Object element = index < list.size() ? list.get(index) : null;
+            return element instanceof Number ? ((Number) element).doubleValue() : Double.NaN;
+        }
+        return Double.NaN;
+    }
+
+    /**
+     * @return 点 (x, y) から線分 (x1, y1)-(x2, y2) までの距離
+     */
+    private static double segmentDistance(double x, double y, double x1, double y1, double x2, double y2) {
+        final double dx = x2 - x1;
+        final double dy = y2 - y1;
+        final double lengthSquared = dx * dx + dy * dy;
+        double t = lengthSquared == 0 ? 0 : ((x - x1) * dx + (y - y1) * dy) / lengthSquared;
+        t = Math.max(0, Math.min(1, t));
+        final double ex = x1 + t * dx - x;
+        final double ey = y1 + t * dy - y;
+        return Math.sqrt(ex * ex + ey * ey);
+    }
+
+}
@@ -0,0 +1,283 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * 使い回せる JSON 書き出し器。
+ * JSONObject などの中間オブジェクトを作らずに、イベントの中身を直接バッファに書く。
+ * Map, Collection, 配列, 文字列, 数値, 真偽値, null を扱い、それ以外は文字列にする
+ */
+final class JsonWriter {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final StringBuilder buff;
+
+    /**
+     * @param capacity バッファの初期容量
+     */
+    JsonWriter(int capacity) {
+        this.buff = new StringBuilder(capacity);
+    }
+
+    /**
+     * 書いたものを捨てる。バッファは使い回す
+     *
+     * @return this
+     */
+    JsonWriter reset() {
+        this.buff.setLength(0);
+        return this;
+    }
+
+    /**
+     * @return 書いた文字数
+     */
+    int length() {
+        return this.buff.length();
+    }
+
+    /**
+     * 区切り文字などをそのまま書く
+     *
+     * @param c 文字
+     * @return this
+     */
+    JsonWriter raw(char c) {
+        this.buff.append(c);
+        return this;
+    }
+
+    /**
+     * 区切り文字などをそのまま書く
+     *
+     * @param s 文字列
+     * @return this
+     */
+    JsonWriter raw(String s) {
+        this.buff.append(s);
+        return this;
+    }
+
+    /**
+     * @param value 整数
+     * @return this
+     */
+    JsonWriter number(long value) {
+        this.buff.append(value);
+        return this;
+    }
+
+    /**
+     * @param value 数値。有限でなければ null になる
+     * @return this
+     */
+    JsonWriter number(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            this.buff.append("null");
+        } else if (value == (long) value) {
+            this.buff.append((long) value);
+        } else {
+            this.buff.append(value);
+        }
+        return this;
+    }
+
+    /**
+     * @param value 文字列
+     * @return this
+     */
+    JsonWriter string(CharSequence value) {
+        final StringBuilder b = this.buff;
+        b.append('"');
+        for (int i = 0, n = value.length(); i < n; i++) {
+            final char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    b.append("\\\"");
+                    break;
+                case '\\':
+                    b.append("\\\\");
+                    break;
+                case '\n':
+                    b.append("\\n");
+                    break;
+                case '\r':
+                    b.append("\\r");
+                    break;
+                case '\t':
+                    b.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+                        b.append("\\u").append(HEX[(c >> 12) & 0xf]).append(HEX[(c >> 8) & 0xf]).append(HEX[(c >> 4) & 0xf]).append(HEX[c & 0xf]);
+                    } else {
+                        b.append(c);
+                    }
+            }
+        }
+        b.append('"');
+        return this;
+    }
+
+    /**
+     * 値を書く
+     *
+     * @param value 値
+     * @return this
+     */
+    JsonWriter value(Object value) {
+        if (value == null) {
+            this.buff.append("null");
+        } else if (value instanceof CharSequence) {
+            string((CharSequence) value);
+        } else if (value instanceof Double || value instanceof Float) {
+            number(((Number) value).doubleValue());
+        } else if (value instanceof Number) {
+            number(((Number) value).longValue());
+        } else if (value instanceof Boolean) {
+            this.buff.append(((Boolean) value).booleanValue());
+        } else if (value instanceof Map) {
+            map((Map<?, ?>) value);
+        } else if (value instanceof List && value instanceof RandomAccess) {
+            list((List<?>) value);
+        } else if (value instanceof Collection) {
+            collection((Collection<?>) value);
+        } else if (value instanceof double[]) {
+            doubles((double[]) value);
+        } else if (value instanceof float[]) {
+            floats((float[]) value);
+        } else if (value instanceof int[]) {
+            ints((int[]) value);
+        } else if (value instanceof long[]) {
+            longs((long[]) value);
+        } else if (value instanceof Object[]) {
+            objects((Object[]) value);
+        } else if (value.getClass().getName().startsWith("org.json.")) {
+            // JSONObject と JSONArray は自分で JSON になれる
+            this.buff.append(value.toString());
+        } else {
+            string(value.toString());
+        }
+        return this;
+    }
+
+    private void map(Map<?, ?> map) {
+        this.buff.append('{');
+        boolean first = true;
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            if (!first) {
+                this.buff.append(',');
+            }
+            first = false;
+            string(String.valueOf(entry.getKey()));
+            this.buff.append(':');
+            value(entry.getValue());
+        }
+        this.buff.append('}');
+    }
+
+    private void list(List<?> list) {
+        this.buff.append('[');
+        for (int i = 0, n = list.size(); i < n; i++) {
+            if (i > 0) {
+                this.buff.append(',');
+            }
+            value(list.get(i));
+        }
+        this.buff.append(']');
+    }
+
+    private void collection(Collection<?> collection) {
+        this.buff.append('[');
+        boolean first = true;
+        for (Object element : collection) {
+            if (!first) {
+                this.buff.append(',');
+            }
+            first = false;
+            value(element);
+        }
+        this.buff.append(']');
+    }
+
+    private void doubles(double[] array) {
+        this.buff.append('[');
+        for (int i = 0; i < array.length; i++) {
+            if (i > 0) {
+                this.buff.append(',');
+            }
+            number(array[i]);
+        }
+        this.buff.append(']');
+    }
+
+    private void floats(float[] array) {
+        this.buff.append('[');
+        for (int i = 0; i < array.length; i++) {
+            if (i > 0) {
+                this.buff.append(',');
+            }
+            number(array[i]);
+        }
+        this.buff.append(']');
+    }
+
+    private void ints(int[] array) {
+        this.buff.append('[');
+        for (int i = 0; i < array.length; i++) {
+            if (i > 0) {
+                this.buff.append(',');
+            }
+            this.buff.append(array[i]);
+        }
+        this.buff.append(']');
+    }
+
+    private void longs(long[] array) {
+        this.buff.append('[');
+        for (int i = 0; i < array.length; i++) {
+            if (i > 0) {
+                this.buff.append(',');
+            }
+            this.buff.append(array[i]);
+        }
+        this.buff.append(']');
+    }
+
+    private void objects(Object[] array) {
+        this.buff.append('[');
+        for (int i = 0; i < array.length; i++) {
+            if (i > 0) {
+                this.buff.append(',');
+            }
+            value(array[i]);
+        }
+        this.buff.append(']');
+    }
+
+    @Override
+    public String toString() {
+        return this.buff.toString();
+    }
+
+}
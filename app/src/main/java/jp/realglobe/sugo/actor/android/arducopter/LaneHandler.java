@@ -0,0 +1,111 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * 待ち行列の状態を記録する Handler。
+ * 待ち行列の長さには、送った時点で実行予定時刻を過ぎているメッセージだけを数える。
+ * 遅延実行のメッセージは実行されたときに待ち時間だけを記録する。
+ * 数えたメッセージを取り消すときは removeCallbacks ではなく {@link #cancel(Runnable)} を使う
+ */
+class LaneHandler extends Handler {
+
+    private final LaneStats stats;
+    /**
+     * 待ち行列の長さに数えたメッセージ
+     */
+    private final Set<Message> counted = Collections.newSetFromMap(new IdentityHashMap<Message, Boolean>());
+
+    /**
+     * @param looper 実行レーンのルーパー
+     * @param stats  状態の記録先
+     */
+    LaneHandler(Looper looper, LaneStats stats) {
+        super(looper);
+        this.stats = stats;
+    }
+
+    LaneStats getStats() {
+        return this.stats;
+    }
+
+    @Override
+    public boolean sendMessageAtTime(Message msg, long uptimeMillis) {
+        if (uptimeMillis > SystemClock.uptimeMillis()) {
+            return super.sendMessageAtTime(msg, uptimeMillis);
+        }
+        // 実行されて数から引かれる前に数えるように、送るのと数えるのをまとめて行う
+        synchronized (this.counted) {
+            final boolean queued = super.sendMessageAtTime(msg, uptimeMillis);
+            if (queued) {
+                this.counted.add(msg);
+                this.stats.enqueued();
+            }
+            return queued;
+        }
+    }
+
+    @Override
+    public void dispatchMessage(Message msg) {
+        final boolean wasCounted;
+        synchronized (this.counted) {
+            wasCounted = this.counted.remove(msg);
+        }
+        // getWhen は実行予定時刻なので、遅延実行のメッセージでも実際に待たされた時間になる
+        final long wait = Math.max(0, SystemClock.uptimeMillis() - msg.getWhen());
+        if (wasCounted) {
+            this.stats.dequeued(wait);
+        } else {
+            this.stats.executed(wait);
+        }
+        this.stats.started(System.nanoTime());
+        try {
+            super.dispatchMessage(msg);
+        } finally {
+            this.stats.finished(System.nanoTime());
+        }
+    }
+
+    /**
+     * 待っている処理を取り消して、待ち行列の長さから引く
+     *
+     * @param task 処理
+     */
+    void cancel(Runnable task) {
+        synchronized (this.counted) {
+            // 取り除いたメッセージは使い回されて中身が消えるので、先に数から引く
+            for (Iterator<Message> iterator = this.counted.iterator(); iterator.hasNext(); ) {
+                if (iterator.next().getCallback() == task) {
+                    iterator.remove();
+                    this.stats.removed();
+                }
+            }
+            removeCallbacks(task);
+        }
+    }
+
+}
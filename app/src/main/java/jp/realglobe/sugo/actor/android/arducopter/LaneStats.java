@@ -0,0 +1,185 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 実行レーンの待ち行列の状態。
+ */
+final class LaneStats {
+
+    /**
+     * 前の処理からこれより間が空いていたら、スレッドが眠っていたと見なす (ナノ秒)
+     */
+    static final long IDLE_GAP = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final String name;
+
+    private final AtomicInteger depth = new AtomicInteger();
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalWait = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile long lastWait;
+    private volatile long maxWait;
+    private final AtomicLong wakeups = new AtomicLong();
+    /**
+     * 前の処理が終わった時刻。レーンのスレッドだけが触る
+     */
+    private long lastFinished;
+
+    /**
+     * @param name レーン名
+     */
+    LaneStats(String name) {
+        this.name = name;
+    }
+
+    /**
+     * 処理が待ち行列に入った
+     */
+    void enqueued() {
+        this.depth.incrementAndGet();
+    }
+
+    /**
+     * 処理が待ち行列から出た
+     *
+     * @param wait 待ち行列にいた時間 (ミリ秒)
+     */
+    void dequeued(long wait) {
+        this.depth.decrementAndGet();
+        executed(wait);
+    }
+
+    /**
+     * 待ち行列の長さに数えていなかった処理を実行した
+     *
+     * @param wait 実行予定時刻から待たされた時間 (ミリ秒)
+     */
+    void executed(long wait) {
+        this.count.incrementAndGet();
+        this.totalWait.addAndGet(wait);
+        this.lastWait = wait;
+        if (wait > this.maxWait) {
+            this.maxWait = wait;
+        }
+    }
+
+    /**
+     * 処理が実行される前に取り消された
+     */
+    void removed() {
+        this.depth.decrementAndGet();
+    }
+
+    /**
+     * 処理が実行されずに捨てられた
+     */
+    void dropped() {
+        this.depth.decrementAndGet();
+        this.dropped.incrementAndGet();
+    }
+
+    /**
+     * レーンのスレッドが処理を始める
+     *
+     * @param nowNanos 今の時刻 (ナノ秒)
+     */
+    void started(long nowNanos) {
+        if (this.lastFinished == 0 || nowNanos - this.lastFinished > IDLE_GAP) {
+            this.wakeups.incrementAndGet();
+        }
+    }
+
+    /**
+     * レーンのスレッドが処理を終えた
+     *
+     * @param nowNanos 今の時刻 (ナノ秒)
+     */
+    void finished(long nowNanos) {
+        this.lastFinished = nowNanos;
+    }
+
+    String getName() {
+        return this.name;
+    }
+
+    /**
+     * @return 待ち行列にある処理の数
+     */
+    int getDepth() {
+        return Math.max(0, this.depth.get());
+    }
+
+    /**
+     * @return 実行した処理の数
+     */
+    long getCount() {
+        return this.count.get();
+    }
+
+    /**
+     * @return 捨てた処理の数
+     */
+    long getDropped() {
+        return this.dropped.get();
+    }
+
+    /**
+     * @return レーンのスレッドが眠りから起きた回数
+     */
+    long getWakeups() {
+        return this.wakeups.get();
+    }
+
+    /**
+     * @return 最後に実行した処理の待ち時間 (ミリ秒)
+     */
+    long getLastWait() {
+        return this.lastWait;
+    }
+
+    /**
+     * @return 最大の待ち時間 (ミリ秒)
+     */
+    long getMaxWait() {
+        return this.maxWait;
+    }
+
+    /**
+     * @return 平均の待ち時間 (ミリ秒)
+     */
+    double getAverageWait() {
+        final long n = this.count.get();
+        return n == 0 ? 0 : (double) this.totalWait.get() / n;
+    }
+
+    @Override
+    public String toString() {
+        return this.name + "{depth=" + getDepth()
+                + ", count=" + getCount()
+                + ", dropped=" + getDropped()
+                + ", wakeups=" + getWakeups()
+                + ", lastWait=" + getLastWait() + "ms"
+                + ", maxWait=" + getMaxWait() + "ms"
+                + ", averageWait=" + String.format("%.1f", getAverageWait()) + "ms}";
+    }
+
+}
@@ -0,0 +1,136 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 所要時間の分布。
+ * マイクロ秒単位の値を 2 の冪ごとに 8 分割した区間で数えるので、記録してもオブジェクトを作らない。
+ * 誤差は 1/16 以内
+ */
+final class LatencyHistogram {
+
+    private static final int LINEAR = 16;
+    private static final int SUB_BITS = 3;
+    private static final int SUB = 1 << SUB_BITS;
+    /**
+     * 2^40 マイクロ秒 (約 12 日) まで数える
+     */
+    private static final int MAX_EXPONENT = 40;
+    private static final int SIZE = LINEAR + (MAX_EXPONENT - 4) * SUB;
+
+    private final AtomicLongArray counts = new AtomicLongArray(SIZE);
+    private final AtomicLongArray summary = new AtomicLongArray(2);
+
+    /**
+     * 所要時間を記録する
+     *
+     * @param nanos 所要時間 (ナノ秒)
+     */
+    void record(long nanos) {
+        final long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+        this.counts.incrementAndGet(index(micros));
+        this.summary.incrementAndGet(0);
+        while (true) {
+            final long max = this.summary.get(1);
+            if (micros <= max || this.summary.compareAndSet(1, max, micros)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * @return 記録した数
+     */
+    long getCount() {
+        return this.summary.get(0);
+    }
+
+    /**
+     * @return 最大値 (マイクロ秒)
+     */
+    long getMax() {
+        return this.summary.get(1);
+    }
+
+    /**
+     * @param percentile 0 から 100 までの百分位
+     * @return その百分位の値 (マイクロ秒)。記録が無ければ 0
+     */
+    long getPercentile(double percentile) {
+        long total = 0;
+        for (int i = 0; i < SIZE; i++) {
+            total += this.counts.get(i);
+        }
+        if (total == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < SIZE; i++) {
+            seen += this.counts.get(i);
+            if (seen >= rank) {
+                return Math.min(value(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * @return 記録数と p50, p95, p99, 最大値 (ミリ秒)
+     */
+    Map<String, Object> toMap() {
+        final Map<String, Object> map = new HashMap<>();
+        map.put("count", getCount());
+        map.put("p50", getPercentile(50) / 1000.0);
+        map.put("p95", getPercentile(95) / 1000.0);
+        map.put("p99", getPercentile(99) / 1000.0);
+        map.put("max", getMax() / 1000.0);
+        return map;
+    }
+
+    static int index(long micros) {
+        if (micros < LINEAR) {
+            return (int) micros;
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent >= MAX_EXPONENT) {
+            return SIZE - 1;
+        }
+        final int sub = (int) (micros >> (exponent - SUB_BITS)) & (SUB - 1);
+        return LINEAR + (exponent - 4) * SUB + sub;
+    }
+
+    /**
+     * @param index 区間の番号
+     * @return 区間の中央値
+     */
+    static long value(int index) {
+        if (index < LINEAR) {
+            return index;
+        }
+        final int exponent = (index - LINEAR) / SUB + 4;
+        final int sub = (index - LINEAR) % SUB;
+        final long width = 1L << (exponent - SUB_BITS);
+        return (SUB + sub) * width + width / 2;
+    }
+
+}
@@ -17,38 +17,46 @@
 package jp.realglobe.sugo.actor.android.arducopter;
 
 import android.Manifest;
-import android.app.ActivityManager;
 import android.app.AlertDialog;
 import android.app.Dialog;
 import android.app.DialogFragment;
 import android.app.PendingIntent;
 import android.content.BroadcastReceiver;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.ServiceConnection;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.hardware.usb.UsbDevice;
 import android.hardware.usb.UsbManager;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.IBinder;
 import android.preference.PreferenceManager;
 import android.support.annotation.NonNull;
 import android.support.v7.app.AppCompatActivity;
+import android.text.TextUtils;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.widget.Button;
+import android.widget.TextView;
 import android.widget.Toast;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.TreeMap;
 
 public class MainActivity extends AppCompatActivity {
 
@@ -60,7 +68,47 @@ public class MainActivity extends AppCompatActivity {
             Manifest.permission.ACCESS_COARSE_LOCATION,
     };
 
+    /**
+     * 計器盤を描き直す最短の間隔 (ミリ秒)。
+     * イベントがどれだけ速く届いても、これより頻繁には描かない
+     */
+    private static final long FRAME_INTERVAL = 100;
+
     private Button startButton;
+    private TextView messageView;
+    private TextView dashboardView;
+
+    // 計器盤は届いたイベントではなく、決まった間隔で読んだ最新の値から描く
+    private final StringBuilder dashboardText = new StringBuilder();
+    private long renderedVersion = -1;
+    private boolean statusChanged = true;
+    private final Runnable frameTask = new Runnable() {
+        @Override
+        public void run() {
+            renderDashboard();
+            dashboardView.postDelayed(this, FRAME_INTERVAL);
+        }
+    };
+
+    /**
+     * サービスから知らされた最新の状態
+     */
+    private ActorStatus status = ActorStatus.STOPPED;
+    private ActorService.StatusBinder statusBinder;
+    private final ActorStatus.Listener statusListener = this::showStatus;
+    private final ServiceConnection statusConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            statusBinder = (ActorService.StatusBinder) service;
+            statusBinder.addListener(statusListener);
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            statusBinder = null;
+            showStatus(ActorStatus.STOPPED);
+        }
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -75,9 +123,30 @@ public class MainActivity extends AppCompatActivity {
         }
 
         this.startButton = (Button) findViewById(R.id.button_start);
+        this.messageView = (TextView) findViewById(R.id.text_message);
+        this.dashboardView = (TextView) findViewById(R.id.text_dashboard);
 
         checkPermission();
-        checkActorRunning();
+    }
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+        // サービスを起こさずに繋ぐ。サービスが動き出したら繋がり、状態が知らされる
+        showStatus(ActorStatus.STOPPED);
+        bindService(new Intent(this, ActorService.class), this.statusConnection, 0);
+        this.dashboardView.post(this.frameTask);
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        this.dashboardView.removeCallbacks(this.frameTask);
+        if (this.statusBinder != null) {
+            this.statusBinder.removeListener(this.statusListener);
+            this.statusBinder = null;
+        }
+        unbindService(this.statusConnection);
     }
 
     /**
@@ -140,6 +209,8 @@ public class MainActivity extends AppCompatActivity {
             startActivity(new Intent(this, SettingsActivity.class));
         } else if (item.getItemId() == R.id.item_allow) {
             checkPermission();
+        } else if (item.getItemId() == R.id.item_metrics) {
+            startActivity(new Intent(this, MetricsActivity.class));
         } else if (item.getItemId() == R.id.item_stop) {
             disconnectAfterDialog();
         }
@@ -147,7 +218,7 @@ public class MainActivity extends AppCompatActivity {
     }
 
     private void disconnectAfterDialog() {
-        if (checkActorRunning()) {
+        if (this.status.isRunning()) {
             (new DisconnectDialog()).show(getFragmentManager(), "dialog");
         }
     }
@@ -208,11 +279,14 @@ public class MainActivity extends AppCompatActivity {
         final PendingIntent permissionIntent = PendingIntent.getBroadcast(this, 0, new Intent(ACTION_USB_PERMISSION), 0);
         final IntentFilter filter = new IntentFilter(ACTION_USB_PERMISSION);
         registerReceiver(usbReceiver, filter);
-        usbManager.requestPermission((new ArrayList<>(devices)).get(0), permissionIntent);
+        // 機体ごとに USB 機器が繋がっていることがあるので、全部について許可を求める
+        for (UsbDevice device : devices) {
+            usbManager.requestPermission(device, permissionIntent);
+        }
     }
 
     private void startActor() {
-        if (checkActorRunning()) {
+        if (this.status.isRunning()) {
             Log.i(LOG_TAG, "Already actor started");
             return;
         }
@@ -225,39 +299,207 @@ public class MainActivity extends AppCompatActivity {
         final Intent intent = new Intent(this, ActorService.class);
         intent.putExtra(ActorService.KEY_ACTOR_KEY, actorKey);
         intent.putExtra(ActorService.KEY_HUB_ADDRESS, hubAddress);
+        intent.putExtra(ActorService.KEY_MODULE_NAMES, getModuleNames(preferences));
+        intent.putExtra(ActorService.KEY_POSITION_RATE, getNumber(preferences, R.string.key_position_rate, R.string.default_position_rate));
+        intent.putExtra(ActorService.KEY_ATTITUDE_RATE, getNumber(preferences, R.string.key_attitude_rate, R.string.default_attitude_rate));
+        intent.putExtra(ActorService.KEY_SPEED_RATE, getNumber(preferences, R.string.key_speed_rate, R.string.default_speed_rate));
+        intent.putExtra(ActorService.KEY_BATTERY_RATE, getNumber(preferences, R.string.key_battery_rate, R.string.default_battery_rate));
+        intent.putExtra(ActorService.KEY_ADAPTIVE_RATES, preferences.getBoolean(getString(R.string.key_adaptive_rates), false));
+        intent.putExtra(ActorService.KEY_LOW_BATTERY, getNumber(preferences, R.string.key_low_battery, R.string.default_low_battery));
+        intent.putExtra(ActorService.KEY_BATCHING, preferences.getBoolean(getString(R.string.key_batching), false));
+        intent.putExtra(ActorService.KEY_BATCH_WINDOW, (long) getNumber(preferences, R.string.key_batch_window, R.string.default_batch_window));
+        intent.putExtra(ActorService.KEY_BATCH_AS_TEXT, preferences.getBoolean(getString(R.string.key_batch_as_text), false));
+        intent.putExtra(ActorService.KEY_DELTA_ENCODING, preferences.getBoolean(getString(R.string.key_delta_encoding), false));
+        intent.putExtra(ActorService.KEY_COORDINATE_PRECISION, getNumber(preferences, R.string.key_coordinate_precision, R.string.default_coordinate_precision));
+        intent.putExtra(ActorService.KEY_ALTITUDE_PRECISION, getNumber(preferences, R.string.key_altitude_precision, R.string.default_altitude_precision));
+        intent.putExtra(ActorService.KEY_ATTITUDE_PRECISION, getNumber(preferences, R.string.key_attitude_precision, R.string.default_attitude_precision));
+        intent.putExtra(ActorService.KEY_SIMULATOR, preferences.getBoolean(getString(R.string.key_simulator), false));
+        intent.putExtra(ActorService.KEY_SIMULATOR_REPLAY, preferences.getBoolean(getString(R.string.key_simulator_replay), false));
+        intent.putExtra(ActorService.KEY_SIMULATOR_SPEED, getNumber(preferences, R.string.key_simulator_speed, R.string.default_simulator_speed));
+        intent.putExtra(ActorService.KEY_SIMULATOR_RATE, getNumber(preferences, R.string.key_simulator_rate, R.string.default_simulator_rate));
+        intent.putExtra(ActorService.KEY_VIDEO, preferences.getBoolean(getString(R.string.key_video), false));
+        intent.putExtra(ActorService.KEY_VIDEO_PORT, (int) getNumber(preferences, R.string.key_video_port, R.string.default_video_port));
+        intent.putExtra(ActorService.KEY_VIDEO_SINK, preferences.getString(getString(R.string.key_video_sink), ""));
+        intent.putExtra(ActorService.KEY_VIDEO_SEGMENT_SIZE, getVideoSegmentSize(preferences));
+        intent.putExtra(ActorService.KEY_POWER_PROFILES, preferences.getBoolean(getString(R.string.key_power_profiles), false));
+        intent.putExtra(ActorService.KEY_EFFICIENCY_BATTERY, getNumber(preferences, R.string.key_efficiency_battery, R.string.default_efficiency_battery));
         startService(intent);
     }
 
+    /**
+     * 設定からモジュール名を読む
+     *
+     * @param preferences 設定
+     * @return 重複の無いモジュール名。使えない名前は除く
+     */
+    private String[] getModuleNames(SharedPreferences preferences) {
+        final String value = preferences.getString(getString(R.string.key_module_names), getString(R.string.module_name));
+        final List<String> names = new ArrayList<>();
+        final List<String> invalidNames = new ArrayList<>();
+        for (String name : value.split(",")) {
+            name = name.trim();
+            if (name.isEmpty() || names.contains(name)) {
+                continue;
+            } else if (!VehicleRelay.isValidName(name)) {
+                invalidNames.add(name);
+                continue;
+            }
+            names.add(name);
+        }
+        if (!invalidNames.isEmpty()) {
+            Toast.makeText(this, "使えないモジュール名を除きました: " + TextUtils.join(", ", invalidNames) + "\n英数字と _ - . だけを使ってください", Toast.LENGTH_LONG).show();
+        }
+        if (names.isEmpty()) {
+            names.add(getString(R.string.module_name));
+        }
+        return names.toArray(new String[names.size()]);
+    }
+
+    /**
+     * 設定から映像の区切りの大きさを読む
+     *
+     * @param preferences 設定
+     * @return 区切りの大きさ (バイト)。範囲外なら既定値
+     */
+    private long getVideoSegmentSize(SharedPreferences preferences) {
+        final long size = (long) (getNumber(preferences, R.string.key_video_segment_size, R.string.default_video_segment_size) * 1024 * 1024);
+        if (size > 0 && size <= VideoSegmentWriter.MAX_SEGMENT_SIZE) {
+            return size;
+        }
+        Toast.makeText(this, "区切りの大きさは " + VideoSegmentWriter.MAX_SEGMENT_SIZE / 1024 / 1024 + " MiB までにしてください\n既定の大きさを使います", Toast.LENGTH_LONG).show();
+        return (long) (Double.parseDouble(getString(R.string.default_video_segment_size)) * 1024 * 1024);
+    }
+
+    /**
+     * 設定から数値を読む
+     *
+     * @param preferences 設定
+     * @param keyId       設定キーのリソース ID
+     * @param defaultId   既定値のリソース ID
+     * @return 設定値。数値でなければ既定値
+     */
+    private double getNumber(SharedPreferences preferences, int keyId, int defaultId) {
+        final String defaultValue = getString(defaultId);
+        final String value = preferences.getString(getString(keyId), defaultValue);
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            Log.w(LOG_TAG, "Invalid number " + value);
+            return Double.parseDouble(defaultValue);
+        }
+    }
+
     private void stopActor() {
-        if (!checkActorRunning()) {
+        if (!this.status.isRunning()) {
             Log.i(LOG_TAG, "Actor is not running");
         }
         stopService(new Intent(this, ActorService.class));
     }
 
     /**
-     * Actor が動いているかどうか調べて、表示を合わせる
+     * サービスから知らされた状態を表示する
      *
-     * @return Actor が動いていたら true
+     * @param status 状態
      */
-    private boolean checkActorRunning() {
-        if (isActorRunning()) {
-            changeToRunningState();
-            return true;
-        } else {
+    private void showStatus(ActorStatus status) {
+        this.status = status;
+        this.statusChanged = true;
+        if (!status.isRunning()) {
             changeToNotRunningState();
-            return false;
+            this.messageView.setText("");
+            return;
         }
+        changeToRunningState();
+        final StringBuilder buff = new StringBuilder();
+        buff.append(getString(R.string.label_hub)).append(": ").append(status.getHub());
+        if (status.getHubConnectTime() >= 0) {
+            buff.append(" (").append(getString(R.string.label_connect_time)).append(' ').append(status.getHubConnectTime()).append("ms)");
+        }
+        this.messageView.setText(buff.toString());
     }
 
-    private boolean isActorRunning() {
-        ActivityManager manager = (ActivityManager) getSystemService(Context.ACTIVITY_SERVICE);
-        for (ActivityManager.RunningServiceInfo service : manager.getRunningServices(Integer.MAX_VALUE)) {
-            if (ActorService.class.getName().equals(service.service.getClassName())) {
-                return true;
+    /**
+     * 計器盤を描く。
+     * 最後に描いてから値も状態も変わっていなければ何もしない
+     */
+    private void renderDashboard() {
+        final ActorService.StatusBinder binder = this.statusBinder;
+        final Map<String, VehicleDashboard> dashboards = binder == null ? Collections.<String, VehicleDashboard>emptyMap() : binder.getDashboards();
+        long version = 0;
+        for (VehicleDashboard dashboard : dashboards.values()) {
+            version += dashboard.getVersion();
+        }
+        if (version == this.renderedVersion && !this.statusChanged) {
+            return;
+        }
+        this.renderedVersion = version;
+        this.statusChanged = false;
+
+        final StringBuilder buff = this.dashboardText;
+        buff.setLength(0);
+        for (ActorStatus.Vehicle vehicle : this.status.getVehicles()) {
+            buff.append(vehicle.getName()).append(": ").append(getString(vehicle.isLinked() ? R.string.label_linked : R.string.label_unlinked)).append('\n');
+            final VehicleDashboard dashboard = dashboards.get(vehicle.getName());
+            if (dashboard != null) {
+                appendLine(buff, Events.POSITION, dashboard.getPosition());
+                appendLine(buff, Events.BATTERY, dashboard.getBattery());
+                appendLine(buff, Events.MODE, dashboard.getMode());
             }
+            buff.append("  ").append(getString(R.string.label_rate)).append(": ").append(String.format(Locale.US, "%.1f/s", vehicle.getTotalRate())).append('\n');
+            if (vehicle.getRoundTrip() >= 0) {
+                buff.append("  ").append(getString(R.string.label_round_trip)).append(": ").append(vehicle.getRoundTrip()).append("ms\n");
+            }
+            if (!vehicle.getForwardRates().isEmpty()) {
+                buff.append("  ").append(getString(R.string.label_forward_rates)).append(':');
+                for (Map.Entry<String, Double> rate : new TreeMap<>(vehicle.getForwardRates()).entrySet()) {
+                    buff.append(' ').append(rate.getKey()).append('=').append(String.format(Locale.US, "%.2f", rate.getValue()));
+                }
+                buff.append('\n');
+            }
+            for (Map.Entry<String, Integer> depth : new TreeMap<>(vehicle.getDepths()).entrySet()) {
+                buff.append("  ").append(depth.getKey()).append(": ").append(depth.getValue()).append('\n');
+            }
+            if (vehicle.getPendingBytes() > 0) {
+                buff.append("  ").append(getString(R.string.label_pending)).append(": ").append(vehicle.getPendingBytes()).append("B\n");
+            }
+        }
+        this.dashboardView.setText(buff.toString());
+    }
+
+    private static void appendLine(StringBuilder buff, String label, Object value) {
+        if (value == null) {
+            return;
+        }
+        buff.append("  ").append(label).append(": ");
+        appendValue(buff, value);
+        buff.append('\n');
+    }
+
+    /**
+     * イベントの中身を 1 行に並べる
+     */
+    private static void appendValue(StringBuilder buff, Object value) {
+        if (value instanceof Map) {
+            String separator = "";
+            for (Map.Entry<?, ?> entry : new TreeMap<>((Map<?, ?>) value).entrySet()) {
+                buff.append(separator).append(entry.getKey()).append('=');
+                appendValue(buff, entry.getValue());
+                separator = ", ";
+            }
+        } else if (value instanceof double[]) {
+            buff.append(Arrays.toString((double[]) value));
+        } else if (value instanceof List) {
+            buff.append('[');
+            String separator = "";
+            for (Object element : (List<?>) value) {
+                buff.append(separator);
+                appendValue(buff, element);
+                separator = ", ";
+            }
+            buff.append(']');
+        } else {
+            buff.append(value);
         }
-        return false;
     }
 
     private void changeToRunningState() {
@@ -0,0 +1,246 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * MAVLink 1 のメッセージを組み立てる。
+ * 模擬機体が送るメッセージだけを扱う。
+ * 組み立てたメッセージは同じバッファを使い回すので、次を組み立てる前に送ること
+ */
+final class MavlinkWriter {
+
+    private static final int STX = 0xfe;
+    private static final int HEADER_SIZE = 6;
+    private static final int CHECKSUM_SIZE = 2;
+    private static final int MAX_PAYLOAD_SIZE = 255;
+
+    // メッセージ ID
+    static final int HEARTBEAT = 0;
+    static final int SYS_STATUS = 1;
+    static final int GPS_RAW_INT = 24;
+    static final int ATTITUDE = 30;
+    static final int GLOBAL_POSITION_INT = 33;
+    static final int MISSION_CURRENT = 42;
+    static final int VFR_HUD = 74;
+
+    // メッセージ ID ごとのチェックサムの種
+    private static final int CRC_EXTRA_HEARTBEAT = 50;
+    private static final int CRC_EXTRA_SYS_STATUS = 124;
+    private static final int CRC_EXTRA_GPS_RAW_INT = 24;
+    private static final int CRC_EXTRA_ATTITUDE = 39;
+    private static final int CRC_EXTRA_GLOBAL_POSITION_INT = 104;
+    private static final int CRC_EXTRA_MISSION_CURRENT = 28;
+    private static final int CRC_EXTRA_VFR_HUD = 20;
+
+    private static final int MAV_TYPE_QUADROTOR = 2;
+    private static final int MAV_AUTOPILOT_ARDUPILOTMEGA = 3;
+    private static final int MAV_MODE_FLAG_CUSTOM_MODE_ENABLED = 1;
+    private static final int MAV_MODE_FLAG_SAFETY_ARMED = 128;
+    private static final int MAV_STATE_STANDBY = 3;
+    private static final int MAV_STATE_ACTIVE = 4;
+    private static final int MAVLINK_VERSION = 3;
+
+    private final ByteBuffer buff = ByteBuffer.allocate(HEADER_SIZE + MAX_PAYLOAD_SIZE + CHECKSUM_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private final int systemId;
+    private final int componentId;
+    private int sequence;
+
+    /**
+     * @param systemId    送り手のシステム ID
+     * @param componentId 送り手のコンポーネント ID
+     */
+    MavlinkWriter(int systemId, int componentId) {
+        this.systemId = systemId;
+        this.componentId = componentId;
+    }
+
+    private ByteBuffer begin(int messageId) {
+        this.buff.clear();
+        this.buff.put((byte) STX)
+                .put((byte) 0) // 長さは後で入れる
+                .put((byte) this.sequence)
+                .put((byte) this.systemId)
+                .put((byte) this.componentId)
+                .put((byte) messageId);
+        this.sequence = (this.sequence + 1) & 0xff;
+        return this.buff;
+    }
+
+    private ByteBuffer end(int crcExtra) {
+        final int length = this.buff.position() - HEADER_SIZE;
+        this.buff.put(1, (byte) length);
+        final int crc = crc(this.buff, 1, this.buff.position(), crcExtra);
+        this.buff.putShort((short) crc);
+        this.buff.flip();
+        return this.buff;
+    }
+
+    /**
+     * @param customMode ArduCopter の飛行モード番号
+     * @param armed      アームしているなら true
+     */
+    ByteBuffer heartbeat(int customMode, boolean armed) {
+        begin(HEARTBEAT)
+                .putInt(customMode)
+                .put((byte) MAV_TYPE_QUADROTOR)
+                .put((byte) MAV_AUTOPILOT_ARDUPILOTMEGA)
+                .put((byte) (MAV_MODE_FLAG_CUSTOM_MODE_ENABLED | (armed ? MAV_MODE_FLAG_SAFETY_ARMED : 0)))
+                .put((byte) (armed ? MAV_STATE_ACTIVE : MAV_STATE_STANDBY))
+                .put((byte) MAVLINK_VERSION);
+        return end(CRC_EXTRA_HEARTBEAT);
+    }
+
+    /**
+     * @param voltage   電圧 (V)
+     * @param current   電流 (A)
+     * @param remaining 残量 (%)
+     */
+    ByteBuffer sysStatus(double voltage, double current, int remaining) {
+        final ByteBuffer buff = begin(SYS_STATUS);
+        buff.putInt(0).putInt(0).putInt(0) // センサーの有無、有効、正常
+                .putShort((short) 0) // load
+                .putShort((short) Math.round(voltage * 1000))
+                .putShort((short) Math.round(current * 100));
+        for (int i = 0; i < 6; i++) {
+            // drop_rate_comm, errors_comm, errors_count1 から 4
+            buff.putShort((short) 0);
+        }
+        buff.put((byte) remaining);
+        return end(CRC_EXTRA_SYS_STATUS);
+    }
+
+    /**
+     * @param timeUsec   時刻 (マイクロ秒)
+     * @param latitude   緯度 (度)
+     * @param longitude  経度 (度)
+     * @param altitude   海抜高度 (m)
+     * @param speed      対地速度 (m/s)
+     * @param satellites 衛星数
+     */
+    ByteBuffer gpsRawInt(long timeUsec, double latitude, double longitude, double altitude, double speed, int satellites) {
+        begin(GPS_RAW_INT)
+                .putLong(timeUsec)
+                .putInt((int) Math.round(latitude * 1e7))
+                .putInt((int) Math.round(longitude * 1e7))
+                .putInt((int) Math.round(altitude * 1000))
+                .putShort((short) 100) // eph
+                .putShort((short) 100) // epv
+                .putShort((short) Math.round(speed * 100))
+                .putShort((short) 0) // cog
+                .put((byte) 3) // 3D fix
+                .put((byte) satellites);
+        return end(CRC_EXTRA_GPS_RAW_INT);
+    }
+
+    /**
+     * @param timeBootMs 起動からの時間 (ミリ秒)
+     * @param roll       ロール (ラジアン)
+     * @param pitch      ピッチ (ラジアン)
+     * @param yaw        ヨー (ラジアン)
+     */
+    ByteBuffer attitude(long timeBootMs, double roll, double pitch, double yaw) {
+        begin(ATTITUDE)
+                .putInt((int) timeBootMs)
+                .putFloat((float) roll)
+                .putFloat((float) pitch)
+                .putFloat((float) yaw)
+                .putFloat(0).putFloat(0).putFloat(0); // 角速度
+        return end(CRC_EXTRA_ATTITUDE);
+    }
+
+    /**
+     * @param timeBootMs       起動からの時間 (ミリ秒)
+     * @param latitude         緯度 (度)
+     * @param longitude        経度 (度)
+     * @param altitude         海抜高度 (m)
+     * @param relativeAltitude 離陸地点からの高度 (m)
+     * @param vx               北向きの速度 (m/s)
+     * @param vy               東向きの速度 (m/s)
+     * @param vz               下向きの速度 (m/s)
+     * @param heading          機首方位 (度)
+     */
+    ByteBuffer globalPositionInt(long timeBootMs, double latitude, double longitude, double altitude, double relativeAltitude,
+                                 double vx, double vy, double vz, double heading) {
+        begin(GLOBAL_POSITION_INT)
+                .putInt((int) timeBootMs)
+                .putInt((int) Math.round(latitude * 1e7))
+                .putInt((int) Math.round(longitude * 1e7))
+                .putInt((int) Math.round(altitude * 1000))
+                .putInt((int) Math.round(relativeAltitude * 1000))
+                .putShort((short) Math.round(vx * 100))
+                .putShort((short) Math.round(vy * 100))
+                .putShort((short) Math.round(vz * 100))
+                .putShort((short) Math.round(((heading % 360) + 360) % 360 * 100));
+        return end(CRC_EXTRA_GLOBAL_POSITION_INT);
+    }
+
+    /**
+     * @param airSpeed    対気速度 (m/s)
+     * @param groundSpeed 対地速度 (m/s)
+     * @param altitude    高度 (m)
+     * @param climb       上昇速度 (m/s)
+     * @param heading     機首方位 (度)
+     */
+    ByteBuffer vfrHud(double airSpeed, double groundSpeed, double altitude, double climb, double heading) {
+        begin(VFR_HUD)
+                .putFloat((float) airSpeed)
+                .putFloat((float) groundSpeed)
+                .putFloat((float) altitude)
+                .putFloat((float) climb)
+                .putShort((short) Math.round(((heading % 360) + 360) % 360))
+                .putShort((short) 50); // throttle
+        return end(CRC_EXTRA_VFR_HUD);
+    }
+
+    /**
+     * @param sequence 実行中のミッション項目の番号
+     */
+    ByteBuffer missionCurrent(int sequence) {
+        begin(MISSION_CURRENT).putShort((short) sequence);
+        return end(CRC_EXTRA_MISSION_CURRENT);
+    }
+
+    /**
+     * MAVLink のチェックサム (CRC-16/MCRF4XX) を計算する
+     *
+     * @param buff     メッセージ
+     * @param from     始まりの位置 (含む)
+     * @param to       終わりの位置 (含まない)
+     * @param crcExtra メッセージ ID ごとの種。無ければ負
+     * @return チェックサム
+     */
+    static int crc(ByteBuffer buff, int from, int to, int crcExtra) {
+        int crc = 0xffff;
+        for (int i = from; i < to; i++) {
+            crc = accumulate(crc, buff.get(i));
+        }
+        if (crcExtra >= 0) {
+            crc = accumulate(crc, (byte) crcExtra);
+        }
+        return crc;
+    }
+
+    private static int accumulate(int crc, byte b) {
+        int tmp = (b & 0xff) ^ (crc & 0xff);
+        tmp = (tmp ^ (tmp << 4)) & 0xff;
+        return ((crc >> 8) ^ (tmp << 8) ^ (tmp << 3) ^ (tmp >> 4)) & 0xffff;
+    }
+
+}
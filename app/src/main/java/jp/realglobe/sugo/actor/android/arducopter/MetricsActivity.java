@@ -0,0 +1,129 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import android.app.Activity;
+import android.content.ComponentName;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Bundle;
+import android.os.IBinder;
+import android.widget.TextView;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * 機体ごとに、命令の所要時間と実行レーンの状態を表示する。
+ * 起動の段階ごとにかかった時間と、電源の使い方も表示する
+ */
+public class MetricsActivity extends Activity {
+
+    private TextView metricsView;
+
+    // サービスから状態が知らされるたびに表示を更新する
+    private ActorService.StatusBinder statusBinder;
+    private final ActorStatus.Listener statusListener = status -> {
+        if (status.isRunning() && this.statusBinder != null) {
+            showMetrics(this.statusBinder.getMetrics(), this.statusBinder.getStartupTrace(), this.statusBinder.getPower());
+        } else {
+            showMetrics(null, null, null);
+        }
+    };
+    private final ServiceConnection statusConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            statusBinder = (ActorService.StatusBinder) service;
+            statusBinder.addListener(statusListener);
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            statusBinder = null;
+            showMetrics(null, null, null);
+        }
+    };
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_metrics);
+        this.metricsView = (TextView) findViewById(R.id.text_metrics);
+    }
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+        showMetrics(null, null, null);
+        bindService(new Intent(this, ActorService.class), this.statusConnection, 0);
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        if (this.statusBinder != null) {
+            this.statusBinder.removeListener(this.statusListener);
+            this.statusBinder = null;
+        }
+        unbindService(this.statusConnection);
+    }
+
+    /**
+     * @param metrics 機体ごとの計測値。動いていなければ null
+     * @param trace   起動の段階ごとにかかった時間。無ければ null
+     * @param power   電源の使い方。使い分けていなければ null
+     */
+    private void showMetrics(Map<String, ActorMetrics> metrics, StartupTrace trace, Map<String, Object> power) {
+        if (metrics == null || metrics.isEmpty()) {
+            this.metricsView.setText(getString(R.string.message_not_running));
+            return;
+        }
+        final StringBuilder buff = new StringBuilder();
+        if (trace != null) {
+            buff.append(getString(R.string.label_startup)).append('\n').append(trace).append('\n');
+        }
+        if (power != null) {
+            buff.append(getString(R.string.label_power)).append('\n');
+            format(buff, power, "  ");
+        }
+        for (Map.Entry<String, ActorMetrics> entry : metrics.entrySet()) {
+            buff.append(entry.getKey()).append('\n');
+            format(buff, entry.getValue().toMap(), "  ");
+        }
+        this.metricsView.setText(buff.toString());
+    }
+
+    /**
+     * 入れ子の計測値を字下げして並べる
+     *
+     * @param buff   書き込み先
+     * @param map    計測値
+     * @param indent 字下げ
+     */
+    private static void format(StringBuilder buff, Map<?, ?> map, String indent) {
+        for (Map.Entry<?, ?> entry : new TreeMap<>(map).entrySet()) {
+            buff.append(indent).append(entry.getKey());
+            if (entry.getValue() instanceof Map) {
+                buff.append('\n');
+                format(buff, (Map<?, ?>) entry.getValue(), indent + "  ");
+            } else {
+                buff.append(": ").append(entry.getValue()).append('\n');
+            }
+        }
+    }
+
+}
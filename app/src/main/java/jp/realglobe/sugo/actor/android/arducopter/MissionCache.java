@@ -0,0 +1,186 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * 保存したミッションをハッシュで引けるように覚えておく。
+ * 呼び出し側は前に保存したミッションのハッシュと変えた項目だけを送れば、新しいミッションを保存できる
+ */
+final class MissionCache {
+
+    /**
+     * 変える項目の位置のキー
+     */
+    static final String KEY_INDEX = "index";
+    /**
+     * 変える項目の中身のキー
+     */
+    static final String KEY_ITEM = "item";
+
+    private final Map<String, List<Map<String, Object>>> missions;
+    private String latestHash;
+
+    /**
+     * @param capacity 覚えておくミッションの数。古く使われていないものから忘れる
+     */
+    MissionCache(int capacity) {
+        this.missions = new LinkedHashMap<String, List<Map<String, Object>>>(capacity + 1, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, List<Map<String, Object>>> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * 覚える
+     *
+     * @param mission ミッション
+     * @return ミッションのハッシュ
+     */
+    synchronized String put(List<Map<String, Object>> mission) {
+        final String hash = hash(mission);
+        this.missions.put(hash, Collections.unmodifiableList(new ArrayList<>(mission)));
+        this.latestHash = hash;
+        return hash;
+    }
+
+    /**
+     * @param hash ミッションのハッシュ
+     * @return ミッション。覚えていなければ null
+     */
+    synchronized List<Map<String, Object>> get(String hash) {
+        return this.missions.get(hash);
+    }
+
+    /**
+     * @return 最後に保存したミッションのハッシュ。まだ無ければ null
+     */
+    synchronized String getLatestHash() {
+        return this.latestHash;
+    }
+
+    /**
+     * キーの順番によらない JSON にしてから SHA-256 を取る
+     *
+     * @param mission ミッション
+     * @return 16 進数のハッシュ
+     */
+    static String hash(List<?> mission) {
+        final String json = new JsonWriter(mission.size() * 64 + 16).value(canonical(mission)).toString();
+        final byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256").digest(json.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        final StringBuilder buff = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            buff.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return buff.toString();
+    }
+
+    private static Object canonical(Object value) {
+        if (value instanceof Map) {
+            final Map<String, Object> sorted = new TreeMap<>();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                sorted.put(String.valueOf(entry.getKey()), canonical(entry.getValue()));
+            }
+            return sorted;
+        } else if (value instanceof List) {
+            final List<Object> list = new ArrayList<>();
+            for (Object element : (List<?>) value) {
+                list.add(canonical(element));
+            }
+            return list;
+        }
+        return value;
+    }
+
+    /**
+     * 変えた項目を当てはめる
+     *
+     * @param base    元のミッション
+     * @param changes 変える項目。{@link #KEY_INDEX} と {@link #KEY_ITEM} を持つ
+     * @param length  新しいミッションの項目数。元より短ければ後ろを削る
+     * @return 新しいミッション
+     */
+    @SuppressWarnings("unchecked")
+    static List<Map<String, Object>> apply(List<Map<String, Object>> base, List<Map<String, Object>> changes, int length) {
+        if (length < 0) {
+            throw new IllegalArgumentException("Negative length " + length);
+        }
+        final List<Map<String, Object>> mission = new ArrayList<>(length);
+        for (int i = 0; i < length; i++) {
+            mission.add(i < base.size() ? base.get(i) : null);
+        }
+        for (Map<String, Object> change : changes) {
+            final Object index = change.get(KEY_INDEX);
+            final Object item = change.get(KEY_ITEM);
+            if (!(index instanceof Number) || !(item instanceof Map)) {
+                throw new IllegalArgumentException("Invalid change " + change);
+            }
+            final int i = ((Number) index).intValue();
+            if (i < 0 || i >= length) {
+                throw new IllegalArgumentException("Index " + i + " is out of [0, " + length + ")");
+            }
+            mission.set(i, (Map<String, Object>) item);
+        }
+        for (int i = 0; i < length; i++) {
+            if (mission.get(i) == null) {
+                throw new IllegalArgumentException("Item " + i + " is missing");
+            }
+        }
+        return mission;
+    }
+
+    /**
+     * @param before 前のミッション
+     * @param after  後のミッション
+     * @return 書き直す範囲の {始め, 終わり}。終わりは含まない。
+     * 項目数が変わったら後ろは全部書き直す。削っただけなら範囲は空になる。変わっていなければ null
+     */
+    static int[] changedRange(List<Map<String, Object>> before, List<Map<String, Object>> after) {
+        final int common = Math.min(before.size(), after.size());
+        int from = 0;
+        while (from < common && before.get(from).equals(after.get(from))) {
+            from++;
+        }
+        if (from == common && before.size() == after.size()) {
+            return null;
+        }
+        int to = after.size();
+        if (before.size() == after.size()) {
+            while (to > from && before.get(to - 1).equals(after.get(to - 1))) {
+                to--;
+            }
+        }
+        return new int[]{from, to};
+    }
+
+}
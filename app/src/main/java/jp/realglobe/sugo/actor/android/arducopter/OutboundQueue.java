@@ -0,0 +1,273 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * hub との接続が切れている間のイベントをファイルに溜めて、繋がり直したら送り直す。
+ * <p>
+ * 切れている間は状態変化のイベントを全て、テレメトリイベントを間引いて溜める。
+ * 繋がり直したら、少し待ってから決まった頻度で {@value #EVENT} イベントとして
+ * <pre>{"event": イベント名, "time": 発行時刻 (ミリ秒), "data": 中身}</pre>
+ * を古い順に送る。
+ * 多数の actor が一斉に送り直さないように、待ち時間はばらつかせる。
+ * 最初に繋がる前のイベントは、見逃した呼び出し側がいないので溜めない。
+ * ファイルはサービスが作り直されても残り、次に繋がったときに送る
+ */
+final class OutboundQueue implements EventSink, Closeable {
+
+    private static final String LOG_TAG = OutboundQueue.class.getName();
+
+    static final String EVENT = "replay";
+    static final String KEY_EVENT = "event";
+    static final String KEY_TIME = "time";
+    static final String KEY_DATA = "data";
+
+    /**
+     * 詰めるときに書く一時ファイルの拡張子
+     */
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * 切れている間に全て溜めるイベント
+     */
+    static final Set<String> STATE_EVENTS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+            Events.ARMED,
+            Events.DISARMED,
+            Events.MODE,
+            Events.MISSION_SAVED,
+            Events.COMMAND_REACHED
+    )));
+
+    private final EventSink next;
+    private final ScheduledExecutorService scheduler;
+    private final File path;
+    private final RandomAccessFile file;
+    private final long maxSize;
+    private final long downsampleInterval;
+    private final long replayInterval;
+    private final long maxReplayDelay;
+    private final Random random = new Random();
+
+    private final BinaryWriter writer = new BinaryWriter(256);
+    private final Map<String, Long> lastStored = new HashMap<>();
+
+    /**
+     * 最初は繋がっていることにして、一度切れてから溜め始める
+     */
+    private volatile boolean online = true;
+    private long readOffset;
+    private long dropped;
+    private ScheduledFuture<?> replayTask;
+
+    /**
+     * @param next               次段
+     * @param scheduler          送り直しに使う
+     * @param file               溜めるファイル
+     * @param maxSize            ファイルの最大バイト数。超えたら溜めない
+     * @param downsampleInterval テレメトリイベントを溜める間隔 (ミリ秒)
+     * @param replayRate         送り直す頻度 (回/秒)
+     * @param maxReplayDelay     繋がってから送り直し始めるまでの最大待ち時間 (ミリ秒)
+     * @throws IOException ファイルを開けなかった
+     */
+    OutboundQueue(EventSink next, ScheduledExecutorService scheduler, File file, long maxSize, long downsampleInterval, double replayRate, long maxReplayDelay) throws IOException {
+        this.next = next;
+        this.scheduler = scheduler;
+        this.path = file;
+        this.file = new RandomAccessFile(file, "rw");
+        this.maxSize = maxSize;
+        this.downsampleInterval = downsampleInterval;
+        this.replayInterval = (long) (TimeUnit.SECONDS.toMicros(1) / replayRate);
+        this.maxReplayDelay = maxReplayDelay;
+        if (this.file.length() > 0) {
+            Log.i(LOG_TAG, this.file.length() + " bytes of events are left from last time");
+        }
+    }
+
+    @Override
+    public void emit(String event, Object data) {
+        if (this.online) {
+            this.next.emit(event, data);
+            return;
+        }
+        store(System.currentTimeMillis(), event, data);
+    }
+
+    /**
+     * 接続状態を伝える
+     *
+     * @param online 繋がったなら true
+     */
+    synchronized void setOnline(boolean online) {
+        this.online = online;
+        // 続けて繋がったと言われても、送り直しを二重に走らせない
+        cancelReplay();
+        if (!online) {
+            return;
+        }
+        try {
+            if (this.file.length() <= this.readOffset) {
+                return;
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Failed to check queue", e);
+            return;
+        }
+        final long delay = this.maxReplayDelay > 0 ? (long) (this.random.nextDouble() * this.maxReplayDelay) : 0;
+        Log.i(LOG_TAG, "Replay stored events after " + delay + "ms");
+        this.replayTask = this.scheduler.scheduleAtFixedRate(this::replayOne, TimeUnit.MILLISECONDS.toMicros(delay), this.replayInterval, TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * @return 送り直しを待っているバイト数
+     */
+    synchronized long getPendingBytes() {
+        try {
+            return this.file.length() - this.readOffset;
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private synchronized void store(long time, String event, Object data) {
+        if (Events.isTelemetry(event)) {
+            final Long last = this.lastStored.get(event);
+            if (last != null && time - last < this.downsampleInterval) {
+                return;
+            }
+            this.lastStored.put(event, time);
+        } else if (!STATE_EVENTS.contains(event)) {
+            return;
+        }
+
+        final BinaryWriter w = this.writer.reset();
+        w.writeLong(time).writeString(event).value(data);
+        try {
+            final long end = this.file.length();
+            if (end + 4 + w.size() > this.maxSize) {
+                this.dropped++;
+                if (this.dropped % 100 == 1) {
+                    Log.w(LOG_TAG, "Queue is full, dropped " + this.dropped + " events");
+                }
+                return;
+            }
+            this.file.seek(end);
+            this.file.writeInt(w.size());
+            this.file.write(w.array(), 0, w.size());
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Failed to store " + event, e);
+        }
+    }
+
+    private synchronized void cancelReplay() {
+        if (this.replayTask != null) {
+            this.replayTask.cancel(false);
+            this.replayTask = null;
+        }
+    }
+
+    private synchronized void replayOne() {
+        if (!this.online) {
+            return;
+        }
+        final Map<String, Object> replay;
+        try {
+            if (this.readOffset >= this.file.length()) {
+                // 全て送ったので空にする
+                this.file.setLength(0);
+                this.readOffset = 0;
+                this.lastStored.clear();
+                cancelReplay();
+                Log.i(LOG_TAG, "Replayed all stored events");
+                return;
+            }
+            this.file.seek(this.readOffset);
+            final byte[] record = new byte[this.file.readInt()];
+            this.file.readFully(record);
+            this.readOffset += 4 + record.length;
+
+            final ByteBuffer buff = ByteBuffer.wrap(record);
+            replay = new HashMap<>();
+            replay.put(KEY_TIME, buff.getLong());
+            replay.put(KEY_EVENT, BinaryReader.readString(buff));
+            replay.put(KEY_DATA, BinaryReader.value(buff));
+        } catch (IOException | RuntimeException e) {
+            // 壊れていたら捨てる
+            Log.w(LOG_TAG, "Failed to read stored event, discard the rest", e);
+            this.readOffset = 0;
+            try {
+                this.file.setLength(0);
+            } catch (IOException e1) {
+                Log.w(LOG_TAG, "Failed to clear queue", e1);
+            }
+            cancelReplay();
+            return;
+        }
+        try {
+            this.next.emit(EVENT, replay);
+        } catch (RuntimeException e) {
+            // 投げると次から送り直さなくなるので、この 1 つだけ諦める
+            Log.w(LOG_TAG, "Failed to replay stored event", e);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        cancelReplay();
+        if (this.readOffset <= 0) {
+            this.file.close();
+            return;
+        }
+        // 送り直した分を詰める。途中で落ちても溜めたものを失わないように、別のファイルに書いてから置き換える
+        final long length = this.file.length() - this.readOffset;
+        final byte[] rest = new byte[(int) length];
+        this.file.seek(this.readOffset);
+        this.file.readFully(rest);
+        this.file.close();
+        final File temp = new File(this.path.getPath() + TEMP_SUFFIX);
+        try (RandomAccessFile out = new RandomAccessFile(temp, "rw")) {
+            out.setLength(0);
+            out.write(rest);
+            out.getFD().sync();
+        }
+        if (!temp.renameTo(this.path)) {
+            // 詰められなくても、元のファイルがあれば送り直しが重なるだけで済む
+            Log.w(LOG_TAG, "Cannot rename " + temp + " to " + this.path);
+            if (!temp.delete()) {
+                Log.w(LOG_TAG, "Cannot delete " + temp);
+            }
+        }
+    }
+
+}
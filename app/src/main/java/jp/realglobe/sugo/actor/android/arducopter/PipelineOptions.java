@@ -0,0 +1,125 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * {@link EventPipeline} の設定。
+ */
+final class PipelineOptions {
+
+    /**
+     * イベントごとの最大送信頻度 (回/秒)。無いものは間引かない
+     */
+    final Map<String, Double> rates = new HashMap<>();
+
+    /**
+     * 回線の混み具合を調べて間引きの頻度を変える間隔 (ミリ秒)。0 なら変えない
+     */
+    long adaptiveInterval;
+    /**
+     * 混んでいると見なす hub の先の呼び出し側との往復時間 (ミリ秒)
+     */
+    long congestionRoundTrip = 1_000;
+    /**
+     * 頻度を変えても守るイベントごとの頻度の下限 (回/秒)
+     */
+    final Map<String, Double> minRates = new HashMap<>();
+    /**
+     * battery を間引かなくなる電池残量 (%)
+     */
+    double lowBattery = 20;
+
+    /**
+     * 省電力のときのイベントごとの最大送信頻度 (回/秒) と、イベントをまとめる時間 (ミリ秒)。
+     * まとめる時間はまとめ送りが有効なときだけ延ばす。efficiencyBatchWindow が 0 ならまとめ方は変えない
+     */
+    final Map<String, Double> efficiencyRates = new HashMap<>();
+    long efficiencyBatchWindow;
+
+    /**
+     * テレメトリレーンに溜めるイベントの数
+     */
+    int telemetryQueueCapacity = 64;
+
+    /**
+     * イベントをまとめる時間 (ミリ秒)。0 ならまとめない
+     */
+    long batchWindow;
+    /**
+     * まとめたイベントを文字列にするバッファの初期容量。0 なら文字列にしない。
+     * 文字列にすると batch イベントの中身が JSON 文字列になるので、受け取り側がそれを読めるときだけ使う
+     */
+    int batchBufferSize;
+
+    /**
+     * キーフレームと差分にするときの、キーフレームの間隔 (ミリ秒)。0 なら差分にしない
+     */
+    long deltaKeyframeInterval;
+    /**
+     * 差分にするイベントの、フィールドごとの刻み幅
+     */
+    final Map<String, Map<String, double[]>> precisions = new HashMap<>();
+
+    /**
+     * hub 側か購読者が選んだイベントを記録するリングファイル。null なら記録しない
+     */
+    File recorderFile;
+    int recorderCapacity = 16 * 1024 * 1024;
+
+    /**
+     * hub と切れている間のイベントを溜めるファイル。null なら溜めない
+     */
+    File outboundFile;
+    long outboundMaxSize = 4 * 1024 * 1024;
+    long outboundDownsampleInterval = 1_000;
+    double outboundReplayRate = 20;
+    long outboundMaxReplayDelay = 5_000;
+
+    /**
+     * @return 同じ内容の別の設定
+     */
+    PipelineOptions copy() {
+        final PipelineOptions copy = new PipelineOptions();
+        copy.rates.putAll(this.rates);
+        copy.adaptiveInterval = this.adaptiveInterval;
+        copy.congestionRoundTrip = this.congestionRoundTrip;
+        copy.minRates.putAll(this.minRates);
+        copy.lowBattery = this.lowBattery;
+        copy.efficiencyRates.putAll(this.efficiencyRates);
+        copy.efficiencyBatchWindow = this.efficiencyBatchWindow;
+        copy.telemetryQueueCapacity = this.telemetryQueueCapacity;
+        copy.batchWindow = this.batchWindow;
+        copy.batchBufferSize = this.batchBufferSize;
+        copy.deltaKeyframeInterval = this.deltaKeyframeInterval;
+        for (Map.Entry<String, Map<String, double[]>> entry : this.precisions.entrySet()) {
+            copy.precisions.put(entry.getKey(), new HashMap<>(entry.getValue()));
+        }
+        copy.recorderFile = this.recorderFile;
+        copy.recorderCapacity = this.recorderCapacity;
+        copy.outboundFile = this.outboundFile;
+        copy.outboundMaxSize = this.outboundMaxSize;
+        copy.outboundDownsampleInterval = this.outboundDownsampleInterval;
+        copy.outboundReplayRate = this.outboundReplayRate;
+        copy.outboundMaxReplayDelay = this.outboundMaxReplayDelay;
+        return copy;
+    }
+
+}
@@ -0,0 +1,145 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 端末の電池と充電、機体の armed から電源の使い方を決める。
+ * 飛んでいる間と充電中は performance にして、遅れずに送ることを優先する。
+ * 地上で電池が減ってきたら efficiency にして、送信をまとめ、起きる回数を減らす。
+ * 使い方ごとに、1 分あたりに起きた回数も数える
+ */
+final class PowerPolicy {
+
+    static final String PERFORMANCE = "performance";
+    static final String EFFICIENCY = "efficiency";
+
+    /**
+     * efficiency から戻すまでに電池残量が上がる幅 (%)。境目で行き来しないようにする
+     */
+    private static final double HYSTERESIS = 5;
+
+    private final double efficiencyBelow;
+    private String profile = PERFORMANCE;
+
+    // 使い方ごとの、起きた回数と時間 (ナノ秒)
+    private final Map<String, long[]> usage = new HashMap<>();
+    private long lastWakeups = -1;
+    private long lastTime;
+
+    /**
+     * @param efficiencyBelow 地上で efficiency にする電池残量 (%)。これ以下なら efficiency にする
+     */
+    PowerPolicy(double efficiencyBelow) {
+        this.efficiencyBelow = efficiencyBelow;
+    }
+
+    /**
+     * 使い方を決め直す
+     *
+     * @param batteryLevel 端末の電池残量 (%)。分からなければ負
+     * @param charging     充電中なら true
+     * @param armed        どれかの機体が armed なら true
+     * @return 使い方が変わったら true
+     */
+    synchronized boolean update(double batteryLevel, boolean charging, boolean armed) {
+        final String next;
+        if (armed || charging || batteryLevel < 0) {
+            next = PERFORMANCE;
+        } else if (batteryLevel <= this.efficiencyBelow) {
+            next = EFFICIENCY;
+        } else if (batteryLevel > this.efficiencyBelow + HYSTERESIS) {
+            next = PERFORMANCE;
+        } else {
+            next = this.profile;
+        }
+        if (next.equals(this.profile)) {
+            return false;
+        }
+        this.profile = next;
+        return true;
+    }
+
+    /**
+     * @return 今の使い方
+     */
+    synchronized String getProfile() {
+        return this.profile;
+    }
+
+    /**
+     * 前に呼んでから今までに起きた回数を、今の使い方に付ける。
+     * 使い方を変える前にも呼ぶ
+     *
+     * @param wakeups  これまでに起きた回数の合計
+     * @param nowNanos 今の時刻 (ナノ秒)
+     */
+    synchronized void account(long wakeups, long nowNanos) {
+        if (this.lastWakeups >= 0) {
+            long[] entry = this.usage.get(this.profile);
+            if (entry == null) {
+                entry = new long[2];
+                this.usage.put(this.profile, entry);
+            }
+            entry[0] += wakeups - this.lastWakeups;
+            entry[1] += nowNanos - this.lastTime;
+        }
+        this.lastWakeups = wakeups;
+        this.lastTime = nowNanos;
+    }
+
+    /**
+     * @return 使い方ごとの 1 分あたりに起きた回数。その使い方になったことがなければ含めない
+     */
+    synchronized Map<String, Double> getWakeupsPerMinute() {
+        final Map<String, Double> rates = new LinkedHashMap<>();
+        for (String profile : new String[]{PERFORMANCE, EFFICIENCY}) {
+            final long[] entry = this.usage.get(profile);
+            if (entry != null && entry[1] > 0) {
+                rates.put(profile, entry[0] * (double) TimeUnit.MINUTES.toNanos(1) / entry[1]);
+            }
+        }
+        return rates;
+    }
+
+    /**
+     * @return 今の使い方と、使い方ごとの 1 分あたりに起きた回数
+     */
+    Map<String, Object> toMap() {
+        final Map<String, Object> map = new LinkedHashMap<>();
+        map.put("profile", getProfile());
+        map.put("wakeupsPerMinute", getWakeupsPerMinute());
+        return map;
+    }
+
+    /**
+     * @param rate  設定の頻度 (回/秒)。0 以下なら間引かない
+     * @param limit 頻度の上限 (回/秒)。null なら上限なし
+     * @return 上限を当てた頻度。0 なら間引かない
+     */
+    static double limitRate(double rate, Double limit) {
+        if (limit == null) {
+            return rate;
+        }
+        return rate <= 0 ? limit : Math.min(rate, limit);
+    }
+
+}
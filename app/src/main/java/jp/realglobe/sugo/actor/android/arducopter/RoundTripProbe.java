@@ -0,0 +1,162 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * hub の先の呼び出し側との往復時間を測る。
+ * ping イベントを他のイベントと同じ接続に流し、呼び出し側が pong で返すまでの時間を測るので、
+ * 送信が詰まっていればその分だけ長くなる。
+ * 購読者の受け取り確認でも測れる
+ */
+final class RoundTripProbe {
+
+    /**
+     * 往復時間を測れたときの処理
+     */
+    interface Listener {
+        /**
+         * @param nanos 往復時間 (ナノ秒)
+         */
+        void onRoundTrip(long nanos);
+    }
+
+    static final String KEY_ID = "id";
+    static final String KEY_TIME = "time";
+
+    /**
+     * 返事を待つ ping の最大数。返す呼び出し側がいなければ古いものから忘れる
+     */
+    private static final int MAX_PENDING = 16;
+    /**
+     * これだけ返事が来なければ、返す呼び出し側がいなくなったと見なす (ナノ秒)
+     */
+    private static final long ANSWER_TIMEOUT = TimeUnit.SECONDS.toNanos(60);
+
+    private final Map<Long, Long> pending = new LinkedHashMap<>();
+    private long nextId = 1;
+    private boolean answered;
+    private long last = -1;
+    private volatile Listener listener;
+
+    /**
+     * @param listener 往復時間を測れたときの処理
+     */
+    void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * ping を送る準備をする
+     *
+     * @param nowNanos 今の時刻 (ナノ秒)
+     * @return ping イベントの中身
+     */
+    synchronized Map<String, Object> ping(long nowNanos) {
+        final long id = this.nextId++;
+        this.pending.put(id, nowNanos);
+        if (this.pending.size() > MAX_PENDING) {
+            final Iterator<Long> iterator = this.pending.keySet().iterator();
+            iterator.next();
+            iterator.remove();
+        }
+        final Map<String, Object> data = new HashMap<>();
+        data.put(KEY_ID, id);
+        data.put(KEY_TIME, System.currentTimeMillis());
+        return data;
+    }
+
+    /**
+     * ping の返事を受けた
+     *
+     * @param id       ping の ID
+     * @param nowNanos 今の時刻 (ナノ秒)
+     * @return 往復時間 (ナノ秒)。知らない ID なら負
+     */
+    long pong(long id, long nowNanos) {
+        final Long sentAt;
+        synchronized (this) {
+            sentAt = this.pending.remove(id);
+            if (sentAt == null) {
+                return -1;
+            }
+            // これより前の ping は追い越されたので待たない
+            final Iterator<Long> iterator = this.pending.keySet().iterator();
+            while (iterator.hasNext() && iterator.next() < id) {
+                iterator.remove();
+            }
+        }
+        final long roundTrip = nowNanos - sentAt;
+        record(roundTrip);
+        return roundTrip;
+    }
+
+    /**
+     * ping 以外で測れた往復時間を記録する
+     *
+     * @param nanos 往復時間 (ナノ秒)
+     */
+    void record(long nanos) {
+        synchronized (this) {
+            this.answered = true;
+            this.last = nanos;
+        }
+        final Listener listener = this.listener;
+        if (listener != null) {
+            listener.onRoundTrip(nanos);
+        }
+    }
+
+    /**
+     * @param nowNanos 今の時刻 (ナノ秒)
+     * @return 返事を待っている最も古い ping を送ってからの時間 (ナノ秒)。
+     * 往復時間はこれより短くはない。一度も返事が来ていないか、待っているものが無ければ負
+     */
+    synchronized long getPendingAge(long nowNanos) {
+        if (!this.answered || this.pending.isEmpty()) {
+            return -1;
+        }
+        final long age = nowNanos - this.pending.values().iterator().next();
+        if (age > ANSWER_TIMEOUT) {
+            // 返す呼び出し側がいなくなった。次に返事が来るまでは混んでいると見なさない
+            this.answered = false;
+            this.pending.clear();
+            return -1;
+        }
+        return age;
+    }
+
+    /**
+     * @return 最後に測った往復時間 (ナノ秒)。まだ測っていなければ負
+     */
+    synchronized long getLast() {
+        return this.last;
+    }
+
+    /**
+     * hub と繋ぎ直した。切れている間に送った ping の返事は来ない
+     */
+    synchronized void reset() {
+        this.pending.clear();
+    }
+
+}
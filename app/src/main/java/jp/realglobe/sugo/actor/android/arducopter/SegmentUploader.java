@@ -0,0 +1,259 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 書き終えた映像の区切りを順に送り出す。
+ * ファイルはチャネルで少しずつ送るので、区切りをメモリに読み込まない。
+ * 送れた区切りは消し、送れなかったら待ってから同じ区切りを送り直す。
+ * 起動したときに残っている区切りから送り始めるので、中断しても続きから送れる
+ */
+final class SegmentUploader implements Closeable {
+
+    private static final String LOG_TAG = SegmentUploader.class.getName();
+
+    /**
+     * 区切りの送り先
+     */
+    interface Sink {
+        /**
+         * @param name    区切りの名前
+         * @param channel 区切りの中身
+         * @param size    区切りの大きさ (バイト)
+         */
+        void send(String name, FileChannel channel, long size) throws IOException;
+    }
+
+    /**
+     * @param target 送り先。http: か https: で始まれば HTTP の PUT で、それ以外はディレクトリとみなしてコピーする
+     * @return 送り先
+     */
+    static Sink sinkFor(String target) throws IOException {
+        if (target.startsWith("http:") || target.startsWith("https:")) {
+            return new HttpSink(new URL(target.endsWith("/") ? target : target + "/"));
+        }
+        return new DirectorySink(new File(target));
+    }
+
+    private final File dir;
+    private final Sink sink;
+    private final Backoff backoff;
+    private final LinkedBlockingQueue<File> queue = new LinkedBlockingQueue<>();
+    private final AtomicLong uploadedCount = new AtomicLong();
+    private final AtomicLong uploadedBytes = new AtomicLong();
+    private volatile boolean closed;
+    private Thread thread;
+
+    /**
+     * @param dir     区切りを置くディレクトリ
+     * @param sink    送り先
+     * @param backoff 送れなかったときの待ち時間
+     */
+    SegmentUploader(File dir, Sink sink, Backoff backoff) {
+        this.dir = dir;
+        this.sink = sink;
+        this.backoff = backoff;
+    }
+
+    /**
+     * 残っている区切りを送り始める。新しい区切りを書き始める前に呼ぶ
+     */
+    void start() {
+        final File[] segments = this.dir.listFiles((dir, name) -> name.endsWith(VideoSegmentWriter.SEGMENT_SUFFIX));
+        if (segments != null) {
+            Arrays.sort(segments);
+            this.queue.addAll(Arrays.asList(segments));
+        }
+        this.thread = new Thread(this::run, getClass().getName());
+        this.thread.start();
+    }
+
+    /**
+     * 書き終えた区切りを送る
+     *
+     * @param segment 区切り
+     */
+    void offer(File segment) {
+        this.queue.add(segment);
+    }
+
+    /**
+     * @return 送れた区切りの数
+     */
+    long getUploadedCount() {
+        return this.uploadedCount.get();
+    }
+
+    /**
+     * @return 送れた区切りの大きさの合計 (バイト)
+     */
+    long getUploadedBytes() {
+        return this.uploadedBytes.get();
+    }
+
+    /**
+     * @return 送る順番を待っている区切りの数
+     */
+    int getPendingCount() {
+        return this.queue.size();
+    }
+
+    private void run() {
+        try {
+            while (!this.closed) {
+                final File segment = this.queue.take();
+                while (!this.closed && segment.exists()) {
+                    try {
+                        upload(segment);
+                        this.backoff.reset();
+                        break;
+                    } catch (IOException e) {
+                        final long delay = this.backoff.next();
+                        Log.w(LOG_TAG, "Failed to upload " + segment.getName() + ", retry after " + delay + "ms", e);
+                        TimeUnit.MILLISECONDS.sleep(delay);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            // 終わり
+        }
+    }
+
+    private void upload(File segment) throws IOException {
+        final long size;
+        try (FileChannel channel = new FileInputStream(segment).getChannel()) {
+            size = channel.size();
+            this.sink.send(segment.getName(), channel, size);
+        }
+        if (!segment.delete()) {
+            Log.w(LOG_TAG, "Cannot delete " + segment);
+        }
+        this.uploadedCount.incrementAndGet();
+        this.uploadedBytes.addAndGet(size);
+    }
+
+    /**
+     * 送るのをやめる。送り途中の区切りは次に始めたときに送り直す
+     */
+    @Override
+    public void close() {
+        this.closed = true;
+        if (this.thread != null) {
+            this.thread.interrupt();
+        }
+    }
+
+    /**
+     * チャネルの中身を全部書く
+     */
+    private static void transfer(FileChannel channel, long size, WritableByteChannel out) throws IOException {
+        long position = 0;
+        while (position < size) {
+            position += channel.transferTo(position, size - position, out);
+        }
+    }
+
+    /**
+     * ディレクトリにコピーする。書き途中のものは別の名前にしておく
+     */
+    private static final class DirectorySink implements Sink {
+
+        private final File dir;
+
+        DirectorySink(File dir) throws IOException {
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Cannot create " + dir);
+            }
+            this.dir = dir;
+        }
+
+        @Override
+        public void send(String name, FileChannel channel, long size) throws IOException {
+            final File part = new File(this.dir, name + VideoSegmentWriter.PART_SUFFIX);
+            try (FileChannel out = new FileOutputStream(part).getChannel()) {
+                transfer(channel, size, out);
+            }
+            if (!part.renameTo(new File(this.dir, name))) {
+                throw new IOException("Cannot rename " + part);
+            }
+        }
+
+    }
+
+    /**
+     * 区切りごとに HTTP の PUT で送る。
+     * 大きさを先に決めて送るので、HttpURLConnection も中身を溜め込まない。
+     * int に収まらない大きさなら分割して送る
+     */
+    private static final class HttpSink implements Sink {
+
+        private static final int CONNECT_TIMEOUT = 15_000;
+        private static final int READ_TIMEOUT = 30_000;
+
+        private final URL base;
+
+        HttpSink(URL base) {
+            this.base = base;
+        }
+
+        @Override
+        public void send(String name, FileChannel channel, long size) throws IOException {
+            final HttpURLConnection connection = (HttpURLConnection) new URL(this.base, name).openConnection();
+            try {
+                connection.setConnectTimeout(CONNECT_TIMEOUT);
+                connection.setReadTimeout(READ_TIMEOUT);
+                connection.setRequestMethod("PUT");
+                connection.setDoOutput(true);
+                connection.setRequestProperty("Content-Type", "application/octet-stream");
+                if (size <= Integer.MAX_VALUE) {
+                    connection.setFixedLengthStreamingMode((int) size);
+                } else {
+                    // long を取る setFixedLengthStreamingMode は古い Android に無い
+                    connection.setChunkedStreamingMode(0);
+                }
+                try (WritableByteChannel out = Channels.newChannel(connection.getOutputStream())) {
+                    transfer(channel, size, out);
+                }
+                final int code = connection.getResponseCode();
+                if (code < 200 || code >= 300) {
+                    throw new IOException("Upload of " + name + " failed with " + code);
+                }
+            } finally {
+                connection.disconnect();
+            }
+        }
+
+    }
+
+}
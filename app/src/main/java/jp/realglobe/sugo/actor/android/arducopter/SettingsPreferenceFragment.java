@@ -42,7 +42,23 @@ public class SettingsPreferenceFragment extends PreferenceFragment {
 
         showDefaultKeys.addAll(Arrays.asList(
                 getString(R.string.key_hub),
-                getString(R.string.key_actor_key)
+                getString(R.string.key_actor_key),
+                getString(R.string.key_module_names),
+                getString(R.string.key_position_rate),
+                getString(R.string.key_attitude_rate),
+                getString(R.string.key_speed_rate),
+                getString(R.string.key_battery_rate),
+                getString(R.string.key_low_battery),
+                getString(R.string.key_batch_window),
+                getString(R.string.key_coordinate_precision),
+                getString(R.string.key_altitude_precision),
+                getString(R.string.key_attitude_precision),
+                getString(R.string.key_simulator_speed),
+                getString(R.string.key_simulator_rate),
+                getString(R.string.key_video_port),
+                getString(R.string.key_video_sink),
+                getString(R.string.key_video_segment_size),
+                getString(R.string.key_efficiency_battery)
         ));
 
         addPreferencesFromResource(R.xml.settings);
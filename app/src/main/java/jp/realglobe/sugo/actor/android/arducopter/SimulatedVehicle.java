@@ -0,0 +1,411 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 模擬機体。SITL や実機の代わりに、MAVLink のメッセージを UDP で送る。
+ * ArduCopter モジュールには UDP で繋ぐ。
+ * <p>
+ * 決まった動きで飛ぶ模擬飛行か、TelemetryRecorder の記録の再生のどちらかを送る。
+ * メッセージの中身は経過時間だけで決まるので、何度動かしても同じ並びになる。
+ * 速度を上げると、同じ飛行を短い時間で送る
+ */
+final class SimulatedVehicle implements Closeable {
+
+    private static final String LOG_TAG = SimulatedVehicle.class.getName();
+
+    /**
+     * 送るメッセージの種類
+     */
+    static final int STREAM_HEARTBEAT = 0;
+    static final int STREAM_GPS = 1;
+    static final int STREAM_ATTITUDE = 2;
+    static final int STREAM_BATTERY = 3;
+    static final int STREAM_MISSION = 4;
+    private static final int STREAM_COUNT = 5;
+
+    /**
+     * 速度の範囲
+     */
+    static final double MIN_SPEED = 1;
+    static final double MAX_SPEED = 100;
+
+    private static final int SYSTEM_ID = 1;
+    private static final int COMPONENT_ID = 1;
+
+    /**
+     * ArduCopter の飛行モード番号
+     */
+    private static final Map<String, Integer> MODES = new HashMap<>();
+
+    static {
+        MODES.put("Stabilize", 0);
+        MODES.put("Acro", 1);
+        MODES.put("AltHold", 2);
+        MODES.put("Auto", 3);
+        MODES.put("Guided", 4);
+        MODES.put("Loiter", 5);
+        MODES.put("RTL", 6);
+        MODES.put("Circle", 7);
+        MODES.put("Land", 9);
+        MODES.put("PosHold", 16);
+    }
+
+    // 模擬飛行の設定
+    private static final double HOME_LATITUDE = 35.681236;
+    private static final double HOME_LONGITUDE = 139.767125;
+    private static final double HOME_ALTITUDE = 40;
+    private static final double CRUISE_ALTITUDE = 30;
+    private static final double CLIMB_RATE = 1;
+    private static final double CIRCLE_RADIUS = 50;
+    private static final double CIRCLE_PERIOD = 60;
+    private static final double METERS_PER_DEGREE = 111_320;
+    private static final int MISSION_ITEMS = 4;
+
+    private final InetSocketAddress target;
+    private final double speed;
+    private final long seed;
+    /**
+     * 再生する記録。模擬飛行なら null
+     */
+    private final List<TelemetryRecorder.Record> records;
+    private final long[] intervals = new long[STREAM_COUNT];
+
+    private final MavlinkWriter writer = new MavlinkWriter(SYSTEM_ID, COMPONENT_ID);
+    private final AtomicLong sent = new AtomicLong();
+    private final State state = new State();
+    private Random random;
+
+    private volatile boolean closed;
+    private Thread thread;
+
+    /**
+     * 機体の状態
+     */
+    private static final class State {
+        double latitude = HOME_LATITUDE;
+        double longitude = HOME_LONGITUDE;
+        double altitude;
+        double vx;
+        double vy;
+        double vz;
+        double roll;
+        double pitch;
+        double yaw;
+        double voltage = 12.6;
+        double current;
+        int remaining = 100;
+        int missionItem;
+        int mode = MODES.get("Stabilize");
+        boolean armed;
+    }
+
+    /**
+     * 模擬飛行を送る
+     *
+     * @param target 送り先
+     * @param speed  速度。1 から 100
+     * @param seed   揺らぎの種
+     */
+    SimulatedVehicle(InetSocketAddress target, double speed, long seed) {
+        this(target, speed, seed, null);
+        setRate(STREAM_HEARTBEAT, 1);
+        setRate(STREAM_GPS, 5);
+        setRate(STREAM_ATTITUDE, 10);
+        setRate(STREAM_BATTERY, 1);
+        setRate(STREAM_MISSION, 1);
+    }
+
+    /**
+     * 記録を再生する。記録の間隔で送り、再生の間も HEARTBEAT を 1 回/秒送る
+     *
+     * @param target  送り先
+     * @param speed   速度。1 から 100
+     * @param records 記録
+     */
+    SimulatedVehicle(InetSocketAddress target, double speed, List<TelemetryRecorder.Record> records) {
+        this(target, speed, 0, new ArrayList<>(records));
+        setRate(STREAM_HEARTBEAT, 1);
+    }
+
+    private SimulatedVehicle(InetSocketAddress target, double speed, long seed, List<TelemetryRecorder.Record> records) {
+        if (!(speed >= MIN_SPEED && speed <= MAX_SPEED)) {
+            throw new IllegalArgumentException("Speed " + speed + " is out of [" + MIN_SPEED + ", " + MAX_SPEED + "]");
+        }
+        this.target = target;
+        this.speed = speed;
+        this.seed = seed;
+        this.records = records;
+    }
+
+    /**
+     * メッセージを送る頻度を設定する。start の前に呼ぶ
+     *
+     * @param stream メッセージの種類
+     * @param rate   飛行時間 1 秒あたりの回数。0 以下なら送らない
+     */
+    void setRate(int stream, double rate) {
+        this.intervals[stream] = rate > 0 ? (long) (TimeUnit.SECONDS.toMicros(1) / rate) : 0;
+    }
+
+    void start() {
+        this.thread = new Thread(this::run, LOG_TAG);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * @return 送ったメッセージの数
+     */
+    long getSentCount() {
+        return this.sent.get();
+    }
+
+    @Override
+    public void close() {
+        this.closed = true;
+        if (this.thread != null) {
+            this.thread.interrupt();
+        }
+    }
+
+    /**
+     * 終わるまで待つ
+     *
+     * @param timeout 待つ時間 (ミリ秒)
+     * @return 終わったら true
+     */
+    boolean await(long timeout) throws InterruptedException {
+        this.thread.join(timeout);
+        return !this.thread.isAlive();
+    }
+
+    private void run() {
+        // 受け手がまだ待っていなくても送り続けられるように、接続しないで送る
+        try (DatagramChannel channel = DatagramChannel.open()) {
+            this.random = new Random(this.seed);
+            final long[] due = new long[STREAM_COUNT];
+            final long firstRecord = this.records == null || this.records.isEmpty() ? 0 : this.records.get(0).time;
+            int recordIndex = 0;
+            final long start = System.nanoTime();
+            while (!this.closed) {
+                // 次に送るものを選ぶ。時刻は飛行時間 (マイクロ秒)
+                int stream = -1;
+                long next = Long.MAX_VALUE;
+                for (int i = 0; i < STREAM_COUNT; i++) {
+                    if (this.intervals[i] > 0 && due[i] < next) {
+                        stream = i;
+                        next = due[i];
+                    }
+                }
+                TelemetryRecorder.Record record = null;
+                if (this.records != null) {
+                    if (recordIndex >= this.records.size()) {
+                        break;
+                    }
+                    final long recordTime = TimeUnit.MILLISECONDS.toMicros(this.records.get(recordIndex).time - firstRecord);
+                    if (recordTime <= next) {
+                        record = this.records.get(recordIndex++);
+                        stream = -1;
+                        next = recordTime;
+                    }
+                }
+                if (stream < 0 && record == null) {
+                    break;
+                }
+
+                final long wait = start + (long) (TimeUnit.MICROSECONDS.toNanos(next) / this.speed) - System.nanoTime();
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+
+                final ByteBuffer message;
+                if (record != null) {
+                    message = replay(next, record);
+                } else {
+                    if (this.records == null) {
+                        fly(next);
+                    }
+                    message = message(stream, next);
+                    due[stream] += this.intervals[stream];
+                }
+                if (message != null) {
+                    channel.send(message, this.target);
+                    this.sent.incrementAndGet();
+                }
+            }
+        } catch (InterruptedException | IOException e) {
+            if (!this.closed) {
+                Log.w(LOG_TAG, "Simulated vehicle stopped", e);
+            }
+        }
+    }
+
+    /**
+     * 模擬飛行の状態を進める。
+     * 上昇してから円を描いて飛ぶ
+     *
+     * @param time 飛行時間 (マイクロ秒)
+     */
+    private void fly(long time) {
+        final double t = time / 1e6;
+        final State s = this.state;
+        final double climbTime = CRUISE_ALTITUDE / CLIMB_RATE;
+        s.armed = true;
+        if (t < climbTime) {
+            s.mode = MODES.get("Guided");
+            s.altitude = t * CLIMB_RATE;
+            s.vx = 0;
+            s.vy = 0;
+            s.vz = -CLIMB_RATE;
+            s.yaw = 0;
+        } else {
+            s.mode = MODES.get("Auto");
+            final double angle = 2 * Math.PI * (t - climbTime) / CIRCLE_PERIOD;
+            final double north = CIRCLE_RADIUS * Math.sin(angle);
+            final double east = CIRCLE_RADIUS * (1 - Math.cos(angle));
+            s.latitude = HOME_LATITUDE + north / METERS_PER_DEGREE;
+            s.longitude = HOME_LONGITUDE + east / (METERS_PER_DEGREE * Math.cos(Math.toRadians(HOME_LATITUDE)));
+            s.altitude = CRUISE_ALTITUDE;
+            final double velocity = 2 * Math.PI * CIRCLE_RADIUS / CIRCLE_PERIOD;
+            s.vx = velocity * Math.cos(angle);
+            s.vy = velocity * Math.sin(angle);
+            s.vz = 0;
+            s.yaw = angle;
+            s.missionItem = (int) (angle / (2 * Math.PI) * MISSION_ITEMS) % MISSION_ITEMS;
+        }
+        // 揺らぎ
+        s.roll = this.random.nextGaussian() * 0.02;
+        s.pitch = this.random.nextGaussian() * 0.02;
+        s.current = 15 + this.random.nextGaussian();
+        s.remaining = Math.max(0, 100 - (int) (t / 12));
+        s.voltage = 12.6 - (100 - s.remaining) * 0.02;
+    }
+
+    private ByteBuffer message(int stream, long time) {
+        final State s = this.state;
+        final long timeBootMs = TimeUnit.MICROSECONDS.toMillis(time);
+        switch (stream) {
+            case STREAM_HEARTBEAT:
+                return this.writer.heartbeat(s.mode, s.armed);
+            case STREAM_GPS:
+                return this.writer.globalPositionInt(timeBootMs, s.latitude, s.longitude, HOME_ALTITUDE + s.altitude, s.altitude,
+                        s.vx, s.vy, s.vz, Math.toDegrees(s.yaw));
+            case STREAM_ATTITUDE:
+                return this.writer.attitude(timeBootMs, s.roll, s.pitch, s.yaw);
+            case STREAM_BATTERY:
+                return this.writer.sysStatus(s.voltage, s.current, s.remaining);
+            case STREAM_MISSION:
+                return this.writer.missionCurrent(s.missionItem);
+            default:
+                throw new IllegalArgumentException("Unknown stream " + stream);
+        }
+    }
+
+    /**
+     * 記録したイベントを MAVLink のメッセージに戻す
+     *
+     * @param time   飛行時間 (マイクロ秒)
+     * @param record 記録
+     * @return メッセージ。戻せないイベントなら null
+     */
+    private ByteBuffer replay(long time, TelemetryRecorder.Record record) {
+        final State s = this.state;
+        final Map<?, ?> data = record.data instanceof Map ? (Map<?, ?>) record.data : Collections.emptyMap();
+        switch (record.event) {
+            case Events.POSITION: {
+                final double[] coordinate = numbers(data.get("coordinate"));
+                if (coordinate.length < 2) {
+                    return null;
+                }
+                s.latitude = coordinate[0];
+                s.longitude = coordinate[1];
+                if (coordinate.length > 2) {
+                    s.altitude = coordinate[2];
+                }
+                return message(STREAM_GPS, time);
+            }
+            case Events.ATTITUDE:
+                // DroneKit の姿勢は度
+                s.roll = Math.toRadians(number(data, s.roll, "roll"));
+                s.pitch = Math.toRadians(number(data, s.pitch, "pitch"));
+                s.yaw = Math.toRadians(number(data, s.yaw, "yaw"));
+                return message(STREAM_ATTITUDE, time);
+            case Events.BATTERY:
+                s.voltage = number(data, s.voltage, "voltage", "batteryVoltage");
+                s.current = number(data, s.current, "current", "batteryCurrent");
+                // 記録した battery は ArduCopterModule で電池残量のキーを揃えてある
+                s.remaining = (int) number(data, s.remaining, ArduCopterModule.BATTERY_REMAIN);
+                return message(STREAM_BATTERY, time);
+            case Events.MODE: {
+                final Object mode = data.get("mode");
+                final Integer number = mode == null ? null : MODES.get(String.valueOf(mode));
+                if (number != null) {
+                    s.mode = number;
+                }
+                return message(STREAM_HEARTBEAT, time);
+            }
+            case Events.ARMED:
+            case Events.DISARMED:
+                s.armed = Events.ARMED.equals(record.event);
+                return message(STREAM_HEARTBEAT, time);
+            default:
+                return null;
+        }
+    }
+
+    private static double number(Map<?, ?> data, double defaultValue, String... keys) {
+        for (String key : keys) {
+            final Object value = data.get(key);
+            if (value instanceof Number) {
+                return ((Number) value).doubleValue();
+            }
+        }
+        return defaultValue;
+    }
+
+    private static double[] numbers(Object value) {
+        if (value instanceof double[]) {
+            return (double[]) value;
+        } else if (value instanceof List) {
+            final List<?> list = (List<?>) value;
+            final double[] numbers = new double[list.size()];
+            for (int i = 0; i < numbers.length; i++) {
+                numbers[i] = list.get(i) instanceof Number ? ((Number) list.get(i)).doubleValue() : Double.NaN;
+            }
+            return numbers;
+        }
+        return new double[0];
+    }
+
+}
@@ -0,0 +1,112 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * 最後にうまく起動できたときの設定を覚えておく。
+ * サービスが落ちて起こし直されたときは、画面を通さずにこれで起動する。
+ * 値は文字列、真偽値、数値、文字列の配列のどれか
+ */
+final class StartOptionsCache {
+
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    private final File file;
+
+    /**
+     * @param file 覚えておくファイル
+     */
+    StartOptionsCache(File file) {
+        this.file = file;
+    }
+
+    /**
+     * 覚える。
+     * 書いている途中で落ちても前の内容が残るように、別のファイルに書いてから差し替える
+     *
+     * @param options 設定
+     * @throws IOException 書けなかった
+     */
+    void save(Map<String, Object> options) throws IOException {
+        final File temporary = new File(this.file.getPath() + TEMPORARY_SUFFIX);
+        try (FileOutputStream output = new FileOutputStream(temporary)) {
+            output.write(new JsonWriter(1024).value(options).toString().getBytes(StandardCharsets.UTF_8));
+            output.getFD().sync();
+        }
+        if (!temporary.renameTo(this.file)) {
+            throw new IOException("Cannot rename " + temporary + " to " + this.file);
+        }
+    }
+
+    /**
+     * @return 覚えている設定。無ければ null
+     * @throws IOException 読めなかったか、中身が壊れていた
+     */
+    Map<String, Object> load() throws IOException {
+        if (!this.file.isFile()) {
+            return null;
+        }
+        final byte[] bytes = new byte[(int) this.file.length()];
+        try (InputStream input = new FileInputStream(this.file)) {
+            int offset = 0;
+            while (offset < bytes.length) {
+                final int length = input.read(bytes, offset, bytes.length - offset);
+                if (length < 0) {
+                    throw new IOException("Unexpected end of " + this.file);
+                }
+                offset += length;
+            }
+        }
+
+        final Map<String, Object> options = new HashMap<>();
+        try {
+            final JSONObject object = new JSONObject(new String(bytes, StandardCharsets.UTF_8));
+            for (Iterator<String> keys = object.keys(); keys.hasNext(); ) {
+                final String key = keys.next();
+                final Object value = object.get(key);
+                if (value instanceof JSONArray) {
+                    final JSONArray array = (JSONArray) value;
+                    final String[] strings = new String[array.length()];
+                    for (int i = 0; i < strings.length; i++) {
+                        strings[i] = array.getString(i);
+                    }
+                    options.put(key, strings);
+                } else if (value != JSONObject.NULL) {
+                    options.put(key, value);
+                }
+            }
+        } catch (JSONException e) {
+            throw new IOException("Broken " + this.file, e);
+        }
+        return options;
+    }
+
+}
@@ -0,0 +1,142 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 起動の段階ごとにかかった時間を記録する。
+ * 段階は別々のスレッドで同時に進んでよい
+ */
+final class StartupTrace {
+
+    /**
+     * 記録した段階。時刻は起動を始めたときからのナノ秒
+     */
+    static final class Phase {
+
+        final String name;
+        final String thread;
+        final long start;
+        final long end;
+
+        Phase(String name, String thread, long start, long end) {
+            this.name = name;
+            this.thread = thread;
+            this.start = start;
+            this.end = end;
+        }
+
+    }
+
+    private final long origin;
+    private final List<Phase> phases = new ArrayList<>();
+
+    /**
+     * @param origin 起動を始めた時刻 (System.nanoTime)
+     */
+    StartupTrace(long origin) {
+        this.origin = origin;
+    }
+
+    /**
+     * 段階を始める
+     *
+     * @return end に渡す開始時刻
+     */
+    long begin() {
+        return System.nanoTime();
+    }
+
+    /**
+     * 段階を終える
+     *
+     * @param name  段階の名前
+     * @param begin begin が返した開始時刻
+     */
+    void end(String name, long begin) {
+        add(name, begin, System.nanoTime());
+    }
+
+    /**
+     * 一瞬の出来事を記録する
+     *
+     * @param name 出来事の名前
+     */
+    void mark(String name) {
+        final long now = System.nanoTime();
+        add(name, now, now);
+    }
+
+    private synchronized void add(String name, long start, long end) {
+        this.phases.add(new Phase(name, Thread.currentThread().getName(), start - this.origin, end - this.origin));
+    }
+
+    /**
+     * @return 記録した段階。始まった順
+     */
+    synchronized List<Phase> getPhases() {
+        final List<Phase> sorted = new ArrayList<>(this.phases);
+        Collections.sort(sorted, (phase1, phase2) -> Long.compare(phase1.start, phase2.start));
+        return sorted;
+    }
+
+    /**
+     * @param name 段階の名前
+     * @return 起動を始めてからその段階が終わるまでの時間 (ナノ秒)。まだ終わっていなければ -1
+     */
+    synchronized long getElapsed(String name) {
+        for (Phase phase : this.phases) {
+            if (phase.name.equals(name)) {
+                return phase.end;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return 段階ごとの開始時刻と長さ (ミリ秒) とスレッド
+     */
+    Map<String, Object> toMap() {
+        final Map<String, Object> map = new LinkedHashMap<>();
+        for (Phase phase : getPhases()) {
+            final Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("start", TimeUnit.NANOSECONDS.toMillis(phase.start));
+            entry.put("duration", TimeUnit.NANOSECONDS.toMillis(phase.end - phase.start));
+            entry.put("thread", phase.thread);
+            map.put(phase.name, entry);
+        }
+        return map;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder buff = new StringBuilder();
+        for (Phase phase : getPhases()) {
+            buff.append(String.format(Locale.US, "%-24s +%5dms %5dms  %s%n", phase.name,
+                    TimeUnit.NANOSECONDS.toMillis(phase.start), TimeUnit.NANOSECONDS.toMillis(phase.end - phase.start), phase.thread));
+        }
+        return buff.toString();
+    }
+
+}
@@ -0,0 +1,327 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * イベントを購読者ごとの待ち行列に配る。
+ * actor からは hub の先の呼び出し側を見分けられないので、呼び出し側が ID を決めて購読し、
+ * 待ち行列ごとのイベント名で受け取る。
+ * 選ぶイベントと設定が同じ購読者は待ち行列を共有するので、同じフレームを何度も送らない
+ */
+final class SubscriberFanout implements EventSink {
+
+    private static final String LOG_TAG = SubscriberFanout.class.getName();
+
+    /**
+     * 購読者宛てのイベント名の頭
+     */
+    static final String FRAME_EVENT_PREFIX = "subscriber:";
+
+    static final String OPTION_CAPACITY = "capacity";
+    static final String OPTION_DROP = "drop";
+    static final String OPTION_MAX_RATE = "maxRate";
+    static final String OPTION_WINDOW = "window";
+
+    static final int DEFAULT_CAPACITY = 256;
+    static final int DEFAULT_WINDOW = 32;
+
+    private final EventSink output;
+    private final ScheduledExecutorService scheduler;
+    private final long expiry;
+    /**
+     * 購読者の ID から、その購読者が使う待ち行列
+     */
+    private final ConcurrentHashMap<String, SubscriberQueue> queues = new ConcurrentHashMap<>();
+    /**
+     * 購読者のいる待ち行列
+     */
+    private final Set<SubscriberQueue> groups = Collections.newSetFromMap(new ConcurrentHashMap<SubscriberQueue, Boolean>());
+    private volatile boolean online;
+
+    /**
+     * @param output    送り先
+     * @param scheduler 送るのに使う
+     * @param expiry    受け取り確認がこれだけ来なければ購読を外す (ミリ秒)
+     */
+    SubscriberFanout(EventSink output, ScheduledExecutorService scheduler, long expiry) {
+        this.output = output;
+        this.scheduler = scheduler;
+        this.expiry = TimeUnit.MILLISECONDS.toNanos(expiry);
+    }
+
+    /**
+     * @param id 購読者の ID
+     * @return 購読者宛てのイベント名
+     */
+    static String frameEvent(String id) {
+        return FRAME_EVENT_PREFIX + id;
+    }
+
+    /**
+     * @param event イベント名
+     * @return 購読者宛てのイベントなら true
+     */
+    static boolean isFrameEvent(String event) {
+        return event.startsWith(FRAME_EVENT_PREFIX);
+    }
+
+    /**
+     * 購読者を加える。同じ ID の購読者がいれば置き換える。
+     * 選ぶイベントと設定が同じ待ち行列があればそれを共有する
+     *
+     * @param id      購読者の ID
+     * @param events  送るイベント。null なら全て
+     * @param options capacity, drop, maxRate, window。null や無い項目は既定値にする
+     * @return 購読者宛てのイベント名
+     */
+    synchronized String subscribe(String id, Collection<String> events, Map<String, Object> options) {
+        if (id == null || id.isEmpty()) {
+            throw new IllegalArgumentException("No subscriber id");
+        }
+        final Map<String, Object> values = options == null ? new HashMap<String, Object>() : options;
+        final EventSubscriptions subscriptions = EventSubscriptions.of(events);
+        final int capacity = intOption(values, OPTION_CAPACITY, DEFAULT_CAPACITY);
+        final String dropPolicy = values.containsKey(OPTION_DROP) ? String.valueOf(values.get(OPTION_DROP)) : SubscriberQueue.DROP_OLDEST;
+        final double maxRate = doubleOption(values, OPTION_MAX_RATE, 0);
+        final int window = intOption(values, OPTION_WINDOW, DEFAULT_WINDOW);
+        // 使えない設定なら前の購読を残す
+        SubscriberQueue.validate(capacity, dropPolicy);
+        leave(id);
+        SubscriberQueue queue = null;
+        for (SubscriberQueue group : this.groups) {
+            if (group.accepts(subscriptions, capacity, dropPolicy, maxRate, window)) {
+                queue = group;
+                break;
+            }
+        }
+        if (queue == null) {
+            queue = new SubscriberQueue(this.output, newFrameEvent(id), this.scheduler, subscriptions,
+                    capacity, dropPolicy, maxRate, window, this.online);
+            this.groups.add(queue);
+        }
+        queue.join(id);
+        this.queues.put(id, queue);
+        return queue.getFrameEvent();
+    }
+
+    /**
+     * @param id 購読者の ID
+     * @return どの待ち行列も使っていないイベント名
+     */
+    private String newFrameEvent(String id) {
+        final String base = frameEvent(id);
+        String name = base;
+        for (int i = 1; isUsed(name); i++) {
+            name = base + "#" + i;
+        }
+        return name;
+    }
+
+    private boolean isUsed(String frameEvent) {
+        for (SubscriberQueue group : this.groups) {
+            if (group.getFrameEvent().equals(frameEvent)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int intOption(Map<String, Object> options, String key, int defaultValue) {
+        final Object value = options.get(key);
+        return value instanceof Number ? ((Number) value).intValue() : defaultValue;
+    }
+
+    private static double doubleOption(Map<String, Object> options, String key, double defaultValue) {
+        final Object value = options.get(key);
+        return value instanceof Number ? ((Number) value).doubleValue() : defaultValue;
+    }
+
+    /**
+     * @param id 購読者の ID
+     * @return いたなら true
+     */
+    synchronized boolean unsubscribe(String id) {
+        return leave(id);
+    }
+
+    /**
+     * 購読者を待ち行列から外す。誰もいなくなった待ち行列は捨てる
+     *
+     * @param id 購読者の ID
+     * @return いたなら true
+     */
+    private boolean leave(String id) {
+        final SubscriberQueue queue = this.queues.remove(id);
+        if (queue == null) {
+            return false;
+        }
+        queue.leave(id);
+        if (queue.getMemberCount() == 0) {
+            this.groups.remove(queue);
+        }
+        return true;
+    }
+
+    /**
+     * @param id 購読者の ID
+     * @return 購読者の待ち行列
+     */
+    private SubscriberQueue get(String id) {
+        final SubscriberQueue queue = this.queues.get(id);
+        if (queue == null) {
+            throw new IllegalArgumentException("Unknown subscriber " + id);
+        }
+        return queue;
+    }
+
+    /**
+     * @param id     購読者の ID
+     * @param events 送るイベント。null なら全て
+     * @return 購読者宛てのイベント名。待ち行列を共有していたら、自分だけの待ち行列に移るので変わる
+     */
+    synchronized String enable(String id, Collection<String> events) {
+        final SubscriberQueue queue = own(id);
+        queue.getSubscriptions().enable(events);
+        return queue.getFrameEvent();
+    }
+
+    /**
+     * @param id     購読者の ID
+     * @param events 送らないイベント。null なら全て
+     * @return 購読者宛てのイベント名。待ち行列を共有していたら、自分だけの待ち行列に移るので変わる
+     */
+    synchronized String disable(String id, Collection<String> events) {
+        final SubscriberQueue queue = own(id);
+        queue.getSubscriptions().disable(events);
+        return queue.getFrameEvent();
+    }
+
+    /**
+     * 選ぶイベントを変える前に、他の購読者と共有している待ち行列から自分だけの待ち行列に移る。
+     * 移る前に溜まっていたものは、元の待ち行列に残す
+     *
+     * @param id 購読者の ID
+     * @return 購読者だけが使う待ち行列
+     */
+    private SubscriberQueue own(String id) {
+        final SubscriberQueue queue = get(id);
+        if (queue.getMemberCount() <= 1) {
+            return queue;
+        }
+        final SubscriberQueue copy = queue.copy(newFrameEvent(id));
+        queue.leave(id);
+        copy.join(id);
+        this.groups.add(copy);
+        this.queues.put(id, copy);
+        return copy;
+    }
+
+    /**
+     * @param id  購読者の ID
+     * @param seq 受け取った最後の通し番号
+     * @return 確認された最後のイベントを送ってから確認が来るまでの時間 (ナノ秒)。確認を待っていなかったなら負
+     */
+    long ack(String id, long seq) {
+        return get(id).ack(id, seq);
+    }
+
+    /**
+     * @return 購読者宛てのイベント名
+     */
+    List<String> getFrameEvents() {
+        final List<String> events = new ArrayList<>();
+        for (SubscriberQueue queue : this.groups) {
+            events.add(queue.getFrameEvent());
+        }
+        return events;
+    }
+
+    /**
+     * @param event イベント名
+     * @return どれかの購読者が選んでいれば true
+     */
+    boolean wants(String event) {
+        for (SubscriberQueue queue : this.groups) {
+            if (queue.getSubscriptions().isEnabled(event)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void emit(String event, Object data) {
+        for (SubscriberQueue queue : this.groups) {
+            queue.offer(event, data);
+        }
+    }
+
+    /**
+     * hub との接続状態を伝える。
+     * 切れている間は送らずに溜め、繋がったら確認の来ていないものから送り直す
+     *
+     * @param online 繋がったなら true
+     */
+    synchronized void setOnline(boolean online) {
+        this.online = online;
+        for (SubscriberQueue queue : this.groups) {
+            queue.setOnline(online);
+        }
+    }
+
+    /**
+     * 受け取り確認が長く来ない購読者を外す。
+     * 呼び出し側が確認を返さずに居なくなると、その待ち行列は溢れ続けるか、共有する他の購読者を待たせ続ける
+     */
+    synchronized void expire() {
+        final long now = System.nanoTime();
+        for (SubscriberQueue queue : this.groups) {
+            for (String id : queue.expire(now, this.expiry)) {
+                this.queues.remove(id, queue);
+                Log.w(LOG_TAG, "Subscriber " + id + " expired with " + queue.getDropped() + " dropped events on " + queue.getFrameEvent());
+            }
+            if (queue.getMemberCount() == 0) {
+                this.groups.remove(queue);
+            }
+        }
+    }
+
+    /**
+     * @return 購読者ごとの計測値。待ち行列を共有する購読者は同じ値になる
+     */
+    Map<String, Object> toMap() {
+        final Map<String, Object> map = new HashMap<>();
+        for (Map.Entry<String, SubscriberQueue> entry : this.queues.entrySet()) {
+            map.put(entry.getKey(), entry.getValue().toMap());
+        }
+        return map;
+    }
+
+}
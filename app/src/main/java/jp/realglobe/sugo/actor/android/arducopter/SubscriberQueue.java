@@ -0,0 +1,489 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 購読者に送るイベントの待ち行列。
+ * 大きさ、溢れたときの捨て方、送信頻度の上限、受け取り確認を待たずに送る数を持つので、
+ * 回線の遅い購読者が詰まっても他の待ち行列の購読者には送り続けられる。
+ * 選ぶイベントと設定が同じ購読者は 1 つの待ち行列を共有し、同じフレームを 1 回だけ送る。
+ * イベントは通し番号を付けて 1 つずつ送り、購読者はそれぞれ受け取った番号を ack で返す。
+ * 全員が確認したものから確認待ちを外す。
+ * hub と切れている間は送らずに溜め、繋がったら確認の来ていないものを同じ通し番号で送り直す
+ */
+final class SubscriberQueue {
+
+    /**
+     * 溢れたら古いものから捨てる
+     */
+    static final String DROP_OLDEST = "oldest";
+    /**
+     * 溢れたら新しく来たものを捨てる
+     */
+    static final String DROP_NEWEST = "newest";
+    /**
+     * 同じイベントが待っていたら最新値で置き換える。溢れたら古いものから捨てる
+     */
+    static final String KEEP_LATEST = "latest";
+
+    private static final String KEY_SEQ = "seq";
+    private static final String KEY_EVENT = "event";
+    private static final String KEY_DATA = "data";
+
+    /**
+     * 待っているイベント
+     */
+    private static final class Item {
+
+        final String event;
+        Object data;
+        final long enqueuedAt;
+        /**
+         * 通し番号。まだ送っていなければ 0
+         */
+        long seq;
+        long sentAt;
+
+        Item(String event, Object data, long enqueuedAt) {
+            this.event = event;
+            this.data = data;
+            this.enqueuedAt = enqueuedAt;
+        }
+
+    }
+
+    /**
+     * 購読者ごとの受け取り確認
+     */
+    private static final class Member {
+
+        /**
+         * 確認した最後の通し番号
+         */
+        long acked;
+        long lastAck;
+
+        Member(long acked, long lastAck) {
+            this.acked = acked;
+            this.lastAck = lastAck;
+        }
+
+    }
+
+    private final EventSink output;
+    private final String frameEvent;
+    private final ScheduledExecutorService scheduler;
+    private final EventSubscriptions subscriptions;
+    private final int capacity;
+    private final String dropPolicy;
+    private final long interval;
+    private final int window;
+
+    private final Map<String, Member> members = new HashMap<>();
+    private final ArrayDeque<Item> queue = new ArrayDeque<>();
+    private final Map<String, Item> latest = new HashMap<>();
+    /**
+     * 送って全員の受け取り確認を待っているもの。通し番号の順に並ぶ
+     */
+    private final ArrayDeque<Item> inFlight = new ArrayDeque<>();
+    private final LatencyHistogram ackLatency = new LatencyHistogram();
+    private long nextSeq = 1;
+    private long lastSent;
+    private boolean scheduled;
+    private boolean online;
+    private long sent;
+    private long resent;
+    private long dropped;
+
+    private final Runnable drainTask = this::drain;
+
+    /**
+     * @param output        送り先
+     * @param frameEvent    送るときのイベント名
+     * @param scheduler     送るのに使う
+     * @param subscriptions 送るイベント
+     * @param capacity      待たせておく最大数
+     * @param dropPolicy    溢れたときの捨て方
+     * @param maxRate       1 秒あたりに送る最大数。0 以下なら上限なし
+     * @param window        受け取り確認を待たずに送る最大数。0 以下なら確認を待たない
+     * @param online        hub と繋がっているなら true
+     */
+    SubscriberQueue(EventSink output, String frameEvent, ScheduledExecutorService scheduler, EventSubscriptions subscriptions,
+                    int capacity, String dropPolicy, double maxRate, int window, boolean online) {
+        validate(capacity, dropPolicy);
+        this.output = output;
+        this.frameEvent = frameEvent;
+        this.scheduler = scheduler;
+        this.subscriptions = subscriptions;
+        this.capacity = capacity;
+        this.dropPolicy = dropPolicy;
+        this.interval = maxRate > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / maxRate) : 0;
+        this.window = window;
+        this.online = online;
+        this.lastSent = System.nanoTime() - this.interval;
+    }
+
+    /**
+     * @param capacity   待たせておく最大数
+     * @param dropPolicy 溢れたときの捨て方
+     * @throws IllegalArgumentException 使えない設定のとき
+     */
+    static void validate(int capacity, String dropPolicy) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Invalid capacity " + capacity);
+        } else if (!DROP_OLDEST.equals(dropPolicy) && !DROP_NEWEST.equals(dropPolicy) && !KEEP_LATEST.equals(dropPolicy)) {
+            throw new IllegalArgumentException("Unknown drop policy " + dropPolicy);
+        }
+    }
+
+    /**
+     * @return 送るときのイベント名
+     */
+    String getFrameEvent() {
+        return this.frameEvent;
+    }
+
+    /**
+     * @return この待ち行列が選んだイベント
+     */
+    EventSubscriptions getSubscriptions() {
+        return this.subscriptions;
+    }
+
+    /**
+     * @param subscriptions 送るイベント
+     * @param capacity      待たせておく最大数
+     * @param dropPolicy    溢れたときの捨て方
+     * @param maxRate       1 秒あたりに送る最大数
+     * @param window        受け取り確認を待たずに送る最大数
+     * @return この待ち行列を共有できるなら true
+     */
+    boolean accepts(EventSubscriptions subscriptions, int capacity, String dropPolicy, double maxRate, int window) {
+        final long interval = maxRate > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / maxRate) : 0;
+        return this.capacity == capacity && this.dropPolicy.equals(dropPolicy) && this.interval == interval
+                && this.window == window && this.subscriptions.isSameAs(subscriptions);
+    }
+
+    /**
+     * 新しい待ち行列を同じ設定で作る
+     *
+     * @param frameEvent 送るときのイベント名
+     * @return 選ぶイベントを写した待ち行列。購読者はいない
+     */
+    SubscriberQueue copy(String frameEvent) {
+        final double maxRate = this.interval > 0 ? (double) TimeUnit.SECONDS.toNanos(1) / this.interval : 0;
+        final boolean online;
+        synchronized (this) {
+            online = this.online;
+        }
+        return new SubscriberQueue(this.output, frameEvent, this.scheduler, this.subscriptions.copy(),
+                this.capacity, this.dropPolicy, maxRate, this.window, online);
+    }
+
+    /**
+     * 購読者を加える。加える前に送ったものの確認は待たない
+     *
+     * @param id 購読者の ID
+     */
+    synchronized void join(String id) {
+        this.members.put(id, new Member(this.nextSeq - 1, System.nanoTime()));
+    }
+
+    /**
+     * 購読者を外す。その購読者の確認だけを待っていたものは確認待ちから外す
+     *
+     * @param id 購読者の ID
+     * @return いたなら true
+     */
+    boolean leave(String id) {
+        synchronized (this) {
+            if (this.members.remove(id) == null) {
+                return false;
+            }
+            if (!release() || !scheduleDrain()) {
+                return true;
+            }
+        }
+        this.scheduler.execute(this.drainTask);
+        return true;
+    }
+
+    /**
+     * @return 購読者の数
+     */
+    synchronized int getMemberCount() {
+        return this.members.size();
+    }
+
+    /**
+     * イベントを待ち行列に入れる。選ばれていなければ何もしない
+     *
+     * @param event イベント名
+     * @param data  イベントの中身
+     */
+    void offer(String event, Object data) {
+        if (!this.subscriptions.isEnabled(event)) {
+            return;
+        }
+        synchronized (this) {
+            if (KEEP_LATEST.equals(this.dropPolicy)) {
+                final Item item = this.latest.get(event);
+                if (item != null) {
+                    item.data = data;
+                    return;
+                }
+            }
+            if (this.queue.size() >= this.capacity) {
+                this.dropped++;
+                if (DROP_NEWEST.equals(this.dropPolicy)) {
+                    return;
+                }
+                final Item oldest = this.queue.poll();
+                if (this.latest.get(oldest.event) == oldest) {
+                    this.latest.remove(oldest.event);
+                }
+            }
+            final Item item = new Item(event, data, System.nanoTime());
+            this.queue.add(item);
+            if (KEEP_LATEST.equals(this.dropPolicy)) {
+                this.latest.put(event, item);
+            }
+            if (!scheduleDrain()) {
+                return;
+            }
+        }
+        this.scheduler.execute(this.drainTask);
+    }
+
+    /**
+     * 受け取り確認を受ける。それまでの番号も全て受け取ったと見なす
+     *
+     * @param id  購読者の ID
+     * @param seq 受け取った最後の通し番号
+     * @return 確認された最後のイベントを送ってから確認が来るまでの時間 (ナノ秒)。確認を待っていなかったなら負
+     */
+    long ack(String id, long seq) {
+        final long roundTrip;
+        synchronized (this) {
+            final Member member = this.members.get(id);
+            if (member == null) {
+                return -1;
+            }
+            final long now = System.nanoTime();
+            long sentAt = -1;
+            for (Item item : this.inFlight) {
+                if (item.seq > seq) {
+                    break;
+                } else if (item.seq > member.acked) {
+                    this.ackLatency.record(now - item.sentAt);
+                    sentAt = item.sentAt;
+                }
+            }
+            if (sentAt < 0) {
+                return -1;
+            }
+            member.acked = seq;
+            member.lastAck = now;
+            // まとめて確認されたら、それより前のものは確認を待たされていただけなので最後のものを使う
+            roundTrip = now - sentAt;
+            if (!release() || !scheduleDrain()) {
+                return roundTrip;
+            }
+        }
+        this.scheduler.execute(this.drainTask);
+        return roundTrip;
+    }
+
+    /**
+     * 全員が確認したものを確認待ちから外す
+     *
+     * @return 外したなら true
+     */
+    private boolean release() {
+        long acked = Long.MAX_VALUE;
+        for (Member member : this.members.values()) {
+            acked = Math.min(acked, member.acked);
+        }
+        boolean released = false;
+        while (!this.inFlight.isEmpty() && this.inFlight.peek().seq <= acked) {
+            this.inFlight.poll();
+            released = true;
+        }
+        return released;
+    }
+
+    /**
+     * hub との接続状態を伝える。
+     * 繋がったら、切れる前に送って確認の来ていないものを、同じ通し番号で先頭から送り直す。
+     * 購読者は受け取り済みの通し番号を読み飛ばす
+     *
+     * @param online 繋がったなら true
+     */
+    void setOnline(boolean online) {
+        synchronized (this) {
+            this.online = online;
+            if (!online) {
+                return;
+            }
+            this.resent += this.inFlight.size();
+            for (Iterator<Item> iterator = this.inFlight.descendingIterator(); iterator.hasNext(); ) {
+                this.queue.addFirst(iterator.next());
+            }
+            this.inFlight.clear();
+            // 切れている間は確認を返せなかったので、そこから待ち直す
+            final long now = System.nanoTime();
+            for (Member member : this.members.values()) {
+                member.lastAck = now;
+            }
+            if (!scheduleDrain()) {
+                return;
+            }
+        }
+        this.scheduler.execute(this.drainTask);
+    }
+
+    /**
+     * 送る処理を予約するか決める。ロックを持って呼ぶ
+     *
+     * @return 予約したなら true
+     */
+    private boolean scheduleDrain() {
+        if (this.scheduled || !this.online || this.queue.isEmpty() || isWindowFull()) {
+            return false;
+        }
+        this.scheduled = true;
+        return true;
+    }
+
+    private boolean isWindowFull() {
+        return this.window > 0 && this.inFlight.size() >= this.window;
+    }
+
+    /**
+     * 送れるだけ送る。送信頻度の上限に当たったら時間を置いてまた呼ぶ。
+     * hub と切れていたら送らずに待ち、繋がったときに呼び直される
+     */
+    private void drain() {
+        final List<Map<String, Object>> frames = new ArrayList<>();
+        synchronized (this) {
+            final long now = System.nanoTime();
+            while (this.online && !this.queue.isEmpty() && !isWindowFull()) {
+                final long wait = this.lastSent + this.interval - now;
+                if (wait > 0) {
+                    this.scheduler.schedule(this.drainTask, wait, TimeUnit.NANOSECONDS);
+                    break;
+                }
+                final Item item = this.queue.poll();
+                if (this.latest.get(item.event) == item) {
+                    this.latest.remove(item.event);
+                }
+                if (item.seq == 0) {
+                    item.seq = this.nextSeq++;
+                    this.sent++;
+                }
+                item.sentAt = now;
+                if (this.window > 0) {
+                    this.inFlight.add(item);
+                }
+                this.lastSent = now;
+                final Map<String, Object> frame = new HashMap<>();
+                frame.put(KEY_SEQ, item.seq);
+                frame.put(KEY_EVENT, item.event);
+                frame.put(KEY_DATA, item.data);
+                frames.add(frame);
+            }
+            if (!this.online || this.queue.isEmpty() || isWindowFull()) {
+                this.scheduled = false;
+            }
+        }
+        for (Map<String, Object> frame : frames) {
+            this.output.emit(this.frameEvent, frame);
+        }
+    }
+
+    /**
+     * 受け取り確認が長く来ない購読者を外す。hub と切れている間は確認を返せないので外さない
+     *
+     * @param nowNanos 今の時刻 (ナノ秒)
+     * @param expiry   確認がこれだけ来なければ外す (ナノ秒)
+     * @return 外した購読者の ID
+     */
+    List<String> expire(long nowNanos, long expiry) {
+        final List<String> expired = new ArrayList<>();
+        synchronized (this) {
+            if (!this.online || this.inFlight.isEmpty()) {
+                return expired;
+            }
+            final long last = this.inFlight.peekLast().seq;
+            for (Map.Entry<String, Member> entry : this.members.entrySet()) {
+                final Member member = entry.getValue();
+                if (member.acked < last && nowNanos - member.lastAck > expiry) {
+                    expired.add(entry.getKey());
+                }
+            }
+        }
+        for (String id : expired) {
+            leave(id);
+        }
+        return expired;
+    }
+
+    /**
+     * @param nowNanos 今の時刻 (ナノ秒)
+     * @return まだ届いていない最も古いイベントが待ち行列に入ってからの時間 (ナノ秒)。
+     * 受け取り確認を待つなら確認が来るまで、待たないなら送るまでを数える
+     */
+    synchronized long getLag(long nowNanos) {
+        if (!this.inFlight.isEmpty()) {
+            return nowNanos - this.inFlight.peek().enqueuedAt;
+        } else if (!this.queue.isEmpty()) {
+            return nowNanos - this.queue.peek().enqueuedAt;
+        }
+        return 0;
+    }
+
+    synchronized long getDropped() {
+        return this.dropped;
+    }
+
+    /**
+     * @return 計測値
+     */
+    synchronized Map<String, Object> toMap() {
+        final Map<String, Object> map = new HashMap<>();
+        map.put("frameEvent", this.frameEvent);
+        map.put("members", this.members.size());
+        map.put("queued", this.queue.size());
+        map.put("inFlight", this.inFlight.size());
+        map.put("sent", this.sent);
+        map.put("resent", this.resent);
+        map.put("dropped", this.dropped);
+        map.put("lag", TimeUnit.NANOSECONDS.toMillis(getLag(System.nanoTime())));
+        map.put("ack", this.ackLatency.toMap());
+        return map;
+    }
+
+}
@@ -0,0 +1,56 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+/**
+ * 購読されていないイベントを捨てる。
+ * 記録の後で間引きの前に置いて購読されていないイベントを止め、
+ * hub 側の直前にも置いて間引きで待たされている間に購読が外れたイベントを止める
+ */
+final class SubscriptionGate implements EventSink {
+
+    private final EventSink next;
+    private final EventSubscriptions subscriptions;
+    private final TopicCounters counters;
+    private final boolean countSent;
+
+    /**
+     * @param next          次段
+     * @param subscriptions 購読されているイベント
+     * @param counters      数える先
+     * @param countSent     通したイベントを送ったと数えるなら true。hub 側の直前に置くものだけ true にする
+     */
+    SubscriptionGate(EventSink next, EventSubscriptions subscriptions, TopicCounters counters, boolean countSent) {
+        this.next = next;
+        this.subscriptions = subscriptions;
+        this.counters = counters;
+        this.countSent = countSent;
+    }
+
+    @Override
+    public void emit(String event, Object data) {
+        if (!this.subscriptions.isEnabled(event)) {
+            this.counters.suppressed(event);
+            return;
+        }
+        if (this.countSent) {
+            this.counters.sent(event);
+        }
+        this.next.emit(event, data);
+    }
+
+}
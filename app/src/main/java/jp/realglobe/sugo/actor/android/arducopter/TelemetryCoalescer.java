@@ -0,0 +1,133 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * イベントの種類ごとに最新値だけを残し、決まった頻度で次段に流す。
+ * 頻度を設定していないイベントは溜めずにすぐ流す
+ */
+final class TelemetryCoalescer implements EventSink {
+
+    private final EventSink next;
+    private final ScheduledExecutorService scheduler;
+    private final Map<String, Slot> slots = new ConcurrentHashMap<>();
+
+    /**
+     * @param next      次段
+     * @param scheduler 溜めたイベントを流すのに使う
+     */
+    TelemetryCoalescer(EventSink next, ScheduledExecutorService scheduler) {
+        this.next = next;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * イベントを流す頻度を設定する
+     *
+     * @param event イベント名
+     * @param rate  1 秒あたりの最大回数。0 以下なら間引かない
+     */
+    void setRate(String event, double rate) {
+        if (rate <= 0) {
+            this.slots.remove(event);
+            return;
+        }
+        final long interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        final Slot slot = this.slots.get(event);
+        if (slot != null) {
+            // 溜めている値を捨てないように、間隔だけ変える
+            slot.setInterval(interval);
+            return;
+        }
+        this.slots.put(event, new Slot(event, interval));
+    }
+
+    @Override
+    public void emit(String event, Object data) {
+        final Slot slot = this.slots.get(event);
+        if (slot == null) {
+            this.next.emit(event, data);
+            return;
+        }
+        slot.offer(data);
+    }
+
+    /**
+     * 1 種類のイベントの最新値を保持する
+     */
+    private final class Slot {
+
+        private final String event;
+        private long interval;
+
+        private Object pending;
+        private boolean scheduled;
+        private long lastSent;
+
+        private final Runnable flushTask = this::flush;
+
+        Slot(String event, long interval) {
+            this.event = event;
+            this.interval = interval;
+            this.lastSent = System.nanoTime() - interval;
+        }
+
+        synchronized void setInterval(long interval) {
+            this.interval = interval;
+        }
+
+        void offer(Object data) {
+            synchronized (this) {
+                if (this.scheduled) {
+                    // 前の値は捨てる
+                    this.pending = data;
+                    return;
+                }
+                final long now = System.nanoTime();
+                final long wait = this.lastSent + this.interval - now;
+                if (wait > 0) {
+                    this.pending = data;
+                    this.scheduled = true;
+                    scheduler.schedule(this.flushTask, wait, TimeUnit.NANOSECONDS);
+                    return;
+                }
+                this.lastSent = now;
+            }
+            next.emit(this.event, data);
+        }
+
+        private void flush() {
+            final Object data;
+            synchronized (this) {
+                data = this.pending;
+                this.pending = null;
+                this.scheduled = false;
+                this.lastSent = System.nanoTime();
+            }
+            if (data != null) {
+                next.emit(this.event, data);
+            }
+        }
+
+    }
+
+}
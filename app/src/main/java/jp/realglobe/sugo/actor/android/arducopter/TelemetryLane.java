@@ -0,0 +1,143 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * イベントを専用スレッドで次段に流す実行レーン。
+ * テレメトリイベントの待ち行列は長さが決まっていて、溢れたら古いものから捨てる。
+ * それ以外のイベントは捨てずにテレメトリより先に流す
+ */
+final class TelemetryLane implements EventSink {
+
+    private static final String LOG_TAG = TelemetryLane.class.getName();
+
+    private final EventSink next;
+    private final int capacity;
+    private final LaneStats stats;
+
+    private final Deque<Entry> stateQueue = new ArrayDeque<>();
+    private final Deque<Entry> telemetryQueue = new ArrayDeque<>();
+    private final Thread thread;
+    private volatile boolean closed;
+
+    /**
+     * @param next     次段
+     * @param capacity テレメトリイベントの待ち行列の長さ
+     * @param stats    状態の記録先
+     */
+    TelemetryLane(EventSink next, int capacity, LaneStats stats) {
+        this.next = next;
+        this.capacity = capacity;
+        this.stats = stats;
+        this.thread = new Thread(this::loop, stats.getName());
+        // 命令を処理するスレッドより優先しない
+        this.thread.setPriority(Thread.NORM_PRIORITY - 1);
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        this.thread.start();
+    }
+
+    /**
+     * スレッドを止める。待ち行列に残っているイベントは捨てる
+     */
+    void close() {
+        this.closed = true;
+        this.thread.interrupt();
+    }
+
+    LaneStats getStats() {
+        return this.stats;
+    }
+
+    @Override
+    public void emit(String event, Object data) {
+        if (this.closed) {
+            return;
+        }
+        final Entry entry = new Entry(event, data, System.nanoTime());
+        synchronized (this) {
+            if (Events.isTelemetry(event)) {
+                if (this.telemetryQueue.size() >= this.capacity) {
+                    this.telemetryQueue.pollFirst();
+                    this.stats.dropped();
+                }
+                this.telemetryQueue.addLast(entry);
+            } else {
+                this.stateQueue.addLast(entry);
+            }
+            this.stats.enqueued();
+            notifyAll();
+        }
+    }
+
+    private void loop() {
+        while (!this.closed) {
+            final Entry entry;
+            try {
+                entry = take();
+            } catch (InterruptedException e) {
+                break;
+            }
+            final long start = System.nanoTime();
+            this.stats.dequeued(TimeUnit.NANOSECONDS.toMillis(start - entry.time));
+            this.stats.started(start);
+            try {
+                this.next.emit(entry.event, entry.data);
+            } catch (RuntimeException e) {
+                // 1 つのイベントの失敗でレーンを止めない
+                Log.w(LOG_TAG, "Failed to emit " + entry.event, e);
+            } finally {
+                this.stats.finished(System.nanoTime());
+            }
+        }
+    }
+
+    private synchronized Entry take() throws InterruptedException {
+        while (true) {
+            final Entry state = this.stateQueue.pollFirst();
+            if (state != null) {
+                return state;
+            }
+            final Entry telemetry = this.telemetryQueue.pollFirst();
+            if (telemetry != null) {
+                return telemetry;
+            }
+            wait();
+        }
+    }
+
+    private static final class Entry {
+        private final String event;
+        private final Object data;
+        private final long time;
+
+        private Entry(String event, Object data, long time) {
+            this.event = event;
+            this.data = data;
+            this.time = time;
+        }
+    }
+
+}
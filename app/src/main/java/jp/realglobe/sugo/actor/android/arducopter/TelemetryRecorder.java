@@ -0,0 +1,432 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 流れてきたイベントをメモリマップした固定長のリングファイルに記録して、そのまま次段に流す。
+ * <p>
+ * ファイルは ヘッダ、索引、データ領域 の順に並ぶ。
+ * データ領域にはレコード
+ * <pre>[全体の長さ (4 バイト)][時刻 (8 バイト)][イベント番号 (1 バイト)][イベント名 (番号が 255 のときだけ)][中身 (BinaryWriter 形式)]</pre>
+ * を詰めて書き、末尾に来たら先頭に戻って古いものを上書きする。
+ * 索引にはデータ領域をブロックに区切った各ブロックで最初に始まるレコードの時刻と位置を持ち、時間範囲の読み出しに使う。
+ * 書き込み位置はヘッダにあるので、サービスが作り直されても続きから書ける。
+ * <p>
+ * 読み出し中などで書けないときは待たずにそのイベントの記録を諦める
+ */
+final class TelemetryRecorder implements EventSink, Closeable {
+
+    private static final String LOG_TAG = TelemetryRecorder.class.getName();
+
+    private static final int MAGIC = 0x53475452; // "SGTR"
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 64;
+    private static final int HEADER_MAGIC = 0;
+    private static final int HEADER_VERSION = 4;
+    private static final int HEADER_CAPACITY = 8;
+    private static final int HEADER_WRITE_POSITION = 16;
+
+    static final int BLOCK_SIZE = 64 * 1024;
+    private static final int INDEX_ENTRY_SIZE = 16;
+
+    private static final int RECORD_HEADER_SIZE = 4 + 8;
+    private static final int NAMED_EVENT = 0xff;
+
+    /**
+     * 番号で記録するイベント名。並びを変えてはいけない
+     */
+    private static final List<String> EVENT_CODES = Collections.unmodifiableList(Arrays.asList(
+            Events.POSITION,
+            Events.ATTITUDE,
+            Events.SPEED,
+            Events.BATTERY,
+            Events.GIMBAL_ORIENTATION,
+            Events.ARMED,
+            Events.DISARMED,
+            Events.MODE,
+            Events.COMMAND_REACHED,
+            Events.MISSION_SAVED,
+            Events.CONNECTED,
+            Events.DISCONNECTED
+    ));
+
+    /**
+     * 読み出したレコード
+     */
+    static final class Record {
+        final long time;
+        final String event;
+        final Object data;
+
+        Record(long time, String event, Object data) {
+            this.time = time;
+            this.event = event;
+            this.data = data;
+        }
+
+        /**
+         * @return 時刻 (time)、イベント名 (event)、中身 (data)
+         */
+        Map<String, Object> toMap() {
+            final Map<String, Object> map = new HashMap<>();
+            map.put("time", this.time);
+            map.put("event", this.event);
+            map.put("data", this.data);
+            return map;
+        }
+    }
+
+    private final EventSink next;
+    private final RandomAccessFile file;
+    private final MappedByteBuffer map;
+    private final int capacity;
+    private final int blocks;
+    private final int dataOffset;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final BinaryWriter writer = new BinaryWriter(1024);
+    private final AtomicLong skipped = new AtomicLong();
+    private long writePosition;
+    private boolean closed;
+
+    private TelemetryRecorder(EventSink next, RandomAccessFile file, MappedByteBuffer map, int capacity) {
+        this.next = next;
+        this.file = file;
+        this.map = map;
+        this.capacity = capacity;
+        this.blocks = capacity / BLOCK_SIZE;
+        this.dataOffset = HEADER_SIZE + this.blocks * INDEX_ENTRY_SIZE;
+    }
+
+    /**
+     * リングファイルを開く。
+     * 同じ容量の記録が既にあれば続きから書く
+     *
+     * @param path     リングファイル
+     * @param capacity データ領域の大きさ。{@link #BLOCK_SIZE} の倍数に切り上げる
+     * @param next     次段
+     * @return 記録器
+     * @throws IOException ファイルを開けなかった
+     */
+    static TelemetryRecorder open(File path, int capacity, EventSink next) throws IOException {
+        final int blocks = Math.max(1, (capacity + BLOCK_SIZE - 1) / BLOCK_SIZE);
+        final int dataCapacity = blocks * BLOCK_SIZE;
+        final long fileSize = HEADER_SIZE + (long) blocks * INDEX_ENTRY_SIZE + dataCapacity;
+
+        final RandomAccessFile file = new RandomAccessFile(path, "rw");
+        final MappedByteBuffer map;
+        try {
+            map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+
+        final TelemetryRecorder recorder = new TelemetryRecorder(next, file, map, dataCapacity);
+        if (map.getInt(HEADER_MAGIC) == MAGIC && map.getInt(HEADER_VERSION) == VERSION && map.getLong(HEADER_CAPACITY) == dataCapacity) {
+            recorder.writePosition = map.getLong(HEADER_WRITE_POSITION);
+            Log.i(LOG_TAG, "Resume recording at " + recorder.writePosition + " in " + path);
+        } else {
+            recorder.initialize();
+            Log.i(LOG_TAG, "Start recording in " + path);
+        }
+        return recorder;
+    }
+
+    private void initialize() {
+        for (int i = 0; i < this.blocks; i++) {
+            this.map.putLong(HEADER_SIZE + i * INDEX_ENTRY_SIZE, -1);
+            this.map.putLong(HEADER_SIZE + i * INDEX_ENTRY_SIZE + 8, -1);
+        }
+        this.map.putLong(HEADER_WRITE_POSITION, 0);
+        this.map.putLong(HEADER_CAPACITY, this.capacity);
+        this.map.putInt(HEADER_VERSION, VERSION);
+        this.map.putInt(HEADER_MAGIC, MAGIC);
+        this.writePosition = 0;
+    }
+
+    @Override
+    public void emit(String event, Object data) {
+        if (this.lock.tryLock()) {
+            try {
+                if (!this.closed) {
+                    append(System.currentTimeMillis(), event, data);
+                }
+            } catch (RuntimeException e) {
+                this.skipped.incrementAndGet();
+                Log.w(LOG_TAG, "Failed to record " + event, e);
+            } finally {
+                this.lock.unlock();
+            }
+        } else {
+            this.skipped.incrementAndGet();
+        }
+        this.next.emit(event, data);
+    }
+
+    /**
+     * 時刻を指定して記録する。次段には流さない
+     *
+     * @param time  時刻 (ミリ秒)
+     * @param event イベント名
+     * @param data  中身
+     */
+    void record(long time, String event, Object data) {
+        this.lock.lock();
+        try {
+            if (!this.closed) {
+                append(time, event, data);
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @return 記録を諦めたイベントの数
+     */
+    long getSkipped() {
+        return this.skipped.get();
+    }
+
+    /**
+     * @return これまでに書いたバイト数
+     */
+    long getWritePosition() {
+        this.lock.lock();
+        try {
+            return this.writePosition;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    private void append(long time, String event, Object data) {
+        final BinaryWriter w = this.writer.reset();
+        // 長さと時刻の場所を空けておく
+        for (int i = 0; i < RECORD_HEADER_SIZE; i++) {
+            w.writeByte(0);
+        }
+        final int code = EVENT_CODES.indexOf(event);
+        if (code < 0) {
+            w.writeByte(NAMED_EVENT).writeString(event);
+        } else {
+            w.writeByte(code);
+        }
+        w.value(data);
+
+        final int length = w.size();
+        if (length > this.capacity / 4) {
+            this.skipped.incrementAndGet();
+            return;
+        }
+        final byte[] bytes = w.array();
+        putInt(bytes, 0, length);
+        putLong(bytes, 4, time);
+
+        final long position = this.writePosition;
+        final int block = (int) ((position % this.capacity) / BLOCK_SIZE);
+        final int indexOffset = HEADER_SIZE + block * INDEX_ENTRY_SIZE;
+        if (this.map.getLong(indexOffset + 8) < position - position % BLOCK_SIZE) {
+            // このブロックで今の周回の最初のレコード
+            this.map.putLong(indexOffset, time);
+            this.map.putLong(indexOffset + 8, position);
+        }
+
+        final int offset = (int) (position % this.capacity);
+        final int head = Math.min(length, this.capacity - offset);
+        putData(offset, bytes, 0, head);
+        if (head < length) {
+            putData(0, bytes, head, length - head);
+        }
+        this.writePosition = position + length;
+        this.map.putLong(HEADER_WRITE_POSITION, this.writePosition);
+    }
+
+    private void putData(int offset, byte[] bytes, int from, int length) {
+        final ByteBuffer buff = this.map.duplicate();
+        buff.position(this.dataOffset + offset);
+        buff.put(bytes, from, length);
+    }
+
+    private void getData(long position, byte[] bytes, int length) {
+        final int offset = (int) (position % this.capacity);
+        final int head = Math.min(length, this.capacity - offset);
+        final ByteBuffer buff = this.map.duplicate();
+        buff.position(this.dataOffset + offset);
+        buff.get(bytes, 0, head);
+        if (head < length) {
+            buff.position(this.dataOffset);
+            buff.get(bytes, head, length - head);
+        }
+    }
+
+    /**
+     * 時間範囲のレコードを読み出す。
+     * 上書きされたものや、読み出しの起点になるブロックより前のものは返らない
+     *
+     * @param from 始まりの時刻 (ミリ秒、含む)
+     * @param to   終わりの時刻 (ミリ秒、含む)
+     * @return 古い順のレコード
+     */
+    List<Record> read(long from, long to) {
+        return read(from, to, Integer.MAX_VALUE);
+    }
+
+    /**
+     * 時間範囲のレコードを最大数まで読み出す。
+     * 記録を止めないように、ロックしている間は範囲のバイト列を写すだけにして、ロックを外してから読み解く
+     *
+     * @param from  始まりの時刻 (ミリ秒、含む)
+     * @param to    終わりの時刻 (ミリ秒、含む)
+     * @param limit 最大のレコード数
+     * @return 古い順のレコード
+     */
+    List<Record> read(long from, long to, int limit) {
+        final byte[] bytes;
+        this.lock.lock();
+        try {
+            final long oldest = Math.max(0, this.writePosition - this.capacity);
+
+            // from 以前に始まる最新のブロックから読む。無ければ残っている最古のブロックから
+            long start = -1;
+            long earliest = -1;
+            for (int i = 0; i < this.blocks; i++) {
+                final long time = this.map.getLong(HEADER_SIZE + i * INDEX_ENTRY_SIZE);
+                final long position = this.map.getLong(HEADER_SIZE + i * INDEX_ENTRY_SIZE + 8);
+                if (position < oldest) {
+                    continue;
+                }
+                if (time <= from && position > start) {
+                    start = position;
+                }
+                if (earliest < 0 || position < earliest) {
+                    earliest = position;
+                }
+            }
+            if (start < 0) {
+                start = earliest;
+            }
+            if (start < 0) {
+                return new ArrayList<>();
+            }
+
+            // 見出しだけを読んで、写す範囲を決める
+            final byte[] header = new byte[RECORD_HEADER_SIZE];
+            long first = -1;
+            long end = start;
+            int count = 0;
+            long position = start;
+            while (count < limit && position + RECORD_HEADER_SIZE <= this.writePosition) {
+                getData(position, header, RECORD_HEADER_SIZE);
+                final ByteBuffer headerBuff = ByteBuffer.wrap(header);
+                final int length = headerBuff.getInt();
+                final long time = headerBuff.getLong();
+                if (length < RECORD_HEADER_SIZE + 2 || position + length > this.writePosition) {
+                    Log.w(LOG_TAG, "Broken record at " + position);
+                    break;
+                }
+                if (time > to) {
+                    break;
+                }
+                if (time >= from) {
+                    if (first < 0) {
+                        first = position;
+                    }
+                    count++;
+                }
+                position += length;
+                end = position;
+            }
+            if (first < 0) {
+                return new ArrayList<>();
+            }
+            bytes = new byte[(int) (end - first)];
+            getData(first, bytes, bytes.length);
+        } finally {
+            this.lock.unlock();
+        }
+
+        final List<Record> records = new ArrayList<>();
+        final ByteBuffer buff = ByteBuffer.wrap(bytes);
+        while (buff.hasRemaining()) {
+            final int length = buff.getInt();
+            final long time = buff.getLong();
+            final int next = buff.position() + length - RECORD_HEADER_SIZE;
+            if (time >= from) {
+                final ByteBuffer body = buff.slice();
+                body.limit(length - RECORD_HEADER_SIZE);
+                records.add(decode(time, body));
+            }
+            buff.position(next);
+        }
+        return records;
+    }
+
+    private static Record decode(long time, ByteBuffer body) {
+        final int code = body.get() & 0xff;
+        final String event = code == NAMED_EVENT ? BinaryReader.readString(body) : EVENT_CODES.get(code);
+        return new Record(time, event, BinaryReader.value(body));
+    }
+
+    private static void putInt(byte[] bytes, int offset, int value) {
+        for (int i = 0; i < 4; i++) {
+            bytes[offset + i] = (byte) (value >>> ((3 - i) * 8));
+        }
+    }
+
+    private static void putLong(byte[] bytes, int offset, long value) {
+        for (int i = 0; i < 8; i++) {
+            bytes[offset + i] = (byte) (value >>> ((7 - i) * 8));
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.lock.lock();
+        try {
+            if (this.closed) {
+                return;
+            }
+            this.closed = true;
+            this.map.force();
+            this.file.close();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+}
@@ -0,0 +1,99 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * イベントごとの数。
+ * モジュールが発行した数、購読されていないので捨てた数、hub 側に流した数を数える
+ */
+final class TopicCounters {
+
+    private static final int PRODUCED = 0;
+    private static final int SUPPRESSED = 1;
+    private static final int SENT = 2;
+
+    private final ConcurrentHashMap<String, AtomicLongArray> counts = new ConcurrentHashMap<>();
+
+    private AtomicLongArray counts(String event) {
+        AtomicLongArray counts = this.counts.get(event);
+        if (counts == null) {
+            final AtomicLongArray created = new AtomicLongArray(3);
+            counts = this.counts.putIfAbsent(event, created);
+            if (counts == null) {
+                counts = created;
+            }
+        }
+        return counts;
+    }
+
+    void produced(String event) {
+        counts(event).incrementAndGet(PRODUCED);
+    }
+
+    void suppressed(String event) {
+        counts(event).incrementAndGet(SUPPRESSED);
+    }
+
+    void sent(String event) {
+        counts(event).incrementAndGet(SENT);
+    }
+
+    /**
+     * @return 数えたことのあるイベント
+     */
+    Set<String> getEvents() {
+        // 古い Android には ConcurrentHashMap.KeySetView が無いので Map として呼ぶ
+        return ((Map<String, AtomicLongArray>) this.counts).keySet();
+    }
+
+    long getProduced(String event) {
+        final AtomicLongArray counts = this.counts.get(event);
+        return counts == null ? 0 : counts.get(PRODUCED);
+    }
+
+    long getSuppressed(String event) {
+        final AtomicLongArray counts = this.counts.get(event);
+        return counts == null ? 0 : counts.get(SUPPRESSED);
+    }
+
+    long getSent(String event) {
+        final AtomicLongArray counts = this.counts.get(event);
+        return counts == null ? 0 : counts.get(SENT);
+    }
+
+    /**
+     * @return イベントごとの produced, suppressed, sent
+     */
+    Map<String, Object> toMap() {
+        final Map<String, Object> map = new HashMap<>();
+        for (Map.Entry<String, AtomicLongArray> entry : this.counts.entrySet()) {
+            final Map<String, Object> counts = new HashMap<>();
+            counts.put("produced", entry.getValue().get(PRODUCED));
+            counts.put("suppressed", entry.getValue().get(SUPPRESSED));
+            counts.put("sent", entry.getValue().get(SENT));
+            map.put(entry.getKey(), counts);
+        }
+        return map;
+    }
+
+}
@@ -0,0 +1,83 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 画面に出す機体の最新の値。
+ * イベントを発行するスレッドは参照を差し替えるだけで、画面は決まった間隔で読みに来る
+ */
+final class VehicleDashboard {
+
+    private volatile Object position;
+    private volatile Object battery;
+    private volatile Object mode;
+    private final AtomicLong version = new AtomicLong();
+
+    /**
+     * 画面に出すイベントなら値を差し替える
+     *
+     * @param event イベント名
+     * @param data  イベントの中身
+     */
+    void update(String event, Object data) {
+        switch (event) {
+            case Events.POSITION:
+                this.position = data;
+                break;
+            case Events.BATTERY:
+                this.battery = data;
+                break;
+            case Events.MODE:
+                this.mode = data;
+                break;
+            default:
+                return;
+        }
+        this.version.incrementAndGet();
+    }
+
+    /**
+     * @return 値が変わるたびに増える番号
+     */
+    long getVersion() {
+        return this.version.get();
+    }
+
+    /**
+     * @return 最新の position イベントの中身。まだ無ければ null
+     */
+    Object getPosition() {
+        return this.position;
+    }
+
+    /**
+     * @return 最新の battery イベントの中身。まだ無ければ null
+     */
+    Object getBattery() {
+        return this.battery;
+    }
+
+    /**
+     * @return 最新の mode イベントの中身。まだ無ければ null
+     */
+    Object getMode() {
+        return this.mode;
+    }
+
+}
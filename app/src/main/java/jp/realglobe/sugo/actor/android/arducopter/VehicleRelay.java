@@ -0,0 +1,311 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import android.content.Context;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * 1 機の機体を hub に中継する。
+ * 命令を処理するスレッドとイベントの処理段を機体ごとに持つので、
+ * ある機体が詰まっても他の機体は影響を受けない
+ */
+final class VehicleRelay implements Closeable {
+
+    private static final String LOG_TAG = VehicleRelay.class.getName();
+
+    /**
+     * metrics イベントを発行する間隔 (秒)
+     */
+    private static final long METRICS_INTERVAL = 10;
+    /**
+     * 受け取り確認がこれだけ来なければ購読者を外す (ミリ秒)
+     */
+    private static final long SUBSCRIBER_EXPIRY = 60_000;
+    /**
+     * ping イベントを送る間隔 (秒)
+     */
+    private static final long PING_INTERVAL = 5;
+
+    /**
+     * 使えるモジュール名。ファイル名にも使うので、区切り文字や先頭の . は許さない
+     */
+    private static final Pattern NAME_PATTERN = Pattern.compile("[A-Za-z0-9_-][A-Za-z0-9_.-]*");
+
+    private final String name;
+    private final ActorMetrics metrics;
+    /**
+     * モジュールへの命令を処理するレーン。
+     * テレメトリの送信に邪魔されないように優先度を上げる
+     */
+    private final HandlerThread commandThread;
+    private final ArduCopterModule module;
+    private final LaneStats lifecycle;
+    /**
+     * イベントの処理段。openPipeline を呼ぶまでは null
+     */
+    private volatile EventPipeline pipeline;
+    private volatile boolean online;
+
+    /**
+     * モジュールまでを作る。
+     * イベントの処理段はファイルを読むので、openPipeline で別に作る
+     *
+     * @param name      モジュール名
+     * @param context   コンテキスト
+     * @param lifecycle 接続や終了を処理するレーンの状態
+     */
+    VehicleRelay(String name, Context context, LaneStats lifecycle) {
+        if (!isValidName(name)) {
+            throw new IllegalArgumentException("Invalid module name " + name);
+        }
+        this.name = name;
+        this.metrics = new ActorMetrics();
+        this.lifecycle = lifecycle;
+
+        this.commandThread = new HandlerThread(name + ".command", Process.THREAD_PRIORITY_DISPLAY);
+        this.commandThread.start();
+        final LaneHandler commandHandler = new LaneHandler(this.commandThread.getLooper(), new LaneStats(name + ".command"));
+        this.module = new ArduCopterModule(name, commandHandler, context, this.metrics);
+        this.module.getProbe().setListener(this::hubRoundTrip);
+        this.metrics.addLane(commandHandler.getStats());
+    }
+
+    /**
+     * イベントの処理段を作ってモジュールに繋ぐ。
+     * 記録や溜めたイベントをファイルから読み直すので、他の機体や hub への接続と並べて呼んでよい。
+     * 他のメソッドはこれが終わってから呼ぶ
+     *
+     * @param options イベントの処理段の設定
+     */
+    void openPipeline(PipelineOptions options) {
+        final EventPipeline newPipeline = new EventPipeline(this.name, this.module::send, options, this.module.getSubscriptions(), this.metrics.getTopics());
+        this.module.setEventSink(newPipeline.getInput());
+        this.module.setRecorder(newPipeline.getRecorder());
+        // 購読者ごとの待ち行列は処理段と同じスレッドで、まとめ送りを通して送る
+        final SubscriberFanout subscribers = new SubscriberFanout(newPipeline.getFrameInput(), newPipeline.getScheduler(), SUBSCRIBER_EXPIRY);
+        this.module.setSubscribers(subscribers);
+        this.metrics.setSubscribers(subscribers);
+
+        this.metrics.addLane(newPipeline.getLaneStats());
+        this.metrics.addLane(this.lifecycle);
+        this.pipeline = newPipeline;
+        newPipeline.getScheduler().scheduleAtFixedRate(this::publishMetrics, METRICS_INTERVAL, METRICS_INTERVAL, TimeUnit.SECONDS);
+        newPipeline.getScheduler().scheduleAtFixedRate(this::ping, PING_INTERVAL, PING_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 確認の来ない購読者を外して、metrics イベントを発行する。
+     * 誰も選んでいなければ中身を作らない。
+     * 投げると次から呼ばれなくなるので、失敗は記録して続ける
+     */
+    private void publishMetrics() {
+        try {
+            this.module.getSubscribers().expire();
+            if (!this.module.isWanted(Events.METRICS)) {
+                this.metrics.getTopics().produced(Events.METRICS);
+                this.metrics.getTopics().suppressed(Events.METRICS);
+                return;
+            }
+            this.module.emit(Events.METRICS, this.metrics.toMap());
+        } catch (RuntimeException e) {
+            Log.w(LOG_TAG, "Failed to publish metrics", e);
+        }
+    }
+
+    /**
+     * 往復時間を測るために ping イベントを送る。
+     * 前の ping の返事が遅れていれば、少なくともその分は往復にかかっているので処理段に伝える。
+     * 待たされないように処理段を通さずに送るので、購読の確認と数えるのはここでする。
+     * 止まると往復時間を測れなくなるので、失敗は記録して続ける
+     */
+    private void ping() {
+        final EventPipeline pipeline = this.pipeline;
+        if (!this.online || pipeline == null) {
+            return;
+        }
+        final TopicCounters topics = this.metrics.getTopics();
+        topics.produced(Events.PING);
+        if (!this.module.getSubscriptions().isEnabled(Events.PING)) {
+            // 返事をする呼び出し側がいないので、中身も作らない
+            topics.suppressed(Events.PING);
+            return;
+        }
+        try {
+            final RoundTripProbe probe = this.module.getProbe();
+            final long now = System.nanoTime();
+            final long pendingAge = probe.getPendingAge(now);
+            if (pendingAge > probe.getLast()) {
+                pipeline.setHubRoundTrip(pendingAge);
+            }
+            this.module.send(Events.PING, probe.ping(now));
+            topics.sent(Events.PING);
+        } catch (RuntimeException e) {
+            Log.w(LOG_TAG, "Failed to ping", e);
+        }
+    }
+
+    /**
+     * @param name モジュール名
+     * @return 使えるなら true
+     */
+    static boolean isValidName(String name) {
+        return name != null && NAME_PATTERN.matcher(name).matches();
+    }
+
+    String getName() {
+        return this.name;
+    }
+
+    ArduCopterModule getModule() {
+        return this.module;
+    }
+
+    ActorMetrics getMetrics() {
+        return this.metrics;
+    }
+
+    /**
+     * @return 機体と繋がっているなら true
+     */
+    boolean isLinked() {
+        return this.module.isLinked();
+    }
+
+    /**
+     * @return 機体が armed なら true
+     */
+    boolean isArmed() {
+        return this.module.isArmed();
+    }
+
+    /**
+     * @return 画面に出す最新の値
+     */
+    VehicleDashboard getDashboard() {
+        return this.module.getDashboard();
+    }
+
+    /**
+     * @return イベントごとの今の最大送信頻度 (回/秒)
+     */
+    Map<String, Double> getForwardRates() {
+        return this.pipeline.getForwardRates();
+    }
+
+    /**
+     * 電源の使い方を伝える
+     *
+     * @param profile {@link PowerPolicy#PERFORMANCE} か {@link PowerPolicy#EFFICIENCY}
+     */
+    void setPowerProfile(String profile) {
+        this.pipeline.setPowerProfile(profile);
+    }
+
+    /**
+     * 共有の接続や終了を処理するレーンは含めない
+     *
+     * @return この機体のスレッド (命令のレーン、テレメトリのレーン、時間待ち) が眠りから起きた回数の合計
+     */
+    long getWakeups() {
+        final EventPipeline current = this.pipeline;
+        final long lanes = this.module.getHandler().getStats().getWakeups();
+        return current == null ? lanes : lanes + current.getLaneStats().getWakeups() + current.getWakeups();
+    }
+
+    /**
+     * hub の先の呼び出し側との往復時間を測れた
+     *
+     * @param nanos 往復時間 (ナノ秒)
+     */
+    private void hubRoundTrip(long nanos) {
+        this.metrics.hubRoundTrip(nanos);
+        final EventPipeline pipeline = this.pipeline;
+        if (pipeline != null) {
+            pipeline.setHubRoundTrip(nanos);
+        }
+    }
+
+    /**
+     * @return hub と切れている間に溜めたイベントの大きさ (バイト)
+     */
+    long getOutboundPendingBytes() {
+        return this.pipeline.getOutboundPendingBytes();
+    }
+
+    /**
+     * @return 記録したイベント。記録していなければ空
+     */
+    List<TelemetryRecorder.Record> readRecords() {
+        final TelemetryRecorder recorder = this.pipeline.getRecorder();
+        if (recorder == null) {
+            return Collections.emptyList();
+        }
+        return recorder.read(0, Long.MAX_VALUE);
+    }
+
+    /**
+     * hub に繋がった
+     *
+     * @param reconnected 繋ぎ直しなら true
+     */
+    void onConnected(boolean reconnected) {
+        if (reconnected) {
+            this.module.restoreSubscriptions();
+        }
+        this.module.getProbe().reset();
+        this.pipeline.setOnline(true);
+        this.module.getSubscribers().setOnline(true);
+        this.online = true;
+    }
+
+    /**
+     * hub と切れた
+     */
+    void onDisconnected() {
+        this.online = false;
+        this.module.getSubscribers().setOnline(false);
+        this.pipeline.setOnline(false);
+    }
+
+    /**
+     * 機体との接続を切る
+     */
+    void disconnect() {
+        this.module.disconnect();
+    }
+
+    @Override
+    public void close() {
+        this.module.close();
+        if (this.pipeline != null) {
+            this.pipeline.close();
+        }
+        Log.i(LOG_TAG, this.module.getHandler().getStats().toString());
+        this.commandThread.quit();
+    }
+
+}
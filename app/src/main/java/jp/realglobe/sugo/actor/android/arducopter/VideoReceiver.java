@@ -0,0 +1,107 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * UDP で届く機体の映像を受けて、データグラムごとに区切りファイルに書く。
+ * ArduPilot 系の機体は映像を RTP にして UDP の 5600 番ポートに流すことが多く、
+ * データグラムの切れ目が無くなると読めないので、つなげて書かない。
+ * 受け取りには使い回しのバッファを 1 つだけ使う
+ */
+final class VideoReceiver implements Closeable {
+
+    private static final String LOG_TAG = VideoReceiver.class.getName();
+
+    /**
+     * UDP の最大の大きさ
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final DatagramChannel channel;
+    private final VideoSegmentWriter writer;
+    private final Thread thread;
+    private final AtomicLong receivedBytes = new AtomicLong();
+    private volatile boolean closed;
+
+    /**
+     * @param port   受けるポート
+     * @param writer 書き先
+     */
+    VideoReceiver(int port, VideoSegmentWriter writer) throws IOException {
+        this.channel = DatagramChannel.open();
+        // DatagramChannel.bind は古い Android に無い
+        this.channel.socket().bind(new InetSocketAddress(port));
+        this.writer = writer;
+        this.thread = new Thread(this::run, getClass().getName());
+    }
+
+    void start() {
+        this.thread.start();
+    }
+
+    /**
+     * @return 受けた映像の大きさ (バイト)
+     */
+    long getReceivedBytes() {
+        return this.receivedBytes.get();
+    }
+
+    private void run() {
+        final ByteBuffer buff = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        try {
+            while (!this.closed) {
+                buff.clear();
+                this.channel.receive(buff);
+                buff.flip();
+                this.receivedBytes.addAndGet(buff.remaining());
+                this.writer.writeDatagram(buff);
+            }
+        } catch (ClosedChannelException e) {
+            // 終わり
+        } catch (IOException e) {
+            if (!this.closed) {
+                Log.w(LOG_TAG, "Video receiver stopped", e);
+            }
+        }
+    }
+
+    /**
+     * 受けるのをやめて、書き途中の区切りを書き終える
+     */
+    @Override
+    public void close() throws IOException {
+        this.closed = true;
+        this.channel.close();
+        try {
+            this.thread.join(1_000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        this.writer.close();
+    }
+
+}
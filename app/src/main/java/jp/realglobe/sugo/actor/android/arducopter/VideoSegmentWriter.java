@@ -0,0 +1,212 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * 映像を決まった大きさの区切りファイルに書く。
+ * データグラムごとに、大きさ (4 バイトのビッグエンディアン) と中身を並べたレコードにする。
+ * データグラムの切れ目が分かるように、区切りはレコードの間でだけ変える。
+ * 書き終えた区切りは名前を変えてから通知するので、通知を受けた側は書き途中のものを読まない。
+ * 区切りの名前は記録を始めた時刻と通し番号で、名前順に並べると記録順になる
+ */
+final class VideoSegmentWriter implements Closeable {
+
+    private static final String LOG_TAG = VideoSegmentWriter.class.getName();
+
+    /**
+     * 書き終えた区切りの拡張子
+     */
+    static final String SEGMENT_SUFFIX = ".seg";
+    /**
+     * 書き途中の区切りの拡張子
+     */
+    static final String PART_SUFFIX = ".part";
+    /**
+     * レコードの頭に付けるデータグラムの大きさのバイト数
+     */
+    static final int HEADER_SIZE = 4;
+    /**
+     * 区切りの大きさの上限 (バイト)。
+     * 古い Android の HttpURLConnection は int で収まる大きさしか先に決めて送れないので、
+     * 大きいデータグラムではみ出しても 2 GiB に届かないようにする
+     */
+    static final long MAX_SEGMENT_SIZE = 1024L * 1024 * 1024;
+
+    /**
+     * 区切りを書き終えたときに呼ばれる。書いたスレッドで呼ばれる
+     */
+    interface Listener {
+        void onSegment(File segment);
+    }
+
+    private final File dir;
+    private final long segmentSize;
+    private final Listener listener;
+    private final String session;
+    private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    private final ByteBuffer[] record = new ByteBuffer[2];
+
+    private int index;
+    private File partFile;
+    private FileChannel channel;
+    private long written;
+
+    /**
+     * 前に中断したときの書き途中の区切りは、最後の欠けたレコードを除いて書き終えたことにする
+     *
+     * @param dir         区切りを置くディレクトリ
+     * @param segmentSize 区切りの大きさ (バイト)。MAX_SEGMENT_SIZE まで。これより大きいデータグラムは 1 つで 1 つの区切りにする
+     * @param listener    区切りを書き終えたときの通知先
+     */
+    VideoSegmentWriter(File dir, long segmentSize, Listener listener) throws IOException {
+        if (segmentSize <= 0 || segmentSize > MAX_SEGMENT_SIZE) {
+            throw new IllegalArgumentException("Segment size " + segmentSize + " is out of range");
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.listener = listener;
+        this.session = String.format(Locale.US, "%013d", System.currentTimeMillis());
+        recover();
+    }
+
+    private void recover() {
+        final File[] parts = this.dir.listFiles((dir, name) -> name.endsWith(PART_SUFFIX));
+        if (parts == null) {
+            return;
+        }
+        Arrays.sort(parts);
+        for (File part : parts) {
+            final String name = part.getName();
+            final File segment = new File(this.dir, name.substring(0, name.length() - PART_SUFFIX.length()) + SEGMENT_SUFFIX);
+            if (!truncateToRecords(part) || !part.renameTo(segment)) {
+                if (!part.delete()) {
+                    Log.w(LOG_TAG, "Cannot delete " + part);
+                }
+                continue;
+            }
+            Log.i(LOG_TAG, "Recovered " + segment);
+        }
+    }
+
+    /**
+     * 書き途中で中断した最後のレコードを切り捨てる
+     *
+     * @param part 書き途中の区切り
+     * @return 欠けていないレコードが残れば true
+     */
+    private static boolean truncateToRecords(File part) {
+        try (RandomAccessFile file = new RandomAccessFile(part, "rw")) {
+            final FileChannel channel = file.getChannel();
+            final long size = channel.size();
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            long position = 0;
+            while (position + HEADER_SIZE <= size) {
+                header.clear();
+                while (header.hasRemaining()) {
+                    channel.read(header, position + header.position());
+                }
+                header.flip();
+                final long next = position + HEADER_SIZE + (header.getInt() & 0xffffffffL);
+                if (next > size) {
+                    break;
+                }
+                position = next;
+            }
+            if (position < size) {
+                channel.truncate(position);
+            }
+            return position > 0;
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Cannot recover " + part, e);
+            return false;
+        }
+    }
+
+    /**
+     * データグラムを 1 つ書く。
+     * 今の区切りに収まらなければ次の区切りに書き、区切りの大きさに達したら書き終える
+     *
+     * @param datagram 映像のデータグラム。全て読んで位置が進む
+     */
+    synchronized void writeDatagram(ByteBuffer datagram) throws IOException {
+        final long recordSize = HEADER_SIZE + datagram.remaining();
+        if (this.channel != null && this.written + recordSize > this.segmentSize) {
+            finish();
+        }
+        if (this.channel == null) {
+            open();
+        }
+        this.header.clear();
+        this.header.putInt(datagram.remaining());
+        this.header.flip();
+        this.record[0] = this.header;
+        this.record[1] = datagram;
+        // 大きさと中身をまとめて書く
+        while (this.header.hasRemaining() || datagram.hasRemaining()) {
+            this.channel.write(this.record);
+        }
+        this.record[1] = null;
+        this.written += recordSize;
+        if (this.written >= this.segmentSize) {
+            finish();
+        }
+    }
+
+    private void open() throws IOException {
+        this.partFile = new File(this.dir, String.format(Locale.US, "%s-%08d", this.session, this.index++) + PART_SUFFIX);
+        this.channel = new FileOutputStream(this.partFile).getChannel();
+        this.written = 0;
+    }
+
+    /**
+     * 書き途中の区切りを書き終える
+     */
+    synchronized void finish() throws IOException {
+        if (this.channel == null) {
+            return;
+        }
+        this.channel.close();
+        this.channel = null;
+        final String name = this.partFile.getName();
+        final File segment = new File(this.dir, name.substring(0, name.length() - PART_SUFFIX.length()) + SEGMENT_SUFFIX);
+        if (!this.partFile.renameTo(segment)) {
+            throw new IOException("Cannot rename " + this.partFile + " to " + segment);
+        }
+        this.listener.onSegment(segment);
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish();
+    }
+
+}
@@ -0,0 +1,187 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * AdaptiveRateController のテスト。
+ */
+public class AdaptiveRateControllerTest {
+
+    private ScheduledExecutorService scheduler;
+    private List<String> sent;
+    private AdaptiveRateController controller;
+
+    @Before
+    public void setUp() throws Exception {
+        this.scheduler = Executors.newSingleThreadScheduledExecutor();
+        this.sent = Collections.synchronizedList(new ArrayList<String>());
+        final TelemetryCoalescer coalescer = new TelemetryCoalescer((event, data) -> this.sent.add(event), this.scheduler);
+        final Map<String, Double> baseRates = new HashMap<>();
+        baseRates.put(Events.POSITION, 10.0);
+        baseRates.put(Events.ATTITUDE, 10.0);
+        baseRates.put(Events.BATTERY, 1.0);
+        final Map<String, Double> minRates = new HashMap<>();
+        minRates.put(Events.POSITION, 2.0);
+        minRates.put(Events.BATTERY, 0.2);
+        this.controller = new AdaptiveRateController(coalescer, coalescer, baseRates, minRates, 1_000, 20);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.scheduler.shutdownNow();
+    }
+
+    /**
+     * hub が遅いと伝えて混み具合を調べさせる
+     */
+    private void congest() {
+        this.controller.setHubRoundTrip(TimeUnit.SECONDS.toNanos(3));
+        this.controller.control(System.nanoTime());
+    }
+
+    /**
+     * hub が速いと伝えて混み具合を調べさせる
+     */
+    private void relax() {
+        this.controller.setHubRoundTrip(TimeUnit.MILLISECONDS.toNanos(100));
+        this.controller.control(System.nanoTime());
+    }
+
+    @Test
+    public void backsOffAndRecovers() throws Exception {
+        assertEquals(10.0, this.controller.getRates().get(Events.POSITION), 1e-9);
+
+        // 詰まっている間は半分ずつ下げるが、下限は守る
+        congest();
+        assertEquals(5.0, this.controller.getRates().get(Events.POSITION), 1e-9);
+        assertEquals(5.0, this.controller.getRates().get(Events.ATTITUDE), 1e-9);
+        for (int i = 0; i < 10; i++) {
+            congest();
+        }
+        assertEquals(AdaptiveRateController.MIN_SCALE, this.controller.getScale(), 1e-9);
+        assertEquals(2.0, this.controller.getRates().get(Events.POSITION), 1e-9);
+        assertEquals(10.0 * AdaptiveRateController.MIN_SCALE, this.controller.getRates().get(Events.ATTITUDE), 1e-9);
+        assertEquals(0.2, this.controller.getRates().get(Events.BATTERY), 1e-9);
+
+        // 空いたら少しずつ戻す
+        relax();
+        assertEquals(AdaptiveRateController.MIN_SCALE + AdaptiveRateController.INCREASE, this.controller.getScale(), 1e-9);
+        for (int i = 0; i < 20; i++) {
+            relax();
+        }
+        assertEquals(10.0, this.controller.getRates().get(Events.ATTITUDE), 1e-9);
+    }
+
+    @Test
+    public void backsOffOnSlowHub() throws Exception {
+        this.controller.setHubRoundTrip(TimeUnit.SECONDS.toNanos(3));
+        this.controller.control(System.nanoTime());
+        assertEquals(0.5, this.controller.getScale(), 1e-9);
+
+        // 古い往復時間は使わない
+        this.controller.control(System.nanoTime() + TimeUnit.MINUTES.toNanos(1));
+        assertEquals(0.6, this.controller.getScale(), 1e-9);
+
+        this.controller.setHubRoundTrip(TimeUnit.MILLISECONDS.toNanos(100));
+        this.controller.control(System.nanoTime());
+        assertEquals(0.7, this.controller.getScale(), 1e-9);
+    }
+
+    @Test
+    public void keepsBatteryRateWhenLow() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            congest();
+        }
+        assertEquals(0.2, this.controller.getRates().get(Events.BATTERY), 1e-9);
+
+        this.controller.emit(Events.BATTERY, Collections.singletonMap(ArduCopterModule.BATTERY_REMAIN, 15));
+        assertEquals(1.0, this.controller.getRates().get(Events.BATTERY), 1e-9);
+        assertEquals(Collections.singletonList(Events.BATTERY), new ArrayList<>(this.sent));
+
+        this.controller.emit(Events.BATTERY, Collections.singletonMap(ArduCopterModule.BATTERY_REMAIN, 50));
+        assertEquals(0.2, this.controller.getRates().get(Events.BATTERY), 1e-9);
+    }
+
+    @Test
+    public void readsModuleBatteryPayload() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            congest();
+        }
+        // DroneKit の Battery のフィールド名で渡ってきたものを、モジュールが発行する形にする
+        final Map<String, Object> battery = new HashMap<>();
+        battery.put("batteryRemain", 15);
+        battery.put("batteryVoltage", 10.8);
+        battery.put("batteryCurrent", 12.5);
+        final Object data = ArduCopterModule.normalizeBattery(battery);
+        assertEquals(15.0, ArduCopterModule.getBatteryRemain(data), 1e-9);
+
+        this.controller.emit(Events.BATTERY, data);
+        assertEquals(1.0, this.controller.getRates().get(Events.BATTERY), 1e-9);
+    }
+
+    @Test
+    public void passesStateEvents() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            congest();
+        }
+        for (int i = 0; i < 5; i++) {
+            this.controller.emit(Events.ARMED, null);
+            this.controller.emit(Events.MODE, "Guided");
+        }
+        assertEquals(10, this.sent.size());
+        assertNull(this.controller.getRates().get(Events.MODE));
+    }
+
+    @Test
+    public void appliesLimits() throws Exception {
+        final Map<String, Double> limits = new HashMap<>();
+        limits.put(Events.POSITION, 1.0);
+        limits.put(Events.SPEED, 0.5);
+        this.controller.setLimits(limits);
+        assertEquals(1.0, this.controller.getRates().get(Events.POSITION), 1e-9);
+        assertEquals(10.0, this.controller.getRates().get(Events.ATTITUDE), 1e-9);
+        // 間引いていなかったイベントも上限で間引く
+        assertEquals(0.5, this.controller.getRates().get(Events.SPEED), 1e-9);
+
+        // 詰まって下げた頻度が上限より低ければそちらを使う
+        for (int i = 0; i < 10; i++) {
+            congest();
+        }
+        assertEquals(1.0, this.controller.getRates().get(Events.POSITION), 1e-9);
+        assertEquals(10.0 * AdaptiveRateController.MIN_SCALE, this.controller.getRates().get(Events.ATTITUDE), 1e-9);
+
+        this.controller.setLimits(new HashMap<String, Double>());
+        assertEquals(2.0, this.controller.getRates().get(Events.POSITION), 1e-9);
+        assertNull(this.controller.getRates().get(Events.SPEED));
+    }
+
+}
@@ -0,0 +1,51 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Backoff のテスト。
+ */
+public class BackoffTest {
+
+    @Test
+    public void growsUpToMaxWithJitter() throws Exception {
+        final Backoff backoff = new Backoff(500, 30_000, new Random(1));
+        long ceiling = 500;
+        for (int i = 0; i < 100; i++) {
+            final long delay = backoff.next();
+            assertTrue(delay + " in " + ceiling, ceiling / 2 <= delay && delay <= ceiling);
+            ceiling = Math.min(30_000, ceiling * 2);
+        }
+    }
+
+    @Test
+    public void resetStartsOver() throws Exception {
+        final Backoff backoff = new Backoff(500, 30_000);
+        for (int i = 0; i < 10; i++) {
+            backoff.next();
+        }
+        backoff.reset();
+        assertTrue(backoff.next() <= 500);
+    }
+
+}
@@ -0,0 +1,96 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * ベンチマーク用の道具。
+ * ベンチマークは ./gradlew test -Pbenchmark のときだけ動かす。
+ * 結果は app/build/reports/benchmarks に JSON で書き出す
+ */
+final class Benchmarks {
+
+    private Benchmarks() {
+    }
+
+    /**
+     * @return ベンチマークを動かすなら true
+     */
+    static boolean enabled() {
+        return Boolean.getBoolean("benchmark");
+    }
+
+    /**
+     * @return このスレッドがこれまでに確保したバイト数
+     */
+    static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * @return 今動いている全スレッドがこれまでに確保したバイト数
+     */
+    static long allThreadsAllocatedBytes() {
+        final com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long total = 0;
+        for (long bytes : bean.getThreadAllocatedBytes(bean.getAllThreadIds())) {
+            if (bytes > 0) {
+                total += bytes;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * 結果を書き出す。
+     * 版を上げる前後で比べられるように、依存ライブラリの版と実行環境も書く
+     *
+     * @param name    ベンチマーク名。ファイル名になる
+     * @param results 結果
+     * @return 書き出したファイル
+     */
+    static File writeReport(String name, Object results) throws IOException {
+        final Map<String, Object> report = new HashMap<>();
+        report.put("benchmark", name);
+        report.put("time", System.currentTimeMillis());
+        report.put("dependencies", System.getProperty("benchmarkDependencies", ""));
+        report.put("java", System.getProperty("java.version"));
+        report.put("os", System.getProperty("os.name") + " " + System.getProperty("os.arch"));
+        report.put("processors", Runtime.getRuntime().availableProcessors());
+        report.put("results", results);
+
+        final File dir = new File(System.getProperty("benchmarkReportDir", "build/reports/benchmarks"));
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        final File file = new File(dir, name + ".json");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            writer.write(new JsonWriter(4 * 1024).value(report).toString());
+        }
+        return file;
+    }
+
+}
@@ -0,0 +1,186 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 呼び出し側の代わり。
+ * メソッドを決まった頻度で呼び続け、購読したイベントを受け取って数える。
+ * イベントは呼び出し側ごとのスレッドで受け取るので、遅い呼び出し側が他を待たせることは無い
+ */
+final class CallerSimulator implements Closeable {
+
+    private final ExecutorService receiver;
+    private volatile Set<String> subscriptions;
+
+    private final LatencyHistogram callLatency = new LatencyHistogram();
+    private final LatencyHistogram eventLatency = new LatencyHistogram();
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong events = new AtomicLong();
+    private final AtomicLong eventBytes = new AtomicLong();
+    private final Map<String, AtomicLong> eventCounts = new ConcurrentHashMap<>();
+
+    /**
+     * @param name 名前。スレッド名に使う
+     */
+    CallerSimulator(String name) {
+        this.receiver = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, name + ".receiver"));
+    }
+
+    /**
+     * @param events 受け取るイベント。null なら全て
+     */
+    void subscribe(Collection<String> events) {
+        this.subscriptions = events == null ? null : new HashSet<>(events);
+    }
+
+    /**
+     * hub からイベントを受け取る
+     */
+    void deliver(String moduleName, String event, String json) {
+        final Set<String> subscriptions = this.subscriptions;
+        if (subscriptions != null && !subscriptions.contains(event)) {
+            return;
+        }
+        this.receiver.execute(() -> {
+            final long now = System.nanoTime();
+            final Object data = json.startsWith("{") ? new JSONObject(json) : json.startsWith("[") ? new JSONArray(json) : json;
+            final List<Long> sentAt = new ArrayList<>();
+            SyntheticTelemetry.collectSentAt(data, sentAt);
+            for (long time : sentAt) {
+                this.eventLatency.record(now - time);
+            }
+            this.events.incrementAndGet();
+            this.eventBytes.addAndGet(json.length());
+            AtomicLong count = this.eventCounts.get(event);
+            if (count == null) {
+                final AtomicLong created = new AtomicLong();
+                count = this.eventCounts.putIfAbsent(event, created);
+                if (count == null) {
+                    count = created;
+                }
+            }
+            count.incrementAndGet();
+        });
+    }
+
+    /**
+     * メソッドを決まった頻度で呼び続ける。
+     * 返り値を待たずに次を呼ぶが、返っていない呼び出しが maxInFlight に達したら待つ
+     *
+     * @param hub         hub
+     * @param moduleName  モジュール名
+     * @param methodName  メソッド名
+     * @param args        引数を並べた JSON
+     * @param rate        1 秒あたりの回数。0 以下ならできるだけ速く
+     * @param duration    呼び続ける時間 (ミリ秒)
+     * @param maxInFlight 同時に返りを待つ最大数
+     * @return 呼んだ回数
+     */
+    long fire(HubStandIn hub, String moduleName, String methodName, String args, double rate, long duration, int maxInFlight) throws InterruptedException {
+        final Semaphore inFlight = new Semaphore(maxInFlight);
+        final long interval = rate > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / rate) : 0;
+        final long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(duration);
+        long count = 0;
+        long next = System.nanoTime();
+        while (System.nanoTime() < end) {
+            inFlight.acquire();
+            final long start = System.nanoTime();
+            hub.call(moduleName, methodName, args).whenComplete((result, error) -> {
+                if (error == null) {
+                    this.callLatency.record(System.nanoTime() - start);
+                    this.calls.incrementAndGet();
+                } else {
+                    this.failures.incrementAndGet();
+                }
+                inFlight.release();
+            });
+            count++;
+            if (interval > 0) {
+                next += interval;
+                final long wait = next - System.nanoTime();
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+            }
+        }
+        // 返りを待つ
+        inFlight.acquire(maxInFlight);
+        inFlight.release(maxInFlight);
+        return count;
+    }
+
+    /**
+     * 受け取ったイベントを処理し終えるまで待つ
+     */
+    void drain() throws Exception {
+        this.receiver.submit(() -> {
+        }).get();
+    }
+
+    LatencyHistogram getCallLatency() {
+        return this.callLatency;
+    }
+
+    LatencyHistogram getEventLatency() {
+        return this.eventLatency;
+    }
+
+    long getCalls() {
+        return this.calls.get();
+    }
+
+    long getFailures() {
+        return this.failures.get();
+    }
+
+    long getEvents() {
+        return this.events.get();
+    }
+
+    long getEvents(String event) {
+        final AtomicLong count = this.eventCounts.get(event);
+        return count == null ? 0 : count.get();
+    }
+
+    long getEventBytes() {
+        return this.eventBytes.get();
+    }
+
+    @Override
+    public void close() {
+        this.receiver.shutdownNow();
+    }
+
+}
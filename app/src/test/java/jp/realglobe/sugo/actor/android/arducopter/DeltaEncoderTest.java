@@ -0,0 +1,131 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * DeltaEncoder のテスト。
+ */
+public class DeltaEncoderTest {
+
+    private static final long KEYFRAME_INTERVAL = 1_000;
+
+    private static DeltaEncoder newEncoder() {
+        final DeltaEncoder encoder = new DeltaEncoder((event, data) -> {
+        }, KEYFRAME_INTERVAL);
+        encoder.setPrecision(Events.POSITION, "coordinate", 1e-7, 1e-7, 0.01);
+        return encoder;
+    }
+
+    private static Map<String, Object> position(double lat, double lon, double alt) {
+        final Map<String, Object> data = new HashMap<>();
+        data.put("coordinate", new double[]{lat, lon, alt});
+        data.put("fix", "3d");
+        return data;
+    }
+
+    private static long millis(long millis) {
+        return TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    @Test
+    public void sendsKeyframesAndDeltas() throws Exception {
+        final DeltaEncoder encoder = newEncoder();
+
+        final Map<?, ?> keyframe = (Map<?, ?>) encoder.encode(Events.POSITION, position(35.6812361, 139.7671251, 30.25), millis(0));
+        assertEquals(0L, keyframe.get(DeltaEncoder.KEY_SEQUENCE));
+        assertArrayEquals(new long[]{356812361L, 1397671251L, 3025L}, (long[]) ((Map<?, ?>) keyframe.get(DeltaEncoder.KEY_KEYFRAME)).get("coordinate"));
+        assertArrayEquals(new double[]{1e-7, 1e-7, 0.01}, (double[]) ((Map<?, ?>) keyframe.get(DeltaEncoder.KEY_QUANTA)).get("coordinate"), 0);
+        assertEquals(Collections.singletonMap("fix", "3d"), keyframe.get(DeltaEncoder.KEY_RAW));
+
+        final Map<?, ?> delta = (Map<?, ?>) encoder.encode(Events.POSITION, position(35.6812364, 139.7671249, 30.26), millis(100));
+        assertEquals(1L, delta.get(DeltaEncoder.KEY_SEQUENCE));
+        assertNull(delta.get(DeltaEncoder.KEY_KEYFRAME));
+        assertArrayEquals(new long[]{3, -2, 1}, (long[]) ((Map<?, ?>) delta.get(DeltaEncoder.KEY_DELTA)).get("coordinate"));
+
+        // 変わっていなければ差分は空
+        final Map<?, ?> same = (Map<?, ?>) encoder.encode(Events.POSITION, position(35.6812364, 139.7671249, 30.26), millis(200));
+        assertEquals(Collections.emptyMap(), same.get(DeltaEncoder.KEY_DELTA));
+
+        // 間隔が空いたらキーフレーム
+        final Map<?, ?> periodic = (Map<?, ?>) encoder.encode(Events.POSITION, position(35.6812364, 139.7671249, 30.26), millis(1_100));
+        assertNotNull(periodic.get(DeltaEncoder.KEY_KEYFRAME));
+
+        // 繋ぎ直したらキーフレーム
+        encoder.reset();
+        final Map<?, ?> afterReset = (Map<?, ?>) encoder.encode(Events.POSITION, position(35.6812364, 139.7671249, 30.26), millis(1_200));
+        assertNotNull(afterReset.get(DeltaEncoder.KEY_KEYFRAME));
+
+        // 形が変わったらキーフレーム
+        final Map<String, Object> shorter = new HashMap<>();
+        shorter.put("coordinate", new double[]{35.6812364, 139.7671249});
+        final Map<?, ?> reshaped = (Map<?, ?>) encoder.encode(Events.POSITION, shorter, millis(1_300));
+        assertNotNull(reshaped.get(DeltaEncoder.KEY_KEYFRAME));
+    }
+
+    @Test
+    public void passesOtherEvents() throws Exception {
+        final DeltaEncoder encoder = newEncoder();
+        final Map<String, Object> attitude = new HashMap<>();
+        attitude.put("roll", 0.1);
+        assertSame(attitude, encoder.encode(Events.ATTITUDE, attitude, 0));
+        assertEquals("x", encoder.encode(Events.POSITION, "x", 0));
+    }
+
+    @Test
+    public void doesNotDrift() throws Exception {
+        final DeltaEncoder encoder = newEncoder();
+        final Random random = new Random(1234);
+        double lat = 35.6812361;
+        double lon = 139.7671251;
+        double alt = 0;
+        long[] decoded = null;
+        for (int i = 0; i < 10_000; i++) {
+            lat += random.nextGaussian() * 1e-6;
+            lon += random.nextGaussian() * 1e-6;
+            alt += random.nextGaussian() * 0.05;
+            final Map<?, ?> encoded = (Map<?, ?>) encoder.encode(Events.POSITION, position(lat, lon, alt), millis(i * 100));
+            final Map<?, ?> keyframe = (Map<?, ?>) encoded.get(DeltaEncoder.KEY_KEYFRAME);
+            if (keyframe != null) {
+                decoded = ((long[]) keyframe.get("coordinate")).clone();
+            } else {
+                final long[] delta = (long[]) ((Map<?, ?>) encoded.get(DeltaEncoder.KEY_DELTA)).get("coordinate");
+                for (int j = 0; delta != null && j < delta.length; j++) {
+                    decoded[j] += delta[j];
+                }
+            }
+            assertEquals(lat, decoded[0] * 1e-7, 0.5e-7 + 1e-12);
+            assertEquals(lon, decoded[1] * 1e-7, 0.5e-7 + 1e-12);
+            assertEquals(alt, decoded[2] * 0.01, 0.005 + 1e-12);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsZeroPrecision() throws Exception {
+        newEncoder().setPrecision(Events.ATTITUDE, "roll", 0);
+    }
+
+}
@@ -0,0 +1,134 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * 記録した飛行の position と attitude を、そのままの JSON と差分にした JSON で送ったときの通信量を比べる。
+ * ./gradlew test -Pbenchmark -Pflight=端末から取り出した .ring ファイル で実際の飛行を使う。
+ * 指定しなければ、離陸して移動して着陸する飛行を作って記録する
+ */
+public class DeltaEncodingBenchmark {
+
+    /**
+     * 作る飛行の長さ (秒) と頻度 (回/秒)
+     */
+    private static final int FLIGHT_SECONDS = 300;
+    private static final int RATE = 10;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void bytesPerSecond() throws Exception {
+        assumeTrue(Benchmarks.enabled());
+
+        final String flight = System.getProperty("flight");
+        final File file = flight != null && !flight.isEmpty() ? new File(flight) : recordFlight();
+        final List<TelemetryRecorder.Record> records;
+        try (TelemetryRecorder recorder = TelemetryRecorder.open(file, new PipelineOptions().recorderCapacity, (event, data) -> {
+        })) {
+            records = recorder.read(0, Long.MAX_VALUE);
+        }
+
+        final DeltaEncoder encoder = new DeltaEncoder((event, data) -> {
+        }, 1_000);
+        encoder.setPrecision(Events.POSITION, "coordinate", 1e-7, 1e-7, 0.01);
+        for (String field : new String[]{"roll", "pitch", "yaw"}) {
+            encoder.setPrecision(Events.ATTITUDE, field, 0.01);
+        }
+
+        final JsonWriter writer = new JsonWriter(1024);
+        long rawBytes = 0;
+        long encodedBytes = 0;
+        long count = 0;
+        long first = Long.MAX_VALUE;
+        long last = Long.MIN_VALUE;
+        for (TelemetryRecorder.Record record : records) {
+            if (!Events.POSITION.equals(record.event) && !Events.ATTITUDE.equals(record.event)) {
+                continue;
+            }
+            rawBytes += writer.reset().value(record.data).toString().getBytes(StandardCharsets.UTF_8).length;
+            final Object encoded = encoder.encode(record.event, record.data, TimeUnit.MILLISECONDS.toNanos(record.time));
+            encodedBytes += writer.reset().value(encoded).toString().getBytes(StandardCharsets.UTF_8).length;
+            count++;
+            first = Math.min(first, record.time);
+            last = Math.max(last, record.time);
+        }
+        assertTrue(count > 0);
+
+        final double seconds = Math.max(1, last - first) / 1e3;
+        System.out.println(String.format("%d events over %.0fs: raw %.0f bytes/s, delta %.0f bytes/s, saved %.0f bytes/s (%.0f%%)",
+                count, seconds, rawBytes / seconds, encodedBytes / seconds, (rawBytes - encodedBytes) / seconds, 100.0 * (rawBytes - encodedBytes) / rawBytes));
+        assertTrue(encodedBytes < rawBytes);
+    }
+
+    /**
+     * 離陸、上昇、移動、着陸する飛行を記録する
+     */
+    private File recordFlight() throws Exception {
+        final File file = folder.newFile();
+        final Random random = new Random(29493);
+        final long start = 1_500_000_000_000L;
+        try (TelemetryRecorder recorder = TelemetryRecorder.open(file, new PipelineOptions().recorderCapacity, (event, data) -> {
+        })) {
+            double lat = 35.6812361;
+            double lon = 139.7671251;
+            double alt = 0;
+            double yaw = 90;
+            for (int i = 0; i < FLIGHT_SECONDS * RATE; i++) {
+                final double t = (double) i / RATE;
+                if (t < 30) {
+                    alt += 1.0 / RATE;
+                } else if (t < 240) {
+                    lat += 2e-6 / RATE;
+                    lon += 3e-6 / RATE;
+                    yaw += 0.1 / RATE;
+                } else if (alt > 0) {
+                    alt = Math.max(0, alt - 0.5 / RATE);
+                }
+                // GPS と IMU の揺らぎ
+                final Map<String, Object> position = new HashMap<>();
+                position.put("coordinate", new double[]{lat + random.nextGaussian() * 2e-7, lon + random.nextGaussian() * 2e-7, alt + random.nextGaussian() * 0.05});
+                final Map<String, Object> attitude = new HashMap<>();
+                attitude.put("roll", random.nextGaussian() * 2);
+                attitude.put("pitch", random.nextGaussian() * 2);
+                attitude.put("yaw", yaw + random.nextGaussian() * 0.5);
+
+                final long time = start + i * 1_000L / RATE;
+                recorder.record(time, Events.POSITION, position);
+                recorder.record(time, Events.ATTITUDE, attitude);
+            }
+        }
+        return file;
+    }
+
+}
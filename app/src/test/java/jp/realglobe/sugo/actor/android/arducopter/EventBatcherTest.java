@@ -0,0 +1,154 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.Assert.*;
+
+/**
+ * EventBatcher のテスト。
+ */
+public class EventBatcherTest {
+
+    @Test
+    public void batchesTelemetryInWindow() throws Exception {
+        final List<Object[]> sent = Collections.synchronizedList(new ArrayList<>());
+        final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        try {
+            final EventBatcher batcher = new EventBatcher((event, data) -> sent.add(new Object[]{event, data}), scheduler, 100);
+            batcher.emit(Events.POSITION, 1);
+            batcher.emit(Events.ATTITUDE, 2);
+            batcher.emit(Events.SPEED, 3);
+            assertTrue(sent.isEmpty());
+            Thread.sleep(300);
+
+            assertEquals(1, sent.size());
+            assertEquals(EventBatcher.EVENT, sent.get(0)[0]);
+            final Map<?, ?> frame = (Map<?, ?>) sent.get(0)[1];
+            final List<?> events = (List<?>) frame.get(EventBatcher.KEY_EVENTS);
+            assertEquals(3, events.size());
+            assertEquals(Events.ATTITUDE, ((List<?>) events.get(1)).get(0));
+            assertEquals(2, ((List<?>) events.get(1)).get(2));
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    @Test
+    public void stateEventFlushesWithoutWaiting() throws Exception {
+        final List<Object[]> sent = Collections.synchronizedList(new ArrayList<>());
+        final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        try {
+            final EventBatcher batcher = new EventBatcher((event, data) -> sent.add(new Object[]{event, data}), scheduler, 10_000);
+            batcher.emit(Events.ARMED, null);
+            assertEquals(1, sent.size());
+            assertEquals(Events.ARMED, sent.get(0)[0]);
+
+            batcher.emit(Events.POSITION, 1);
+            batcher.emit(Events.MODE, "Land");
+            assertEquals(2, sent.size());
+            assertEquals(EventBatcher.EVENT, sent.get(1)[0]);
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    @Test
+    public void textModeSendsJsonString() throws Exception {
+        final List<Object[]> sent = Collections.synchronizedList(new ArrayList<>());
+        final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        try {
+            final EventBatcher batcher = new EventBatcher((event, data) -> sent.add(new Object[]{event, data}), scheduler, 10_000, 64);
+            for (int round = 0; round < 2; round++) {
+                batcher.emit(Events.POSITION, Collections.singletonMap("coordinate", new double[]{1.5, 2.5, 3}));
+                batcher.emit(Events.MODE, "Guided");
+            }
+            assertEquals(2, sent.size());
+            for (Object[] frame : sent) {
+                assertEquals(EventBatcher.EVENT, frame[0]);
+                final JSONArray events = new JSONObject((String) frame[1]).getJSONArray(EventBatcher.KEY_EVENTS);
+                assertEquals(2, events.length());
+                assertEquals(Events.POSITION, events.getJSONArray(0).getString(0));
+                assertEquals(2.5, events.getJSONArray(0).getJSONObject(2).getJSONArray("coordinate").getDouble(1), 0);
+                assertEquals("Guided", events.getJSONArray(1).getString(2));
+            }
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    @Test
+    public void changesWindow() throws Exception {
+        final List<Object[]> sent = Collections.synchronizedList(new ArrayList<>());
+        final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        try {
+            final EventBatcher batcher = new EventBatcher((event, data) -> sent.add(new Object[]{event, data}), scheduler, 0);
+            // 0 なら素通しする
+            batcher.emit(Events.POSITION, 1);
+            assertEquals(1, sent.size());
+            assertEquals(Events.POSITION, sent.get(0)[0]);
+
+            batcher.setWindow(10_000);
+            batcher.emit(Events.POSITION, 2);
+            batcher.emit(Events.ATTITUDE, 3);
+            assertEquals(1, sent.size());
+
+            // 0 に戻すと溜まっていた分を流す
+            batcher.setWindow(0);
+            assertEquals(2, sent.size());
+            assertEquals(EventBatcher.EVENT, sent.get(1)[0]);
+            batcher.emit(Events.SPEED, 4);
+            assertEquals(3, sent.size());
+            assertEquals(Events.SPEED, sent.get(2)[0]);
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    @Test
+    public void earlyFlushCancelsOldWindow() throws Exception {
+        final List<Object[]> sent = Collections.synchronizedList(new ArrayList<>());
+        final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        try {
+            final EventBatcher batcher = new EventBatcher((event, data) -> sent.add(new Object[]{event, data}), scheduler, 300);
+            batcher.emit(Events.POSITION, 1);
+            batcher.emit(Events.MODE, "Guided");
+            assertEquals(1, sent.size());
+
+            // 前の窓の flush が残っていると、次の窓が 300 ミリ秒経たずに流れる
+            Thread.sleep(150);
+            batcher.emit(Events.POSITION, 2);
+            Thread.sleep(250);
+            assertEquals(1, sent.size());
+            Thread.sleep(150);
+            assertEquals(2, sent.size());
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+}
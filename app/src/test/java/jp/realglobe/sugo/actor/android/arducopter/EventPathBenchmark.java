@@ -0,0 +1,169 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * モジュールが発行したイベントが hub に届くまでの処理段の性能を測る。
+ * 10, 50, 200 回/秒のテレメトリを流して、処理量、1 イベントあたりの遅延、確保バイト数を
+ * build/reports/benchmarks/event-path.json に書き出す
+ */
+public class EventPathBenchmark {
+
+    private static final int[] RATES = {10, 50, 200};
+    private static final long WARMUP = 1_000;
+    private static final long DURATION = 3_000;
+    /**
+     * 流し終わってから、残りが届くまで待つ最大時間 (ミリ秒)
+     */
+    private static final long DRAIN_TIMEOUT = 2_000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void eventPath() throws Exception {
+        assumeTrue(Benchmarks.enabled());
+
+        final List<Object> results = new ArrayList<>();
+        for (String scenario : new String[]{"plain", "batched", "delta"}) {
+            for (int rate : RATES) {
+                final Map<String, Object> result = measure(scenario, rate);
+                System.out.println(result);
+                results.add(result);
+            }
+        }
+        final File report = Benchmarks.writeReport("event-path", results);
+        System.out.println("report: " + report.getAbsolutePath());
+    }
+
+    private PipelineOptions options(String scenario) throws Exception {
+        final PipelineOptions options = new PipelineOptions();
+        options.recorderFile = folder.newFile();
+        options.outboundFile = folder.newFile();
+        switch (scenario) {
+            case "batched":
+                options.batchWindow = 50;
+                options.batchBufferSize = 8 * 1024;
+                break;
+            case "delta":
+                options.deltaKeyframeInterval = 1_000;
+                final Map<String, double[]> position = new HashMap<>();
+                position.put("coordinate", new double[]{1e-7, 1e-7, 0.01});
+                options.precisions.put(Events.POSITION, position);
+                final Map<String, double[]> attitude = new HashMap<>();
+                for (String field : new String[]{"roll", "pitch", "yaw"}) {
+                    attitude.put(field, new double[]{0.01});
+                }
+                options.precisions.put(Events.ATTITUDE, attitude);
+                break;
+        }
+        return options;
+    }
+
+    /**
+     * hub の代わり。socket.io と同じく中身を JSON にして、届いたイベントの遅延を記録する
+     */
+    private static final class Hub implements EventSink {
+
+        volatile boolean measuring;
+        volatile LatencyHistogram latency = new LatencyHistogram();
+        final AtomicLong delivered = new AtomicLong();
+        final AtomicLong messages = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+
+        @Override
+        public void emit(String event, Object data) {
+            final String json = data instanceof String ? (String) data : String.valueOf(JSONObject.wrap(data));
+            final long now = System.nanoTime();
+            final List<Long> sentAt = new ArrayList<>();
+            SyntheticTelemetry.collectSentAt(data, sentAt);
+            if (!this.measuring) {
+                return;
+            }
+            this.messages.incrementAndGet();
+            this.bytes.addAndGet(event.length() + json.getBytes(StandardCharsets.UTF_8).length);
+            for (long time : sentAt) {
+                this.latency.record(now - time);
+            }
+            this.delivered.addAndGet(sentAt.size());
+        }
+
+    }
+
+    private Map<String, Object> measure(String scenario, int rate) throws Exception {
+        final Hub hub = new Hub();
+        final EventPipeline pipeline = new EventPipeline(scenario, hub, options(scenario));
+        pipeline.setOnline(true);
+        try {
+            SyntheticTelemetry.run(pipeline.getInput(), rate, WARMUP);
+            Thread.sleep(200);
+
+            hub.measuring = true;
+            final long allocatedBefore = Benchmarks.allThreadsAllocatedBytes();
+            final long produced = SyntheticTelemetry.run(pipeline.getInput(), rate, DURATION);
+            final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DRAIN_TIMEOUT);
+            while (hub.delivered.get() < produced && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            final long allocated = Benchmarks.allThreadsAllocatedBytes() - allocatedBefore;
+            hub.measuring = false;
+
+            final double seconds = DURATION / 1e3;
+            final long delivered = hub.delivered.get();
+            assertTrue(delivered > 0);
+
+            final Map<String, Object> result = new HashMap<>();
+            result.put("scenario", scenario);
+            result.put("rate", rate);
+            result.put("topics", SyntheticTelemetry.TOPICS.length);
+            result.put("produced", produced);
+            result.put("delivered", delivered);
+            result.put("dropped", pipeline.getLaneStats().getDropped());
+            result.put("throughput", delivered / seconds);
+            result.put("latency", hub.latency.toMap());
+            final Map<String, Object> allocation = new HashMap<>();
+            allocation.put("bytesPerEvent", (double) allocated / produced);
+            allocation.put("bytesPerSecond", allocated / seconds);
+            result.put("allocation", allocation);
+            final Map<String, Object> hubMap = new HashMap<>();
+            hubMap.put("messagesPerSecond", hub.messages.get() / seconds);
+            hubMap.put("bytesPerSecond", hub.bytes.get() / seconds);
+            result.put("hub", hubMap);
+            return result;
+        } finally {
+            pipeline.close();
+        }
+    }
+
+}
@@ -0,0 +1,56 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * EventRateMeter のテスト。
+ */
+public class EventRateMeterTest {
+
+    @Test
+    public void measuresSentPerSecond() throws Exception {
+        final TopicCounters topics = new TopicCounters();
+        final EventRateMeter meter = new EventRateMeter(topics);
+        topics.sent(Events.POSITION);
+        assertTrue(meter.update(TimeUnit.SECONDS.toNanos(10)).isEmpty());
+
+        for (int i = 0; i < 10; i++) {
+            topics.sent(Events.POSITION);
+        }
+        for (int i = 0; i < 5; i++) {
+            topics.sent(Events.ATTITUDE);
+        }
+        // 送らずに捨てた分は数えない
+        topics.produced(Events.BATTERY);
+        topics.suppressed(Events.BATTERY);
+
+        final Map<String, Double> rates = meter.update(TimeUnit.SECONDS.toNanos(12));
+        assertEquals(5.0, rates.get(Events.POSITION), 1e-9);
+        assertEquals(2.5, rates.get(Events.ATTITUDE), 1e-9);
+        assertEquals(0.0, rates.get(Events.BATTERY), 1e-9);
+
+        assertEquals(0.0, meter.update(TimeUnit.SECONDS.toNanos(13)).get(Events.POSITION), 1e-9);
+    }
+
+}
@@ -0,0 +1,53 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * EventSubscriptions のテスト。
+ */
+public class EventSubscriptionsTest {
+
+    @Test
+    public void followsEnableAndDisable() throws Exception {
+        final EventSubscriptions subscriptions = new EventSubscriptions();
+        assertFalse(subscriptions.isChanged());
+        assertTrue(subscriptions.isEnabled(Events.POSITION));
+
+        // example/caller.js と同じ選び方
+        subscriptions.disable(null);
+        subscriptions.enable(Arrays.asList(Events.ARMED, Events.DISARMED, Events.MODE, Events.POSITION));
+        assertTrue(subscriptions.isChanged());
+        assertFalse(subscriptions.isEnabledByDefault());
+        assertTrue(subscriptions.isEnabled(Events.POSITION));
+        assertFalse(subscriptions.isEnabled(Events.ATTITUDE));
+        assertEquals(4, subscriptions.getExceptions().size());
+
+        subscriptions.enable(null);
+        subscriptions.disable(Collections.singletonList(Events.SPEED));
+        assertTrue(subscriptions.isEnabled(Events.ATTITUDE));
+        assertFalse(subscriptions.isEnabled(Events.SPEED));
+        assertEquals(Collections.singletonList(Events.SPEED), subscriptions.getExceptions());
+    }
+
+}
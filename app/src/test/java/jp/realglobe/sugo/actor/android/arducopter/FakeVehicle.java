@@ -0,0 +1,74 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 機体の代わりのモジュール。
+ * ArduCopter と同じ名前の命令を受けて、すぐに終わったことにしてイベントを発行する
+ */
+final class FakeVehicle {
+
+    private final EventSink events;
+    private final EventSubscriptions subscriptions = new EventSubscriptions();
+    private volatile String mode = "Stabilize";
+
+    /**
+     * @param events イベントの流し先
+     */
+    FakeVehicle(EventSink events) {
+        this.events = events;
+    }
+
+    private void emit(String event, Object data) {
+        if (this.subscriptions.isEnabled(event)) {
+            this.events.emit(event, data);
+        }
+    }
+
+    public String getMode() {
+        return this.mode;
+    }
+
+    public void setMode(String mode) {
+        this.mode = mode;
+        emit(Events.MODE, Collections.singletonMap("mode", mode));
+    }
+
+    public void arm(boolean arm) {
+        emit(arm ? Events.ARMED : Events.DISARMED, Collections.emptyMap());
+    }
+
+    public void takeoff(double altitude) {
+        emit(Events.COMMAND_REACHED, Collections.singletonMap("command", "takeoff"));
+    }
+
+    public void goTo(double latitude, double longitude) {
+        emit(Events.COMMAND_REACHED, Collections.singletonMap("coordinate", new double[]{latitude, longitude}));
+    }
+
+    public void enableEvents(List<String> events) {
+        this.subscriptions.enable(events);
+    }
+
+    public void disableEvents(List<String> events) {
+        this.subscriptions.disable(events);
+    }
+
+}
@@ -0,0 +1,108 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * 区域が多いときに、position イベント 1 回の照合にかかる時間を、格子で引く場合と全部調べる場合で比べる
+ */
+public class GeofenceBenchmark {
+
+    private static final int[] FENCE_COUNTS = {100, 1_000, 10_000};
+    private static final int POSITIONS = 20_000;
+    /**
+     * 区域を散らす範囲 (度)。およそ 10km 四方
+     */
+    private static final double AREA = 0.1;
+    /**
+     * 格子で引かない場合の升目の大きさ。全ての区域が 1 つの升目に入る
+     */
+    private static final double LINEAR_CELL_SIZE = 1_000;
+
+    @Test
+    public void indexAgainstLinearScan() throws Exception {
+        assumeTrue(Benchmarks.enabled());
+
+        final List<Object> results = new ArrayList<>();
+        for (int count : FENCE_COUNTS) {
+            final long[] indexedEvents = new long[1];
+            final long[] linearEvents = new long[1];
+            final GeofenceEngine indexed = new GeofenceEngine((event, data) -> indexedEvents[0]++, 1.0, 0.001);
+            final GeofenceEngine linear = new GeofenceEngine((event, data) -> linearEvents[0]++, 1.0, LINEAR_CELL_SIZE);
+            final Random random = new Random(count);
+            for (int i = 0; i < count; i++) {
+                final Map<String, Object> fence = GeofenceEngineTest.circle("fence" + i, GeofenceEngine.TYPE_CIRCLE,
+                        35.6 + random.nextDouble() * AREA, 139.6 + random.nextDouble() * AREA, 20 + random.nextDouble() * 80);
+                indexed.add(fence);
+                linear.add(fence);
+            }
+
+            // 区域の間を 10Hz、10m/s で飛ぶ
+            final double[][] track = new double[POSITIONS][];
+            double latitude = 35.65;
+            double longitude = 139.65;
+            double heading = 0;
+            for (int i = 0; i < POSITIONS; i++) {
+                heading += random.nextGaussian() * 0.1;
+                latitude = Math.max(35.6, Math.min(35.6 + AREA, latitude + Math.cos(heading) / 111_320));
+                longitude = Math.max(139.6, Math.min(139.6 + AREA, longitude + Math.sin(heading) / 90_000));
+                track[i] = new double[]{latitude, longitude, 30};
+            }
+
+            final double indexedNanos = run(indexed, track);
+            final double linearNanos = run(linear, track);
+            assertEquals(linearEvents[0], indexedEvents[0]);
+
+            final Map<String, Object> result = new HashMap<>();
+            result.put("fences", count);
+            result.put("events", indexedEvents[0]);
+            result.put("indexedNanosPerPosition", indexedNanos);
+            result.put("linearNanosPerPosition", linearNanos);
+            results.add(result);
+            System.out.println(String.format("%5d fences: indexed %.0fns, linear %.0fns per position, %d events", count, indexedNanos, linearNanos, indexedEvents[0]));
+        }
+        System.out.println("report: " + Benchmarks.writeReport("geofence", results));
+    }
+
+    /**
+     * @return 1 回あたりの時間 (ナノ秒)。温めた後の 3 回のうち最短
+     */
+    private static double run(GeofenceEngine engine, double[][] track) {
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < 5; round++) {
+            final long start = System.nanoTime();
+            for (double[] position : track) {
+                engine.evaluate(position[0], position[1], position[2]);
+            }
+            if (round >= 2) {
+                best = Math.min(best, System.nanoTime() - start);
+            }
+        }
+        return (double) best / track.length;
+    }
+
+}
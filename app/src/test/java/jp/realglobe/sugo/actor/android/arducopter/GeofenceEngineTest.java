@@ -0,0 +1,135 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * GeofenceEngine のテスト。
+ */
+public class GeofenceEngineTest {
+
+    /**
+     * 東西南北に 1m ずれたときの緯度経度の差のおおよそ
+     */
+    private static final double METER = 1 / 111_320.0;
+
+    private final List<String> events = new ArrayList<>();
+    private final GeofenceEngine engine = new GeofenceEngine((event, data) -> this.events.add(event + ":" + ((Map<?, ?>) data).get(GeofenceEngine.KEY_ID)), 1.0, 0.001);
+
+    static Map<String, Object> circle(String id, String type, double latitude, double longitude, double radius) {
+        final Map<String, Object> fence = new HashMap<>();
+        fence.put(GeofenceEngine.KEY_ID, id);
+        fence.put(GeofenceEngine.KEY_TYPE, type);
+        fence.put(GeofenceEngine.KEY_CENTER, Arrays.asList(latitude, longitude));
+        fence.put(GeofenceEngine.KEY_RADIUS, radius);
+        return fence;
+    }
+
+    private void moveTo(double latitude, double longitude, double altitude) {
+        this.engine.update(Events.POSITION, Collections.singletonMap("coordinate", new double[]{latitude, longitude, altitude}));
+    }
+
+    @Test
+    public void emitsOnlyOnEdges() throws Exception {
+        this.engine.add(circle("home", GeofenceEngine.TYPE_CIRCLE, 35.0, 139.0, 10));
+        moveTo(35.0, 139.0 + 20 * METER, 10);
+        moveTo(35.0, 139.0 + 5 * METER, 10);
+        moveTo(35.0, 139.0 + 4 * METER, 10);
+        assertEquals(Collections.singletonList("entered:home"), this.events);
+
+        // 境界を少し越えただけでは出たと見なさない
+        moveTo(35.0 + 10.5 * METER, 139.0, 10);
+        assertEquals(1, this.events.size());
+        moveTo(35.0 + 12 * METER, 139.0, 10);
+        moveTo(35.0 + 30 * METER, 139.0, 10);
+        assertEquals(Arrays.asList("entered:home", "exited:home"), this.events);
+    }
+
+    @Test
+    public void arrivesOnce() throws Exception {
+        this.engine.add(circle("goal", GeofenceEngine.TYPE_ARRIVAL, 35.0, 139.0, 3));
+        moveTo(35.0, 139.0 + 2 * METER, 30);
+        moveTo(35.0, 139.0, 30);
+        moveTo(35.0, 139.0 + 20 * METER, 30);
+        moveTo(35.0, 139.0, 30);
+        assertEquals(Collections.singletonList("arrived:goal"), this.events);
+        assertTrue(this.engine.getIds().isEmpty());
+    }
+
+    @Test
+    public void checksPolygonAndAltitude() throws Exception {
+        final Map<String, Object> field = new HashMap<>();
+        field.put(GeofenceEngine.KEY_ID, "field");
+        field.put(GeofenceEngine.KEY_TYPE, GeofenceEngine.TYPE_POLYGON);
+        field.put(GeofenceEngine.KEY_VERTICES, Arrays.asList(Arrays.asList(35.0, 139.0), Arrays.asList(35.0, 139.01), Arrays.asList(35.01, 139.0)));
+        field.put(GeofenceEngine.KEY_MAX_ALTITUDE, 50);
+        this.engine.add(field);
+        final Map<String, Object> ceiling = new HashMap<>();
+        ceiling.put(GeofenceEngine.KEY_ID, "ceiling");
+        ceiling.put(GeofenceEngine.KEY_TYPE, GeofenceEngine.TYPE_BAND);
+        ceiling.put(GeofenceEngine.KEY_MIN_ALTITUDE, 100);
+        this.engine.add(ceiling);
+
+        moveTo(35.001, 139.001, 30);
+        // 斜辺の外
+        moveTo(35.006, 139.006, 30);
+        moveTo(35.002, 139.002, 30);
+        moveTo(35.002, 139.002, 120);
+        assertEquals(Arrays.asList("entered:field", "exited:field", "entered:field", "exited:field", "entered:ceiling"), this.events);
+    }
+
+    @Test
+    public void findsFencesAcrossCells() throws Exception {
+        // 升目の境目にまたがる区域と、升目に入りきらない大きな区域
+        this.engine.add(circle("edge", GeofenceEngine.TYPE_CIRCLE, 35.0, 139.0, 30));
+        this.engine.add(circle("large", GeofenceEngine.TYPE_CIRCLE, 36.0, 140.0, 50_000));
+        moveTo(35.0 - 10 * METER, 139.0 - 10 * METER, 10);
+        moveTo(35.0 + 10 * METER, 139.0 + 10 * METER, 10);
+        moveTo(35.0 + 100 * METER, 139.0, 10);
+        moveTo(36.2, 140.2, 10);
+        assertEquals(Arrays.asList("entered:edge", "exited:edge", "entered:large"), this.events);
+
+        assertTrue(this.engine.remove("large"));
+        assertFalse(this.engine.remove("large"));
+        moveTo(35.0, 139.0, 10);
+        assertEquals("entered:edge", this.events.get(3));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownType() throws Exception {
+        this.engine.add(circle("home", "square", 35.0, 139.0, 10));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptyBand() throws Exception {
+        final Map<String, Object> band = new HashMap<>();
+        band.put(GeofenceEngine.KEY_ID, "band");
+        band.put(GeofenceEngine.KEY_TYPE, GeofenceEngine.TYPE_BAND);
+        this.engine.add(band);
+    }
+
+}
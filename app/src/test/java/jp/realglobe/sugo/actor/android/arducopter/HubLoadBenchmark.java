@@ -0,0 +1,125 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * hub の代わりを使って、命令の処理量とイベントの配信量を測る。
+ * 1 つの呼び出し側ができるだけ速く goTo を呼び続け、その間モジュールは 50 回/秒のテレメトリを発行する。
+ * 全ての呼び出し側が全てのイベントを購読する。
+ * 結果は build/reports/benchmarks/hub-load.json に書き出す
+ */
+public class HubLoadBenchmark {
+
+    private static final String MODULE = "ArduCopter";
+    private static final int[] CALLER_COUNTS = {1, 10, 100};
+    private static final int TELEMETRY_RATE = 50;
+    private static final long DURATION = 3_000;
+    private static final int MAX_IN_FLIGHT = 64;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void commandsAndFanOut() throws Exception {
+        assumeTrue(Benchmarks.enabled());
+
+        final List<Object> results = new ArrayList<>();
+        for (int callerCount : CALLER_COUNTS) {
+            final Map<String, Object> result = measure(callerCount);
+            System.out.println(result);
+            results.add(result);
+        }
+        final File report = Benchmarks.writeReport("hub-load", results);
+        System.out.println("report: " + report.getAbsolutePath());
+    }
+
+    private Map<String, Object> measure(int callerCount) throws Exception {
+        final PipelineOptions options = new PipelineOptions();
+        options.recorderFile = folder.newFile();
+        options.outboundFile = folder.newFile();
+
+        final List<CallerSimulator> callers = new ArrayList<>();
+        try (HubStandIn hub = new HubStandIn()) {
+            final EventPipeline pipeline = new EventPipeline(MODULE, hub.eventSink(MODULE), options);
+            pipeline.setOnline(true);
+            hub.addModule(MODULE, new FakeVehicle(pipeline.getInput()));
+            for (int i = 0; i < callerCount; i++) {
+                final CallerSimulator caller = new CallerSimulator("caller" + i);
+                caller.subscribe(null);
+                hub.connect(caller);
+                callers.add(caller);
+            }
+
+            final long[] produced = new long[1];
+            final Thread telemetry = new Thread(() -> produced[0] = SyntheticTelemetry.run(pipeline.getInput(), TELEMETRY_RATE, DURATION));
+            telemetry.start();
+            final CallerSimulator commander = callers.get(0);
+            final long fired = commander.fire(hub, MODULE, "goTo", "[35.681236, 139.767125]", 0, DURATION, MAX_IN_FLIGHT);
+            telemetry.join();
+            Thread.sleep(200);
+            final long dropped = pipeline.getLaneStats().getDropped();
+            pipeline.close();
+            for (CallerSimulator caller : callers) {
+                caller.drain();
+            }
+
+            final double seconds = DURATION / 1e3;
+            long events = 0;
+            long bytes = 0;
+            long worstEventP99 = 0;
+            for (CallerSimulator caller : callers) {
+                events += caller.getEvents();
+                bytes += caller.getEventBytes();
+                worstEventP99 = Math.max(worstEventP99, caller.getEventLatency().getPercentile(99));
+            }
+            assertEquals(0, commander.getFailures());
+
+            final Map<String, Object> result = new HashMap<>();
+            result.put("callers", callerCount);
+            result.put("calls", fired);
+            result.put("callsPerSecond", commander.getCalls() / seconds);
+            result.put("callLatency", commander.getCallLatency().toMap());
+            result.put("eventsPerSecond", events / seconds);
+            result.put("eventBytesPerSecond", bytes / seconds);
+            // 命令の commandReached に押し出されたテレメトリは捨てられる
+            result.put("telemetryProduced", produced[0]);
+            result.put("telemetryDelivered", commander.getEventLatency().getCount());
+            result.put("telemetryDropped", dropped);
+            result.put("eventLatency", commander.getEventLatency().toMap());
+            result.put("worstEventP99", worstEventP99 / 1e3);
+            return result;
+        } finally {
+            for (CallerSimulator caller : callers) {
+                caller.close();
+            }
+        }
+    }
+
+}
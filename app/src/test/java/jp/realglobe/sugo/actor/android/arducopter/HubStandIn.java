@@ -0,0 +1,174 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.Closeable;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * hub と actor の代わり。端末もネットワークも無しに、呼び出し側からの負荷をかける。
+ * sugo-actor と同じく、呼び出しは 1 本のスレッドで順にモジュールのメソッドに振り分け、
+ * 引数と返り値とイベントは JSON にして受け渡す。
+ * イベントは繋がっている呼び出し側それぞれに配る
+ */
+final class HubStandIn implements Closeable {
+
+    private final ExecutorService actorThread = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "hub.actor"));
+    private final Map<String, Object> modules = new ConcurrentHashMap<>();
+    private final List<CallerSimulator> callers = new CopyOnWriteArrayList<>();
+
+    /**
+     * モジュールを加える。Actor.addModule に当たる
+     *
+     * @param name   モジュール名
+     * @param module メソッドを呼ばれるモジュール
+     */
+    void addModule(String name, Object module) {
+        this.modules.put(name, module);
+    }
+
+    /**
+     * @param moduleName モジュール名
+     * @return モジュールのイベントの流し先。EventPipeline の出口に繋ぐ
+     */
+    EventSink eventSink(String moduleName) {
+        return (event, data) -> {
+            final String json = toJson(data);
+            for (CallerSimulator caller : this.callers) {
+                caller.deliver(moduleName, event, json);
+            }
+        };
+    }
+
+    void connect(CallerSimulator caller) {
+        this.callers.add(caller);
+    }
+
+    void disconnect(CallerSimulator caller) {
+        this.callers.remove(caller);
+    }
+
+    /**
+     * モジュールのメソッドを呼ぶ
+     *
+     * @param moduleName モジュール名
+     * @param methodName メソッド名
+     * @param args       引数を並べた JSON
+     * @return 返り値の JSON。メソッドが例外を投げたら、その例外で失敗する
+     */
+    CompletableFuture<String> call(String moduleName, String methodName, String args) {
+        final CompletableFuture<String> result = new CompletableFuture<>();
+        this.actorThread.execute(() -> {
+            try {
+                result.complete(invoke(moduleName, methodName, args));
+            } catch (Exception e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    private String invoke(String moduleName, String methodName, String args) throws Exception {
+        final Object module = this.modules.get(moduleName);
+        if (module == null) {
+            throw new IllegalArgumentException("No module " + moduleName);
+        }
+        final JSONArray array = new JSONArray(args);
+        final Method method = findMethod(module.getClass(), methodName, array.length());
+        final Class<?>[] types = method.getParameterTypes();
+        final Object[] values = new Object[types.length];
+        for (int i = 0; i < types.length; i++) {
+            values[i] = convert(array.isNull(i) ? null : array.get(i), types[i]);
+        }
+        try {
+            return toJson(method.invoke(module, values));
+        } catch (InvocationTargetException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+
+    private static String toJson(Object value) {
+        if (value instanceof String) {
+            return JSONObject.quote((String) value);
+        }
+        return String.valueOf(JSONObject.wrap(value));
+    }
+
+    private static Method findMethod(Class<?> type, String name, int arity) {
+        for (Method method : type.getMethods()) {
+            if (method.getName().equals(name) && method.getParameterTypes().length == arity) {
+                return method;
+            }
+        }
+        throw new IllegalArgumentException("No method " + name + " with " + arity + " arguments");
+    }
+
+    /**
+     * JSON の値を引数の型にする
+     */
+    private static Object convert(Object value, Class<?> type) {
+        if (value == null) {
+            if (type.isPrimitive()) {
+                throw new IllegalArgumentException("null for " + type);
+            }
+            return null;
+        } else if (value instanceof Number) {
+            final Number number = (Number) value;
+            if (type == double.class || type == Double.class) {
+                return number.doubleValue();
+            } else if (type == float.class || type == Float.class) {
+                return number.floatValue();
+            } else if (type == long.class || type == Long.class) {
+                return number.longValue();
+            } else if (type == int.class || type == Integer.class) {
+                return number.intValue();
+            }
+        } else if (value instanceof JSONArray && List.class.isAssignableFrom(type)) {
+            final List<Object> list = new ArrayList<>();
+            for (Object element : (JSONArray) value) {
+                list.add(element);
+            }
+            return Collections.unmodifiableList(list);
+        } else if (value instanceof JSONObject && Map.class.isAssignableFrom(type)) {
+            return ((JSONObject) value).toMap();
+        }
+        if (!type.isPrimitive() && !type.isInstance(value)) {
+            throw new IllegalArgumentException(value + " is not " + type);
+        }
+        return value;
+    }
+
+    @Override
+    public void close() {
+        this.actorThread.shutdownNow();
+        this.callers.clear();
+    }
+
+}
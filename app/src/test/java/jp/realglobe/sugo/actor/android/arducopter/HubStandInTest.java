@@ -0,0 +1,107 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * HubStandIn と CallerSimulator のテスト。
+ */
+public class HubStandInTest {
+
+    private static final String MODULE = "ArduCopter";
+
+    @Test
+    public void callsModuleAndFansOutEvents() throws Exception {
+        try (HubStandIn hub = new HubStandIn();
+             CallerSimulator modeWatcher = new CallerSimulator("modeWatcher");
+             CallerSimulator positionWatcher = new CallerSimulator("positionWatcher")) {
+            hub.addModule(MODULE, new FakeVehicle(hub.eventSink(MODULE)));
+            modeWatcher.subscribe(Collections.singletonList(Events.MODE));
+            positionWatcher.subscribe(Collections.singletonList(Events.POSITION));
+            hub.connect(modeWatcher);
+            hub.connect(positionWatcher);
+
+            assertEquals("\"Stabilize\"", hub.call(MODULE, "getMode", "[]").get(1, TimeUnit.SECONDS));
+            assertEquals("null", hub.call(MODULE, "setMode", "[\"Guided\"]").get(1, TimeUnit.SECONDS));
+            assertEquals("\"Guided\"", hub.call(MODULE, "getMode", "[]").get(1, TimeUnit.SECONDS));
+            // 整数も double の引数に渡せる
+            hub.call(MODULE, "goTo", "[35, 139]").get(1, TimeUnit.SECONDS);
+
+            modeWatcher.drain();
+            positionWatcher.drain();
+            assertEquals(1, modeWatcher.getEvents(Events.MODE));
+            assertEquals(1, modeWatcher.getEvents());
+            assertEquals(0, positionWatcher.getEvents());
+        }
+    }
+
+    @Test
+    public void followsSubscriptions() throws Exception {
+        try (HubStandIn hub = new HubStandIn();
+             CallerSimulator caller = new CallerSimulator("caller")) {
+            hub.addModule(MODULE, new FakeVehicle(hub.eventSink(MODULE)));
+            caller.subscribe(null);
+            hub.connect(caller);
+
+            hub.call(MODULE, "disableEvents", "[null]").get(1, TimeUnit.SECONDS);
+            hub.call(MODULE, "enableEvents", "[[\"armed\"]]").get(1, TimeUnit.SECONDS);
+            hub.call(MODULE, "setMode", "[\"Guided\"]").get(1, TimeUnit.SECONDS);
+            hub.call(MODULE, "arm", "[true]").get(1, TimeUnit.SECONDS);
+
+            caller.drain();
+            assertEquals(0, caller.getEvents(Events.MODE));
+            assertEquals(1, caller.getEvents(Events.ARMED));
+        }
+    }
+
+    @Test
+    public void reportsFailures() throws Exception {
+        try (HubStandIn hub = new HubStandIn()) {
+            hub.addModule(MODULE, new FakeVehicle(hub.eventSink(MODULE)));
+            for (String[] call : Arrays.asList(new String[]{MODULE, "fly", "[]"}, new String[]{"Other", "getMode", "[]"}, new String[]{MODULE, "arm", "[null]"})) {
+                try {
+                    hub.call(call[0], call[1], call[2]).get(1, TimeUnit.SECONDS);
+                    fail(Arrays.toString(call));
+                } catch (ExecutionException e) {
+                    assertTrue(e.getCause() instanceof IllegalArgumentException);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void firesCalls() throws Exception {
+        try (HubStandIn hub = new HubStandIn();
+             CallerSimulator caller = new CallerSimulator("caller")) {
+            hub.addModule(MODULE, new FakeVehicle(hub.eventSink(MODULE)));
+            final long fired = caller.fire(hub, MODULE, "goTo", "[35.0, 139.0]", 0, 100, 8);
+            assertTrue(fired > 0);
+            assertEquals(fired, caller.getCalls());
+            assertEquals(0, caller.getFailures());
+            assertEquals(fired, caller.getCallLatency().getCount());
+        }
+    }
+
+}
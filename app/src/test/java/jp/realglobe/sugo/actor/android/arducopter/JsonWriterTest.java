@@ -0,0 +1,67 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * JsonWriter のテスト。
+ */
+public class JsonWriterTest {
+
+    @Test
+    public void writesNestedValues() throws Exception {
+        final Map<String, Object> data = new HashMap<>();
+        data.put("coordinate", new double[]{35.681236, 139.767125, 12.5});
+        data.put("list", Arrays.asList(1, "a\"b\\c\n", null, true));
+        data.put("set", new LinkedHashSet<>(Arrays.asList(1L, 2L)));
+        data.put("nan", Double.NaN);
+        data.put("integral", 3.0);
+
+        final JSONObject parsed = new JSONObject(new JsonWriter(16).value(data).toString());
+        final JSONArray coordinate = parsed.getJSONArray("coordinate");
+        assertEquals(35.681236, coordinate.getDouble(0), 0);
+        assertEquals(139.767125, coordinate.getDouble(1), 0);
+        assertEquals(12.5, coordinate.getDouble(2), 0);
+        final JSONArray list = parsed.getJSONArray("list");
+        assertEquals("a\"b\\c\n", list.getString(1));
+        assertTrue(list.isNull(2));
+        assertTrue(list.getBoolean(3));
+        assertEquals(2, parsed.getJSONArray("set").getLong(1));
+        assertTrue(parsed.isNull("nan"));
+        assertEquals("3", String.valueOf(parsed.get("integral")));
+    }
+
+    @Test
+    public void reusesBuffer() throws Exception {
+        final JsonWriter writer = new JsonWriter(16);
+        writer.value(Arrays.asList(1, 2, 3));
+        assertEquals("[1,2,3]", writer.toString());
+        writer.reset().string("x");
+        assertEquals("\"x\"", writer.toString());
+    }
+
+}
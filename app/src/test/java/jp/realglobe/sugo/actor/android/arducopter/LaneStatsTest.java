@@ -0,0 +1,62 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * LaneStats のテスト。
+ */
+public class LaneStatsTest {
+
+    @Test
+    public void countsDepthAndWaits() throws Exception {
+        final LaneStats stats = new LaneStats("lane");
+        stats.enqueued();
+        stats.enqueued();
+        stats.enqueued();
+        assertEquals(3, stats.getDepth());
+
+        stats.dequeued(10);
+        // 遅延実行の処理は長さに数えていないので、待ち時間だけを記録する
+        stats.executed(30);
+        stats.removed();
+        assertEquals(1, stats.getDepth());
+        assertEquals(2, stats.getCount());
+        assertEquals(0, stats.getDropped());
+        assertEquals(30, stats.getMaxWait());
+        assertEquals(20.0, stats.getAverageWait(), 1e-9);
+    }
+
+    @Test
+    public void countsWakeupsAfterIdleGap() throws Exception {
+        final LaneStats stats = new LaneStats("lane");
+        long now = 1_000_000_000L;
+        stats.started(now);
+        stats.finished(now);
+        // 続けて処理したのは起きたと数えない
+        stats.started(now);
+        stats.finished(now + 1);
+        now += 2 * LaneStats.IDLE_GAP;
+        stats.started(now);
+        stats.finished(now);
+        assertEquals(2, stats.getWakeups());
+    }
+
+}
@@ -0,0 +1,59 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * LatencyHistogram のテスト。
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void bucketsAreContiguous() throws Exception {
+        for (long micros = 0; micros < 1_000_000; micros++) {
+            final int index = LatencyHistogram.index(micros);
+            final long value = LatencyHistogram.value(index);
+            assertTrue(micros + " -> " + value, Math.abs(value - micros) <= Math.max(1, micros / 16));
+        }
+    }
+
+    @Test
+    public void percentiles() throws Exception {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(i));
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1_000_000, histogram.getMax());
+        assertEquals(500_000, histogram.getPercentile(50), 500_000 / 16);
+        assertEquals(950_000, histogram.getPercentile(95), 950_000 / 16);
+        assertEquals(990_000, histogram.getPercentile(99), 990_000 / 16);
+    }
+
+    @Test
+    public void emptyHistogram() throws Exception {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(99));
+    }
+
+}
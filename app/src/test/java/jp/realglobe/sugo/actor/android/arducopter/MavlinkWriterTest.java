@@ -0,0 +1,74 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+/**
+ * MavlinkWriter のテスト。
+ */
+public class MavlinkWriterTest {
+
+    @Test
+    public void crcMatchesMcrf4xx() throws Exception {
+        // CRC-16/MCRF4XX の検査値
+        final ByteBuffer buff = ByteBuffer.wrap("123456789".getBytes(StandardCharsets.US_ASCII));
+        assertEquals(0x6f91, MavlinkWriter.crc(buff, 0, buff.limit(), -1));
+    }
+
+    @Test
+    public void framesMessages() throws Exception {
+        final MavlinkWriter writer = new MavlinkWriter(1, 1);
+
+        final ByteBuffer heartbeat = writer.heartbeat(4, true);
+        assertEquals(6 + 9 + 2, heartbeat.remaining());
+        assertEquals((byte) 0xfe, heartbeat.get(0));
+        assertEquals(9, heartbeat.get(1));
+        assertEquals(0, heartbeat.get(2));
+        assertEquals(MavlinkWriter.HEARTBEAT, heartbeat.get(5));
+        assertEquals(4, heartbeat.order(ByteOrder.LITTLE_ENDIAN).getInt(6));
+        assertEquals(checksum(heartbeat, 50), heartbeat.getShort(15) & 0xffff);
+
+        final ByteBuffer position = writer.globalPositionInt(1000, 35.6812361, 139.7671251, 70.25, 30.25, 1, -2, 0.5, 90);
+        assertEquals(28, position.get(1));
+        assertEquals(1, position.get(2));
+        assertEquals(MavlinkWriter.GLOBAL_POSITION_INT, position.get(5));
+        assertEquals(356812361, position.getInt(6 + 4));
+        assertEquals(1397671251, position.getInt(6 + 8));
+        assertEquals(70250, position.getInt(6 + 12));
+        assertEquals(30250, position.getInt(6 + 16));
+        assertEquals(9000, position.getShort(6 + 26));
+        assertEquals(checksum(position, 104), position.getShort(6 + 28) & 0xffff);
+
+        assertEquals(31, writer.sysStatus(12.6, 15, 80).get(1));
+        assertEquals(30, writer.gpsRawInt(0, 35, 139, 40, 5, 10).get(1));
+        assertEquals(28, writer.attitude(0, 0.1, 0.2, 0.3).get(1));
+        assertEquals(20, writer.vfrHud(5, 5, 30, 0, 90).get(1));
+        assertEquals(2, writer.missionCurrent(3).get(1));
+    }
+
+    private static int checksum(ByteBuffer message, int crcExtra) {
+        return MavlinkWriter.crc(message, 1, message.limit() - 2, crcExtra);
+    }
+
+}
@@ -0,0 +1,111 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * MissionCache のテスト。
+ */
+public class MissionCacheTest {
+
+    static Map<String, Object> waypoint(double latitude, double longitude, double altitude) {
+        final Map<String, Object> item = new HashMap<>();
+        item.put("type", "waypoint");
+        item.put("coordinate", Arrays.asList(latitude, longitude, altitude));
+        return item;
+    }
+
+    static List<Map<String, Object>> survey(int size) {
+        final List<Map<String, Object>> mission = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            mission.add(waypoint(35.68 + (i / 10) * 0.0001, 139.76 + (i % 10) * 0.0001, 30));
+        }
+        return mission;
+    }
+
+    private static Map<String, Object> change(int index, Map<String, Object> item) {
+        final Map<String, Object> change = new HashMap<>();
+        change.put(MissionCache.KEY_INDEX, index);
+        change.put(MissionCache.KEY_ITEM, item);
+        return change;
+    }
+
+    @Test
+    public void hashIgnoresKeyOrderAndNumberType() throws Exception {
+        final Map<String, Object> first = new LinkedHashMap<>();
+        first.put("type", "takeoff");
+        first.put("altitude", 10);
+        final Map<String, Object> second = new LinkedHashMap<>();
+        second.put("altitude", 10.0);
+        second.put("type", "takeoff");
+        assertEquals(MissionCache.hash(Collections.singletonList(first)), MissionCache.hash(Collections.singletonList(second)));
+
+        second.put("altitude", 11);
+        assertNotEquals(MissionCache.hash(Collections.singletonList(first)), MissionCache.hash(Collections.singletonList(second)));
+        assertEquals(64, MissionCache.hash(survey(3)).length());
+    }
+
+    @Test
+    public void appliesChanges() throws Exception {
+        final List<Map<String, Object>> base = survey(300);
+        final Map<String, Object> moved = waypoint(35.7, 139.8, 40);
+        final List<Map<String, Object>> edited = MissionCache.apply(base, Collections.singletonList(change(120, moved)), 300);
+        assertEquals(300, edited.size());
+        assertSame(moved, edited.get(120));
+        assertEquals(base.get(119), edited.get(119));
+        assertArrayEquals(new int[]{120, 121}, MissionCache.changedRange(base, edited));
+
+        // 伸ばす
+        final List<Map<String, Object>> extended = MissionCache.apply(base, Arrays.asList(change(300, moved), change(301, moved)), 302);
+        assertArrayEquals(new int[]{300, 302}, MissionCache.changedRange(base, extended));
+        // 削る
+        final List<Map<String, Object>> truncated = MissionCache.apply(base, Collections.<Map<String, Object>>emptyList(), 250);
+        assertArrayEquals(new int[]{250, 250}, MissionCache.changedRange(base, truncated));
+        // 同じ
+        assertNull(MissionCache.changedRange(base, MissionCache.apply(base, Collections.singletonList(change(3, waypoint(35.68, 139.7603, 30))), 300)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsGap() throws Exception {
+        MissionCache.apply(survey(3), Collections.singletonList(change(4, waypoint(0, 0, 0))), 5);
+    }
+
+    @Test
+    public void forgetsLeastRecentlyUsed() throws Exception {
+        final MissionCache cache = new MissionCache(2);
+        final String first = cache.put(survey(1));
+        final String second = cache.put(survey(2));
+        assertNotNull(cache.get(first));
+        final String third = cache.put(survey(3));
+        assertEquals(third, cache.getLatestHash());
+        assertNotNull(cache.get(first));
+        assertNull(cache.get(second));
+        assertEquals(3, cache.get(third).size());
+    }
+
+}
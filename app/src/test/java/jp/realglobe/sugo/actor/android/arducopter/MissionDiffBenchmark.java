@@ -0,0 +1,124 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * 大きなミッションの 1 項目を変えたときに、全部送り直す代わりに違いだけを送るとどれだけ速いか調べる。
+ * hub への送信と機体への書き込みは回線の見積もりで、actor での処理は実測
+ */
+public class MissionDiffBenchmark {
+
+    private static final int[] SIZES = {100, 300, 1_000};
+    private static final int ITERATIONS = 200;
+
+    /**
+     * 携帯回線の上りの見積もり (ビット/秒)
+     */
+    private static final double UPLINK_BPS = 256_000;
+    /**
+     * テレメトリ無線の見積もり。ボーレートと片道の遅延 (秒)
+     */
+    private static final double RADIO_BAUD = 57_600;
+    private static final double RADIO_LATENCY = 0.02;
+    /**
+     * MAVLink v1 の MISSION_REQUEST_INT と MISSION_ITEM_INT、
+     * 始めと終わりのやり取り (MISSION_COUNT か MISSION_WRITE_PARTIAL_LIST と MISSION_ACK) の大きさ (バイト)
+     */
+    private static final int MAVLINK_REQUEST_BYTES = 12;
+    private static final int MAVLINK_ITEM_BYTES = 45;
+    private static final int MAVLINK_HANDSHAKE_BYTES = 14 + 11;
+
+    @Test
+    public void diffAgainstFullUpload() throws Exception {
+        assumeTrue(Benchmarks.enabled());
+
+        final List<Object> results = new ArrayList<>();
+        for (int size : SIZES) {
+            final List<Map<String, Object>> base = MissionCacheTest.survey(size);
+            final int index = size / 2;
+            final Map<String, Object> change = new HashMap<>();
+            change.put(MissionCache.KEY_INDEX, index);
+            change.put(MissionCache.KEY_ITEM, MissionCacheTest.waypoint(35.7, 139.8, 40));
+            final List<Map<String, Object>> changes = Collections.singletonList(change);
+            final List<Map<String, Object>> edited = MissionCache.apply(base, changes, size);
+
+            final int fullBytes = new JsonWriter(size * 64).value(Collections.singletonList(edited)).length();
+            final int diffBytes = new JsonWriter(256).value(Arrays.asList(MissionCache.hash(base), changes, size)).length();
+
+            // actor での処理: 全部ならハッシュを取るだけ、違いなら当てはめて範囲を求めてハッシュを取る
+            final MissionCache cache = new MissionCache(2);
+            final String baseHash = cache.put(base);
+            long fullNanos = Long.MAX_VALUE;
+            long diffNanos = Long.MAX_VALUE;
+            int[] range = null;
+            for (int i = 0; i < ITERATIONS; i++) {
+                long start = System.nanoTime();
+                MissionCache.hash(edited);
+                fullNanos = Math.min(fullNanos, System.nanoTime() - start);
+
+                start = System.nanoTime();
+                final List<Map<String, Object>> applied = MissionCache.apply(cache.get(baseHash), changes, size);
+                range = MissionCache.changedRange(base, applied);
+                MissionCache.hash(applied);
+                diffNanos = Math.min(diffNanos, System.nanoTime() - start);
+            }
+            assertNotNull(range);
+            assertEquals(1, range[1] - range[0]);
+
+            final Map<String, Object> result = new HashMap<>();
+            result.put("items", size);
+            result.put("changedItems", range[1] - range[0]);
+            result.put("fullPayloadBytes", fullBytes);
+            result.put("diffPayloadBytes", diffBytes);
+            result.put("hubFullMillis", fullBytes * 8 / UPLINK_BPS * 1e3);
+            result.put("hubDiffMillis", diffBytes * 8 / UPLINK_BPS * 1e3);
+            result.put("actorFullMicros", fullNanos / 1e3);
+            result.put("actorDiffMicros", diffNanos / 1e3);
+            // DroneKit は丸ごとしか書けないので、範囲だけの書き込みは見積もりだけ
+            result.put("mavlinkFullMillis", mavlinkMillis(size));
+            result.put("mavlinkRangeEstimateMillis", mavlinkMillis(range[1] - range[0]));
+            results.add(result);
+            System.out.println(String.format("%4d items: hub %6d -> %4d bytes (%.0fms -> %.1fms), actor %.0fus -> %.0fus, vehicle %.0fms -> %.0fms (estimate)",
+                    size, fullBytes, diffBytes, result.get("hubFullMillis"), result.get("hubDiffMillis"),
+                    result.get("actorFullMicros"), result.get("actorDiffMicros"), result.get("mavlinkFullMillis"), result.get("mavlinkRangeEstimateMillis")));
+            assertTrue(diffBytes * 10 < fullBytes);
+        }
+        System.out.println("report: " + Benchmarks.writeReport("mission-diff", results));
+    }
+
+    /**
+     * 項目ごとに要求と応答を 1 往復するとして、書き込みにかかる時間を見積もる
+     */
+    private static double mavlinkMillis(int items) {
+        final double perItem = 2 * RADIO_LATENCY + (MAVLINK_REQUEST_BYTES + MAVLINK_ITEM_BYTES) * 10 / RADIO_BAUD;
+        final double handshake = 2 * RADIO_LATENCY + MAVLINK_HANDSHAKE_BYTES * 10 / RADIO_BAUD;
+        return (handshake + items * perItem) * 1e3;
+    }
+
+}
@@ -0,0 +1,174 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.Assert.*;
+
+/**
+ * OutboundQueue のテスト。
+ */
+public class OutboundQueueTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void replaysStoredEventsInOrder() throws Exception {
+        final List<Object[]> sent = Collections.synchronizedList(new ArrayList<>());
+        final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        final File file = folder.newFile();
+        try (OutboundQueue queue = new OutboundQueue((event, data) -> sent.add(new Object[]{event, data}), scheduler, file, 1024 * 1024, 60_000, 1000, 0)) {
+            queue.setOnline(false);
+            final long start = System.currentTimeMillis();
+            queue.emit(Events.ARMED, null);
+            for (int i = 0; i < 10; i++) {
+                // 間引かれて最初の 1 つだけ残る
+                queue.emit(Events.POSITION, i);
+            }
+            queue.emit(Events.METRICS, "ignored");
+            queue.emit(Events.MODE, "Land");
+            assertTrue(sent.isEmpty());
+
+            queue.setOnline(true);
+            queue.emit(Events.MODE, "live");
+            Thread.sleep(300);
+
+            assertEquals(4, sent.size());
+            assertEquals(Events.MODE, sent.get(0)[0]);
+            assertEquals("live", sent.get(0)[1]);
+            final String[] events = {Events.ARMED, Events.POSITION, Events.MODE};
+            final Object[] data = {null, 0L, "Land"};
+            for (int i = 0; i < events.length; i++) {
+                assertEquals(OutboundQueue.EVENT, sent.get(i + 1)[0]);
+                final Map<?, ?> replay = (Map<?, ?>) sent.get(i + 1)[1];
+                assertEquals(events[i], replay.get(OutboundQueue.KEY_EVENT));
+                assertEquals(data[i], replay.get(OutboundQueue.KEY_DATA));
+                assertTrue((Long) replay.get(OutboundQueue.KEY_TIME) >= start);
+            }
+            assertEquals(0, queue.getPendingBytes());
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    @Test
+    public void keepsEventsAcrossRestart() throws Exception {
+        final List<Object[]> sent = Collections.synchronizedList(new ArrayList<>());
+        final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        final File file = folder.newFile();
+        try {
+            try (OutboundQueue queue = new OutboundQueue((event, data) -> sent.add(new Object[]{event, data}), scheduler, file, 1024 * 1024, 0, 1000, 0)) {
+                queue.setOnline(false);
+                queue.emit(Events.MISSION_SAVED, null);
+                queue.emit(Events.COMMAND_REACHED, 1L);
+            }
+            try (OutboundQueue queue = new OutboundQueue((event, data) -> sent.add(new Object[]{event, data}), scheduler, file, 1024 * 1024, 0, 1000, 0)) {
+                queue.setOnline(true);
+                Thread.sleep(200);
+            }
+            assertEquals(2, sent.size());
+            assertEquals(Events.COMMAND_REACHED, ((Map<?, ?>) sent.get(1)[1]).get(OutboundQueue.KEY_EVENT));
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    @Test
+    public void replaysOnceWhenOnlineTwice() throws Exception {
+        final List<Object[]> sent = Collections.synchronizedList(new ArrayList<>());
+        final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        final File file = folder.newFile();
+        try (OutboundQueue queue = new OutboundQueue((event, data) -> sent.add(new Object[]{event, data}), scheduler, file, 1024 * 1024, 0, 5, 0)) {
+            queue.setOnline(false);
+            for (int i = 0; i < 10; i++) {
+                queue.emit(Events.COMMAND_REACHED, (long) i);
+            }
+            queue.setOnline(true);
+            queue.setOnline(true);
+            Thread.sleep(300);
+
+            // 5 回/秒なので 2 つ、遅れても 3 つまで。二重に送り直していれば倍になる
+            assertTrue(sent.size() <= 3);
+            for (int i = 0; i < sent.size(); i++) {
+                assertEquals((long) i, ((Map<?, ?>) sent.get(i)[1]).get(OutboundQueue.KEY_DATA));
+            }
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    @Test
+    public void passesEventsBeforeFirstConnect() throws Exception {
+        final List<Object[]> sent = Collections.synchronizedList(new ArrayList<>());
+        final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        final File file = folder.newFile();
+        try (OutboundQueue queue = new OutboundQueue((event, data) -> sent.add(new Object[]{event, data}), scheduler, file, 1024 * 1024, 0, 1000, 0)) {
+            // まだ誰も見逃していないので溜めない
+            queue.emit(Events.MODE, "Guided");
+            assertEquals(1, sent.size());
+            assertEquals(0, queue.getPendingBytes());
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    @Test
+    public void compactsReplayedEvents() throws Exception {
+        final List<Object[]> sent = Collections.synchronizedList(new ArrayList<>());
+        final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        final File file = folder.newFile();
+        try {
+            try (OutboundQueue queue = new OutboundQueue((event, data) -> sent.add(new Object[]{event, data}), scheduler, file, 1024 * 1024, 0, 5, 0)) {
+                queue.setOnline(false);
+                for (int i = 0; i < 10; i++) {
+                    queue.emit(Events.COMMAND_REACHED, (long) i);
+                }
+                queue.setOnline(true);
+                Thread.sleep(300);
+                queue.setOnline(false);
+            }
+            final int replayed = sent.size();
+            assertTrue(replayed > 0);
+            assertFalse(new File(file.getPath() + ".tmp").exists());
+
+            // 詰めた残りだけを送り直す
+            try (OutboundQueue queue = new OutboundQueue((event, data) -> sent.add(new Object[]{event, data}), scheduler, file, 1024 * 1024, 0, 1000, 0)) {
+                queue.setOnline(true);
+                Thread.sleep(200);
+            }
+            assertEquals(10, sent.size());
+            for (int i = 0; i < sent.size(); i++) {
+                assertEquals((long) i, ((Map<?, ?>) sent.get(i)[1]).get(OutboundQueue.KEY_DATA));
+            }
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+}
@@ -0,0 +1,113 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * PowerPolicy のテスト。
+ */
+public class PowerPolicyTest {
+
+    @Test
+    public void switchesWithHysteresis() throws Exception {
+        final PowerPolicy policy = new PowerPolicy(30);
+        assertEquals(PowerPolicy.PERFORMANCE, policy.getProfile());
+
+        assertFalse(policy.update(80, false, false));
+        assertTrue(policy.update(30, false, false));
+        assertEquals(PowerPolicy.EFFICIENCY, policy.getProfile());
+
+        // 境目を少し越えただけでは戻さない
+        assertFalse(policy.update(34, false, false));
+        assertEquals(PowerPolicy.EFFICIENCY, policy.getProfile());
+        assertTrue(policy.update(36, false, false));
+        assertEquals(PowerPolicy.PERFORMANCE, policy.getProfile());
+        assertFalse(policy.update(34, false, false));
+    }
+
+    @Test
+    public void armedAndChargingWin() throws Exception {
+        final PowerPolicy policy = new PowerPolicy(30);
+        assertTrue(policy.update(10, false, false));
+        assertTrue(policy.update(10, false, true));
+        assertEquals(PowerPolicy.PERFORMANCE, policy.getProfile());
+        assertTrue(policy.update(10, false, false));
+        assertTrue(policy.update(10, true, false));
+        assertEquals(PowerPolicy.PERFORMANCE, policy.getProfile());
+
+        // 電池残量が分からなければ performance
+        assertFalse(policy.update(-1, false, false));
+        assertEquals(PowerPolicy.PERFORMANCE, policy.getProfile());
+    }
+
+    @Test
+    public void accountsWakeupsPerProfile() throws Exception {
+        final PowerPolicy policy = new PowerPolicy(30);
+        final long minute = TimeUnit.MINUTES.toNanos(1);
+        policy.account(100, 0);
+        assertTrue(policy.getWakeupsPerMinute().isEmpty());
+
+        policy.account(700, minute);
+        policy.update(20, false, false);
+        policy.account(760, 3 * minute);
+
+        final Map<String, Double> rates = policy.getWakeupsPerMinute();
+        assertEquals(600.0, rates.get(PowerPolicy.PERFORMANCE), 1e-9);
+        assertEquals(30.0, rates.get(PowerPolicy.EFFICIENCY), 1e-9);
+        assertEquals(PowerPolicy.EFFICIENCY, policy.toMap().get("profile"));
+    }
+
+    @Test
+    public void limitsRate() throws Exception {
+        assertEquals(5.0, PowerPolicy.limitRate(5, null), 1e-9);
+        assertEquals(1.0, PowerPolicy.limitRate(5, 1.0), 1e-9);
+        assertEquals(0.5, PowerPolicy.limitRate(0.5, 1.0), 1e-9);
+        // 間引いていなければ上限で間引く
+        assertEquals(1.0, PowerPolicy.limitRate(0, 1.0), 1e-9);
+        assertEquals(0.0, PowerPolicy.limitRate(0, null), 1e-9);
+    }
+
+    @Test
+    public void keepsEventsUnbatched() throws Exception {
+        final List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+        final PipelineOptions options = new PipelineOptions();
+        options.rates.put(Events.POSITION, 5.0);
+        options.efficiencyRates.put(Events.POSITION, 1.0);
+        options.efficiencyBatchWindow = 1_000;
+        final EventPipeline pipeline = new EventPipeline("power", (event, data) -> sent.add(event), options);
+        try {
+            // まとめ送りが無効なら、省電力でも呼び出し側に届く形は変えない
+            pipeline.setPowerProfile(PowerPolicy.EFFICIENCY);
+            assertEquals(1.0, pipeline.getForwardRates().get(Events.POSITION), 1e-9);
+            pipeline.getInput().emit(Events.MODE, "Guided");
+            Thread.sleep(200);
+            assertEquals(Collections.singletonList(Events.MODE), sent);
+        } finally {
+            pipeline.close();
+        }
+    }
+
+}
@@ -0,0 +1,102 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * 電源の使い方ごとに、処理段のスレッドが起きた回数と hub への送信回数を測る。
+ * 20 回/秒のテレメトリを流して、1 分あたりの値を
+ * build/reports/benchmarks/power-profiles.json に書き出す
+ */
+public class PowerProfileBenchmark {
+
+    private static final int RATE = 20;
+    private static final long WARMUP = 1_000;
+    private static final long DURATION = 5_000;
+
+    @Test
+    public void powerProfiles() throws Exception {
+        assumeTrue(Benchmarks.enabled());
+
+        final List<Object> results = new ArrayList<>();
+        final Map<String, Double> wakeups = new HashMap<>();
+        for (String profile : new String[]{PowerPolicy.PERFORMANCE, PowerPolicy.EFFICIENCY}) {
+            final Map<String, Object> result = measure(profile);
+            System.out.println(result);
+            results.add(result);
+            wakeups.put(profile, (Double) result.get("wakeupsPerMinute"));
+        }
+        assertTrue(wakeups.get(PowerPolicy.EFFICIENCY) < wakeups.get(PowerPolicy.PERFORMANCE));
+        final File report = Benchmarks.writeReport("power-profiles", results);
+        System.out.println("report: " + report.getAbsolutePath());
+    }
+
+    private static PipelineOptions options() {
+        final PipelineOptions options = new PipelineOptions();
+        options.rates.put(Events.POSITION, 5.0);
+        options.rates.put(Events.ATTITUDE, 5.0);
+        options.rates.put(Events.SPEED, 2.0);
+        options.rates.put(Events.BATTERY, 1.0);
+        options.efficiencyRates.put(Events.POSITION, 1.0);
+        options.efficiencyRates.put(Events.ATTITUDE, 0.5);
+        options.efficiencyRates.put(Events.SPEED, 0.5);
+        options.efficiencyRates.put(Events.BATTERY, 0.2);
+        options.efficiencyRates.put(Events.GIMBAL_ORIENTATION, 0.5);
+        return options;
+    }
+
+    private Map<String, Object> measure(String profile) throws Exception {
+        final AtomicLong messages = new AtomicLong();
+        final EventPipeline pipeline = new EventPipeline(profile, (event, data) -> messages.incrementAndGet(), options());
+        pipeline.setOnline(true);
+        try {
+            pipeline.setPowerProfile(profile);
+            SyntheticTelemetry.run(pipeline.getInput(), RATE, WARMUP);
+
+            final long wakeupsBefore = pipeline.getWakeups();
+            final long messagesBefore = messages.get();
+            final long start = System.nanoTime();
+            final long produced = SyntheticTelemetry.run(pipeline.getInput(), RATE, DURATION);
+            final double minutes = (System.nanoTime() - start) / (double) TimeUnit.MINUTES.toNanos(1);
+
+            final Map<String, Object> result = new HashMap<>();
+            result.put("profile", profile);
+            result.put("rate", RATE);
+            result.put("topics", SyntheticTelemetry.TOPICS.length);
+            result.put("produced", produced);
+            result.put("wakeupsPerMinute", (pipeline.getWakeups() - wakeupsBefore) / minutes);
+            result.put("messagesPerMinute", (messages.get() - messagesBefore) / minutes);
+            result.put("forwardRates", pipeline.getForwardRates());
+            return result;
+        } finally {
+            pipeline.close();
+        }
+    }
+
+}
@@ -0,0 +1,77 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * RoundTripProbe のテスト。
+ */
+public class RoundTripProbeTest {
+
+    @Test
+    public void measuresRoundTrip() throws Exception {
+        final RoundTripProbe probe = new RoundTripProbe();
+        final List<Long> measured = new ArrayList<>();
+        probe.setListener(measured::add);
+
+        final Map<String, Object> data = probe.ping(1_000);
+        final long id = (Long) data.get(RoundTripProbe.KEY_ID);
+        assertEquals(500, probe.pong(id, 1_500));
+        assertEquals(500, probe.getLast());
+        assertEquals(1, measured.size());
+
+        // 同じ返事は 2 度数えない
+        assertEquals(-1, probe.pong(id, 2_000));
+        assertEquals(1, measured.size());
+    }
+
+    @Test
+    public void forgetsOvertakenPings() throws Exception {
+        final RoundTripProbe probe = new RoundTripProbe();
+        final long first = (Long) probe.ping(0).get(RoundTripProbe.KEY_ID);
+        final long second = (Long) probe.ping(100).get(RoundTripProbe.KEY_ID);
+        assertEquals(200, probe.pong(second, 300));
+        assertEquals(-1, probe.pong(first, 400));
+        assertEquals(-1, probe.getPendingAge(500));
+    }
+
+    @Test
+    public void reportsPendingAge() throws Exception {
+        final RoundTripProbe probe = new RoundTripProbe();
+        // 返事をする呼び出し側がいなければ、返事が無くても遅いとは見なさない
+        probe.ping(0);
+        assertEquals(-1, probe.getPendingAge(TimeUnit.SECONDS.toNanos(10)));
+
+        probe.record(100);
+        assertEquals(TimeUnit.SECONDS.toNanos(10), probe.getPendingAge(TimeUnit.SECONDS.toNanos(10)));
+
+        // 長く返事が無ければ、返す呼び出し側がいなくなったと見なす
+        assertEquals(-1, probe.getPendingAge(TimeUnit.MINUTES.toNanos(2)));
+        probe.ping(TimeUnit.MINUTES.toNanos(2));
+        assertEquals(-1, probe.getPendingAge(TimeUnit.MINUTES.toNanos(3)));
+    }
+
+}
@@ -0,0 +1,154 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * SegmentUploader のテスト。
+ */
+public class SegmentUploaderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static void awaitUploaded(SegmentUploader uploader, long count) throws InterruptedException {
+        final long end = System.currentTimeMillis() + 5_000;
+        while (uploader.getUploadedCount() < count && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, uploader.getUploadedCount());
+    }
+
+    @Test
+    public void resumesLeftSegments() throws Exception {
+        final File dir = this.folder.newFolder();
+        final File target = this.folder.newFolder();
+        final byte[] video = new byte[13 * 1_500];
+        new Random(1).nextBytes(video);
+
+        // 前回は送れないまま止まった
+        try (VideoSegmentWriter writer = new VideoSegmentWriter(dir, 8_192, segment -> {
+        })) {
+            for (int i = 0; i < 8; i++) {
+                writer.writeDatagram(ByteBuffer.wrap(video, i * 1_500, 1_500));
+            }
+        }
+
+        final SegmentUploader uploader = new SegmentUploader(dir, SegmentUploader.sinkFor(target.getPath()), new Backoff(10, 100));
+        try (VideoSegmentWriter writer = new VideoSegmentWriter(dir, 8_192, uploader::offer)) {
+            uploader.start();
+            for (int i = 8; i < 13; i++) {
+                writer.writeDatagram(ByteBuffer.wrap(video, i * 1_500, 1_500));
+            }
+        }
+        try {
+            awaitUploaded(uploader, 3);
+        } finally {
+            uploader.close();
+        }
+        assertEquals(video.length + 13 * VideoSegmentWriter.HEADER_SIZE, uploader.getUploadedBytes());
+        assertEquals(0, dir.list().length);
+
+        final String[] names = target.list();
+        Arrays.sort(names);
+        final ByteArrayOutputStream joined = new ByteArrayOutputStream();
+        for (String name : names) {
+            assertTrue(name.endsWith(VideoSegmentWriter.SEGMENT_SUFFIX));
+            for (byte[] datagram : VideoSegmentWriterTest.readDatagrams(new FileInputStream(new File(target, name)))) {
+                assertEquals(1_500, datagram.length);
+                joined.write(datagram);
+            }
+        }
+        assertArrayEquals(video, joined.toByteArray());
+    }
+
+    @Test
+    public void retriesHttpUpload() throws Exception {
+        final File dir = this.folder.newFolder();
+        final Map<String, byte[]> received = Collections.synchronizedMap(new LinkedHashMap<String, byte[]>());
+        final AtomicInteger requests = new AtomicInteger();
+        final HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/video/", exchange -> {
+            final ByteArrayOutputStream body = new ByteArrayOutputStream();
+            try (InputStream in = exchange.getRequestBody()) {
+                final byte[] buff = new byte[4096];
+                for (int n = in.read(buff); n >= 0; n = in.read(buff)) {
+                    body.write(buff, 0, n);
+                }
+            }
+            // 最初は失敗する
+            final boolean fail = requests.incrementAndGet() == 1;
+            if (!fail && "PUT".equals(exchange.getRequestMethod())) {
+                final String path = exchange.getRequestURI().getPath();
+                received.put(path.substring(path.lastIndexOf('/') + 1), body.toByteArray());
+            }
+            exchange.sendResponseHeaders(fail ? 503 : 201, -1);
+            exchange.close();
+        });
+        server.start();
+        try {
+            final String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/video";
+            final SegmentUploader uploader = new SegmentUploader(dir, SegmentUploader.sinkFor(url), new Backoff(10, 100));
+            uploader.start();
+            final byte[] video = new byte[10_000];
+            new Random(2).nextBytes(video);
+            try (VideoSegmentWriter writer = new VideoSegmentWriter(dir, 4_096, uploader::offer)) {
+                for (int i = 0; i < video.length; i += 1_000) {
+                    writer.writeDatagram(ByteBuffer.wrap(video, i, 1_000));
+                }
+            }
+            try {
+                awaitUploaded(uploader, 3);
+            } finally {
+                uploader.close();
+            }
+            assertEquals(4, requests.get());
+
+            final ByteArrayOutputStream joined = new ByteArrayOutputStream();
+            for (byte[] segment : received.values()) {
+                for (byte[] datagram : VideoSegmentWriterTest.readDatagrams(new ByteArrayInputStream(segment))) {
+                    joined.write(datagram);
+                }
+            }
+            assertArrayEquals(video, joined.toByteArray());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+}
@@ -0,0 +1,171 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * SimulatedVehicle のテスト。
+ */
+public class SimulatedVehicleTest {
+
+    private static final Map<Integer, Integer> CRC_EXTRAS = new HashMap<>();
+
+    static {
+        CRC_EXTRAS.put(MavlinkWriter.HEARTBEAT, 50);
+        CRC_EXTRAS.put(MavlinkWriter.SYS_STATUS, 124);
+        CRC_EXTRAS.put(MavlinkWriter.ATTITUDE, 39);
+        CRC_EXTRAS.put(MavlinkWriter.GLOBAL_POSITION_INT, 104);
+        CRC_EXTRAS.put(MavlinkWriter.MISSION_CURRENT, 28);
+    }
+
+    /**
+     * 模擬機体を動かして、届いたメッセージを集める
+     */
+    private static List<byte[]> receive(SimulatedVehicleFactory factory, long duration) throws Exception {
+        try (DatagramChannel channel = DatagramChannel.open()) {
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, 1 << 20);
+            channel.bind(new InetSocketAddress("127.0.0.1", 0));
+            channel.configureBlocking(false);
+            final List<byte[]> messages = new ArrayList<>();
+            final ByteBuffer buff = ByteBuffer.allocate(512);
+            try (SimulatedVehicle vehicle = factory.create((InetSocketAddress) channel.getLocalAddress())) {
+                vehicle.start();
+                final long end = System.currentTimeMillis() + duration;
+                while (System.currentTimeMillis() < end && !vehicle.await(1)) {
+                    buff.clear();
+                    while (channel.receive(buff) != null) {
+                        buff.flip();
+                        final byte[] message = new byte[buff.remaining()];
+                        buff.get(message);
+                        messages.add(message);
+                        buff.clear();
+                    }
+                }
+            }
+            buff.clear();
+            while (channel.receive(buff) != null) {
+                buff.flip();
+                final byte[] message = new byte[buff.remaining()];
+                buff.get(message);
+                messages.add(message);
+                buff.clear();
+            }
+            return messages;
+        }
+    }
+
+    private interface SimulatedVehicleFactory {
+        SimulatedVehicle create(InetSocketAddress target);
+    }
+
+    private static int messageId(byte[] message) {
+        return message[5] & 0xff;
+    }
+
+    private static void assertValid(byte[] message) {
+        assertEquals((byte) 0xfe, message[0]);
+        assertEquals(message.length, 6 + (message[1] & 0xff) + 2);
+        final ByteBuffer buff = ByteBuffer.wrap(message).order(ByteOrder.LITTLE_ENDIAN);
+        final int crc = MavlinkWriter.crc(buff, 1, message.length - 2, CRC_EXTRAS.get(messageId(message)));
+        assertEquals(crc, buff.getShort(message.length - 2) & 0xffff);
+    }
+
+    @Test
+    public void sendsDeterministicFlight() throws Exception {
+        // 100 倍速で 1 秒動かすと 100 秒分の飛行になる
+        final SimulatedVehicleFactory factory = target -> new SimulatedVehicle(target, 100, 1);
+        final List<byte[]> first = receive(factory, 1_000);
+        final List<byte[]> second = receive(factory, 1_000);
+
+        final Map<Integer, Integer> counts = new HashMap<>();
+        for (byte[] message : first) {
+            assertValid(message);
+            final Integer count = counts.get(messageId(message));
+            counts.put(messageId(message), count == null ? 1 : count + 1);
+        }
+        assertTrue(counts.get(MavlinkWriter.GLOBAL_POSITION_INT) > 300);
+        assertTrue(counts.get(MavlinkWriter.ATTITUDE) > 2 * counts.get(MavlinkWriter.HEARTBEAT));
+        assertNotNull(counts.get(MavlinkWriter.SYS_STATUS));
+        assertNotNull(counts.get(MavlinkWriter.MISSION_CURRENT));
+
+        // 同じ並びになる
+        final int n = Math.min(first.size(), second.size());
+        assertTrue(n > 100);
+        for (int i = 0; i < n; i++) {
+            assertArrayEquals(first.get(i), second.get(i));
+        }
+    }
+
+    @Test
+    public void replaysRecords() throws Exception {
+        final Map<String, Object> position = new HashMap<>();
+        position.put("coordinate", new double[]{35.6812361, 139.7671251, 30.25});
+        final Map<String, Object> attitude = new HashMap<>();
+        attitude.put("roll", 1.0);
+        attitude.put("pitch", 2.0);
+        attitude.put("yaw", 90.0);
+        final List<TelemetryRecorder.Record> records = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            // 10 回/秒で 5 秒分
+            records.add(new TelemetryRecorder.Record(10_000 + i * 100, Events.POSITION, position));
+            records.add(new TelemetryRecorder.Record(10_000 + i * 100, Events.ATTITUDE, attitude));
+        }
+        records.add(new TelemetryRecorder.Record(15_000, Events.MODE, Collections.singletonMap("mode", "Guided")));
+        records.add(new TelemetryRecorder.Record(15_000, Events.METRICS, Collections.emptyMap()));
+
+        final long start = System.nanoTime();
+        final List<byte[]> messages = receive(target -> new SimulatedVehicle(target, 50, records), 2_000);
+        final long elapsed = (System.nanoTime() - start) / 1_000_000;
+        // 50 倍速なので 0.1 秒で終わる
+        assertTrue(elapsed < 1_500);
+
+        final List<Integer> ids = new ArrayList<>();
+        for (byte[] message : messages) {
+            assertValid(message);
+            ids.add(messageId(message));
+        }
+        assertEquals(50, Collections.frequency(ids, MavlinkWriter.GLOBAL_POSITION_INT));
+        assertEquals(50, Collections.frequency(ids, MavlinkWriter.ATTITUDE));
+        // 同じ時刻なら記録を先に送り、HEARTBEAT は 1 秒ごとと、モードが変わったとき
+        assertEquals(Arrays.asList(MavlinkWriter.GLOBAL_POSITION_INT, MavlinkWriter.ATTITUDE, MavlinkWriter.HEARTBEAT), ids.subList(0, 3));
+        assertEquals(MavlinkWriter.HEARTBEAT, (int) ids.get(ids.size() - 1));
+
+        final ByteBuffer last = ByteBuffer.wrap(messages.get(messages.size() - 1)).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(4, last.getInt(6));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTooFast() throws Exception {
+        new SimulatedVehicle(new InetSocketAddress("127.0.0.1", 14550), 1_000, 1);
+    }
+
+}
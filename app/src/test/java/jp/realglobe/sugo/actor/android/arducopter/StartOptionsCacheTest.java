@@ -0,0 +1,73 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * StartOptionsCache のテスト。
+ */
+public class StartOptionsCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void savesAndLoads() throws Exception {
+        final File file = new File(this.folder.getRoot(), ActorService.START_OPTIONS_FILE);
+        final StartOptionsCache cache = new StartOptionsCache(file);
+        assertNull(cache.load());
+
+        final Map<String, Object> options = new HashMap<>();
+        options.put(ActorService.KEY_HUB_ADDRESS, "http://localhost:8080/actors");
+        options.put(ActorService.KEY_MODULE_NAMES, new String[]{"ArduCopter", "ArduCopter2"});
+        options.put(ActorService.KEY_BATCHING, true);
+        options.put(ActorService.KEY_POSITION_RATE, 2.5);
+        options.put(ActorService.KEY_VIDEO_SEGMENT_SIZE, 4L * 1024 * 1024);
+        cache.save(options);
+
+        final Map<String, Object> loaded = new StartOptionsCache(file).load();
+        assertEquals(5, loaded.size());
+        assertEquals("http://localhost:8080/actors", loaded.get(ActorService.KEY_HUB_ADDRESS));
+        assertArrayEquals(new String[]{"ArduCopter", "ArduCopter2"}, (String[]) loaded.get(ActorService.KEY_MODULE_NAMES));
+        assertEquals(true, loaded.get(ActorService.KEY_BATCHING));
+        assertEquals(2.5, ((Number) loaded.get(ActorService.KEY_POSITION_RATE)).doubleValue(), 0);
+        assertEquals(4L * 1024 * 1024, ((Number) loaded.get(ActorService.KEY_VIDEO_SEGMENT_SIZE)).longValue());
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsBrokenFile() throws Exception {
+        final File file = this.folder.newFile();
+        try (FileOutputStream output = new FileOutputStream(file)) {
+            output.write("{\"hubAddress\": \"http://loc".getBytes(StandardCharsets.UTF_8));
+        }
+        new StartOptionsCache(file).load();
+    }
+
+}
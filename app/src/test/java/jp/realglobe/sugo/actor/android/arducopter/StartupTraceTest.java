@@ -0,0 +1,65 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * StartupTrace のテスト。
+ */
+public class StartupTraceTest {
+
+    @Test
+    public void recordsPhasesFromThreads() throws Exception {
+        final StartupTrace trace = new StartupTrace(System.nanoTime());
+        final long begin = trace.begin();
+        final Thread thread = new Thread(() -> {
+            final long taskBegin = trace.begin();
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            trace.end("pipeline", taskBegin);
+        }, "startup-1");
+        thread.start();
+        thread.join();
+        trace.end("prepare", begin);
+        trace.mark("started");
+
+        final List<StartupTrace.Phase> phases = trace.getPhases();
+        assertEquals(3, phases.size());
+        assertEquals("prepare", phases.get(0).name);
+        assertEquals("pipeline", phases.get(1).name);
+        assertEquals("startup-1", phases.get(1).thread);
+        assertTrue(phases.get(1).end - phases.get(1).start >= TimeUnit.MILLISECONDS.toNanos(20));
+        assertEquals(phases.get(2).start, phases.get(2).end);
+
+        assertTrue(trace.getElapsed("started") >= trace.getElapsed("prepare"));
+        assertEquals(-1, trace.getElapsed("hub.connect"));
+        final Map<String, Object> map = trace.toMap();
+        assertEquals("startup-1", ((Map<?, ?>) map.get("pipeline")).get("thread"));
+        assertTrue(trace.toString().contains("pipeline"));
+    }
+
+}
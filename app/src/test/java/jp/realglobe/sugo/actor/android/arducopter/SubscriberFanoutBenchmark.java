@@ -0,0 +1,167 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * 回線の遅い購読者がいるときに、他の購読者へのイベントが遅れないかを測る。
+ * 全購読者が同じ設定で購読して 1 つの待ち行列を共有し、全員の受け取り確認を待つ場合 (shared) と、
+ * 購読者ごとに設定を変えて別々の待ち行列を持つ場合 (perSubscriber) で、購読者ごとの遅延と届いた数を
+ * build/reports/benchmarks/subscriber-fanout.json に書き出す
+ */
+public class SubscriberFanoutBenchmark {
+
+    private static final int RATE = 50;
+    private static final long DURATION = 5_000;
+    /**
+     * 購読者と、片道の遅延 (ミリ秒)
+     */
+    private static final String[] SUBSCRIBERS = {"controller", "logger", "dashboard"};
+    private static final long[] DELAYS = {5, 20, 300};
+
+    /**
+     * 購読者までの回線。決まった遅延で届き、同じだけ遅れて確認が返る
+     */
+    private static final class Link {
+
+        final String name;
+        final long delay;
+        final ScheduledExecutorService thread;
+        final LatencyHistogram latency = new LatencyHistogram();
+        final AtomicLong delivered = new AtomicLong();
+        final AtomicLong acked = new AtomicLong();
+
+        Link(String name, long delay) {
+            this.name = name;
+            this.delay = delay;
+            this.thread = Executors.newSingleThreadScheduledExecutor(runnable -> new Thread(runnable, "link." + name));
+        }
+
+        void send(Map<?, ?> frame, AckListener listener) {
+            final long seq = (Long) frame.get("seq");
+            this.thread.schedule(() -> {
+                final List<Long> sentAt = new ArrayList<>();
+                SyntheticTelemetry.collectSentAt(frame.get("data"), sentAt);
+                final long now = System.nanoTime();
+                for (long time : sentAt) {
+                    this.latency.record(now - time);
+                }
+                this.delivered.incrementAndGet();
+                this.thread.schedule(() -> {
+                    this.acked.set(seq);
+                    listener.acked(this, seq);
+                }, this.delay, TimeUnit.MILLISECONDS);
+            }, this.delay, TimeUnit.MILLISECONDS);
+        }
+
+    }
+
+    private interface AckListener {
+        void acked(Link link, long seq);
+    }
+
+    @Test
+    public void subscriberFanout() throws Exception {
+        assumeTrue(Benchmarks.enabled());
+
+        final List<Object> results = new ArrayList<>();
+        final Map<String, Long> controllerP99 = new HashMap<>();
+        for (String mode : new String[]{"shared", "perSubscriber"}) {
+            final Map<String, Object> result = measure(mode);
+            System.out.println(result);
+            results.add(result);
+            controllerP99.put(mode, (Long) result.get("controllerP99"));
+        }
+        assertTrue(controllerP99.get("perSubscriber") < controllerP99.get("shared"));
+        final File report = Benchmarks.writeReport("subscriber-fanout", results);
+        System.out.println("report: " + report.getAbsolutePath());
+    }
+
+    private Map<String, Object> measure(String mode) throws Exception {
+        final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        final Map<String, Link> links = new HashMap<>();
+        for (int i = 0; i < SUBSCRIBERS.length; i++) {
+            links.put(SUBSCRIBERS[i], new Link(SUBSCRIBERS[i], DELAYS[i]));
+        }
+        try {
+            final SubscriberFanout[] fanout = new SubscriberFanout[1];
+            final AckListener listener = (link, seq) -> fanout[0].ack(link.name, seq);
+            final Map<String, List<Link>> receivers = new HashMap<>();
+            fanout[0] = new SubscriberFanout((event, data) -> {
+                for (Link link : receivers.get(event)) {
+                    link.send((Map<?, ?>) data, listener);
+                }
+            }, scheduler, 60_000);
+            fanout[0].setOnline(true);
+            for (int i = 0; i < SUBSCRIBERS.length; i++) {
+                final Map<String, Object> options = new HashMap<>();
+                if (mode.equals("perSubscriber")) {
+                    // 設定が違えば待ち行列を共有しない
+                    options.put(SubscriberFanout.OPTION_CAPACITY, SubscriberFanout.DEFAULT_CAPACITY + i);
+                }
+                final String frameEvent = fanout[0].subscribe(SUBSCRIBERS[i], null, options);
+                List<Link> receiving = receivers.get(frameEvent);
+                if (receiving == null) {
+                    receiving = new ArrayList<>();
+                    receivers.put(frameEvent, receiving);
+                }
+                receiving.add(links.get(SUBSCRIBERS[i]));
+            }
+            SyntheticTelemetry.run(fanout[0], RATE, DURATION);
+            final Map<String, Object> stats = fanout[0].toMap();
+            Thread.sleep(1_000);
+
+            final Map<String, Object> result = new HashMap<>();
+            result.put("mode", mode);
+            result.put("rate", RATE);
+            result.put("topics", SyntheticTelemetry.TOPICS.length);
+            result.put("queues", stats);
+            final Map<String, Object> subscribers = new HashMap<>();
+            for (int i = 0; i < SUBSCRIBERS.length; i++) {
+                final Link link = links.get(SUBSCRIBERS[i]);
+                final Map<String, Object> subscriber = new HashMap<>();
+                subscriber.put("delay", DELAYS[i]);
+                subscriber.put("delivered", link.delivered.get());
+                subscriber.put("latency", link.latency.toMap());
+                subscribers.put(link.name, subscriber);
+            }
+            result.put("subscribers", subscribers);
+            result.put("controllerP99", links.get("controller").latency.getPercentile(99));
+            return result;
+        } finally {
+            scheduler.shutdownNow();
+            for (Link link : links.values()) {
+                link.thread.shutdownNow();
+            }
+        }
+    }
+
+}
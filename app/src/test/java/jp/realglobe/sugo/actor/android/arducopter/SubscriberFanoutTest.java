@@ -0,0 +1,165 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.Assert.*;
+
+/**
+ * SubscriberFanout のテスト。
+ */
+public class SubscriberFanoutTest {
+
+    private ScheduledExecutorService scheduler;
+    private List<Object[]> sent;
+
+    @Before
+    public void setUp() throws Exception {
+        this.scheduler = Executors.newSingleThreadScheduledExecutor();
+        this.sent = Collections.synchronizedList(new ArrayList<Object[]>());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.scheduler.shutdownNow();
+    }
+
+    private int count(String frameEvent) {
+        int count = 0;
+        synchronized (this.sent) {
+            for (Object[] frame : this.sent) {
+                if (frameEvent.equals(frame[0])) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void slowSubscriberDoesNotBlockOthers() throws Exception {
+        final SubscriberFanout fanout = new SubscriberFanout((event, data) -> this.sent.add(new Object[]{event, data}), this.scheduler, 60_000);
+        fanout.setOnline(true);
+        final Map<String, Object> options = new HashMap<>();
+        options.put(SubscriberFanout.OPTION_WINDOW, 4);
+        options.put(SubscriberFanout.OPTION_CAPACITY, 8);
+        final String dashboard = fanout.subscribe("dashboard", null, options);
+        final String controller = fanout.subscribe("controller", Collections.singletonList(Events.POSITION), options);
+        assertEquals("subscriber:dashboard", dashboard);
+
+        // dashboard は確認を返さない
+        for (int i = 1; i <= 100; i++) {
+            fanout.emit(Events.POSITION, i);
+            fanout.emit(Events.ATTITUDE, i);
+            this.scheduler.submit(() -> null).get();
+            fanout.ack("controller", i);
+        }
+        this.scheduler.submit(() -> null).get();
+        assertEquals(4, count(dashboard));
+        assertEquals(100, count(controller));
+
+        final Map<?, ?> stats = fanout.toMap();
+        final Map<?, ?> dashboardStats = (Map<?, ?>) stats.get("dashboard");
+        assertEquals(4, dashboardStats.get("inFlight"));
+        assertEquals(8, dashboardStats.get("queued"));
+        assertEquals(200L - 4 - 8, dashboardStats.get("dropped"));
+        assertEquals(0, ((Map<?, ?>) stats.get("controller")).get("inFlight"));
+    }
+
+    @Test
+    public void expiresSilentSubscriber() throws Exception {
+        final SubscriberFanout fanout = new SubscriberFanout((event, data) -> this.sent.add(new Object[]{event, data}), this.scheduler, 50);
+        fanout.setOnline(true);
+        fanout.subscribe("a", null, null);
+        fanout.subscribe("b", null, null);
+        fanout.emit(Events.ARMED, null);
+        this.scheduler.submit(() -> null).get();
+        fanout.ack("b", 1);
+        Thread.sleep(100);
+        fanout.expire();
+        assertFalse(fanout.unsubscribe("a"));
+        assertTrue(fanout.unsubscribe("b"));
+    }
+
+    @Test
+    public void wantsSelectedEvents() throws Exception {
+        final SubscriberFanout fanout = new SubscriberFanout((event, data) -> this.sent.add(new Object[]{event, data}), this.scheduler, 60_000);
+        fanout.setOnline(true);
+        assertFalse(fanout.wants(Events.METRICS));
+        fanout.subscribe("a", Collections.singletonList(Events.POSITION), null);
+        assertTrue(fanout.wants(Events.POSITION));
+        assertFalse(fanout.wants(Events.METRICS));
+        fanout.enable("a", Collections.singletonList(Events.METRICS));
+        assertTrue(fanout.wants(Events.METRICS));
+    }
+
+    @Test
+    public void sharesFrameForSameSelection() throws Exception {
+        final SubscriberFanout fanout = new SubscriberFanout((event, data) -> this.sent.add(new Object[]{event, data}), this.scheduler, 60_000);
+        fanout.setOnline(true);
+        final String a = fanout.subscribe("a", Collections.singletonList(Events.POSITION), null);
+        final String b = fanout.subscribe("b", Collections.singletonList(Events.POSITION), null);
+        final String c = fanout.subscribe("c", Collections.singletonList(Events.ATTITUDE), null);
+        assertEquals(a, b);
+        assertNotEquals(a, c);
+
+        fanout.emit(Events.POSITION, 1);
+        this.scheduler.submit(() -> null).get();
+        assertEquals(1, this.sent.size());
+
+        // 選び直したら自分だけの待ち行列に移る
+        final String moved = fanout.enable("b", Collections.singletonList(Events.ATTITUDE));
+        assertNotEquals(a, moved);
+        assertNotEquals(c, moved);
+        fanout.emit(Events.ATTITUDE, 2);
+        this.scheduler.submit(() -> null).get();
+        assertEquals(1, count(a));
+        assertEquals(1, count(moved));
+        assertEquals(1, count(c));
+    }
+
+    @Test
+    public void holdsFramesWhileOffline() throws Exception {
+        final SubscriberFanout fanout = new SubscriberFanout((event, data) -> this.sent.add(new Object[]{event, data}), this.scheduler, 60_000);
+        final String frameEvent = fanout.subscribe("a", null, null);
+        fanout.emit(Events.MODE, "Guided");
+        this.scheduler.submit(() -> null).get();
+        assertEquals(0, count(frameEvent));
+        fanout.setOnline(true);
+        this.scheduler.submit(() -> null).get();
+        assertEquals(1, count(frameEvent));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownSubscriber() throws Exception {
+        final SubscriberFanout fanout = new SubscriberFanout((event, data) -> this.sent.add(new Object[]{event, data}), this.scheduler, 60_000);
+        fanout.setOnline(true);
+        fanout.ack("none", 1);
+    }
+
+}
@@ -0,0 +1,202 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * SubscriberQueue のテスト。
+ */
+public class SubscriberQueueTest {
+
+    private ScheduledExecutorService scheduler;
+    private List<Map<?, ?>> sent;
+
+    @Before
+    public void setUp() throws Exception {
+        this.scheduler = Executors.newSingleThreadScheduledExecutor();
+        this.sent = Collections.synchronizedList(new ArrayList<Map<?, ?>>());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.scheduler.shutdownNow();
+    }
+
+    private SubscriberQueue queue(List<String> events, int capacity, String dropPolicy, double maxRate, int window) {
+        final SubscriberQueue queue = new SubscriberQueue((event, data) -> {
+            assertEquals("subscriber:a", event);
+            this.sent.add((Map<?, ?>) data);
+        }, "subscriber:a", this.scheduler, EventSubscriptions.of(events), capacity, dropPolicy, maxRate, window, true);
+        queue.join("a");
+        return queue;
+    }
+
+    /**
+     * 送る処理が一巡するのを待つ
+     */
+    private void settle() throws Exception {
+        this.scheduler.submit(() -> null).get();
+    }
+
+    @Test
+    public void waitsForAck() throws Exception {
+        final SubscriberQueue queue = queue(null, 16, SubscriberQueue.DROP_OLDEST, 0, 2);
+        for (int i = 0; i < 5; i++) {
+            queue.offer(Events.POSITION, i);
+        }
+        settle();
+        assertEquals(2, this.sent.size());
+        assertEquals(1L, this.sent.get(0).get("seq"));
+        assertEquals(Events.POSITION, this.sent.get(0).get("event"));
+        assertEquals(0, this.sent.get(0).get("data"));
+        assertTrue(queue.getLag(System.nanoTime()) > 0);
+
+        assertTrue(queue.ack("a", 2) >= 0);
+        assertEquals(-1, queue.ack("a", 2));
+        settle();
+        assertEquals(4, this.sent.size());
+        assertEquals(3, this.sent.get(3).get("data"));
+
+        // 切れている間は送らない。繋ぎ直したら確認の来ていないものを同じ通し番号で送り直す
+        queue.setOnline(false);
+        queue.offer(Events.POSITION, 5);
+        settle();
+        assertEquals(4, this.sent.size());
+        queue.setOnline(true);
+        settle();
+        assertEquals(6, this.sent.size());
+        assertEquals(3L, this.sent.get(4).get("seq"));
+        assertEquals(4L, this.sent.get(5).get("seq"));
+        assertEquals(0L, queue.getDropped());
+        assertTrue(queue.ack("a", 4) >= 0);
+        settle();
+        assertEquals(8, this.sent.size());
+        assertEquals(5L, this.sent.get(6).get("seq"));
+        assertEquals(4, this.sent.get(6).get("data"));
+        assertEquals(5, this.sent.get(7).get("data"));
+    }
+
+    @Test
+    public void waitsForAllMembers() throws Exception {
+        final SubscriberQueue queue = queue(null, 16, SubscriberQueue.DROP_OLDEST, 0, 1);
+        queue.join("b");
+        queue.offer(Events.POSITION, 0);
+        queue.offer(Events.POSITION, 1);
+        settle();
+        assertEquals(1, this.sent.size());
+        assertTrue(queue.ack("a", 1) >= 0);
+        settle();
+        assertEquals(1, this.sent.size());
+        assertTrue(queue.ack("b", 1) >= 0);
+        settle();
+        assertEquals(2, this.sent.size());
+
+        // 確認を返さない購読者は外れ、残りの購読者は先へ進む
+        queue.offer(Events.POSITION, 2);
+        assertTrue(queue.ack("a", 2) >= 0);
+        settle();
+        assertEquals(2, this.sent.size());
+        Thread.sleep(20);
+        assertEquals(Collections.singletonList("b"), queue.expire(System.nanoTime(), TimeUnit.MILLISECONDS.toNanos(10)));
+        settle();
+        assertEquals(3, this.sent.size());
+        assertEquals(1, queue.getMemberCount());
+    }
+
+    @Test
+    public void dropsByPolicy() throws Exception {
+        final SubscriberQueue oldest = queue(null, 2, SubscriberQueue.DROP_OLDEST, 0, 1);
+        oldest.offer(Events.POSITION, 0);
+        settle();
+        for (int i = 1; i <= 4; i++) {
+            oldest.offer(Events.POSITION, i);
+        }
+        assertEquals(2L, oldest.getDropped());
+        oldest.ack("a", 1);
+        settle();
+        assertEquals(3, this.sent.get(1).get("data"));
+
+        this.sent.clear();
+        final SubscriberQueue newest = queue(null, 2, SubscriberQueue.DROP_NEWEST, 0, 1);
+        newest.offer(Events.POSITION, 0);
+        settle();
+        for (int i = 1; i <= 4; i++) {
+            newest.offer(Events.POSITION, i);
+        }
+        assertEquals(2L, newest.getDropped());
+        newest.ack("a", 1);
+        settle();
+        assertEquals(1, this.sent.get(1).get("data"));
+
+        this.sent.clear();
+        final SubscriberQueue latest = queue(null, 2, SubscriberQueue.KEEP_LATEST, 0, 1);
+        latest.offer(Events.ARMED, null);
+        settle();
+        for (int i = 1; i <= 4; i++) {
+            latest.offer(Events.POSITION, i);
+            latest.offer(Events.ATTITUDE, -i);
+        }
+        assertEquals(0L, latest.getDropped());
+        latest.ack("a", 1);
+        settle();
+        latest.ack("a", 2);
+        settle();
+        assertEquals(3, this.sent.size());
+        assertEquals(4, this.sent.get(1).get("data"));
+        assertEquals(-4, this.sent.get(2).get("data"));
+    }
+
+    @Test
+    public void capsRateAndSelectsEvents() throws Exception {
+        final SubscriberQueue queue = queue(Arrays.asList(Events.POSITION, Events.MODE), 16, SubscriberQueue.DROP_OLDEST, 20, 0);
+        for (int i = 0; i < 4; i++) {
+            queue.offer(Events.POSITION, i);
+            queue.offer(Events.ATTITUDE, i);
+        }
+        queue.offer(Events.MODE, "Guided");
+        settle();
+        assertEquals(1, this.sent.size());
+        Thread.sleep(400);
+        assertEquals(5, this.sent.size());
+        assertEquals("Guided", this.sent.get(4).get("data"));
+
+        queue.getSubscriptions().disable(Collections.singletonList(Events.MODE));
+        queue.offer(Events.MODE, "Land");
+        Thread.sleep(100);
+        assertEquals(5, this.sent.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownPolicy() throws Exception {
+        queue(null, 16, "random", 0, 0);
+    }
+
+}
@@ -0,0 +1,102 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * SubscriptionGate のテスト。
+ */
+public class SubscriptionGateTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void dropsUnsubscribedEvents() throws Exception {
+        final EventSubscriptions subscriptions = new EventSubscriptions();
+        subscriptions.disable(null);
+        subscriptions.enable(Arrays.asList(Events.ARMED, Events.POSITION));
+        final TopicCounters counters = new TopicCounters();
+        final List<String> sent = new ArrayList<>();
+        final SubscriptionGate gate = new SubscriptionGate((event, data) -> sent.add(event), subscriptions, counters, true);
+
+        gate.emit(Events.POSITION, 1);
+        gate.emit(Events.ATTITUDE, 2);
+        gate.emit(Events.SPEED, 3);
+        gate.emit(Events.POSITION, 4);
+
+        assertEquals(Arrays.asList(Events.POSITION, Events.POSITION), sent);
+        assertEquals(2, counters.getSent(Events.POSITION));
+        assertEquals(0, counters.getSuppressed(Events.POSITION));
+        assertEquals(0, counters.getSent(Events.ATTITUDE));
+        assertEquals(1, counters.getSuppressed(Events.ATTITUDE));
+        assertEquals(1, counters.getSuppressed(Events.SPEED));
+
+        // 流している途中で購読が外れた
+        subscriptions.disable(Arrays.asList(Events.POSITION));
+        gate.emit(Events.POSITION, 5);
+        assertEquals(2, sent.size());
+        assertEquals(1, counters.getSuppressed(Events.POSITION));
+
+        final Map<?, ?> position = (Map<?, ?>) counters.toMap().get(Events.POSITION);
+        assertEquals(0L, position.get("produced"));
+        assertEquals(1L, position.get("suppressed"));
+        assertEquals(2L, position.get("sent"));
+    }
+
+    @Test
+    public void recordsUnsubscribedEvents() throws Exception {
+        final EventSubscriptions subscriptions = new EventSubscriptions();
+        subscriptions.disable(Collections.singletonList(Events.POSITION));
+        final TopicCounters counters = new TopicCounters();
+        final List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+        final PipelineOptions options = new PipelineOptions();
+        options.recorderFile = folder.newFile();
+        final EventPipeline pipeline = new EventPipeline("gate", (event, data) -> sent.add(event), options, subscriptions, counters);
+        try {
+            pipeline.getInput().emit(Events.POSITION, 1);
+            pipeline.getInput().emit(Events.MODE, "Guided");
+            Thread.sleep(200);
+
+            assertEquals(Collections.singletonList(Events.MODE), sent);
+            assertEquals(1, counters.getSuppressed(Events.POSITION));
+            assertEquals(1, counters.getSent(Events.MODE));
+            final List<TelemetryRecorder.Record> records = pipeline.getRecorder().read(0, Long.MAX_VALUE);
+            // レーンは状態イベントを先に流すので、順番は問わない
+            final List<String> recorded = new ArrayList<>();
+            for (TelemetryRecorder.Record record : records) {
+                recorded.add(record.event);
+            }
+            assertEquals(2, recorded.size());
+            assertTrue(recorded.contains(Events.POSITION));
+        } finally {
+            pipeline.close();
+        }
+    }
+
+}
@@ -0,0 +1,150 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ベンチマーク用のテレメトリ。
+ * 機体からの受信スレッドの代わりに、決まった頻度で全種類のテレメトリを流す
+ */
+final class SyntheticTelemetry {
+
+    /**
+     * 流した時刻 (ナノ秒) を入れるフィールド
+     */
+    static final String KEY_SENT_AT = "sentAt";
+
+    static final String[] TOPICS = {Events.POSITION, Events.ATTITUDE, Events.SPEED, Events.BATTERY, Events.GIMBAL_ORIENTATION};
+
+    private SyntheticTelemetry() {
+    }
+
+    /**
+     * 決まった頻度で流す
+     *
+     * @param sink     流し先
+     * @param rate     1 種類あたりの頻度 (回/秒)
+     * @param duration 流す時間 (ミリ秒)
+     * @return 流した数
+     */
+    static long run(EventSink sink, int rate, long duration) {
+        final long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+        final long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(duration);
+        long count = 0;
+        long next = System.nanoTime();
+        while (next < end) {
+            for (String topic : TOPICS) {
+                sink.emit(topic, payload(topic, count));
+                count++;
+            }
+            next += interval;
+            final long wait = next - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return モジュールが発行するのと同じ形の中身
+     */
+    static Map<String, Object> payload(String topic, long i) {
+        final Map<String, Object> data = new HashMap<>();
+        switch (topic) {
+            case Events.POSITION:
+                data.put("coordinate", new double[]{35.681236 + i * 1e-7, 139.767125 + i * 1e-7, 30.25 + (i % 100) * 0.01});
+                break;
+            case Events.SPEED:
+                data.put("groundSpeed", 5.0 + (i % 10) * 0.1);
+                data.put("airSpeed", 5.5 + (i % 10) * 0.1);
+                data.put("verticalSpeed", 0.1);
+                break;
+            case Events.BATTERY:
+                data.put(ArduCopterModule.BATTERY_REMAIN, 80.0 - i * 1e-4);
+                data.put("voltage", 12.1);
+                data.put("current", 10.5);
+                break;
+            default:
+                data.put("roll", 0.0123 + (i % 10) * 1e-3);
+                data.put("pitch", -0.0456);
+                data.put("yaw", 1.5708);
+                break;
+        }
+        data.put(KEY_SENT_AT, System.nanoTime());
+        return data;
+    }
+
+    /**
+     * 届いた中身から流した時刻を全て拾う。
+     * まとめ送りや差分化された中身の中も探す
+     *
+     * @param data     届いた中身
+     * @param sentAtTo 拾った時刻の入れ先
+     */
+    static void collectSentAt(Object data, Collection<Long> sentAtTo) {
+        if (data instanceof String) {
+            final String text = (String) data;
+            if (text.startsWith("{")) {
+                collectSentAt(new JSONObject(text), sentAtTo);
+            }
+        } else if (data instanceof Map) {
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) data).entrySet()) {
+                if (KEY_SENT_AT.equals(entry.getKey()) && entry.getValue() instanceof Number) {
+                    sentAtTo.add(((Number) entry.getValue()).longValue());
+                } else {
+                    collectSentAt(entry.getValue(), sentAtTo);
+                }
+            }
+        } else if (data instanceof Collection) {
+            for (Object element : (Collection<?>) data) {
+                collectSentAt(element, sentAtTo);
+            }
+        } else if (data instanceof Object[]) {
+            for (Object element : (Object[]) data) {
+                collectSentAt(element, sentAtTo);
+            }
+        } else if (data instanceof JSONObject) {
+            final JSONObject object = (JSONObject) data;
+            for (String key : object.keySet()) {
+                final Object value = object.get(key);
+                if (KEY_SENT_AT.equals(key) && value instanceof Number) {
+                    sentAtTo.add(((Number) value).longValue());
+                } else {
+                    collectSentAt(value, sentAtTo);
+                }
+            }
+        } else if (data instanceof JSONArray) {
+            for (Object element : (JSONArray) data) {
+                collectSentAt(element, sentAtTo);
+            }
+        }
+    }
+
+}
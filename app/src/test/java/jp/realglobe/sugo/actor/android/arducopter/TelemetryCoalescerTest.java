@@ -0,0 +1,95 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.Assert.*;
+
+/**
+ * TelemetryCoalescer のテスト。
+ */
+public class TelemetryCoalescerTest {
+
+    @Test
+    public void stateEventsPassImmediately() throws Exception {
+        final List<Object> sent = Collections.synchronizedList(new ArrayList<>());
+        final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        try {
+            final TelemetryCoalescer coalescer = new TelemetryCoalescer((event, data) -> sent.add(event), scheduler);
+            coalescer.setRate(Events.POSITION, 1);
+            coalescer.emit(Events.ARMED, null);
+            coalescer.emit(Events.MODE, "Guided");
+            coalescer.emit(Events.ARMED, null);
+            assertEquals(3, sent.size());
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    @Test
+    public void keepsOnlyLatestValue() throws Exception {
+        final List<Object> sent = Collections.synchronizedList(new ArrayList<>());
+        final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        try {
+            final TelemetryCoalescer coalescer = new TelemetryCoalescer((event, data) -> sent.add(data), scheduler);
+            coalescer.setRate(Events.POSITION, 5);
+            for (int i = 0; i < 100; i++) {
+                coalescer.emit(Events.POSITION, i);
+            }
+            // 最初の 1 つはすぐ流れ、残りは最新値だけが 200ms 後に流れる
+            assertEquals(Collections.singletonList(0), new ArrayList<>(sent));
+            Thread.sleep(400);
+            assertEquals(2, sent.size());
+            assertEquals(99, sent.get(1));
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    @Test
+    public void changingRateKeepsPendingValue() throws Exception {
+        final List<Object> sent = Collections.synchronizedList(new ArrayList<>());
+        final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        try {
+            final TelemetryCoalescer coalescer = new TelemetryCoalescer((event, data) -> sent.add(data), scheduler);
+            coalescer.setRate(Events.POSITION, 5);
+            coalescer.emit(Events.POSITION, 0);
+            coalescer.emit(Events.POSITION, 1);
+            coalescer.setRate(Events.POSITION, 1);
+            Thread.sleep(400);
+            assertEquals(2, sent.size());
+            assertEquals(1, sent.get(1));
+
+            // 新しい頻度は次から効く
+            coalescer.emit(Events.POSITION, 2);
+            Thread.sleep(400);
+            assertEquals(2, sent.size());
+            Thread.sleep(1_000);
+            assertEquals(3, sent.size());
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+}
@@ -0,0 +1,70 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+/**
+ * TelemetryLane のテスト。
+ */
+public class TelemetryLaneTest {
+
+    @Test
+    public void dropsOldestTelemetryButKeepsStateEvents() throws Exception {
+        final CountDownLatch blocker = new CountDownLatch(1);
+        final List<Object> sent = Collections.synchronizedList(new ArrayList<>());
+        final TelemetryLane lane = new TelemetryLane((event, data) -> {
+            try {
+                blocker.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            sent.add(data);
+        }, 3, new LaneStats("test"));
+        lane.start();
+        try {
+            // 最初の 1 つで次段を止めておく
+            lane.emit(Events.POSITION, -1);
+            Thread.sleep(100);
+            for (int i = 0; i < 10; i++) {
+                lane.emit(Events.POSITION, i);
+            }
+            lane.emit(Events.ARMED, "armed");
+            assertEquals(7, lane.getStats().getDropped());
+            assertEquals(4, lane.getStats().getDepth());
+
+            blocker.countDown();
+            Thread.sleep(200);
+            // 状態イベントが溜まっていたテレメトリより先に流れる
+            assertEquals(-1, sent.get(0));
+            assertEquals("armed", sent.get(1));
+            assertEquals(9, sent.get(sent.size() - 1));
+            assertEquals(5, sent.size());
+            assertEquals(0, lane.getStats().getDepth());
+        } finally {
+            lane.close();
+        }
+    }
+
+}
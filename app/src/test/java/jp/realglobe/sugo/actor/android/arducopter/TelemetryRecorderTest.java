@@ -0,0 +1,131 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * TelemetryRecorder のテスト。
+ */
+public class TelemetryRecorderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final EventSink NOTHING = (event, data) -> {
+    };
+
+    @Test
+    public void roundTrip() throws Exception {
+        final Map<String, Object> data = new HashMap<>();
+        data.put("coordinate", new double[]{35.5, 139.25, -1});
+        data.put("list", Arrays.asList(1L, -2L, "日本語", null, true));
+
+        final File file = folder.newFile();
+        try (TelemetryRecorder recorder = TelemetryRecorder.open(file, 1, NOTHING)) {
+            recorder.emit(Events.POSITION, data);
+            recorder.emit("custom", "value");
+
+            final List<TelemetryRecorder.Record> records = recorder.read(0, Long.MAX_VALUE);
+            assertEquals(2, records.size());
+            assertEquals(Events.POSITION, records.get(0).event);
+            final Map<?, ?> read = (Map<?, ?>) records.get(0).data;
+            assertArrayEquals(new double[]{35.5, 139.25, -1}, (double[]) read.get("coordinate"), 0);
+            assertEquals(data.get("list"), read.get("list"));
+            assertEquals("custom", records.get(1).event);
+            assertEquals("value", records.get(1).data);
+        }
+    }
+
+    @Test
+    public void wrapsAroundAndResumes() throws Exception {
+        final File file = folder.newFile();
+        final int capacity = 2 * TelemetryRecorder.BLOCK_SIZE;
+        final int count = 20_000;
+        try (TelemetryRecorder recorder = TelemetryRecorder.open(file, capacity, NOTHING)) {
+            for (int i = 0; i < count; i++) {
+                recorder.emit(Events.BATTERY, (long) i);
+            }
+            assertTrue(recorder.getWritePosition() > capacity);
+
+            final List<TelemetryRecorder.Record> records = recorder.read(0, Long.MAX_VALUE);
+            assertFalse(records.isEmpty());
+            assertTrue(records.size() < count);
+            // 残っているのは新しい方で、抜けが無い
+            assertEquals((long) count - 1, records.get(records.size() - 1).data);
+            for (int i = 1; i < records.size(); i++) {
+                assertEquals((Long) records.get(i - 1).data + 1, records.get(i).data);
+            }
+        }
+
+        try (TelemetryRecorder recorder = TelemetryRecorder.open(file, capacity, NOTHING)) {
+            recorder.emit(Events.BATTERY, (long) count);
+            final List<TelemetryRecorder.Record> records = recorder.read(0, Long.MAX_VALUE);
+            assertEquals((long) count, records.get(records.size() - 1).data);
+            assertEquals((long) count - 1, records.get(records.size() - 2).data);
+        }
+    }
+
+    @Test
+    public void readsTimeRange() throws Exception {
+        final File file = folder.newFile();
+        try (TelemetryRecorder recorder = TelemetryRecorder.open(file, 1, NOTHING)) {
+            recorder.emit(Events.MODE, "a");
+            Thread.sleep(20);
+            final long from = System.currentTimeMillis();
+            recorder.emit(Events.MODE, "b");
+            final long to = System.currentTimeMillis();
+            Thread.sleep(20);
+            recorder.emit(Events.MODE, "c");
+
+            final List<TelemetryRecorder.Record> records = recorder.read(from, to);
+            assertEquals(1, records.size());
+            assertEquals("b", records.get(0).data);
+            assertEquals(Events.MODE, records.get(0).toMap().get("event"));
+            assertEquals("b", records.get(0).toMap().get("data"));
+        }
+    }
+
+    @Test
+    public void readsUpToLimit() throws Exception {
+        final File file = folder.newFile();
+        try (TelemetryRecorder recorder = TelemetryRecorder.open(file, 1, NOTHING)) {
+            for (int i = 0; i < 10; i++) {
+                recorder.emit(Events.MODE, "m" + i);
+            }
+
+            final List<TelemetryRecorder.Record> records = recorder.read(0, Long.MAX_VALUE, 3);
+            assertEquals(3, records.size());
+            assertEquals("m0", records.get(0).data);
+            assertEquals("m2", records.get(2).data);
+            // 読んでいる間も記録は続く
+            recorder.emit(Events.MODE, "m10");
+            assertEquals(11, recorder.read(0, Long.MAX_VALUE).size());
+        }
+    }
+
+}
@@ -0,0 +1,104 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * まとめたテレメトリを JSON にするときの 1 イベントあたりの確保バイト数を比べる。
+ */
+public class TelemetrySerializationBenchmark {
+
+    private static final int EVENTS_PER_FRAME = 10;
+    private static final int WARMUP = 20_000;
+    private static final int FRAMES = 50_000;
+
+    @Test
+    public void allocationPerEvent() throws Exception {
+        assumeTrue(Benchmarks.enabled());
+
+        final Map<String, Object> position = new HashMap<>();
+        position.put("coordinate", new double[]{35.681236, 139.767125, 30.25});
+        final Map<String, Object> attitude = new HashMap<>();
+        attitude.put("roll", 0.0123);
+        attitude.put("pitch", -0.0456);
+        attitude.put("yaw", 1.5708);
+
+        final JsonWriter writer = new JsonWriter(4 * 1024);
+        long sink = 0;
+        for (int i = 0; i < WARMUP; i++) {
+            sink += objectTree(position, attitude).length();
+            sink += writer(writer, position, attitude).length();
+        }
+
+        long start = Benchmarks.allocatedBytes();
+        for (int i = 0; i < FRAMES; i++) {
+            sink += objectTree(position, attitude).length();
+        }
+        final double before = (double) (Benchmarks.allocatedBytes() - start) / FRAMES / EVENTS_PER_FRAME;
+
+        start = Benchmarks.allocatedBytes();
+        for (int i = 0; i < FRAMES; i++) {
+            sink += writer(writer, position, attitude).length();
+        }
+        final double after = (double) (Benchmarks.allocatedBytes() - start) / FRAMES / EVENTS_PER_FRAME;
+
+        System.out.println(String.format("bytes allocated per event: JSONObject tree %.1f, JsonWriter %.1f (%d)", before, after, sink));
+        assertTrue(after < before);
+    }
+
+    /**
+     * これまでのやり方。イベントごとに List を作り、送るときに JSONObject の木にする
+     */
+    private static String objectTree(Map<String, Object> position, Map<String, Object> attitude) {
+        final List<List<Object>> events = new ArrayList<>();
+        for (int i = 0; i < EVENTS_PER_FRAME; i++) {
+            final boolean even = i % 2 == 0;
+            events.add(Arrays.asList(even ? Events.POSITION : Events.ATTITUDE, (long) i, even ? position : attitude));
+        }
+        final Map<String, Object> frame = new HashMap<>();
+        frame.put(EventBatcher.KEY_TIME, 0L);
+        frame.put(EventBatcher.KEY_EVENTS, events);
+        return new JSONObject(frame).toString();
+    }
+
+    /**
+     * EventBatcher の文字列モードと同じやり方
+     */
+    private static String writer(JsonWriter writer, Map<String, Object> position, Map<String, Object> attitude) {
+        writer.reset().raw("{\"t\":").number(0L).raw(",\"e\":[");
+        for (int i = 0; i < EVENTS_PER_FRAME; i++) {
+            final boolean even = i % 2 == 0;
+            if (i > 0) {
+                writer.raw(',');
+            }
+            writer.raw('[').string(even ? Events.POSITION : Events.ATTITUDE).raw(',').number((long) i).raw(',').value(even ? position : attitude).raw(']');
+        }
+        return writer.raw("]}").toString();
+    }
+
+}
@@ -0,0 +1,50 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * VehicleDashboard のテスト。
+ */
+public class VehicleDashboardTest {
+
+    @Test
+    public void keepsLatestValues() throws Exception {
+        final VehicleDashboard dashboard = new VehicleDashboard();
+        assertNull(dashboard.getPosition());
+
+        final Object first = Collections.singletonMap("coordinate", new double[]{35, 139, 10});
+        final Object second = Collections.singletonMap("coordinate", new double[]{35, 139, 20});
+        dashboard.update(Events.POSITION, first);
+        dashboard.update(Events.POSITION, second);
+        dashboard.update(Events.MODE, Collections.singletonMap("mode", "Guided"));
+        assertSame(second, dashboard.getPosition());
+        assertEquals(Collections.singletonMap("mode", "Guided"), dashboard.getMode());
+        assertEquals(3, dashboard.getVersion());
+
+        // 画面に出さないイベントでは変わらない
+        dashboard.update(Events.ATTITUDE, Collections.emptyMap());
+        dashboard.update(Events.METRICS, Collections.emptyMap());
+        assertEquals(3, dashboard.getVersion());
+    }
+
+}
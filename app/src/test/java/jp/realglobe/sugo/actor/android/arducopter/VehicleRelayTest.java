@@ -0,0 +1,38 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * VehicleRelay のテスト。
+ */
+public class VehicleRelayTest {
+
+    @Test
+    public void validatesName() throws Exception {
+        for (String name : new String[]{"ArduCopter", "ArduCopter2", "copter_1", "copter-a.b"}) {
+            assertTrue(name, VehicleRelay.isValidName(name));
+        }
+        for (String name : new String[]{null, "", ".", "..", "../x", "a/b", ".hidden", "a b", "a\\b"}) {
+            assertFalse(name, VehicleRelay.isValidName(name));
+        }
+    }
+
+}
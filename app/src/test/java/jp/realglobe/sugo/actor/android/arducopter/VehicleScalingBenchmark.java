@@ -0,0 +1,132 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * 1 台の端末で何機まで中継できるかを調べる。
+ * 機体ごとに EventPipeline を作り、機体からの受信スレッドの代わりに
+ * 一定頻度でテレメトリを流して、出口に届くまでの時間を測る
+ */
+public class VehicleScalingBenchmark {
+
+    /**
+     * 1 種類のテレメトリを流す頻度 (回/秒)
+     */
+    private static final int RATE = 50;
+    private static final int[] VEHICLE_COUNTS = {1, 2, 4, 8, 16, 32};
+    private static final long DURATION = 2_000;
+    /**
+     * これより遅くなったら劣化したと見なす p99 (ミリ秒)
+     */
+    private static final double LATENCY_LIMIT = 20;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void latencyByVehicleCount() throws Exception {
+        assumeTrue(Benchmarks.enabled());
+
+        int capacity = 0;
+        for (int vehicleCount : VEHICLE_COUNTS) {
+            final Result result = relay(vehicleCount);
+            System.out.println(String.format("%2d vehicles at %d events/s each: delivered %d/%d, dropped %d, p50 %.2fms, p99 %.2fms, max %.2fms",
+                    vehicleCount, RATE * SyntheticTelemetry.TOPICS.length, result.delivered, result.produced, result.dropped,
+                    result.latency.getPercentile(50) / 1e3, result.latency.getPercentile(99) / 1e3, result.latency.getMax() / 1e3));
+            if (result.latency.getPercentile(99) / 1e3 > LATENCY_LIMIT || result.dropped > 0) {
+                break;
+            }
+            capacity = vehicleCount;
+        }
+        System.out.println("vehicles relayed within " + LATENCY_LIMIT + "ms p99: " + capacity);
+        assertTrue(capacity > 0);
+    }
+
+    private static final class Result {
+        final LatencyHistogram latency = new LatencyHistogram();
+        long produced;
+        long delivered;
+        long dropped;
+    }
+
+    /**
+     * 指定した数の機体を同時に中継する
+     */
+    private Result relay(int vehicleCount) throws Exception {
+        final Result result = new Result();
+        final AtomicLong delivered = new AtomicLong();
+
+        final List<EventPipeline> pipelines = new ArrayList<>();
+        for (int i = 0; i < vehicleCount; i++) {
+            final PipelineOptions options = new PipelineOptions();
+            options.recorderFile = folder.newFile();
+            options.outboundFile = folder.newFile();
+            final EventPipeline pipeline = new EventPipeline("vehicle" + i, (event, data) -> {
+                final long sentAt = (Long) ((Map<?, ?>) data).get(SyntheticTelemetry.KEY_SENT_AT);
+                result.latency.record(System.nanoTime() - sentAt);
+                delivered.incrementAndGet();
+            }, options);
+            pipeline.setOnline(true);
+            pipelines.add(pipeline);
+        }
+
+        // 機体からの受信スレッドの代わり
+        final List<Thread> sources = new ArrayList<>();
+        final AtomicLong produced = new AtomicLong();
+        for (EventPipeline pipeline : pipelines) {
+            final Thread source = new Thread(() -> produced.addAndGet(SyntheticTelemetry.run(pipeline.getInput(), RATE, DURATION)));
+            sources.add(source);
+            source.start();
+        }
+        for (Thread source : sources) {
+            source.join();
+        }
+
+        // 残りが出口に届くのを待つ
+        final long deadline = System.currentTimeMillis() + 1_000;
+        while (System.currentTimeMillis() < deadline) {
+            long depth = 0;
+            for (EventPipeline pipeline : pipelines) {
+                depth += pipeline.getLaneStats().getDepth();
+            }
+            if (depth == 0) {
+                break;
+            }
+            Thread.sleep(10);
+        }
+        for (EventPipeline pipeline : pipelines) {
+            result.dropped += pipeline.getLaneStats().getDropped();
+            pipeline.close();
+        }
+        result.produced = produced.get();
+        result.delivered = delivered.get();
+        return result;
+    }
+
+}
@@ -0,0 +1,149 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * VideoSegmentWriter のテスト。
+ */
+public class VideoSegmentWriterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * 区切りの中身からデータグラムを読み出す
+     */
+    static List<byte[]> readDatagrams(InputStream segment) throws Exception {
+        final List<byte[]> datagrams = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(segment)) {
+            while (in.available() > 0) {
+                final byte[] datagram = new byte[in.readInt()];
+                in.readFully(datagram);
+                datagrams.add(datagram);
+            }
+        }
+        return datagrams;
+    }
+
+    private static List<byte[]> readDatagrams(File segment) throws Exception {
+        return readDatagrams(new FileInputStream(segment));
+    }
+
+    @Test
+    public void splitsBetweenDatagrams() throws Exception {
+        final File dir = this.folder.newFolder();
+        final List<File> segments = new ArrayList<>();
+        final Random random = new Random(1);
+        final List<byte[]> video = new ArrayList<>();
+        for (int i = 0; i < 7; i++) {
+            final byte[] datagram = new byte[1_500];
+            random.nextBytes(datagram);
+            video.add(datagram);
+        }
+
+        try (VideoSegmentWriter writer = new VideoSegmentWriter(dir, 4_096, segments::add)) {
+            for (byte[] datagram : video) {
+                writer.writeDatagram(ByteBuffer.wrap(datagram));
+            }
+            // 2 つ入れたら 3 つ目は収まらない
+            assertEquals(3, segments.size());
+        }
+        assertEquals(4, segments.size());
+
+        final List<byte[]> read = new ArrayList<>();
+        for (int i = 0; i < segments.size(); i++) {
+            final File segment = segments.get(i);
+            assertTrue(segment.getName().endsWith(VideoSegmentWriter.SEGMENT_SUFFIX));
+            assertTrue(segment.length() <= 4_096);
+            if (i > 0) {
+                assertTrue(segment.getName().compareTo(segments.get(i - 1).getName()) > 0);
+            }
+            read.addAll(readDatagrams(segment));
+        }
+        assertEquals(video.size(), read.size());
+        for (int i = 0; i < video.size(); i++) {
+            assertArrayEquals(video.get(i), read.get(i));
+        }
+    }
+
+    @Test
+    public void writesLargeDatagramAlone() throws Exception {
+        final File dir = this.folder.newFolder();
+        final List<File> segments = new ArrayList<>();
+        try (VideoSegmentWriter writer = new VideoSegmentWriter(dir, 1_024, segments::add)) {
+            writer.writeDatagram(ByteBuffer.wrap(new byte[100]));
+            writer.writeDatagram(ByteBuffer.wrap(new byte[2_000]));
+            writer.writeDatagram(ByteBuffer.wrap(new byte[0]));
+        }
+        assertEquals(3, segments.size());
+        assertEquals(VideoSegmentWriter.HEADER_SIZE + 2_000, segments.get(1).length());
+        assertEquals(0, readDatagrams(segments.get(2)).get(0).length);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsHugeSegmentSize() throws Exception {
+        // 2 GiB 以上の区切りは HTTP で送れない
+        new VideoSegmentWriter(this.folder.newFolder(), 2L * 1024 * 1024 * 1024, segment -> {
+        });
+    }
+
+    @Test
+    public void recoversInterruptedSegment() throws Exception {
+        final File dir = this.folder.newFolder();
+        final List<File> segments = new ArrayList<>();
+        final VideoSegmentWriter interrupted = new VideoSegmentWriter(dir, 4_096, segments::add);
+        interrupted.writeDatagram(ByteBuffer.wrap(new byte[1_000]));
+        interrupted.writeDatagram(ByteBuffer.wrap(new byte[1_000]));
+        // 閉じずに中断したことにする。最後のレコードは書き途中だった
+        assertTrue(segments.isEmpty());
+        final File[] parts = dir.listFiles((d, name) -> name.endsWith(VideoSegmentWriter.PART_SUFFIX));
+        assertEquals(1, parts.length);
+        try (RandomAccessFile part = new RandomAccessFile(parts[0], "rw")) {
+            part.setLength(part.length() - 10);
+        }
+
+        Thread.sleep(2);
+        try (VideoSegmentWriter writer = new VideoSegmentWriter(dir, 4_096, segments::add)) {
+            final String[] recovered = dir.list((d, name) -> name.endsWith(VideoSegmentWriter.SEGMENT_SUFFIX));
+            assertEquals(1, recovered.length);
+            assertEquals(VideoSegmentWriter.HEADER_SIZE + 1_000, new File(dir, recovered[0]).length());
+            assertEquals(0, dir.list((d, name) -> name.endsWith(VideoSegmentWriter.PART_SUFFIX)).length);
+
+            writer.writeDatagram(ByteBuffer.wrap(new byte[10]));
+            writer.finish();
+            // 新しい区切りは前のものより後ろに並ぶ
+            assertTrue(segments.get(0).getName().compareTo(recovered[0]) > 0);
+        }
+    }
+
+}
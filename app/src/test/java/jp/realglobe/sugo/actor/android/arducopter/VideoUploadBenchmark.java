@@ -0,0 +1,106 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.arducopter;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * 映像の記録と送り出しで、記録の長さによらずメモリ使用量と速さが変わらないことを確かめる。
+ * UDP で届く大きさの塊を区切りに書き、書き終えたものからディレクトリに送る
+ */
+public class VideoUploadBenchmark {
+
+    private static final int PACKET_SIZE = 1_400;
+    private static final long SEGMENT_SIZE = 4 * 1024 * 1024;
+    private static final long[] LENGTHS = {32L * 1024 * 1024, 128L * 1024 * 1024, 512L * 1024 * 1024};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void flatByLength() throws Exception {
+        assumeTrue(Benchmarks.enabled());
+
+        final List<Object> results = new ArrayList<>();
+        double firstAllocation = 0;
+        for (long length : LENGTHS) {
+            final Map<String, Object> result = record(length);
+            results.add(result);
+            final double allocation = (double) result.get("allocatedBytesPerMiB");
+            System.out.println(String.format("%4d MiB: %.1f MiB/s, %.0f allocated bytes/MiB, heap used %d KiB",
+                    length / 1024 / 1024, result.get("throughput"), allocation, (long) result.get("heapUsed") / 1024));
+            if (firstAllocation == 0) {
+                firstAllocation = allocation;
+            } else {
+                // 長くしても 1 MiB あたりの確保量は増えない
+                assertTrue(allocation < 2 * firstAllocation + 1_024);
+            }
+        }
+        System.out.println("report: " + Benchmarks.writeReport("video-upload", results));
+    }
+
+    private Map<String, Object> record(long length) throws Exception {
+        final File dir = this.folder.newFolder();
+        final File target = this.folder.newFolder();
+        final SegmentUploader uploader = new SegmentUploader(dir, SegmentUploader.sinkFor(target.getPath()), new Backoff(10, 100));
+        uploader.start();
+        final ByteBuffer packet = ByteBuffer.allocateDirect(PACKET_SIZE);
+
+        System.gc();
+        final long allocatedBefore = Benchmarks.allThreadsAllocatedBytes();
+        final long start = System.nanoTime();
+        try (VideoSegmentWriter writer = new VideoSegmentWriter(dir, SEGMENT_SIZE, uploader::offer)) {
+            for (long written = 0; written < length; written += PACKET_SIZE) {
+                packet.clear();
+                writer.writeDatagram(packet);
+            }
+        }
+        final long packets = (length + PACKET_SIZE - 1) / PACKET_SIZE;
+        final long packetsPerSegment = SEGMENT_SIZE / (PACKET_SIZE + VideoSegmentWriter.HEADER_SIZE);
+        final long segments = (packets + packetsPerSegment - 1) / packetsPerSegment;
+        while (uploader.getUploadedCount() < segments) {
+            Thread.sleep(1);
+        }
+        final long elapsed = System.nanoTime() - start;
+        final long allocated = Benchmarks.allThreadsAllocatedBytes() - allocatedBefore;
+        final Runtime runtime = Runtime.getRuntime();
+        final long heapUsed = runtime.totalMemory() - runtime.freeMemory();
+        uploader.close();
+
+        final Map<String, Object> result = new HashMap<>();
+        result.put("bytes", uploader.getUploadedBytes());
+        result.put("segments", uploader.getUploadedCount());
+        result.put("seconds", elapsed / 1e9);
+        result.put("throughput", uploader.getUploadedBytes() / 1024.0 / 1024.0 / (elapsed / 1e9));
+        result.put("allocatedBytesPerMiB", allocated / (uploader.getUploadedBytes() / 1024.0 / 1024.0));
+        result.put("heapUsed", heapUsed);
+        return result;
+    }
+
+}
@@ -0,0 +1,105 @@
+// caller.js と同じ飛行を、position を受け取らずに actor 側のジオフェンスで進める
+
+'use strict'
+
+const sugoCaller = require('sugo-caller')
+const co = require('co')
+const asleep = require('asleep')
+
+const HUB = process.env.HUB || 'http://localhost:8080'
+const ACTOR = process.env.ACTOR || 'arducopter:1'
+const DRONE_TYPE = process.env.DRONE_TYPE || 'udp'
+const DRONE_ADDR = process.env.DRONE_ADDR || 'localhost'
+
+const takeoffAlt = 10
+const alt = 30
+const dist = 0.0003
+// 着いたと見なす半径 (m)。caller.js の dist / 10 に当たる
+const arrivalRadius = 3
+
+co(function * () {
+  const caller = sugoCaller(HUB + '/callers')
+  const actor = yield caller.connect(ACTOR)
+  const arduCopter = actor.get('ArduCopter')
+
+  arduCopter.on('armed', () => console.log('ARMED'))
+  arduCopter.on('mode', data => console.log(JSON.stringify(data)))
+
+  arduCopter.on('disarmed', () => co(function *() {
+    console.log('DISARMED')
+    yield arduCopter.clearFences()
+    yield arduCopter.disconnect()
+    yield asleep(1000)
+    yield caller.disconnect()
+  }).catch((err) => {
+    console.error(err)
+    caller.disconnect()
+  }))
+
+  let climbing = false
+  let moving = false
+  arduCopter.on('entered', data => co(function *() {
+    console.log(JSON.stringify(data))
+    if (data.id === 'takeoff') {
+      yield arduCopter.removeFence('takeoff')
+      climbing = true
+      yield arduCopter.addFence({id: 'cruise', type: 'band', minAltitude: alt - 1})
+
+      console.log('CLIMB TO ' + alt);
+      // なぜか途中で止まるので繰り返す
+      (function loop () {
+        if (!climbing) {
+          return
+        }
+        arduCopter.climbTo(alt)
+        setTimeout(loop, 10000)
+      })()
+    } else if (data.id === 'cruise') {
+      yield arduCopter.removeFence('cruise')
+      climbing = false
+      moving = true
+      const goal = [data.coordinate[0] + dist, data.coordinate[1]]
+      yield arduCopter.addFence({id: 'goal', type: 'arrival', center: goal, radius: arrivalRadius})
+
+      console.log('GO TO ' + goal);
+      // なぜか途中で止まるので繰り返す
+      (function loop () {
+        if (!moving) {
+          return
+        }
+        arduCopter.goTo(goal[0], goal[1])
+        setTimeout(loop, 10000)
+      })()
+    }
+  }).catch((err) => console.error(err)))
+
+  arduCopter.on('arrived', data => {
+    console.log(JSON.stringify(data))
+    moving = false
+
+    console.log('LAND')
+    arduCopter.land()
+  })
+
+  yield arduCopter.disableEvents(null)
+  yield arduCopter.enableEvents([
+    'armed',
+    'arrived',
+    'disarmed',
+    'entered',
+    'mode'
+  ])
+
+  yield arduCopter.clearFences()
+  yield arduCopter.addFence({id: 'takeoff', type: 'band', minAltitude: takeoffAlt - 1})
+
+  yield arduCopter.connect(DRONE_TYPE, DRONE_ADDR)
+  yield asleep(3000)
+  yield arduCopter.setMode('Guided')
+  yield asleep(1000)
+  yield arduCopter.arm(true)
+  yield asleep(1000)
+
+  console.log('TAKEOFF')
+  yield arduCopter.takeoff(takeoffAlt)
+}).catch((err) => console.error(err))
@@ -0,0 +1,26 @@
+// actor の計測値を表示する
+
+'use strict'
+
+const sugoCaller = require('sugo-caller')
+const co = require('co')
+const asleep = require('asleep')
+
+const HUB = process.env.HUB || 'http://localhost:8080'
+const ACTOR = process.env.ACTOR || 'arducopter:1'
+
+co(function * () {
+  const caller = sugoCaller(HUB + '/callers')
+  const actor = yield caller.connect(ACTOR)
+  const arduCopter = actor.get('ArduCopter')
+
+  arduCopter.on('metrics', data => console.log(JSON.stringify(data, null, 2)))
+
+  yield arduCopter.disableEvents(null)
+  yield arduCopter.enableEvents([
+    'metrics'
+  ])
+
+  yield asleep(60000)
+  yield caller.disconnect()
+}).catch((err) => console.error(err))
@@ -0,0 +1,79 @@
+// 長いミッションを保存してから 1 か所だけ変えて保存し直す
+// 2 回目は前のミッションのハッシュと変えた項目だけを送る
+
+'use strict'
+
+const sugoCaller = require('sugo-caller')
+const co = require('co')
+const asleep = require('asleep')
+
+const HUB = process.env.HUB || 'http://localhost:8080'
+const ACTOR = process.env.ACTOR || 'arducopter:1'
+const DRONE_TYPE = process.env.DRONE_TYPE || 'udp'
+const DRONE_ADDR = process.env.DRONE_ADDR || 'localhost'
+
+const alt = 30
+const rows = 10
+const columns = 30
+const step = 0.0001
+
+// 前に保存したミッションのハッシュが actor に無ければ全部送り直す
+function * saveEdited (arduCopter, hash, mission, changes) {
+  try {
+    return yield arduCopter.saveMissionDiff(hash, changes, mission.length)
+  } catch (err) {
+    console.log('FALL BACK TO FULL UPLOAD: ' + err.message)
+    yield arduCopter.saveMission(mission)
+    return {hash: yield arduCopter.getMissionHash(), uploaded: true}
+  }
+}
+
+co(function * () {
+  const caller = sugoCaller(HUB + '/callers')
+  const actor = yield caller.connect(ACTOR)
+  const arduCopter = actor.get('ArduCopter')
+
+  arduCopter.on('missionSaved', () => console.log('MISSION SAVED'))
+  let coordinate
+  arduCopter.on('position', data => { coordinate = data.coordinate })
+
+  yield arduCopter.disableEvents(null)
+  yield arduCopter.enableEvents([
+    'missionSaved',
+    'position'
+  ])
+
+  yield arduCopter.connect(DRONE_TYPE, DRONE_ADDR)
+  while (typeof coordinate === 'undefined') {
+    yield asleep(1000)
+  }
+
+  // 往復しながら面を塗る
+  const mission = []
+  for (let i = 0; i < rows; i++) {
+    for (let j = 0; j < columns; j++) {
+      const column = i % 2 === 0 ? j : columns - 1 - j
+      mission.push({
+        type: 'waypoint',
+        coordinate: [coordinate[0] + i * step, coordinate[1] + column * step, alt]
+      })
+    }
+  }
+
+  console.log('SAVE ' + mission.length + ' ITEMS')
+  yield arduCopter.saveMission(mission)
+  const hash = yield arduCopter.getMissionHash()
+  console.log('HASH ' + hash)
+
+  // 真ん中の 1 点を少し高くする
+  const index = Math.floor(mission.length / 2)
+  const item = {type: 'waypoint', coordinate: [mission[index].coordinate[0], mission[index].coordinate[1], alt + 10]}
+  mission[index] = item
+  const result = yield saveEdited(arduCopter, hash, mission, [{index, item}])
+  console.log(JSON.stringify(result))
+
+  yield asleep(1000)
+  yield arduCopter.disconnect()
+  yield asleep(1000)
+  yield caller.disconnect()
+}).catch((err) => console.error(err))
@@ -0,0 +1,29 @@
+// ping イベントにすぐ pong で返事をする。
+// actor はその往復時間で回線の混み具合を測り、テレメトリを間引く頻度を調整する
+
+'use strict'
+
+const sugoCaller = require('sugo-caller')
+const co = require('co')
+const asleep = require('asleep')
+
+const HUB = process.env.HUB || 'http://localhost:8080'
+const ACTOR = process.env.ACTOR || 'arducopter:1'
+
+co(function * () {
+  const caller = sugoCaller(HUB + '/callers')
+  const actor = yield caller.connect(ACTOR)
+  const arduCopter = actor.get('ArduCopter')
+
+  yield arduCopter.disableEvents(null)
+  yield arduCopter.enableEvents(['ping', 'metrics'])
+
+  arduCopter.on('ping', data => {
+    arduCopter.pong(data.id)
+  })
+  arduCopter.on('metrics', data => console.log(JSON.stringify(data.hub.roundTrip)))
+
+  yield asleep(60000)
+
+  yield caller.disconnect()
+}).catch((err) => console.error(err))
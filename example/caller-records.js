@@ -0,0 +1,33 @@
+// actor に記録されている直近 1 分のイベントを読み出す
+
+'use strict'
+
+const sugoCaller = require('sugo-caller')
+const co = require('co')
+
+const HUB = process.env.HUB || 'http://localhost:8080'
+const ACTOR = process.env.ACTOR || 'arducopter:1'
+const SPAN = 60 * 1000
+
+co(function * () {
+  const caller = sugoCaller(HUB + '/callers')
+  const actor = yield caller.connect(ACTOR)
+  const arduCopter = actor.get('ArduCopter')
+
+  const to = Date.now()
+  let from = to - SPAN
+  while (true) {
+    const result = yield arduCopter.getRecords(from, to)
+    for (const record of result.records) {
+      console.log(record.time + ' ' + record.event + ' ' + JSON.stringify(record.data))
+    }
+    if (!result.truncated || result.records.length === 0) {
+      console.log('skipped: ' + result.skipped)
+      break
+    }
+    // 打ち切られたら最後の時刻の次から読み直す
+    from = result.records[result.records.length - 1].time + 1
+  }
+
+  yield caller.disconnect()
+}).catch((err) => console.error(err))
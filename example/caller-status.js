@@ -3,6 +3,7 @@
 const sugoCaller = require('sugo-caller')
 const co = require('co')
 const asleep = require('asleep')
+const unbatch = require('./unbatch')
 
 const HUB = process.env.HUB || 'http://localhost:8080'
 const ACTOR = process.env.ACTOR || 'arducopter:1'
@@ -14,21 +15,42 @@ co(function * () {
   const actor = yield caller.connect(ACTOR)
   const arduCopter = actor.get('ArduCopter')
 
-  arduCopter.on('armed', () => console.log('ARMED'))
-  arduCopter.on('attitude', data => console.log(JSON.stringify(data)))
-  arduCopter.on('battery', data => console.log(JSON.stringify(data)))
-  arduCopter.on('commandReached', data => console.log(JSON.stringify(data)))
-  arduCopter.on('connected', () => console.log('CONNECTED'))
-  arduCopter.on('disarmed', () => console.log('DISARMED'))
-  arduCopter.on('disconnected', () => console.log('DISCONNECTED'))
-  arduCopter.on('gimbalOrientation', data => console.log(JSON.stringify(data)))
-  arduCopter.on('home', data => console.log(JSON.stringify(data)))
-  arduCopter.on('mission', data => console.log(JSON.stringify(data)))
-  arduCopter.on('missionSaved', () => console.log('MISSION SAVED'))
-  arduCopter.on('mode', data => console.log(JSON.stringify(data)))
-  arduCopter.on('position', data => console.log(JSON.stringify(data)))
-  arduCopter.on('speed', data => console.log(JSON.stringify(data)))
-  arduCopter.on('type', data => console.log(JSON.stringify(data)))
+  const events = unbatch(arduCopter, [
+    'armed',
+    'attitude',
+    'battery',
+    'commandReached',
+    'connected',
+    'disarmed',
+    'disconnected',
+    'gimbalOrientation',
+    'home',
+    'mission',
+    'missionSaved',
+    'mode',
+    'position',
+    'replay',
+    'speed',
+    'type'
+  ])
+
+  events.on('armed', () => console.log('ARMED'))
+  events.on('attitude', data => console.log(JSON.stringify(data)))
+  events.on('battery', data => console.log(JSON.stringify(data)))
+  events.on('commandReached', data => console.log(JSON.stringify(data)))
+  events.on('connected', () => console.log('CONNECTED'))
+  events.on('disarmed', () => console.log('DISARMED'))
+  events.on('disconnected', () => console.log('DISCONNECTED'))
+  events.on('gimbalOrientation', data => console.log(JSON.stringify(data)))
+  events.on('home', data => console.log(JSON.stringify(data)))
+  events.on('mission', data => console.log(JSON.stringify(data)))
+  events.on('missionSaved', () => console.log('MISSION SAVED'))
+  events.on('mode', data => console.log(JSON.stringify(data)))
+  events.on('position', data => console.log(JSON.stringify(data)))
+  // hub と切れていた間のイベント
+  events.on('replay', data => console.log('REPLAY ' + JSON.stringify(data)))
+  events.on('speed', data => console.log(JSON.stringify(data)))
+  events.on('type', data => console.log(JSON.stringify(data)))
 
   yield arduCopter.enableEvents(null)
 
@@ -0,0 +1,56 @@
+// 自分宛ての待ち行列で position と attitude を受け取り、受け取り確認を返す。
+// 回線が遅くても他の呼び出し側へのイベントは遅れない。
+// 同じイベントと設定で購読した呼び出し側とは同じフレームを受け取り、確認は全員から来るまで待たれる。
+// actor が hub に繋ぎ直したときは確認していないフレームが同じ通し番号で届き直すので、読み飛ばす
+
+'use strict'
+
+const sugoCaller = require('sugo-caller')
+const co = require('co')
+const asleep = require('asleep')
+const unbatch = require('./unbatch')
+
+const HUB = process.env.HUB || 'http://localhost:8080'
+const ACTOR = process.env.ACTOR || 'arducopter:1'
+const SUBSCRIBER = process.env.SUBSCRIBER || 'dashboard-' + process.pid
+// これだけ受け取ったら確認を返す。window より小さくする
+const ACK_EVERY = 8
+
+co(function * () {
+  const caller = sugoCaller(HUB + '/callers')
+  const actor = yield caller.connect(ACTOR)
+  const arduCopter = actor.get('ArduCopter')
+
+  // 全員に送られるイベントは要らない
+  yield arduCopter.disableEvents(null)
+
+  const frameEvent = yield arduCopter.subscribe(SUBSCRIBER, ['position', 'attitude', 'mode'], {
+    capacity: 64,
+    drop: 'latest',
+    maxRate: 10,
+    window: 32
+  })
+
+  let received = 0
+  let last = 0
+  // まとめ送りが有効なら batch イベントに入って届く
+  unbatch(arduCopter, [frameEvent]).on(frameEvent, frame => {
+    if (frame.seq <= last) {
+      return
+    }
+    last = frame.seq
+    console.log(frame.seq + ' ' + frame.event + ' ' + JSON.stringify(frame.data))
+    received++
+    if (received % ACK_EVERY === 0) {
+      arduCopter.ackEvents(SUBSCRIBER, frame.seq)
+    }
+  })
+
+  for (let i = 0; i < 6; i++) {
+    yield asleep(10000)
+    console.log(JSON.stringify((yield arduCopter.getSubscriberStats())[SUBSCRIBER]))
+  }
+
+  yield arduCopter.unsubscribe(SUBSCRIBER)
+  yield caller.disconnect()
+}).catch((err) => console.error(err))
@@ -0,0 +1,70 @@
+// キーフレームと差分にして送られたイベント (position, attitude) を元に戻す
+//
+// 差分にされたイベントの中身は
+//   キーフレーム {n: 通番, q: {フィールド: 刻み幅の配列}, k: {フィールド: 刻み幅単位の値}, r: {その他のフィールド}}
+//   差分       {n: 通番, d: {変わったフィールド: 前からの差}, r: {その他のフィールド}}
+// 差分にされていないイベントはそのまま返す
+
+'use strict'
+
+/**
+ * 刻み幅から小数点以下の桁数を決める
+ * @param {number} quantum - 刻み幅
+ * @returns {number} 桁数
+ */
+function decimals (quantum) {
+  return Math.max(0, Math.ceil(-Math.log10(quantum) - 1e-9))
+}
+
+function restore (value, quanta) {
+  const restoreOne = (element, i) => {
+    const quantum = quanta[Math.min(i, quanta.length - 1)]
+    return Number((element * quantum).toFixed(decimals(quantum)))
+  }
+  return Array.isArray(value) ? value.map(restoreOne) : restoreOne(value, 0)
+}
+
+function isEncoded (data) {
+  return data !== null && typeof data === 'object' && typeof data.n === 'number' && ('k' in data || 'd' in data)
+}
+
+/**
+ * 復号器を作る。イベントの種類ごとに前の値を覚えておく
+ * @returns {function(string, *): *} (イベント名, 中身) から元の中身を返す。
+ *   前の値が無い、または途中が抜けた差分なら、次のキーフレームまで null を返す
+ */
+function createDecoder () {
+  const streams = new Map()
+
+  return function decode (event, data) {
+    if (!isEncoded(data)) {
+      return data
+    }
+
+    let stream
+    if ('k' in data) {
+      stream = {quanta: data.q, values: Object.assign({}, data.k)}
+      streams.set(event, stream)
+    } else {
+      stream = streams.get(event)
+      if (!stream || stream.next !== data.n) {
+        streams.delete(event)
+        return null
+      }
+      for (const field of Object.keys(data.d)) {
+        const delta = data.d[field]
+        const last = stream.values[field]
+        stream.values[field] = Array.isArray(delta) ? last.map((element, i) => element + delta[i]) : last + delta
+      }
+    }
+    stream.next = data.n + 1
+
+    const decoded = Object.assign({}, data.r)
+    for (const field of Object.keys(stream.values)) {
+      decoded[field] = restore(stream.values[field], stream.quanta[field])
+    }
+    return decoded
+  }
+}
+
+module.exports = createDecoder
@@ -0,0 +1,53 @@
+// 送り出された映像の区切りファイルを読んで、記録したデータグラムを UDP で流し直す
+//
+// 区切りファイルはデータグラムごとに
+//   大きさ (4 バイトのビッグエンディアン), 中身
+// を並べたもの。名前順に並べると記録順になる
+//
+// 例: node replay-video.js /path/to/segments/*.seg
+// で 5600 番ポートに流し、gst-launch-1.0 などで受ける
+
+'use strict'
+
+const dgram = require('dgram')
+const fs = require('fs')
+
+const HOST = process.env.HOST || '127.0.0.1'
+const PORT = Number(process.env.PORT || 5600)
+const HEADER_SIZE = 4
+
+/**
+ * 区切りファイルからデータグラムを取り出す
+ * @param {Buffer} segment - 区切りファイルの中身
+ * @returns {Buffer[]} データグラム
+ */
+function datagramsOf (segment) {
+  const datagrams = []
+  let position = 0
+  while (position + HEADER_SIZE <= segment.length) {
+    const end = position + HEADER_SIZE + segment.readUInt32BE(position)
+    if (end > segment.length) {
+      break
+    }
+    datagrams.push(segment.slice(position + HEADER_SIZE, end))
+    position = end
+  }
+  return datagrams
+}
+
+const socket = dgram.createSocket('udp4')
+const files = process.argv.slice(2).sort()
+const datagrams = []
+for (const file of files) {
+  datagrams.push(...datagramsOf(fs.readFileSync(file)))
+}
+
+let index = 0
+const next = () => {
+  if (index >= datagrams.length) {
+    socket.close()
+    return
+  }
+  socket.send(datagrams[index++], PORT, HOST, next)
+}
+next()
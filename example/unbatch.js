@@ -0,0 +1,51 @@
+// まとめて送られたイベント (batch イベント) をばらす
+//
+// batch イベントの中身は
+//   {t: 最初のイベントの時刻 (ミリ秒), e: [[イベント名, t からの経過ミリ秒, 中身], ...]}
+// か、それを JSON にした文字列
+// 文字列になるのは、設定で「文字列にして送る」を選んだとき。そのときは JSON.parse してから読む
+// まとめられずにそのまま届くイベントは、どちらの設定でもオブジェクトのまま
+// まとめ送りが無効でも、イベントが 1 つしかないときでも、そのまま使える
+// キーフレームと差分にして送られたイベントも元に戻す (delta.js)
+
+'use strict'
+
+const EventEmitter = require('events')
+const createDecoder = require('./delta')
+
+const BATCH_EVENT = 'batch'
+
+/**
+ * モジュールのイベントをばらして流し直す
+ * @param {Object} module - actor.get('ArduCopter') で得たモジュール
+ * @param {string[]} events - 受け取るイベント名
+ * @returns {EventEmitter} ばらしたイベントを発行する。第 2 引数は発行時刻 (ミリ秒)
+ */
+function unbatch (module, events) {
+  const emitter = new EventEmitter()
+  const targets = new Set(events)
+  const decode = createDecoder()
+  const emit = (event, data, time) => {
+    const decoded = decode(event, data)
+    if (decoded !== null) {
+      emitter.emit(event, decoded, time)
+    }
+  }
+
+  for (const event of targets) {
+    module.on(event, data => emit(event, data, Date.now()))
+  }
+
+  module.on(BATCH_EVENT, batch => {
+    const frame = typeof batch === 'string' ? JSON.parse(batch) : batch
+    for (const [event, delay, data] of frame.e) {
+      if (targets.has(event)) {
+        emit(event, data, frame.t + delay)
+      }
+    }
+  })
+
+  return emitter
+}
+
+module.exports = unbatch